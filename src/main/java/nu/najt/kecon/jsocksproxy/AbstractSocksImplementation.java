@@ -22,16 +22,47 @@ import static nu.najt.kecon.jsocksproxy.utils.StringUtils.formatSocket;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.net.BindException;
+import java.net.Inet6Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
+import java.net.UnknownHostException;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 
 import org.slf4j.Logger;
 import org.slf4j.MDC;
 
+import nu.najt.kecon.jsocksproxy.connect.CircuitBreaker;
+import nu.najt.kecon.jsocksproxy.connect.CircuitOpenException;
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats;
+import nu.najt.kecon.jsocksproxy.connect.HappyEyeballsConnector;
+import nu.najt.kecon.jsocksproxy.connect.HappyEyeballsConnector.BindFailover;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector.Source;
+import nu.najt.kecon.jsocksproxy.connect.WarmSocketPool;
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+import nu.najt.kecon.jsocksproxy.udp.UdpAssociation;
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer.Timeout;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor.Activity;
+
 /**
  * The common implementation of the SOCKS protocol.
  * 
@@ -43,6 +74,11 @@ public abstract class AbstractSocksImplementation
 
 	private static final int BIND_SOCKET_TIMEOUT = 180000;
 
+	private static final int RESOLVE_TIMEOUT = 30000;
+
+	private static final HappyEyeballsConnector CONNECTOR = new HappyEyeballsConnector(
+			HappyEyeballsConnector.DEFAULT_ATTEMPT_DELAY);
+
 	private final Socket clientSocket;
 
 	private final ConfigurationFacade configurationFacade;
@@ -53,6 +89,20 @@ public abstract class AbstractSocksImplementation
 
 	private final CountDownLatch countDownLatch = new CountDownLatch(1);
 
+	private boolean detached = false;
+
+	private Timeout handshakeTimeout;
+
+	private boolean handshakeStarted = false;
+
+	private long idleTimeout = 0;
+
+	private Source source;
+
+	private InetAddress replyAddress;
+
+	private byte[] replyAddressBytes;
+
 	/**
 	 * Constructor
 	 * 
@@ -75,19 +125,213 @@ public abstract class AbstractSocksImplementation
 		this.executor = executor;
 	}
 
+	/**
+	 * Set the idle timeout of the tunnel, given by the listen address which
+	 * accepted the client
+	 * 
+	 * @param idleTimeout
+	 *            the number of milliseconds a tunnel may be idle before it is
+	 *            closed, 0 means no timeout
+	 * @since 3.0
+	 */
+	public void setIdleTimeout(final long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
+	/**
+	 * Continue a handshake deadline started when the client was accepted,
+	 * instead of starting a new one in {@link #setup()}
+	 * 
+	 * @param handshakeTimeout
+	 *            the timeout of the deadline, null if there is no deadline
+	 * @since 3.0
+	 */
+	public void setHandshakeTimeout(final Timeout handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+		this.handshakeStarted = true;
+	}
+
 	protected void setup() {
 		MDC.setContextMap(Collections.emptyMap());
 		MDC.put(LoggingConstants.SOCKS_SERVER,
 				formatLocalSocket(clientSocket));
 		MDC.put(LoggingConstants.CLIENT, formatSocket(clientSocket));
+
+		final HandshakeDeadline handshakeDeadline = this.configurationFacade
+				.getHandshakeDeadline();
+		if ((handshakeDeadline != null) && !this.handshakeStarted) {
+			this.handshakeTimeout = handshakeDeadline.start(clientSocket);
+		}
+	}
+
+	/**
+	 * Stop the handshake deadline, called when the request has been read
+	 * 
+	 * @since 3.0
+	 */
+	protected void handshakeCompleted() {
+		if (this.handshakeTimeout != null) {
+			this.handshakeTimeout.cancel();
+		}
 	}
 
 	protected void cleanup() {
+		if (this.handshakeTimeout != null) {
+			this.handshakeTimeout.cancel();
+
+			if (this.handshakeTimeout.isExpired()) {
+				this.logger.info("Handshake deadline exceeded");
+			}
+			this.handshakeTimeout = null;
+		}
+
+		if (this.source != null) {
+			this.source.release();
+			this.source = null;
+		}
+
 		MDC.remove(LoggingConstants.SOCKS_SERVER);
 		MDC.remove(LoggingConstants.CLIENT);
 		MDC.remove(LoggingConstants.REMOTE_SERVER);
 	}
 
+	/**
+	 * Write a failure reply to the client and close the connection. Data
+	 * already received is discarded first, so that closing the socket does
+	 * not reset the connection before the client has read the reply.
+	 * 
+	 * @param reply
+	 *            the reply
+	 * @since 3.0
+	 */
+	protected void reject(final byte[] reply) {
+		try {
+			final InputStream inputStream = this.clientSocket.getInputStream();
+			final int available = inputStream.available();
+			if (available > 0) {
+				inputStream.skip(available);
+			}
+
+			final OutputStream outputStream = this.clientSocket
+					.getOutputStream();
+			outputStream.write(reply);
+			outputStream.flush();
+		} catch (final IOException e) {
+		} finally {
+			try {
+				this.clientSocket.close();
+			} catch (final IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * Resolve a host name requested by the client
+	 * 
+	 * @param hostname
+	 *            the host name or address literal
+	 * @return all addresses of the host, which must not be modified
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved
+	 * @since 3.0
+	 */
+	protected InetAddress[] resolve(final String hostname)
+			throws UnknownHostException {
+		final HostResolver hostResolver = this.configurationFacade
+				.getHostResolver();
+
+		if (hostResolver == null) {
+			return InetAddress.getAllByName(hostname);
+		}
+
+		Throwable cause;
+		try {
+			return hostResolver.resolve(hostname).get(
+					AbstractSocksImplementation.RESOLVE_TIMEOUT,
+					TimeUnit.MILLISECONDS);
+		} catch (final ExecutionException e) {
+			cause = e.getCause();
+		} catch (final TimeoutException e) {
+			cause = e;
+		} catch (final InterruptedException e) {
+			Thread.currentThread().interrupt();
+			cause = e;
+		}
+
+		// A failed lookup may be shared, so its exception is not rethrown
+		final UnknownHostException exception = new UnknownHostException(
+				hostname);
+		exception.initCause(cause);
+		throw exception;
+	}
+
+	/**
+	 * Connect to a destination requested by the client, recording the latency
+	 * or failure in the destination statistics. An idle connection from the
+	 * warm socket pool is used if there is one, which is not recorded as a
+	 * connect. Destinations whose circuit is open are not connected to.
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param inetAddresses
+	 *            the addresses of the host
+	 * @param port
+	 *            the port to connect to
+	 * @return established Socket
+	 * @throws CircuitOpenException
+	 *             if the circuit of the destination is open
+	 * @throws IOException
+	 *             if no address could be connected to
+	 * @since 3.0
+	 */
+	protected Socket connect(final String host,
+			final InetAddress[] inetAddresses, final int port)
+			throws IOException {
+		final DestinationStats destinationStats = this.configurationFacade
+				.getDestinationStats();
+		final CircuitBreaker circuitBreaker = this.configurationFacade
+				.getCircuitBreaker();
+
+		if ((circuitBreaker != null) && !circuitBreaker.allow(host, port)) {
+			this.logger.debug("Circuit open for {}:{}", host, port);
+			throw new CircuitOpenException(
+					"Circuit open for " + host + ":" + port);
+		}
+
+		final Socket pooled = this.takePooled(inetAddresses, port);
+		if (pooled != null) {
+			if (circuitBreaker != null) {
+				circuitBreaker.succeeded(host, port);
+			}
+			return pooled;
+		}
+
+		final long start = System.nanoTime();
+
+		try {
+			final Socket socket = this.openConnection(inetAddresses, port);
+
+			if (destinationStats != null) {
+				destinationStats.connected(host, port,
+						System.nanoTime() - start);
+			}
+
+			if (circuitBreaker != null) {
+				circuitBreaker.succeeded(host, port);
+			}
+			return socket;
+		} catch (final IOException e) {
+			if (destinationStats != null) {
+				destinationStats.failed(host, port);
+			}
+
+			if (circuitBreaker != null) {
+				circuitBreaker.failed(host, port);
+			}
+			throw e;
+		}
+	}
+
 	/**
 	 * Open a connection to remote destination
 	 * 
@@ -104,22 +348,286 @@ public abstract class AbstractSocksImplementation
 		this.logger.debug("Connecting to {}:{}... ",
 				inetAddress.getHostAddress(), port);
 
+		InetAddress localInetAddress = this.selectSourceAddress(inetAddress);
+
+		if (localInetAddress == null) {
+			throw new IOException(
+					"No route to address found using local addresses");
+		}
+
+		final Set<InetAddress> failedSourceAddresses = new HashSet<InetAddress>();
+		while (true) {
+			try {
+				final Socket socket = this.createSocket(inetAddress, port,
+						localInetAddress);
+				this.connected(socket);
+				return socket;
+			} catch (final BindException e) {
+				localInetAddress = this.failoverSourceAddress(inetAddress,
+						localInetAddress, failedSourceAddresses, e);
+
+				if (localInetAddress == null) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Take an idle connection to any of the addresses of a destination from
+	 * the warm socket pool
+	 * 
+	 * @return the connection, or null if there is none
+	 * @throws IOException
+	 *             if the connection could not be set up
+	 */
+	private Socket takePooled(final InetAddress[] inetAddresses,
+			final int port) throws IOException {
+		final WarmSocketPool warmSocketPool = this.configurationFacade
+				.getWarmSocketPool();
+
+		if (warmSocketPool != null) {
+			for (final InetAddress inetAddress : inetAddresses) {
+				final Socket socket = warmSocketPool.take(inetAddress, port);
+
+				if (socket != null) {
+					this.logger.debug("Using pooled connection to {}:{}",
+							inetAddress.getHostAddress(), port);
+					this.connected(socket);
+					return socket;
+				}
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Open a connection to the first reachable address of a remote
+	 * destination. The addresses are tried with staggered parallel attempts
+	 * alternating between IPv6 and IPv4, so that an unreachable address does
+	 * not delay the connection by more than the attempt delay.
+	 * 
+	 * @param inetAddresses
+	 *            the addresses of the host to connect to
+	 * @param port
+	 *            the port to connect to
+	 * @return established Socket
+	 * @throws IOException
+	 *             if no address could be connected to
+	 * @since 3.0
+	 */
+	protected Socket openConnection(final InetAddress[] inetAddresses,
+			final int port) throws IOException {
+		if (inetAddresses.length == 1) {
+			return this.openConnection(inetAddresses[0], port);
+		}
+
+		final List<InetSocketAddress> remoteAddresses = new ArrayList<InetSocketAddress>();
+		final List<InetAddress> localAddresses = new ArrayList<InetAddress>();
+
+		// One source address for each family
+		final InetAddress[] familySources = new InetAddress[2];
+		final boolean[] familySelected = new boolean[2];
+
+		for (final InetAddress inetAddress : HappyEyeballsConnector
+				.interleave(inetAddresses)) {
+			final int family = (inetAddress instanceof Inet6Address) ? 1 : 0;
+
+			if (!familySelected[family]) {
+				familySources[family] = this.selectSourceAddress(inetAddress);
+				familySelected[family] = true;
+			}
+
+			if (familySources[family] != null) {
+				remoteAddresses.add(new InetSocketAddress(inetAddress, port));
+				localAddresses.add(familySources[family]);
+			}
+		}
+
+		if (remoteAddresses.isEmpty()) {
+			throw new IOException(
+					"No route to address found using local addresses");
+		}
+
+		this.logger.debug("Connecting to {} addresses on port {}... ",
+				remoteAddresses.size(), port);
+
+		final Set<InetAddress> failedSourceAddresses = new HashSet<InetAddress>();
+		final BindFailover bindFailover = new BindFailover() {
+
+			// Later attempts from a failed address use its replacement
+			private final Map<InetAddress, InetAddress> replacements = new HashMap<InetAddress, InetAddress>();
+
+			@Override
+			public InetAddress bindFailed(
+					final InetSocketAddress remoteAddress,
+					final InetAddress localAddress) {
+				if (!this.replacements.containsKey(localAddress)) {
+					this.replacements.put(localAddress,
+							AbstractSocksImplementation.this
+									.failoverSourceAddress(
+											remoteAddress.getAddress(),
+											localAddress,
+											failedSourceAddresses, null));
+				}
+				return this.replacements.get(localAddress);
+			}
+		};
+
+		final Socket socket = AbstractSocksImplementation.CONNECTOR
+				.connect(
+						remoteAddresses.toArray(
+								new InetSocketAddress[remoteAddresses.size()]),
+						localAddresses.toArray(
+								new InetAddress[localAddresses.size()]),
+						this.configurationFacade.getConnectTimeout(),
+						bindFailover)
+				.socket();
+		this.connected(socket);
+		return socket;
+	}
+
+	/**
+	 * Select the outgoing source address of a connection
+	 * 
+	 * @param inetAddress
+	 *            the address to connect to
+	 * @return the source address, or null if there is no source address of
+	 *         the same family
+	 * @since 3.0
+	 */
+	protected InetAddress selectSourceAddress(final InetAddress inetAddress) {
+		final SourceAddressSelector sourceAddressSelector = this.configurationFacade
+				.getSourceAddressSelector();
+
+		if (sourceAddressSelector != null) {
+			final Source source = sourceAddressSelector.select(inetAddress,
+					this.clientSocket.getInetAddress());
+			return (source != null) ? source.getAddress() : null;
+		}
+
 		for (final InetAddress localInetAddress : this.configurationFacade
 				.getOutgoingSourceAddresses()) {
 			if (localInetAddress.getClass() == inetAddress.getClass()) {
-				final Socket socket = new Socket(inetAddress, port,
-						localInetAddress, 0);
-				socket.setKeepAlive(true);
-				socket.setTcpNoDelay(true);
+				return localInetAddress;
+			}
+		}
+		return null;
+	}
 
-				MDC.put(LoggingConstants.REMOTE_SERVER, formatSocket(socket));
-				this.logger.trace("Connected");
-				return socket;
+	/**
+	 * Choose another source address of the same family after a connection
+	 * could not be bound to one, which usually means that its ephemeral ports
+	 * are exhausted. Only the source addresses of the route to the destination
+	 * are considered.
+	 * 
+	 * @param destination
+	 *            the address to connect to
+	 * @param failed
+	 *            the source address which could not be bound
+	 * @param failedSourceAddresses
+	 *            the source addresses which have failed for this connection
+	 * @param exception
+	 *            the exception, may be null
+	 * @return another source address, or null if all have failed
+	 */
+	private InetAddress failoverSourceAddress(final InetAddress destination,
+			final InetAddress failed, final Set<InetAddress> failedSourceAddresses,
+			final BindException exception) {
+		failedSourceAddresses.add(failed);
+
+		final SourceAddressSelector sourceAddressSelector = this.configurationFacade
+				.getSourceAddressSelector();
+		final List<InetAddress> candidates = new ArrayList<InetAddress>();
+
+		if (sourceAddressSelector != null) {
+			final Source source = sourceAddressSelector.find(failed);
+			if (source != null) {
+				source.portExhausted();
+			}
+
+			for (final Source candidate : sourceAddressSelector
+					.getSources(destination)) {
+				candidates.add(candidate.getAddress());
+			}
+		} else {
+			candidates.addAll(
+					this.configurationFacade.getOutgoingSourceAddresses());
+		}
+
+		for (final InetAddress candidate : candidates) {
+			if ((candidate.getClass() == failed.getClass())
+					&& !failedSourceAddresses.contains(candidate)) {
+				this.logger.warn(
+						"Failed to bind to source address {}, trying {}",
+						failed.getHostAddress(), candidate.getHostAddress(),
+						exception);
+				return candidate;
+			}
+		}
+
+		this.logger.warn("Failed to bind to any source address, last {}",
+				failed.getHostAddress(), exception);
+		return null;
+	}
+
+	private void connected(final Socket socket) throws IOException {
+		try {
+			socket.setKeepAlive(true);
+			socket.setTcpNoDelay(true);
+		} catch (final IOException e) {
+			socket.close();
+			throw e;
+		}
+
+		// Counted as active until the tunnel is closed
+		final SourceAddressSelector sourceAddressSelector = this.configurationFacade
+				.getSourceAddressSelector();
+		if ((sourceAddressSelector != null) && (this.source == null)) {
+			this.source = sourceAddressSelector.find(socket.getLocalAddress());
+
+			if (this.source != null) {
+				this.source.acquire();
 			}
 		}
 
-		throw new IOException(
-				"No route to address found using local addresses");
+		MDC.put(LoggingConstants.REMOTE_SERVER, formatSocket(socket));
+		this.logger.trace("Connected");
+	}
+
+	/**
+	 * Create a socket connected to the remote destination. The socket is
+	 * backed by a channel, so that it can be relayed by the relay engine or
+	 * copied with direct buffers. The connect is given up after the connect
+	 * timeout.
+	 * 
+	 * @param inetAddress
+	 *            the host to connect to
+	 * @param port
+	 *            the port to connect to
+	 * @param localInetAddress
+	 *            the local address to bind to
+	 * @return connected Socket
+	 * @throws IOException
+	 *             if an I/O error occurs when creating the socket.
+	 */
+	protected Socket createSocket(final InetAddress inetAddress,
+			final int port, final InetAddress localInetAddress)
+			throws IOException {
+		final SocketChannel channel = SocketChannel.open();
+		try {
+			final Socket socket = channel.socket();
+			socket.bind(new InetSocketAddress(localInetAddress, 0));
+			socket.connect(new InetSocketAddress(inetAddress, port),
+					this.configurationFacade.getConnectTimeout());
+			return socket;
+		} catch (final IOException | RuntimeException e) {
+			try {
+				channel.close();
+			} catch (final IOException ignore) {
+			}
+			throw e;
+		}
 	}
 
 	/**
@@ -139,15 +647,7 @@ public abstract class AbstractSocksImplementation
 				.getOutgoingSourceAddresses()) {
 
 			if (localInetAddress.equals(inetAddress)) {
-				final ServerSocket serverSocket = new ServerSocket(
-						suggestedPort, 1, inetAddress);
-
-				this.logger.info("Bound client socket");
-
-				serverSocket.setSoTimeout(
-						AbstractSocksImplementation.BIND_SOCKET_TIMEOUT);
-
-				return serverSocket;
+				return this.createServerSocket(suggestedPort, inetAddress);
 			}
 		}
 
@@ -155,27 +655,50 @@ public abstract class AbstractSocksImplementation
 				.getOutgoingSourceAddresses()) {
 
 			if (localInetAddress.getClass() == inetAddress.getClass()) {
-				final ServerSocket serverSocket = new ServerSocket(
-						suggestedPort, 1, localInetAddress);
-
-				this.logger.info("Bound client socket");
-
-				serverSocket.setSoTimeout(
-						AbstractSocksImplementation.BIND_SOCKET_TIMEOUT);
-
-				return serverSocket;
+				return this.createServerSocket(suggestedPort,
+						localInetAddress);
 			}
 		}
 
-		final ServerSocket serverSocket = new ServerSocket(suggestedPort, 1,
+		return this.createServerSocket(suggestedPort,
 				this.configurationFacade.getOutgoingSourceAddresses().get(0));
+	}
 
-		this.logger.info("Bound client socket");
+	/**
+	 * Create the server socket of a BIND request. Like every other tunnel
+	 * socket it is backed by a channel, so that the tunnel is relayed by the
+	 * relay engine or copied between channels. The streams of a channel
+	 * backed socket share a lock on Java 8, so a tunnel with one plain socket
+	 * would be copied with streams which block each other.
+	 * 
+	 * @param port
+	 *            the port, 0 for any port
+	 * @param localInetAddress
+	 *            the local address to bind to
+	 * @return the server socket
+	 * @throws IOException
+	 *             if an I/O error occurs when creating the socket.
+	 */
+	private ServerSocket createServerSocket(final int port,
+			final InetAddress localInetAddress) throws IOException {
+		final ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			final ServerSocket serverSocket = channel.socket();
+			serverSocket.bind(new InetSocketAddress(localInetAddress, port),
+					1);
+			serverSocket.setSoTimeout(
+					AbstractSocksImplementation.BIND_SOCKET_TIMEOUT);
 
-		serverSocket
-				.setSoTimeout(AbstractSocksImplementation.BIND_SOCKET_TIMEOUT);
+			this.logger.info("Bound client socket");
 
-		return serverSocket;
+			return serverSocket;
+		} catch (final IOException | RuntimeException e) {
+			try {
+				channel.close();
+			} catch (final IOException ignore) {
+			}
+			throw e;
+		}
 	}
 
 	/**
@@ -190,11 +713,70 @@ public abstract class AbstractSocksImplementation
 
 		this.logger.info("Established tunnel");
 
-		this.executor.execute(
-				new TunnelThread(this.countDownLatch, external, internal));
+		final RelayEngine relayEngine = this.configurationFacade
+				.getRelayEngine();
+		final BufferPool bufferPool = this.configurationFacade
+				.getBufferPool();
+		final int coalesceBuffers = this.configurationFacade
+				.getCoalesceBuffers();
+		final IdleMonitor idleMonitor = this.configurationFacade
+				.getIdleMonitor();
+
+		if ((relayEngine != null) && (bufferPool != null)) {
+			final Source source = this.source;
+
+			try {
+				if (relayEngine.relay(internal, external, bufferPool,
+						this.logger, idleMonitor, this.idleTimeout,
+						(source != null) ? new Runnable() {
+							@Override
+							public void run() {
+								source.release();
+							}
+						} : null)) {
+					// The source is released by the relay engine
+					this.source = null;
+					this.detached = true;
+					return;
+				}
+			} catch (final IOException e) {
+				this.logger.info("Failed to hand over tunnel", e);
+
+				try {
+					external.close();
+				} catch (final IOException ignore) {
+				}
+
+				try {
+					internal.close();
+				} catch (final IOException ignore) {
+				}
+				return;
+			}
+		}
+
+		final Activity activity = (idleMonitor != null)
+				? idleMonitor.watch(this.idleTimeout, new Runnable() {
+					@Override
+					public void run() {
+						// Fails the blocked reads of both copy loops
+						try {
+							external.close();
+						} catch (final IOException e) {
+						}
+
+						try {
+							internal.close();
+						} catch (final IOException e) {
+						}
+					}
+				}) : null;
+
+		this.executor.execute(new TunnelThread(this.countDownLatch, external,
+				internal, bufferPool, coalesceBuffers, activity));
 
 		try {
-			copy(internal, external);
+			copy(internal, external, bufferPool, coalesceBuffers, activity);
 
 			// Wait for the other thread to die
 			this.logger.trace("Waiting to disconnect");
@@ -208,6 +790,10 @@ public abstract class AbstractSocksImplementation
 			} catch (final InterruptedException e) {
 			}
 
+			if (activity != null) {
+				activity.stop();
+			}
+
 			try {
 				external.close();
 			} catch (final IOException e) {
@@ -222,6 +808,82 @@ public abstract class AbstractSocksImplementation
 		}
 	}
 
+	/**
+	 * Keep a UDP association for as long as the client connection is open.
+	 * The client connection is handed over to the UDP relay when it has a
+	 * channel, otherwise the handler waits for it to close.
+	 * 
+	 * @param association
+	 *            the association
+	 * @since 3.0
+	 */
+	protected void associate(final UdpAssociation association) {
+		this.logger.info("Established UDP association");
+
+		try {
+			if (association.watch(this.clientSocket)) {
+				// The client socket is closed by the UDP relay
+				this.detached = true;
+				return;
+			}
+		} catch (final IOException e) {
+			this.logger.info("Failed to hand over UDP association", e);
+			association.close();
+			return;
+		}
+
+		try {
+			final InputStream inputStream = this.clientSocket.getInputStream();
+			final byte[] buffer = new byte[256];
+
+			while (inputStream.read(buffer) >= 0) {
+				// The client connection only carries the association
+			}
+		} catch (final IOException e) {
+		} finally {
+			association.close();
+		}
+	}
+
+	/**
+	 * Get the bytes of an address written in a reply. The bytes of the last
+	 * address are kept, so that replying with the same address again does not
+	 * copy it.
+	 * 
+	 * @param inetAddress
+	 *            the address
+	 * @return the bytes of the address, which must not be modified
+	 * @since 3.0
+	 */
+	protected byte[] getReplyAddress(final InetAddress inetAddress) {
+		if (inetAddress != this.replyAddress) {
+			this.replyAddressBytes = inetAddress.getAddress();
+			this.replyAddress = inetAddress;
+		}
+		return this.replyAddressBytes;
+	}
+
+	/**
+	 * Check if the tunnel has been handed over to the relay engine, in which
+	 * case the sockets are owned by the engine and must not be closed by the
+	 * handler.
+	 * 
+	 * @return true if the tunnel is relayed by the relay engine
+	 */
+	protected boolean isDetached() {
+		return this.detached;
+	}
+
+	/**
+	 * Get the configuration facade
+	 * 
+	 * @return the configuration facade
+	 * @since 3.0
+	 */
+	protected ConfigurationFacade getConfigurationFacade() {
+		return this.configurationFacade;
+	}
+
 	/**
 	 * Get the client socket
 	 * 
@@ -18,6 +18,16 @@ package nu.najt.kecon.jsocksproxy;
 import java.net.InetAddress;
 import java.util.List;
 
+import nu.najt.kecon.jsocksproxy.connect.CircuitBreaker;
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector;
+import nu.najt.kecon.jsocksproxy.connect.WarmSocketPool;
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+import nu.najt.kecon.jsocksproxy.udp.UdpRelay;
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
+
 /**
  * Contains methods for accessing the running configuration
  * 
@@ -39,10 +49,99 @@ public interface ConfigurationFacade {
 	 */
 	public boolean isAllowSocks5();
 
+	/**
+	 * @return true if SOCKS5 requests and the data following them may be read
+	 *         before the replies have been sent
+	 * @since 3.0
+	 */
+	public boolean isOptimisticSocks5();
+
 	/**
 	 * @return the backlog
 	 * @since 3.0
 	 */
 	public int getBacklog();
 
+	/**
+	 * @return the relay engine, or null if tunnels should be relayed by
+	 *         blocking threads
+	 * @since 3.0
+	 */
+	public RelayEngine getRelayEngine();
+
+	/**
+	 * @return the pool of direct buffers used when relaying
+	 * @since 3.0
+	 */
+	public BufferPool getBufferPool();
+
+	/**
+	 * @return the number of relay buffers used for each direction of a tunnel
+	 * @since 3.0
+	 */
+	public int getCoalesceBuffers();
+
+	/**
+	 * @return the deadline of SOCKS handshakes, or null if handshakes have no
+	 *         deadline
+	 * @since 3.0
+	 */
+	public HandshakeDeadline getHandshakeDeadline();
+
+	/**
+	 * @return the monitor closing idle tunnels, or null if tunnels are never
+	 *         closed for being idle
+	 * @since 3.0
+	 */
+	public IdleMonitor getIdleMonitor();
+
+	/**
+	 * @return the resolver of host names requested by clients, or null if
+	 *         host names are resolved by {@link InetAddress} directly
+	 * @since 3.0
+	 */
+	public HostResolver getHostResolver();
+
+	/**
+	 * @return the number of milliseconds to wait for a connection to a
+	 *         destination, 0 waits until the operating system gives up
+	 * @since 3.0
+	 */
+	public int getConnectTimeout();
+
+	/**
+	 * @return the connect statistics of the destinations, or null if no
+	 *         statistics are kept
+	 * @since 3.0
+	 */
+	public DestinationStats getDestinationStats();
+
+	/**
+	 * @return the circuit breaker of failing destinations, or null if
+	 *         destinations are always connected to
+	 * @since 3.0
+	 */
+	public CircuitBreaker getCircuitBreaker();
+
+	/**
+	 * @return the selector of outgoing source addresses, or null if the first
+	 *         outgoing source address of the right family is used
+	 * @since 3.0
+	 */
+	public SourceAddressSelector getSourceAddressSelector();
+
+	/**
+	 * @return the pool of established connections to configured
+	 *         destinations, or null if no connections are pooled
+	 * @since 3.0
+	 */
+	public WarmSocketPool getWarmSocketPool();
+
+	/**
+	 * @return the relay of SOCKS5 UDP associations, or null if UDP ASSOCIATE
+	 *         is not allowed
+	 * @since 3.0
+	 */
+	public UdpRelay getUdpRelay();
+
 }
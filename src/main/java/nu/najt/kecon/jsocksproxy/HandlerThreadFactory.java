@@ -0,0 +1,53 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates the platform threads running SOCKS handshakes, with a configurable
+ * stack size
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+class HandlerThreadFactory implements ThreadFactory {
+
+	private final AtomicInteger threadNumber = new AtomicInteger();
+
+	private final long stackSize;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param stackSize
+	 *            the stack size in bytes, 0 means the default of the JVM
+	 */
+	HandlerThreadFactory(final long stackSize) {
+		this.stackSize = stackSize;
+	}
+
+	@Override
+	public Thread newThread(final Runnable runnable) {
+		final Thread thread = new Thread(null, runnable,
+				"socks-handler-" + this.threadNumber.incrementAndGet(),
+				this.stackSize);
+		thread.setDaemon(false);
+		thread.setPriority(Thread.NORM_PRIORITY);
+		return thread;
+	}
+}
@@ -0,0 +1,107 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer.Timeout;
+
+/**
+ * Limits the time a client may take to complete its SOCKS handshake. The
+ * client socket is closed when the deadline passes, which fails the blocked
+ * read of the handler. All deadlines share one timer.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class HandshakeDeadline {
+
+	private final HashedWheelTimer timer;
+
+	private final LongAdder aborted = new LongAdder();
+
+	private volatile long timeout;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param timer
+	 *            the timer
+	 * @param timeout
+	 *            the handshake timeout in milliseconds, 0 disables the
+	 *            deadline
+	 */
+	public HandshakeDeadline(final HashedWheelTimer timer,
+			final long timeout) {
+		this.timer = timer;
+		this.timeout = timeout;
+	}
+
+	/**
+	 * Start the deadline of a handshake
+	 * 
+	 * @param socket
+	 *            the client socket, closed if the deadline passes
+	 * @return the timeout, which must be cancelled when the handshake is
+	 *         complete, or null if there is no deadline
+	 */
+	public Timeout start(final Socket socket) {
+		final long currentTimeout = this.timeout;
+
+		if (currentTimeout <= 0) {
+			return null;
+		}
+
+		return this.timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				HandshakeDeadline.this.aborted.increment();
+
+				try {
+					socket.close();
+				} catch (final IOException e) {
+				}
+			}
+		}, currentTimeout, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * @return the handshake timeout in milliseconds
+	 */
+	public long getTimeout() {
+		return this.timeout;
+	}
+
+	/**
+	 * @param timeout
+	 *            the handshake timeout in milliseconds, 0 disables the
+	 *            deadline
+	 */
+	public void setTimeout(final long timeout) {
+		this.timeout = timeout;
+	}
+
+	/**
+	 * @return the number of handshakes aborted by the deadline
+	 */
+	public long getAborted() {
+		return this.aborted.sum();
+	}
+}
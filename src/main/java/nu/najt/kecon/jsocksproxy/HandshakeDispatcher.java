@@ -0,0 +1,187 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static nu.najt.kecon.jsocksproxy.utils.StringUtils.formatLocalSocket;
+import static nu.najt.kecon.jsocksproxy.utils.StringUtils.formatSocket;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+
+import org.slf4j.Logger;
+import org.slf4j.MDC;
+
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer.Timeout;
+
+/**
+ * Reads the SOCKS version of an accepted connection on the handler thread and
+ * continues with the matching SOCKS implementation, so that the accept loop
+ * never waits for a client
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+class HandshakeDispatcher implements SocksImplementation {
+
+	private final ListeningThread listeningThread;
+
+	private final ConfigurationFacade configurationFacade;
+
+	private final Socket socket;
+
+	private final Timeout handshakeTimeout;
+
+	private final Logger logger;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param listeningThread
+	 *            the listening thread which accepted the connection
+	 * @param configurationFacade
+	 *            the configuration
+	 * @param socket
+	 *            the accepted socket
+	 * @param handshakeTimeout
+	 *            the handshake deadline started when the socket was
+	 *            accepted, handed on to the SOCKS implementation, may be null
+	 * @param logger
+	 *            the logger
+	 */
+	HandshakeDispatcher(final ListeningThread listeningThread,
+			final ConfigurationFacade configurationFacade, final Socket socket,
+			final Timeout handshakeTimeout, final Logger logger) {
+		this.listeningThread = listeningThread;
+		this.configurationFacade = configurationFacade;
+		this.socket = socket;
+		this.handshakeTimeout = handshakeTimeout;
+		this.logger = logger;
+	}
+
+	@Override
+	public void run() {
+		final SocksImplementation implementation;
+		try {
+			implementation = this.listeningThread
+					.getImplementation(this.configurationFacade, this.socket);
+		} catch (final ProtocolException e) {
+			this.cancelHandshakeTimeout();
+			this.log("Unknown SOCKS VERSION requested by {}", e, false);
+			return;
+		} catch (final AccessDeniedException e) {
+			this.cancelHandshakeTimeout();
+			this.log("Access Denied for {}", e, true);
+			return;
+		} catch (final IOException e) {
+			this.cancelHandshakeTimeout();
+			this.close();
+			return;
+		}
+
+		if (implementation instanceof AbstractSocksImplementation) {
+			((AbstractSocksImplementation) implementation)
+					.setHandshakeTimeout(this.handshakeTimeout);
+		} else {
+			this.cancelHandshakeTimeout();
+		}
+
+		implementation.run();
+	}
+
+	@Override
+	public void reject() {
+		this.cancelHandshakeTimeout();
+
+		final int protocol = this.peekVersion();
+
+		if (protocol == -1) {
+			this.close();
+			return;
+		}
+
+		try {
+			this.listeningThread
+					.getImplementation(this.configurationFacade, this.socket,
+							protocol)
+					.reject();
+		} catch (final ProtocolException | AccessDeniedException e) {
+		}
+	}
+
+	/**
+	 * Read the version if it has already been received, without waiting for
+	 * it
+	 * 
+	 * @return the version, or -1 if it has not been received
+	 */
+	private int peekVersion() {
+		try {
+			final SocketChannel channel = this.socket.getChannel();
+
+			if (channel != null) {
+				final ByteBuffer buffer = ByteBuffer.allocate(1);
+
+				synchronized (channel.blockingLock()) {
+					channel.configureBlocking(false);
+					try {
+						if (channel.read(buffer) != 1) {
+							return -1;
+						}
+					} finally {
+						channel.configureBlocking(true);
+					}
+				}
+				return buffer.get(0);
+			}
+
+			final InputStream inputStream = this.socket.getInputStream();
+			return (inputStream.available() > 0) ? inputStream.read() : -1;
+
+		} catch (final IOException e) {
+			return -1;
+		}
+	}
+
+	private void log(final String message, final Exception e,
+			final boolean warn) {
+		MDC.put(LoggingConstants.SOCKS_SERVER, formatLocalSocket(this.socket));
+		try {
+			if (warn) {
+				this.logger.warn(message, formatSocket(this.socket), e);
+			} else {
+				this.logger.info(message, formatSocket(this.socket), e);
+			}
+		} finally {
+			MDC.remove(LoggingConstants.SOCKS_SERVER);
+		}
+	}
+
+	private void cancelHandshakeTimeout() {
+		if (this.handshakeTimeout != null) {
+			this.handshakeTimeout.cancel();
+		}
+	}
+
+	private void close() {
+		try {
+			this.socket.close();
+		} catch (final IOException e) {
+		}
+	}
+}
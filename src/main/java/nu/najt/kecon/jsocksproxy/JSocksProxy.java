@@ -17,6 +17,7 @@ package nu.najt.kecon.jsocksproxy;
 
 import java.io.File;
 import java.io.IOException;
+import java.lang.management.ManagementFactory;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.URI;
@@ -27,14 +28,28 @@ import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
 
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
 import javax.naming.InitialContext;
 import javax.naming.Name;
 import javax.naming.NamingException;
@@ -47,7 +62,26 @@ import org.slf4j.LoggerFactory;
 import org.slf4j.MDC;
 
 import nu.najt.kecon.jsocksproxy.configuration.Configuration;
+import nu.najt.kecon.jsocksproxy.configuration.ExecutorMode;
 import nu.najt.kecon.jsocksproxy.configuration.Listen;
+import nu.najt.kecon.jsocksproxy.configuration.RelayMode;
+import nu.najt.kecon.jsocksproxy.configuration.Route;
+import nu.najt.kecon.jsocksproxy.configuration.SourceStrategy;
+import nu.najt.kecon.jsocksproxy.configuration.WarmPool;
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+import nu.najt.kecon.jsocksproxy.connect.CircuitBreaker;
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats;
+import nu.najt.kecon.jsocksproxy.connect.RouteTable;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector;
+import nu.najt.kecon.jsocksproxy.connect.WarmSocketPool;
+import nu.najt.kecon.jsocksproxy.resolver.CachingHostResolver;
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+import nu.najt.kecon.jsocksproxy.resolver.SystemHostResolver;
+import nu.najt.kecon.jsocksproxy.udp.UdpRelay;
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
+import nu.najt.kecon.jsocksproxy.utils.VirtualThreads;
 import static nu.najt.kecon.jsocksproxy.utils.StringUtils.*;
 
 /**
@@ -67,20 +101,104 @@ public class JSocksProxy
 
 	public static final String CONFIGURATION_XML = "jsocksproxy.xml";
 
+	public static final String OBJECT_NAME = "nu.najt.kecon.jsocksproxy:type=JSocksProxy";
+
 	private static final Logger LOG = LoggerFactory
 			.getLogger(JSocksProxy.class);
 
-	private final List<InetSocketAddress> listeningAddresses = new ArrayList<InetSocketAddress>();
+	private final Map<InetSocketAddress, Listen> listeningAddresses = new LinkedHashMap<InetSocketAddress, Listen>();
 
-	private final List<ListeningThread> listeningThreads = new CopyOnWriteArrayList<ListeningThread>();
+	private final List<ListeningGroup> listeningGroups = new CopyOnWriteArrayList<ListeningGroup>();
 
 	private final ExecutorService executorService = Executors
 			.newCachedThreadPool();
 
+	private volatile ThreadPoolExecutor handlerPool;
+
+	private int handlerQueueSize;
+
+	private int handlerStackSize;
+
+	private final LongAdder rejectedHandlers = new LongAdder();
+
+	private volatile ExecutorService virtualExecutorService;
+
+	private volatile ExecutorService handlerExecutorService = this.executorService;
+
+	private volatile ExecutorService tunnelExecutorService = this.executorService;
+
+	private final Executor handlerExecutor = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			JSocksProxy.this.handlerExecutorService.execute(command);
+		}
+	};
+
+	private final Executor tunnelExecutor = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			JSocksProxy.this.tunnelExecutorService.execute(command);
+		}
+	};
+
+	private volatile ExecutorMode executorMode = ExecutorMode.PLATFORM;
+
 	private List<InetAddress> outgoingSourceAddresses = null;
 
+	private volatile SourceAddressSelector sourceAddressSelector;
+
 	private int backlog = 100;
 
+	private RelayMode relayMode = RelayMode.BLOCKING;
+
+	private volatile RelayEngine relayEngine;
+
+	private volatile UdpRelay udpRelay;
+
+	private volatile BufferPool bufferPool = new BufferPool(1024, 8192,
+			65536, 256 * 1048576l);
+
+	private volatile int coalesceBuffers = 1;
+
+	private int maxFlushLatency = 0;
+
+	private final HashedWheelTimer timer = new HashedWheelTimer(
+			"JSocksProxy-Timer", 100, TimeUnit.MILLISECONDS, 512);
+
+	private final HandshakeDeadline handshakeDeadline = new HandshakeDeadline(
+			this.timer, 30000);
+
+	private final IdleMonitor idleMonitor = new IdleMonitor(this.timer);
+
+	private final WarmSocketPool warmSocketPool = new WarmSocketPool(
+			this.timer, this.executorService);
+
+	private volatile ThreadPoolExecutor resolverPool;
+
+	private final Executor resolverExecutor = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			final ThreadPoolExecutor pool = JSocksProxy.this.resolverPool;
+
+			if (pool == null) {
+				throw new RejectedExecutionException("Resolver is stopped");
+			}
+			pool.execute(command);
+		}
+	};
+
+	private final CachingHostResolver hostResolver = new CachingHostResolver(
+			new SystemHostResolver(this.resolverExecutor), 10000, 60000,
+			5000);
+
+	private volatile int connectTimeout = 30000;
+
+	private final DestinationStats destinationStats = new DestinationStats(
+			1000);
+
+	private final CircuitBreaker circuitBreaker = new CircuitBreaker(5, 30000,
+			10000);
+
 	private long configurationFileModified = -1;
 
 	private final AtomicBoolean canRun = new AtomicBoolean(Boolean.FALSE);
@@ -192,6 +310,8 @@ public class JSocksProxy
 				LOG.info("Failed to bind MBean", e);
 			}
 
+			this.registerMBean();
+
 			while (this.canRun.get()) {
 				try {
 					this.readConfiguration();
@@ -202,11 +322,45 @@ public class JSocksProxy
 			}
 		}
 
-		for (final ListeningThread listeningThread : this.listeningThreads) {
-			listeningThread.shutdown();
+		for (final ListeningGroup listeningGroup : this.listeningGroups) {
+			listeningGroup.shutdown();
+		}
+
+		this.listeningGroups.clear();
+
+		this.handlerExecutorService = this.executorService;
+		this.tunnelExecutorService = this.executorService;
+		this.executorMode = ExecutorMode.PLATFORM;
+
+		if (this.virtualExecutorService != null) {
+			this.virtualExecutorService.shutdown();
+			this.virtualExecutorService = null;
+		}
+
+		if (this.handlerPool != null) {
+			this.handlerPool.shutdown();
+			this.handlerPool = null;
+		}
+
+		if (this.relayEngine != null) {
+			this.relayEngine.shutdown();
+			this.relayEngine = null;
 		}
 
-		this.listeningThreads.clear();
+		if (this.udpRelay != null) {
+			this.udpRelay.shutdown();
+			this.udpRelay = null;
+		}
+
+		this.warmSocketPool.shutdown();
+		this.timer.stop();
+
+		if (this.resolverPool != null) {
+			this.resolverPool.shutdown();
+			this.resolverPool = null;
+		}
+
+		this.unregisterMBean();
 
 		LOG.info("Shutdown SOCKS Proxy");
 	}
@@ -239,47 +393,86 @@ public class JSocksProxy
 	}
 
 	/**
-	 * Check that the listeningAddresses property matches all binding threads.
+	 * Register MBean in the platform MBean server
 	 */
-	protected void checkListeningThreads() {
-
-		final List<ListeningThread> threadsForRemoval = new ArrayList<ListeningThread>();
+	private void registerMBean() {
+		try {
+			final MBeanServer server = ManagementFactory
+					.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(JSocksProxy.OBJECT_NAME);
 
-		for (final ListeningThread listeningThread : this.listeningThreads) {
-			threadsForRemoval.add(listeningThread);
+			if (!server.isRegistered(name)) {
+				server.registerMBean(this, name);
+			}
+		} catch (final JMException e) {
+			LOG.info("Failed to register MBean", e);
 		}
+	}
 
-		for (final InetSocketAddress inetSocketAddress : this.listeningAddresses) {
-			boolean found = false;
-			for (final ListeningThread listeningThread : this.listeningThreads) {
+	/**
+	 * Unregister MBean from the platform MBean server
+	 */
+	private void unregisterMBean() {
+		try {
+			final MBeanServer server = ManagementFactory
+					.getPlatformMBeanServer();
+			final ObjectName name = new ObjectName(JSocksProxy.OBJECT_NAME);
 
-				if (listeningThread.getInetSocketAddress()
-						.equals(inetSocketAddress)) {
-					found = true;
-					threadsForRemoval.remove(listeningThread);
-					break;
-				}
+			if (server.isRegistered(name)) {
+				server.unregisterMBean(name);
 			}
+		} catch (final JMException e) {
+			LOG.info("Failed to unregister MBean", e);
+		}
+	}
 
-			if (!found) {
-				try {
-					final ListeningThread listeningThread = new ListeningThread(
-							this, LOG, executorService, inetSocketAddress);
+	/**
+	 * Check that the listeningAddresses property matches all binding threads.
+	 * A listen address whose number of acceptors has changed is shut down
+	 * before it is bound again, while a changed idle timeout is applied to the
+	 * running threads.
+	 */
+	protected void checkListeningThreads() {
 
-					this.listeningThreads.add(listeningThread);
+		final List<ListeningGroup> groupsForRemoval = new ArrayList<ListeningGroup>();
+		final Map<InetSocketAddress, Listen> missingAddresses = new LinkedHashMap<InetSocketAddress, Listen>(
+				this.listeningAddresses);
 
-					executorService.execute(listeningThread);
+		for (final ListeningGroup listeningGroup : this.listeningGroups) {
+			final Listen listen = missingAddresses
+					.get(listeningGroup.getInetSocketAddress());
 
-				} catch (final IOException e) {
-					LOG.error("Failed to setup listening address for {}",
-							formatSocketAddress(inetSocketAddress), e);
-				}
+			if ((listen != null)
+					&& (listen.getAcceptors() == listeningGroup.getAcceptors())) {
+				listeningGroup.setIdleTimeout(listen.getIdleTimeout() * 1000l);
+				missingAddresses.remove(listeningGroup.getInetSocketAddress());
+			} else {
+				groupsForRemoval.add(listeningGroup);
 			}
 		}
 
-		for (final ListeningThread listeningThread : threadsForRemoval) {
-			listeningThread.shutdown();
-			this.listeningThreads.remove(listeningThread);
+		for (final ListeningGroup listeningGroup : groupsForRemoval) {
+			listeningGroup.shutdown();
+			this.listeningGroups.remove(listeningGroup);
+		}
+
+		for (final Map.Entry<InetSocketAddress, Listen> entry : missingAddresses
+				.entrySet()) {
+			try {
+				final ListeningGroup listeningGroup = new ListeningGroup(this,
+						LOG, this.handlerExecutor, this.tunnelExecutor,
+						entry.getKey(), entry.getValue().getAcceptors());
+				listeningGroup.setIdleTimeout(
+						entry.getValue().getIdleTimeout() * 1000l);
+
+				this.listeningGroups.add(listeningGroup);
+
+				listeningGroup.start(this.executorService);
+
+			} catch (final IOException e) {
+				LOG.error("Failed to setup listening address for {}",
+						formatSocketAddress(entry.getKey()), e);
+			}
 		}
 	}
 
@@ -319,6 +512,451 @@ public class JSocksProxy
 		this.updateOutgoingAddresses();
 		this.updateListenAddresses();
 		this.updateBacklog();
+		this.updateBufferPool();
+		this.updateCoalescing();
+		this.updateHandshakeTimeout();
+		this.updateResolver();
+		this.updateConnect();
+		this.updateWarmPools();
+		this.updateRelayMode();
+		this.updateUdpRelay();
+		this.updateHandlerPool();
+		this.updateExecutorMode();
+	}
+
+	private void updateExecutorMode() {
+		ExecutorMode mode = this.configuration.getExecutorMode();
+
+		if (mode == null) {
+			LOG.warn("Unknown executor mode; using default {}",
+					ExecutorMode.PLATFORM);
+			mode = ExecutorMode.PLATFORM;
+		}
+
+		if ((mode == ExecutorMode.VIRTUAL)
+				&& (this.virtualExecutorService == null)) {
+			this.virtualExecutorService = VirtualThreads.newExecutor();
+
+			if (this.virtualExecutorService == null) {
+				LOG.warn("Virtual threads are not available; using {}",
+						ExecutorMode.PLATFORM);
+				mode = ExecutorMode.PLATFORM;
+			}
+		}
+
+		if (mode == ExecutorMode.VIRTUAL) {
+			this.handlerExecutorService = this.virtualExecutorService;
+			this.tunnelExecutorService = this.virtualExecutorService;
+		} else {
+			this.handlerExecutorService = this.handlerPool;
+			this.tunnelExecutorService = this.executorService;
+
+			// Running handlers and tunnels are allowed to complete
+			if (this.virtualExecutorService != null) {
+				this.virtualExecutorService.shutdown();
+				this.virtualExecutorService = null;
+			}
+		}
+
+		this.executorMode = mode;
+		LOG.info("Using executor mode {}", this.executorMode);
+	}
+
+	private void updateHandlerPool() {
+		int threads = this.configuration.getHandlerThreads();
+		int maxThreads = this.configuration.getMaxHandlerThreads();
+		int queueSize = this.configuration.getHandlerQueueSize();
+		int stackSize = this.configuration.getHandlerStackSize();
+
+		if ((threads < 1) || (threads > 10000)) {
+			LOG.warn(
+					"Handler threads must be between 1 and 10000; supplied value: {} ; using default 16",
+					threads);
+			threads = 16;
+		}
+
+		if ((maxThreads < threads) || (maxThreads > 10000)) {
+			LOG.warn(
+					"Max handler threads must be between handler threads and 10000; supplied value: {} ; using {}",
+					maxThreads, Math.max(threads, 512));
+			maxThreads = Math.max(threads, 512);
+		}
+
+		if (queueSize < 0) {
+			LOG.warn(
+					"Handler queue size must not be negative; supplied value: {} ; using default 1024",
+					queueSize);
+			queueSize = 1024;
+		}
+
+		if (stackSize < 0) {
+			LOG.warn(
+					"Handler stack size must not be negative; supplied value: {} ; using default 0",
+					stackSize);
+			stackSize = 0;
+		}
+
+		final ThreadPoolExecutor previous = this.handlerPool;
+		final boolean blockingTunnels = this.relayMode != RelayMode.NIO;
+
+		if ((previous == null) || (queueSize != this.handlerQueueSize)
+				|| (stackSize != this.handlerStackSize)) {
+			final ThreadPoolExecutor pool = JSocksProxy.createHandlerPool(
+					threads, maxThreads, queueSize, stackSize,
+					blockingTunnels, new ThreadPoolExecutor.AbortPolicy() {
+						@Override
+						public void rejectedExecution(final Runnable runnable,
+								final ThreadPoolExecutor executor) {
+							JSocksProxy.this.rejectedHandlers.increment();
+							super.rejectedExecution(runnable, executor);
+						}
+					});
+
+			this.handlerPool = pool;
+			this.handlerQueueSize = queueSize;
+			this.handlerStackSize = stackSize;
+
+			if (this.handlerExecutorService == previous) {
+				this.handlerExecutorService = pool;
+			}
+
+			// Running handlers are allowed to complete
+			if (previous != null) {
+				previous.shutdown();
+			}
+		} else {
+			JSocksProxy.resizeHandlerPool(previous, threads, maxThreads,
+					blockingTunnels);
+		}
+
+		LOG.info(
+				"Using {} to {} handler threads with a queue of {} and stack size {} KB",
+				threads, maxThreads, queueSize, stackSize);
+	}
+
+	/**
+	 * Create the pool of handler threads. A pool only starts more than its
+	 * core threads when the queue is full. With blocking tunnels a handler
+	 * thread is held by its tunnel, so the core size is the maximum size and
+	 * idle threads time out; otherwise connections would wait in the queue
+	 * while only the core threads run tunnels.
+	 * 
+	 * @param threads
+	 *            the number of threads kept when idle
+	 * @param maxThreads
+	 *            the maximum number of threads
+	 * @param queueSize
+	 *            the size of the queue, 0 to hand over directly
+	 * @param stackSize
+	 *            the stack size in KB, 0 for the default of the JVM
+	 * @param blockingTunnels
+	 *            true if handler threads run the tunnels
+	 * @param rejectedExecutionHandler
+	 *            the handler of connections which did not fit
+	 * @return the pool
+	 */
+	static ThreadPoolExecutor createHandlerPool(final int threads,
+			final int maxThreads, final int queueSize, final int stackSize,
+			final boolean blockingTunnels,
+			final RejectedExecutionHandler rejectedExecutionHandler) {
+		final ThreadPoolExecutor pool = new ThreadPoolExecutor(threads,
+				maxThreads, 60, TimeUnit.SECONDS,
+				(queueSize == 0) ? new SynchronousQueue<Runnable>()
+						: new ArrayBlockingQueue<Runnable>(queueSize),
+				new HandlerThreadFactory(stackSize * 1024l),
+				rejectedExecutionHandler);
+
+		JSocksProxy.resizeHandlerPool(pool, threads, maxThreads,
+				blockingTunnels);
+		return pool;
+	}
+
+	/**
+	 * Resize the pool of handler threads, see
+	 * {@link #createHandlerPool(int, int, int, int, boolean, RejectedExecutionHandler)}
+	 */
+	static void resizeHandlerPool(final ThreadPoolExecutor pool,
+			final int threads, final int maxThreads,
+			final boolean blockingTunnels) {
+		final int coreThreads = blockingTunnels ? maxThreads : threads;
+
+		if (coreThreads > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(maxThreads);
+			pool.setCorePoolSize(coreThreads);
+		} else {
+			pool.setCorePoolSize(coreThreads);
+			pool.setMaximumPoolSize(maxThreads);
+		}
+
+		pool.allowCoreThreadTimeOut(blockingTunnels);
+	}
+
+	private void updateCoalescing() {
+		int buffers = this.configuration.getCoalesceBuffers();
+		int latency = this.configuration.getMaxFlushLatency();
+
+		if ((buffers < 1) || (buffers > 16)) {
+			LOG.warn(
+					"Coalesce buffers must be between 1 and 16; supplied value: {} ; using default 1",
+					buffers);
+			buffers = 1;
+		}
+
+		if ((latency < 0) || (latency > 1000)) {
+			LOG.warn(
+					"Max flush latency must be between 0 and 1000 ms; supplied value: {} ; using default 0",
+					latency);
+			latency = 0;
+		}
+
+		this.coalesceBuffers = buffers;
+		this.maxFlushLatency = latency;
+
+		LOG.info("Coalescing writes over {} buffers, max flush latency {} ms",
+				buffers, latency);
+	}
+
+	private void updateHandshakeTimeout() {
+		int timeout = this.configuration.getHandshakeTimeout();
+
+		if ((timeout < 0) || (timeout > 3600)) {
+			LOG.warn(
+					"Handshake timeout must be between 0 and 3600 seconds; supplied value: {} ; using default 30",
+					timeout);
+			timeout = 30;
+		}
+
+		this.handshakeDeadline.setTimeout(timeout * 1000l);
+
+		LOG.info("Using handshake timeout {} s", timeout);
+	}
+
+	private void updateResolver() {
+		int threads = this.configuration.getResolverThreads();
+		int cacheSize = this.configuration.getDnsCacheSize();
+		int ttl = this.configuration.getDnsCacheTtl();
+		int negativeTtl = this.configuration.getDnsNegativeTtl();
+
+		if ((threads < 1) || (threads > 1000)) {
+			LOG.warn(
+					"Resolver threads must be between 1 and 1000; supplied value: {} ; using default 8",
+					threads);
+			threads = 8;
+		}
+
+		if (cacheSize < 0) {
+			LOG.warn(
+					"DNS cache size must not be negative; supplied value: {} ; using default 10000",
+					cacheSize);
+			cacheSize = 10000;
+		}
+
+		if ((ttl < 0) || (ttl > 86400)) {
+			LOG.warn(
+					"DNS cache TTL must be between 0 and 86400 seconds; supplied value: {} ; using default 60",
+					ttl);
+			ttl = 60;
+		}
+
+		if ((negativeTtl < 0) || (negativeTtl > 86400)) {
+			LOG.warn(
+					"DNS negative TTL must be between 0 and 86400 seconds; supplied value: {} ; using default 5",
+					negativeTtl);
+			negativeTtl = 5;
+		}
+
+		final ThreadPoolExecutor pool = this.resolverPool;
+
+		if (pool == null) {
+			final ThreadPoolExecutor newPool = new ThreadPoolExecutor(threads,
+					threads, 60, TimeUnit.SECONDS,
+					new ArrayBlockingQueue<Runnable>(1024),
+					new ThreadFactory() {
+						private final AtomicInteger threadNumber = new AtomicInteger();
+
+						@Override
+						public Thread newThread(final Runnable runnable) {
+							final Thread thread = new Thread(runnable,
+									"socks-resolver-" + this.threadNumber
+											.incrementAndGet());
+							thread.setDaemon(true);
+							return thread;
+						}
+					});
+			newPool.allowCoreThreadTimeOut(true);
+			this.resolverPool = newPool;
+		} else if (threads > pool.getMaximumPoolSize()) {
+			pool.setMaximumPoolSize(threads);
+			pool.setCorePoolSize(threads);
+		} else {
+			pool.setCorePoolSize(threads);
+			pool.setMaximumPoolSize(threads);
+		}
+
+		this.hostResolver.configure(cacheSize, ttl * 1000l,
+				negativeTtl * 1000l);
+
+		LOG.info(
+				"Using {} resolver threads and a DNS cache of {} hosts, TTL {} s, negative TTL {} s",
+				threads, cacheSize, ttl, negativeTtl);
+	}
+
+	private void updateConnect() {
+		int timeout = this.configuration.getConnectTimeout();
+		int statsSize = this.configuration.getDestinationStatsSize();
+		int threshold = this.configuration.getCircuitBreakerThreshold();
+		int coolDown = this.configuration.getCircuitBreakerCoolDown();
+		int circuits = this.configuration.getCircuitBreakerSize();
+
+		if ((timeout < 0) || (timeout > 3600)) {
+			LOG.warn(
+					"Connect timeout must be between 0 and 3600 seconds; supplied value: {} ; using default 30",
+					timeout);
+			timeout = 30;
+		}
+
+		if (statsSize < 0) {
+			LOG.warn(
+					"Destination statistics size must not be negative; supplied value: {} ; using default 1000",
+					statsSize);
+			statsSize = 1000;
+		}
+
+		if ((threshold < 0) || (threshold > 1000)) {
+			LOG.warn(
+					"Circuit breaker threshold must be between 0 and 1000; supplied value: {} ; using default 5",
+					threshold);
+			threshold = 5;
+		}
+
+		if ((coolDown < 1) || (coolDown > 3600)) {
+			LOG.warn(
+					"Circuit breaker cool down must be between 1 and 3600 seconds; supplied value: {} ; using default 30",
+					coolDown);
+			coolDown = 30;
+		}
+
+		if (circuits < 0) {
+			LOG.warn(
+					"Circuit breaker size must not be negative; supplied value: {} ; using default 10000",
+					circuits);
+			circuits = 10000;
+		}
+
+		this.connectTimeout = timeout * 1000;
+		this.destinationStats.setMaxEntries(statsSize);
+		this.circuitBreaker.configure(threshold, coolDown * 1000l, circuits);
+
+		LOG.info(
+				"Using connect timeout {} s and statistics for {} destinations",
+				timeout, statsSize);
+		LOG.info(
+				"Opening circuits after {} failed connects for {} s, at most {} circuits",
+				threshold, coolDown, circuits);
+	}
+
+	private void updateWarmPools() {
+		final Map<InetSocketAddress, WarmSocketPool.Limits> destinations = new HashMap<InetSocketAddress, WarmSocketPool.Limits>();
+
+		if (this.configuration.getWarmPools() != null) {
+			for (final WarmPool warmPool : this.configuration.getWarmPools()) {
+				int size = warmPool.getSize();
+				int maxIdle = warmPool.getMaxIdle();
+
+				if ((warmPool.getPort() < 1) || (warmPool.getPort() > 65535)) {
+					LOG.warn(
+							"Warm pool port must be between 1 and 65535; supplied value: {} ; pool ignored",
+							warmPool.getPort());
+					continue;
+				}
+
+				if ((size < 1) || (size > 1000)) {
+					LOG.warn(
+							"Warm pool size must be between 1 and 1000; supplied value: {} ; using default 2",
+							size);
+					size = 2;
+				}
+
+				if ((maxIdle < 1) || (maxIdle > 3600)) {
+					LOG.warn(
+							"Warm pool max idle must be between 1 and 3600 seconds; supplied value: {} ; using default 60",
+							maxIdle);
+					maxIdle = 60;
+				}
+
+				// Connections are pooled to the first address of a host
+				final InetSocketAddress destination;
+				try {
+					destination = new InetSocketAddress(
+							InetAddress.getByName(warmPool.getAddress()),
+							warmPool.getPort());
+				} catch (final UnknownHostException e) {
+					LOG.error("Failed to resolve {}", warmPool.getAddress(),
+							e);
+					continue;
+				}
+
+				destinations.put(destination,
+						new WarmSocketPool.Limits(size, maxIdle * 1000l));
+				LOG.info(
+						"Keeping {} connections to {}:{} for at most {} s",
+						size, destination.getAddress().getHostAddress(),
+						destination.getPort(), maxIdle);
+			}
+		}
+
+		this.warmSocketPool.configure(destinations,
+				this.sourceAddressSelector, this.connectTimeout);
+	}
+
+	private void updateBufferPool() {
+		int capacity = this.configuration.getBufferPoolSize();
+		int bufferSize = this.configuration.getBufferSize();
+		int maxBufferSize = this.configuration.getMaxBufferSize();
+		int memoryLimit = this.configuration.getBufferMemoryLimit();
+
+		if (capacity < 0) {
+			LOG.warn(
+					"Buffer pool size must not be negative; supplied value: {} ; using default 1024",
+					capacity);
+			capacity = 1024;
+		}
+
+		if ((bufferSize < 512) || (bufferSize > 1048576)) {
+			LOG.warn(
+					"Buffer size must be between 512 and 1048576; supplied value: {} ; using default 8192",
+					bufferSize);
+			bufferSize = 8192;
+		}
+
+		if ((maxBufferSize < bufferSize) || (maxBufferSize > 1048576)) {
+			LOG.warn(
+					"Max buffer size must be between buffer size and 1048576; supplied value: {} ; using {}",
+					maxBufferSize, Math.max(bufferSize, 65536));
+			maxBufferSize = Math.max(bufferSize, 65536);
+		}
+
+		if (memoryLimit <= 0) {
+			LOG.warn(
+					"Buffer memory limit must be positive; supplied value: {} ; using default 256",
+					memoryLimit);
+			memoryLimit = 256;
+		}
+
+		final long memoryLimitBytes = memoryLimit * 1048576l;
+
+		if ((capacity != this.bufferPool.getCapacity())
+				|| (bufferSize != this.bufferPool.getBufferSize())
+				|| (maxBufferSize != this.bufferPool.getMaxBufferSize())
+				|| (memoryLimitBytes != this.bufferPool.getMemoryLimit())) {
+			this.bufferPool = new BufferPool(capacity, bufferSize,
+					maxBufferSize, memoryLimitBytes, this.bufferPool);
+		}
+
+		LOG.info(
+				"Using buffer pool of {} buffers of {} to {} bytes, limited to {} MB",
+				capacity, bufferSize, this.bufferPool.getMaxBufferSize(),
+				memoryLimit);
 	}
 
 	private void updateBacklog() {
@@ -334,6 +972,85 @@ public class JSocksProxy
 		}
 	}
 
+	private void updateRelayMode() {
+		RelayMode mode = this.configuration.getRelayMode();
+
+		if (mode == null) {
+			LOG.warn("Unknown relay mode; using default {}",
+					RelayMode.BLOCKING);
+			mode = RelayMode.BLOCKING;
+		}
+
+		if ((mode == RelayMode.NIO) && (this.relayEngine == null)) {
+			try {
+				final RelayEngine engine = new RelayEngine(
+						this.configuration.getRelayThreads());
+				engine.setCoalescing(this.coalesceBuffers,
+						this.maxFlushLatency);
+				engine.start();
+				this.relayEngine = engine;
+			} catch (final IOException e) {
+				LOG.error("Failed to start relay engine; using {}",
+						RelayMode.BLOCKING, e);
+				mode = RelayMode.BLOCKING;
+			}
+		}
+
+		if (this.relayEngine != null) {
+			this.relayEngine.setCoalescing(this.coalesceBuffers,
+					this.maxFlushLatency);
+		}
+
+		this.relayMode = mode;
+		LOG.info("Using relay mode {}", this.relayMode);
+	}
+
+	private void updateUdpRelay() {
+		if (this.configuration.isAllowUdpAssociate()) {
+			if (this.udpRelay == null) {
+				try {
+					final UdpRelay relay = new UdpRelay();
+					relay.start();
+					this.udpRelay = relay;
+				} catch (final IOException e) {
+					LOG.error("Failed to start UDP relay", e);
+				}
+			}
+		} else if (this.udpRelay != null) {
+			this.udpRelay.shutdown();
+			this.udpRelay = null;
+		}
+
+		LOG.info("UDP ASSOCIATE is {}",
+				(this.udpRelay != null) ? "allowed" : "not allowed");
+
+		if (this.udpRelay == null) {
+			return;
+		}
+
+		int buffers = this.configuration.getUdpReassemblyBuffers();
+		int timeout = this.configuration.getUdpReassemblyTimeout();
+
+		if ((buffers < 0) || (buffers > 1024)) {
+			LOG.warn(
+					"UDP reassembly buffers must be between 0 and 1024; supplied value: {} ; using default {}",
+					buffers, UdpRelay.DEFAULT_REASSEMBLY_BUFFERS);
+			buffers = UdpRelay.DEFAULT_REASSEMBLY_BUFFERS;
+		}
+
+		if ((timeout < 5) || (timeout > 300)) {
+			LOG.warn(
+					"UDP reassembly timeout must be between 5 and 300 seconds; supplied value: {} ; using default {}",
+					timeout, UdpRelay.DEFAULT_REASSEMBLY_TIMEOUT);
+			timeout = UdpRelay.DEFAULT_REASSEMBLY_TIMEOUT;
+		}
+
+		this.udpRelay.setReassembly(buffers, timeout);
+
+		LOG.info("Reassembling UDP fragments in {} buffers, timeout {} s",
+				buffers, timeout);
+	}
+
 	private void updateListenAddresses() {
 		for (final Listen listen : this.configuration.getListen()) {
 
@@ -353,10 +1070,25 @@ public class JSocksProxy
 				continue;
 			}
 
+			if ((listen.getAcceptors() < 1) || (listen.getAcceptors() > 64)) {
+				LOG.warn(
+						"Acceptors must be between 1 and 64; supplied value: {} ; using default 1",
+						listen.getAcceptors());
+				listen.setAcceptors(1);
+			}
+
+			if ((listen.getIdleTimeout() < 0)
+					|| (listen.getIdleTimeout() > 86400)) {
+				LOG.warn(
+						"Idle timeout must be between 0 and 86400 seconds; supplied value: {} ; using default 0",
+						listen.getIdleTimeout());
+				listen.setIdleTimeout(0);
+			}
+
 			try {
 				final InetSocketAddress inetSocketAddress = new InetSocketAddress(
 						address, port);
-				this.listeningAddresses.add(inetSocketAddress);
+				this.listeningAddresses.put(inetSocketAddress, listen);
 
 				LOG.info("Added listening address ",
 						formatSocketAddress(inetSocketAddress));
@@ -398,6 +1130,27 @@ public class JSocksProxy
 			}
 		}
 
+		SourceStrategy strategy = this.configuration.getSourceStrategy();
+		if (strategy == null) {
+			LOG.warn("Unknown source strategy; using default {}",
+					SourceStrategy.ROUND_ROBIN);
+			strategy = SourceStrategy.ROUND_ROBIN;
+		}
+
+		final List<InetAddress> sourceAddresses = (this.outgoingSourceAddresses != null)
+				? this.outgoingSourceAddresses
+				: Collections.<InetAddress> emptyList();
+		final Map<String, List<InetAddress>> routes = this.readRoutes();
+
+		if (this.sourceAddressSelector == null) {
+			this.sourceAddressSelector = new SourceAddressSelector(
+					sourceAddresses, strategy);
+		}
+		this.sourceAddressSelector.configure(sourceAddresses, strategy,
+				routes);
+		LOG.info("Selecting outgoing source addresses by {}", strategy);
+		LOG.info("Using {} outgoing address routes", routes.size());
+
 		if (LOG.isInfoEnabled()) {
 			final StringBuilder builder = new StringBuilder();
 			if (this.outgoingSourceAddresses != null) {
@@ -416,6 +1169,51 @@ public class JSocksProxy
 		}
 	}
 
+	private Map<String, List<InetAddress>> readRoutes() {
+		final Map<String, List<InetAddress>> routes = new LinkedHashMap<String, List<InetAddress>>();
+		if (this.configuration.getRoutes() == null) {
+			return routes;
+		}
+
+		// Validated one by one, so that an invalid route is only skipped
+		final RouteTable<String> validator = new RouteTable<String>();
+
+		for (final Route route : this.configuration.getRoutes()) {
+			final String destination = route.getDestination();
+
+			try {
+				if (destination == null) {
+					throw new IllegalArgumentException("destination");
+				}
+				validator.add(destination, destination);
+			} catch (final IllegalArgumentException e) {
+				LOG.warn("Invalid route destination: {} ; route ignored",
+						destination);
+				continue;
+			}
+
+			final List<InetAddress> addresses = new ArrayList<InetAddress>();
+			if (route.getOutgoingAddresses() != null) {
+				for (final String address : route.getOutgoingAddresses()) {
+					try {
+						addresses.addAll(Arrays
+								.asList(InetAddress.getAllByName(address)));
+					} catch (final UnknownHostException e) {
+						LOG.error("Failed to resolve {}", address, e);
+					}
+				}
+			}
+
+			if (addresses.isEmpty()) {
+				LOG.warn("No outgoing address for route {} ; route ignored",
+						destination);
+				continue;
+			}
+			routes.put(destination, addresses);
+		}
+		return routes;
+	}
+
 	private void readConfigurationFromFile(final File file) {
 		try {
 			final JAXBContext context = JAXBContext
@@ -491,8 +1289,326 @@ public class JSocksProxy
 		return this.configuration.isAllowSocks5();
 	}
 
+	@Override
+	public boolean isOptimisticSocks5() {
+		if (this.configuration == null) {
+			return false;
+		}
+
+		return this.configuration.isOptimisticSocks5();
+	}
+
 	@Override
 	public int getBacklog() {
 		return this.backlog;
 	}
+
+	@Override
+	public RelayEngine getRelayEngine() {
+		if (this.relayMode != RelayMode.NIO) {
+			return null;
+		}
+
+		return this.relayEngine;
+	}
+
+	@Override
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	@Override
+	public int getCoalesceBuffers() {
+		return this.coalesceBuffers;
+	}
+
+	@Override
+	public HandshakeDeadline getHandshakeDeadline() {
+		return this.handshakeDeadline;
+	}
+
+	@Override
+	public IdleMonitor getIdleMonitor() {
+		return this.idleMonitor;
+	}
+
+	@Override
+	public HostResolver getHostResolver() {
+		return this.hostResolver;
+	}
+
+	@Override
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	@Override
+	public DestinationStats getDestinationStats() {
+		return this.destinationStats;
+	}
+
+	@Override
+	public CircuitBreaker getCircuitBreaker() {
+		return this.circuitBreaker;
+	}
+
+	@Override
+	public SourceAddressSelector getSourceAddressSelector() {
+		return this.sourceAddressSelector;
+	}
+
+	@Override
+	public WarmSocketPool getWarmSocketPool() {
+		return this.warmSocketPool;
+	}
+
+	@Override
+	public UdpRelay getUdpRelay() {
+		return this.udpRelay;
+	}
+
+	@Override
+	public String getExecutorMode() {
+		return this.executorMode.name();
+	}
+
+	@Override
+	public int getHandlerPoolSize() {
+		final ThreadPoolExecutor pool = this.handlerPool;
+		return (pool != null) ? pool.getPoolSize() : 0;
+	}
+
+	@Override
+	public int getHandlerActiveThreads() {
+		final ThreadPoolExecutor pool = this.handlerPool;
+		return (pool != null) ? pool.getActiveCount() : 0;
+	}
+
+	@Override
+	public int getHandlerLargestPoolSize() {
+		final ThreadPoolExecutor pool = this.handlerPool;
+		return (pool != null) ? pool.getLargestPoolSize() : 0;
+	}
+
+	@Override
+	public int getHandlerQueueDepth() {
+		final ThreadPoolExecutor pool = this.handlerPool;
+		return (pool != null) ? pool.getQueue().size() : 0;
+	}
+
+	@Override
+	public long getHandlerRejected() {
+		return this.rejectedHandlers.sum();
+	}
+
+	@Override
+	public long getHandshakesAborted() {
+		return this.handshakeDeadline.getAborted();
+	}
+
+	@Override
+	public long getIdleTunnelsClosed() {
+		return this.idleMonitor.getClosed();
+	}
+
+	@Override
+	public long getDnsCacheHits() {
+		return this.hostResolver.getHits();
+	}
+
+	@Override
+	public long getDnsCacheMisses() {
+		return this.hostResolver.getMisses();
+	}
+
+	@Override
+	public long getDnsCacheCoalesced() {
+		return this.hostResolver.getCoalesced();
+	}
+
+	@Override
+	public int getDnsCacheSize() {
+		return this.hostResolver.getSize();
+	}
+
+	@Override
+	public int getDestinationCount() {
+		return this.destinationStats.getSize();
+	}
+
+	@Override
+	public int getCircuitsOpen() {
+		return this.circuitBreaker.getOpen();
+	}
+
+	@Override
+	public long getCircuitsOpened() {
+		return this.circuitBreaker.getOpened();
+	}
+
+	@Override
+	public long getCircuitBreakerRejected() {
+		return this.circuitBreaker.getRejected();
+	}
+
+	@Override
+	public String[] getSourceAddressStatistics() {
+		final SourceAddressSelector selector = this.sourceAddressSelector;
+		if (selector == null) {
+			return new String[0];
+		}
+
+		final SourceAddressSelector.Source[] sources = selector.getSources();
+		final String[] statistics = new String[sources.length];
+
+		for (int i = 0; i < statistics.length; i++) {
+			statistics[i] = sources[i].toString();
+		}
+		return statistics;
+	}
+
+	@Override
+	public long getPortExhaustions() {
+		final SourceAddressSelector selector = this.sourceAddressSelector;
+		long portExhaustions = 0;
+
+		if (selector != null) {
+			for (final SourceAddressSelector.Source source : selector
+					.getSources()) {
+				portExhaustions += source.getPortExhaustions();
+			}
+		}
+		return portExhaustions;
+	}
+
+	@Override
+	public int getWarmSocketIdle() {
+		return this.warmSocketPool.getIdle();
+	}
+
+	@Override
+	public long getWarmSocketHits() {
+		return this.warmSocketPool.getHits();
+	}
+
+	@Override
+	public long getWarmSocketMisses() {
+		return this.warmSocketPool.getMisses();
+	}
+
+	@Override
+	public String[] getWarmSocketStatistics() {
+		final List<String> statistics = this.warmSocketPool.getStatistics();
+		return statistics.toArray(new String[statistics.size()]);
+	}
+
+	@Override
+	public int getUdpAssociations() {
+		final UdpRelay relay = this.udpRelay;
+		return (relay != null) ? relay.getActiveAssociations() : 0;
+	}
+
+	@Override
+	public long getUdpDatagramsForwarded() {
+		final UdpRelay relay = this.udpRelay;
+		return (relay != null) ? relay.getForwarded() : 0;
+	}
+
+	@Override
+	public long getUdpDatagramsDropped() {
+		final UdpRelay relay = this.udpRelay;
+		return (relay != null) ? relay.getDropped() : 0;
+	}
+
+	@Override
+	public long getUdpFragmentSetsReassembled() {
+		final UdpRelay relay = this.udpRelay;
+		return (relay != null) ? relay.getFragmentSetsReassembled() : 0;
+	}
+
+	@Override
+	public long getUdpFragmentSetsDropped() {
+		final UdpRelay relay = this.udpRelay;
+		return (relay != null) ? relay.getFragmentSetsDropped() : 0;
+	}
+
+	@Override
+	public long getUdpFragmentSetsExpired() {
+		final UdpRelay relay = this.udpRelay;
+		return (relay != null) ? relay.getFragmentSetsExpired() : 0;
+	}
+
+	@Override
+	public String[] getUdpAssociationStatistics() {
+		final UdpRelay relay = this.udpRelay;
+
+		if (relay == null) {
+			return new String[0];
+		}
+		final List<String> statistics = relay.getStatistics();
+		return statistics.toArray(new String[statistics.size()]);
+	}
+
+	@Override
+	public int getRouteCount() {
+		final SourceAddressSelector selector = this.sourceAddressSelector;
+		return (selector != null) ? selector.getRouteCount() : 0;
+	}
+
+	@Override
+	public String[] getDestinationStatistics() {
+		final List<DestinationStats.Destination> destinations = this.destinationStats
+				.getDestinations();
+		final String[] statistics = new String[destinations.size()];
+
+		for (int i = 0; i < statistics.length; i++) {
+			statistics[i] = destinations.get(i).toString();
+		}
+		return statistics;
+	}
+
+	@Override
+	public int getBufferPoolCapacity() {
+		return this.bufferPool.getCapacity();
+	}
+
+	@Override
+	public int getBufferPoolBufferSize() {
+		return this.bufferPool.getBufferSize();
+	}
+
+	@Override
+	public int getBufferPoolMaxBufferSize() {
+		return this.bufferPool.getMaxBufferSize();
+	}
+
+	@Override
+	public long getBufferPoolReservedBytes() {
+		return this.bufferPool.getReservedBytes();
+	}
+
+	@Override
+	public long getBufferPoolMemoryLimit() {
+		return this.bufferPool.getMemoryLimit();
+	}
+
+	@Override
+	public long getBufferPoolRefused() {
+		return this.bufferPool.getRefused();
+	}
+
+	@Override
+	public int getBufferPoolPooled() {
+		return this.bufferPool.getPooled();
+	}
+
+	@Override
+	public long getBufferPoolHits() {
+		return this.bufferPool.getHits();
+	}
+
+	@Override
+	public long getBufferPoolMisses() {
+		return this.bufferPool.getMisses();
+	}
 }
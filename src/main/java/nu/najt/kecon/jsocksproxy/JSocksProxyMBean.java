@@ -65,4 +65,259 @@ public interface JSocksProxyMBean {
 	 */
 	public void stop();
 
+	/**
+	 * @return the kind of threads running handshakes and blocking tunnels
+	 * @since 3.0
+	 */
+	public String getExecutorMode();
+
+	/**
+	 * @return the number of threads in the handler pool
+	 * @since 3.0
+	 */
+	public int getHandlerPoolSize();
+
+	/**
+	 * @return the number of handler threads running a handshake or tunnel
+	 * @since 3.0
+	 */
+	public int getHandlerActiveThreads();
+
+	/**
+	 * @return the largest number of threads that has been in the handler pool
+	 * @since 3.0
+	 */
+	public int getHandlerLargestPoolSize();
+
+	/**
+	 * @return the number of accepted connections waiting for a handler
+	 *         thread
+	 * @since 3.0
+	 */
+	public int getHandlerQueueDepth();
+
+	/**
+	 * @return the number of connections rejected because the handler pool and
+	 *         queue were full
+	 * @since 3.0
+	 */
+	public long getHandlerRejected();
+
+	/**
+	 * @return the number of handshakes aborted because they were not
+	 *         completed within the handshake timeout
+	 * @since 3.0
+	 */
+	public long getHandshakesAborted();
+
+	/**
+	 * @return the number of tunnels closed because no data was read within
+	 *         the idle timeout of their listen address
+	 * @since 3.0
+	 */
+	public long getIdleTunnelsClosed();
+
+	/**
+	 * @return the number of host names answered from the DNS cache
+	 * @since 3.0
+	 */
+	public long getDnsCacheHits();
+
+	/**
+	 * @return the number of host names looked up by the resolver
+	 * @since 3.0
+	 */
+	public long getDnsCacheMisses();
+
+	/**
+	 * @return the number of host names which waited for a lookup of the same
+	 *         host already in progress
+	 * @since 3.0
+	 */
+	public long getDnsCacheCoalesced();
+
+	/**
+	 * @return the number of hosts in the DNS cache
+	 * @since 3.0
+	 */
+	public int getDnsCacheSize();
+
+	/**
+	 * @return the number of destinations with connect statistics
+	 * @since 3.0
+	 */
+	public int getDestinationCount();
+
+	/**
+	 * @return the average connect latency and failure rate of each
+	 *         destination, the most recently connected first
+	 * @since 3.0
+	 */
+	public String[] getDestinationStatistics();
+
+	/**
+	 * @return the number of destinations whose circuit is open
+	 * @since 3.0
+	 */
+	public int getCircuitsOpen();
+
+	/**
+	 * @return the number of times a circuit has been opened
+	 * @since 3.0
+	 */
+	public long getCircuitsOpened();
+
+	/**
+	 * @return the number of connects failed at once because the circuit of
+	 *         the destination was open
+	 * @since 3.0
+	 */
+	public long getCircuitBreakerRejected();
+
+	/**
+	 * @return the number of active connections and connections made from
+	 *         each outgoing source address
+	 * @since 3.0
+	 */
+	public String[] getSourceAddressStatistics();
+
+	/**
+	 * @return the number of connections which could not be bound to an
+	 *         outgoing source address, usually because its ephemeral ports
+	 *         were exhausted
+	 * @since 3.0
+	 */
+	public long getPortExhaustions();
+
+	/**
+	 * @return the number of routes of destination networks to outgoing
+	 *         source addresses
+	 * @since 3.0
+	 */
+	public int getRouteCount();
+
+	/**
+	 * @return the number of idle pooled connections
+	 * @since 3.0
+	 */
+	public int getWarmSocketIdle();
+
+	/**
+	 * @return the number of pooled connections handed out
+	 * @since 3.0
+	 */
+	public long getWarmSocketHits();
+
+	/**
+	 * @return the number of times a pooled destination had no idle
+	 *         connection
+	 * @since 3.0
+	 */
+	public long getWarmSocketMisses();
+
+	/**
+	 * @return the pooled connections of each destination
+	 * @since 3.0
+	 */
+	public String[] getWarmSocketStatistics();
+
+	/**
+	 * @return the number of open SOCKS5 UDP associations
+	 * @since 3.0
+	 */
+	public int getUdpAssociations();
+
+	/**
+	 * @return the number of UDP datagrams relayed in either direction
+	 * @since 3.0
+	 */
+	public long getUdpDatagramsForwarded();
+
+	/**
+	 * @return the number of UDP datagrams dropped by the relay
+	 * @since 3.0
+	 */
+	public long getUdpDatagramsDropped();
+
+	/**
+	 * @return the number of fragmented UDP datagrams reassembled
+	 * @since 3.0
+	 */
+	public long getUdpFragmentSetsReassembled();
+
+	/**
+	 * @return the number of UDP fragment sets which could not be reassembled
+	 * @since 3.0
+	 */
+	public long getUdpFragmentSetsDropped();
+
+	/**
+	 * @return the number of UDP fragment sets which were not completed
+	 *         within the reassembly timeout
+	 * @since 3.0
+	 */
+	public long getUdpFragmentSetsExpired();
+
+	/**
+	 * @return the datagram and byte counters of each UDP association
+	 * @since 3.0
+	 */
+	public String[] getUdpAssociationStatistics();
+
+	/**
+	 * @return the maximum number of pooled relay buffers
+	 * @since 3.0
+	 */
+	public int getBufferPoolCapacity();
+
+	/**
+	 * @return the smallest size of the relay buffers
+	 * @since 3.0
+	 */
+	public int getBufferPoolBufferSize();
+
+	/**
+	 * @return the largest size of the relay buffers
+	 * @since 3.0
+	 */
+	public int getBufferPoolMaxBufferSize();
+
+	/**
+	 * @return the number of bytes in relay buffers in use or pooled
+	 * @since 3.0
+	 */
+	public long getBufferPoolReservedBytes();
+
+	/**
+	 * @return the maximum number of bytes in relay buffers in use or pooled
+	 * @since 3.0
+	 */
+	public long getBufferPoolMemoryLimit();
+
+	/**
+	 * @return the number of larger relay buffers refused because of the
+	 *         memory limit
+	 * @since 3.0
+	 */
+	public long getBufferPoolRefused();
+
+	/**
+	 * @return the number of relay buffers currently in the pool
+	 * @since 3.0
+	 */
+	public int getBufferPoolPooled();
+
+	/**
+	 * @return the number of relay buffers taken from the pool
+	 * @since 3.0
+	 */
+	public long getBufferPoolHits();
+
+	/**
+	 * @return the number of relay buffers allocated because the pool was
+	 *         empty
+	 * @since 3.0
+	 */
+	public long getBufferPoolMisses();
+
 }
@@ -0,0 +1,166 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static nu.najt.kecon.jsocksproxy.utils.StringUtils.formatSocketAddress;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+
+import nu.najt.kecon.jsocksproxy.utils.SocketUtils;
+
+/**
+ * The listening threads of one listen address. With more than one acceptor
+ * every thread binds its own socket to the address with SO_REUSEPORT, so that
+ * the kernel balances incoming connections between them. The group is
+ * created, started and shut down as one unit.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+class ListeningGroup {
+
+	private final InetSocketAddress inetSocketAddress;
+
+	private final int acceptors;
+
+	private final List<ListeningThread> listeningThreads;
+
+	/**
+	 * Constructor, binds the sockets of all acceptors
+	 * 
+	 * @param configuration
+	 *            the configuration
+	 * @param logger
+	 *            the logger
+	 * @param executorService
+	 *            the executor running the SOCKS implementations
+	 * @param tunnelExecutor
+	 *            the executor running the tunnel threads
+	 * @param inetSocketAddress
+	 *            the address that the listening threads should bind to
+	 * @param acceptors
+	 *            the number of listening threads, only one is used if
+	 *            SO_REUSEPORT is not supported
+	 * @throws IOException
+	 *             if any of the sockets could not be bound, in which case
+	 *             none is left open
+	 */
+	ListeningGroup(final ConfigurationFacade configuration,
+			final Logger logger, final Executor executorService,
+			final Executor tunnelExecutor,
+			final InetSocketAddress inetSocketAddress, final int acceptors)
+			throws IOException {
+		this.inetSocketAddress = inetSocketAddress;
+		this.acceptors = acceptors;
+
+		int count = acceptors;
+		if ((count > 1) && !SocketUtils.isReusePortSupported()) {
+			logger.warn(
+					"SO_REUSEPORT is not supported; using one acceptor for {}",
+					formatSocketAddress(inetSocketAddress));
+			count = 1;
+		}
+
+		final List<ListeningThread> threads = new ArrayList<ListeningThread>(
+				count);
+		InetSocketAddress bindAddress = inetSocketAddress;
+
+		try {
+			for (int i = 0; i < count; i++) {
+				final ListeningThread listeningThread = new ListeningThread(
+						configuration, logger, executorService,
+						tunnelExecutor, bindAddress, count > 1);
+				threads.add(listeningThread);
+
+				// The other acceptors must share an ephemeral port
+				if (bindAddress.getPort() == 0) {
+					bindAddress = new InetSocketAddress(
+							bindAddress.getAddress(),
+							listeningThread.getLocalPort());
+				}
+			}
+		} catch (final IOException e) {
+			for (final ListeningThread listeningThread : threads) {
+				listeningThread.shutdown();
+			}
+			throw e;
+		}
+
+		this.listeningThreads = Collections.unmodifiableList(threads);
+	}
+
+	/**
+	 * Start accepting connections
+	 * 
+	 * @param executor
+	 *            the executor running the listening threads
+	 */
+	void start(final Executor executor) {
+		for (final ListeningThread listeningThread : this.listeningThreads) {
+			executor.execute(listeningThread);
+		}
+	}
+
+	/**
+	 * Shutdown all listening threads of the group
+	 */
+	void shutdown() {
+		for (final ListeningThread listeningThread : this.listeningThreads) {
+			listeningThread.shutdown();
+		}
+	}
+
+	/**
+	 * Set the idle timeout of tunnels established after this call
+	 * 
+	 * @param idleTimeout
+	 *            the number of milliseconds a tunnel may be idle before it is
+	 *            closed, 0 means no timeout
+	 */
+	void setIdleTimeout(final long idleTimeout) {
+		for (final ListeningThread listeningThread : this.listeningThreads) {
+			listeningThread.setIdleTimeout(idleTimeout);
+		}
+	}
+
+	/**
+	 * @return the configured listen address
+	 */
+	InetSocketAddress getInetSocketAddress() {
+		return this.inetSocketAddress;
+	}
+
+	/**
+	 * @return the configured number of acceptors
+	 */
+	int getAcceptors() {
+		return this.acceptors;
+	}
+
+	/**
+	 * @return the listening threads
+	 */
+	List<ListeningThread> getListeningThreads() {
+		return this.listeningThreads;
+	}
+}
@@ -24,17 +24,18 @@ import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.SocketException;
+import java.nio.channels.ServerSocketChannel;
 import java.util.HashMap;
-import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.atomic.AtomicBoolean;
 
-import javax.net.ServerSocketFactory;
-
 import org.slf4j.Logger;
 import org.slf4j.MDC;
 
 import nu.najt.kecon.jsocksproxy.socks4.SocksImplementation4;
 import nu.najt.kecon.jsocksproxy.socks5.SocksImplementation5;
+import nu.najt.kecon.jsocksproxy.utils.SocketUtils;
 
 /**
  * This thread handle incoming connections for a specific listening address
@@ -54,7 +55,33 @@ class ListeningThread implements Runnable {
 
 	private final ConfigurationFacade configuration;
 
-	private final ExecutorService executorService;
+	private final Executor executorService;
+
+	private final Executor tunnelExecutor;
+
+	private final boolean reusePort;
+
+	private volatile long idleTimeout = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param configuration
+	 *            the configuration
+	 * @param logger
+	 *            the logger
+	 * @param executorService
+	 *            the executor running the SOCKS implementations and tunnels
+	 * @param inetSocketAddress
+	 *            the address that the listening thread should bind to
+	 * @throws IOException
+	 */
+	public ListeningThread(final ConfigurationFacade configuration,
+			final Logger logger, final Executor executorService,
+			final InetSocketAddress inetSocketAddress) throws IOException {
+		this(configuration, logger, executorService, executorService,
+				inetSocketAddress);
+	}
 
 	/**
 	 * Constructor
@@ -64,18 +91,54 @@ class ListeningThread implements Runnable {
 	 * @param logger
 	 *            the logger
 	 * @param executorService
-	 *            ListeningThread constructor
+	 *            the executor running the SOCKS implementations, which may
+	 *            reject them when overloaded
+	 * @param tunnelExecutor
+	 *            the executor running the tunnel threads
 	 * @param inetSocketAddress
 	 *            the address that the listening thread should bind to
 	 * @throws IOException
+	 * @since 3.0
 	 */
 	public ListeningThread(final ConfigurationFacade configuration,
-			final Logger logger, final ExecutorService executorService,
+			final Logger logger, final Executor executorService,
+			final Executor tunnelExecutor,
 			final InetSocketAddress inetSocketAddress) throws IOException {
+		this(configuration, logger, executorService, tunnelExecutor,
+				inetSocketAddress, false);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param configuration
+	 *            the configuration
+	 * @param logger
+	 *            the logger
+	 * @param executorService
+	 *            the executor running the SOCKS implementations, which may
+	 *            reject them when overloaded
+	 * @param tunnelExecutor
+	 *            the executor running the tunnel threads
+	 * @param inetSocketAddress
+	 *            the address that the listening thread should bind to
+	 * @param reusePort
+	 *            true if the address is shared with other listening threads
+	 *            using SO_REUSEPORT
+	 * @throws IOException
+	 * @since 3.0
+	 */
+	public ListeningThread(final ConfigurationFacade configuration,
+			final Logger logger, final Executor executorService,
+			final Executor tunnelExecutor,
+			final InetSocketAddress inetSocketAddress, final boolean reusePort)
+			throws IOException {
 		this.configuration = configuration;
 		this.logger = logger;
 		this.executorService = executorService;
+		this.tunnelExecutor = tunnelExecutor;
 		this.inetSocketAddress = inetSocketAddress;
+		this.reusePort = reusePort;
 		MDC.setContextMap(new HashMap<>());
 		MDC.put(LoggingConstants.SOCKS_SERVER,
 				formatSocketAddress(inetSocketAddress));
@@ -87,9 +150,21 @@ class ListeningThread implements Runnable {
 
 	protected ServerSocket createServerSocket(
 			final InetSocketAddress inetSocketAddress) throws IOException {
-		return ServerSocketFactory.getDefault().createServerSocket(
-				inetSocketAddress.getPort(), this.configuration.getBacklog(),
-				inetSocketAddress.getAddress());
+		// Accepted sockets are backed by channels, which is required by the
+		// relay engine and the direct buffer copy
+		final ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			if (this.reusePort) {
+				SocketUtils.setReusePort(channel);
+			}
+
+			channel.socket().bind(inetSocketAddress,
+					this.configuration.getBacklog());
+		} catch (final IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel.socket();
 	}
 
 	@Override
@@ -124,15 +199,23 @@ class ListeningThread implements Runnable {
 		socket.setTcpNoDelay(true);
 		socket.setKeepAlive(true);
 
+		// The version is read by the handler, a client that is slow to send
+		// it must not stall the accept loop. The handshake deadline starts
+		// now and covers the version as well as the request.
+		final HandshakeDeadline handshakeDeadline = this.configuration
+				.getHandshakeDeadline();
+		final SocksImplementation dispatcher = new HandshakeDispatcher(this,
+				this.configuration, socket,
+				(handshakeDeadline != null) ? handshakeDeadline.start(socket)
+						: null,
+				this.logger);
+
 		try {
-			this.executorService
-					.execute(this.getImplementation(configuration, socket));
-
-		} catch (final ProtocolException e) {
-			this.logger.info("Unknown SOCKS VERSION requested by {}",
-					formatSocket(socket), e);
-		} catch (final AccessDeniedException e) {
-			this.logger.warn("Access Denied for {}", formatSocket(socket), e);
+			this.executorService.execute(dispatcher);
+		} catch (final RejectedExecutionException e) {
+			this.logger.warn("Too many connections, rejecting {}",
+					formatSocket(socket));
+			dispatcher.reject();
 		}
 	}
 
@@ -167,11 +250,37 @@ class ListeningThread implements Runnable {
 
 		final int protocol = inputStream.read();
 
+		return this.getImplementation(configurationFacade, socket, protocol);
+	}
+
+	/**
+	 * Return a SOCKS implementation for a version which has already been
+	 * read
+	 * 
+	 * @param configurationFacade
+	 *            the configuration
+	 * @param socket
+	 *            the incoming socket
+	 * @param protocol
+	 *            the SOCKS version sent by the client
+	 * @return SOCKS implementation
+	 * @throws AccessDeniedException
+	 *             if the version is not enabled
+	 * @throws ProtocolException
+	 *             if the version is unknown
+	 * @since 3.0
+	 */
+	public SocksImplementation getImplementation(
+			final ConfigurationFacade configurationFacade, final Socket socket,
+			final int protocol)
+			throws AccessDeniedException, ProtocolException {
 		switch (protocol) {
 		case 0x04:
 			if (configurationFacade.isAllowSocks4()) {
-				return new SocksImplementation4(configurationFacade, socket,
-						executorService);
+				final SocksImplementation4 implementation = new SocksImplementation4(
+						configurationFacade, socket, this.tunnelExecutor);
+				implementation.setIdleTimeout(this.idleTimeout);
+				return implementation;
 			} else {
 				try {
 					socket.close();
@@ -182,8 +291,10 @@ class ListeningThread implements Runnable {
 
 		case 0x05:
 			if (configurationFacade.isAllowSocks5()) {
-				return new SocksImplementation5(configurationFacade, socket,
-						executorService);
+				final SocksImplementation5 implementation = new SocksImplementation5(
+						configurationFacade, socket, this.tunnelExecutor);
+				implementation.setIdleTimeout(this.idleTimeout);
+				return implementation;
 			} else {
 				try {
 					socket.close();
@@ -202,7 +313,36 @@ class ListeningThread implements Runnable {
 		}
 	}
 
+	/**
+	 * @return the number of milliseconds a tunnel may be idle before it is
+	 *         closed, 0 means no timeout
+	 * @since 3.0
+	 */
+	public long getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	/**
+	 * Set the idle timeout of tunnels established after this call
+	 * 
+	 * @param idleTimeout
+	 *            the number of milliseconds a tunnel may be idle before it is
+	 *            closed, 0 means no timeout
+	 * @since 3.0
+	 */
+	public void setIdleTimeout(final long idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
 	public InetSocketAddress getInetSocketAddress() {
 		return inetSocketAddress;
 	}
+
+	/**
+	 * @return the port the listening socket is bound to
+	 * @since 3.0
+	 */
+	public int getLocalPort() {
+		return this.serverSocket.getLocalPort();
+	}
 }
\ No newline at end of file
@@ -30,4 +30,12 @@ public interface SocksImplementation extends Runnable {
 	@Override
 	public void run();
 
+	/**
+	 * Reject the client with a failure reply and close the connection,
+	 * without reading the handshake. Used when the proxy is overloaded.
+	 * 
+	 * @since 3.0
+	 */
+	public void reject();
+
 }
@@ -19,6 +19,8 @@ import java.io.IOException;
 import java.net.Socket;
 import java.util.concurrent.CountDownLatch;
 
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor.Activity;
 import nu.najt.kecon.jsocksproxy.utils.SocketUtils;
 
 /**
@@ -36,6 +38,12 @@ public final class TunnelThread implements Runnable {
 
 	private final Socket outputSocket;
 
+	private final BufferPool bufferPool;
+
+	private final int coalesceBuffers;
+
+	private final Activity activity;
+
 	/**
 	 * Constructor
 	 * 
@@ -48,15 +56,64 @@ public final class TunnelThread implements Runnable {
 	 */
 	public TunnelThread(final CountDownLatch countDownLatch,
 			final Socket inputSocket, final Socket outputSocket) {
+		this(countDownLatch, inputSocket, outputSocket, null, 1);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param countDownLatch
+	 *            the count down latch that will count down when copy completes
+	 * @param inputSocket
+	 *            the input socket
+	 * @param outputSocket
+	 *            the output socket
+	 * @param bufferPool
+	 *            the buffer pool, may be null
+	 * @param coalesceBuffers
+	 *            the number of buffers to read into
+	 */
+	public TunnelThread(final CountDownLatch countDownLatch,
+			final Socket inputSocket, final Socket outputSocket,
+			final BufferPool bufferPool, final int coalesceBuffers) {
+		this(countDownLatch, inputSocket, outputSocket, bufferPool,
+				coalesceBuffers, null);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param countDownLatch
+	 *            the count down latch that will count down when copy completes
+	 * @param inputSocket
+	 *            the input socket
+	 * @param outputSocket
+	 *            the output socket
+	 * @param bufferPool
+	 *            the buffer pool, may be null
+	 * @param coalesceBuffers
+	 *            the number of buffers to read into
+	 * @param activity
+	 *            the activity of the tunnel, may be null
+	 * @since 3.0
+	 */
+	public TunnelThread(final CountDownLatch countDownLatch,
+			final Socket inputSocket, final Socket outputSocket,
+			final BufferPool bufferPool, final int coalesceBuffers,
+			final Activity activity) {
 		this.countDownLatch = countDownLatch;
 		this.inputSocket = inputSocket;
 		this.outputSocket = outputSocket;
+		this.bufferPool = bufferPool;
+		this.coalesceBuffers = coalesceBuffers;
+		this.activity = activity;
 	}
 
 	@Override
 	public void run() {
 		try {
-			SocketUtils.copy(this.inputSocket, this.outputSocket);
+			SocketUtils.copy(this.inputSocket, this.outputSocket,
+					this.bufferPool, this.coalesceBuffers, this.activity);
 		} catch (final IOException ignore) {
 		}
 
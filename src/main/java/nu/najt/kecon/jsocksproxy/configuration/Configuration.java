@@ -35,10 +35,70 @@ public class Configuration {
 
 	private List<Listen> listen;
 
+	private List<Route> routes;
+
+	private List<WarmPool> warmPools;
+
 	private boolean allowSocks4 = true;
 
 	private boolean allowSocks5 = true;
 
+	private boolean optimisticSocks5 = false;
+
+	private boolean allowUdpAssociate = true;
+
+	private int udpReassemblyBuffers = 16;
+
+	private int udpReassemblyTimeout = 5;
+
+	private RelayMode relayMode = RelayMode.BLOCKING;
+
+	private ExecutorMode executorMode = ExecutorMode.PLATFORM;
+
+	private SourceStrategy sourceStrategy = SourceStrategy.ROUND_ROBIN;
+
+	private int handlerThreads = 16;
+
+	private int maxHandlerThreads = 512;
+
+	private int handlerQueueSize = 1024;
+
+	private int handlerStackSize;
+
+	private int relayThreads;
+
+	private int bufferPoolSize = 1024;
+
+	private int bufferSize = 8192;
+
+	private int maxBufferSize = 65536;
+
+	private int bufferMemoryLimit = 256;
+
+	private int coalesceBuffers = 1;
+
+	private int maxFlushLatency;
+
+	private int handshakeTimeout = 30;
+
+	private int resolverThreads = 8;
+
+	private int dnsCacheSize = 10000;
+
+	private int dnsCacheTtl = 60;
+
+	private int dnsNegativeTtl = 5;
+
+	private int connectTimeout = 30;
+
+	private int destinationStatsSize = 1000;
+
+	private int circuitBreakerThreshold = 5;
+
+	private int circuitBreakerCoolDown = 30;
+
+	private int circuitBreakerSize = 10000;
+
 	/**
 	 * @return the backlog
 	 */
@@ -70,6 +130,42 @@ public class Configuration {
 		this.outgoingAddresses = outgoingAddresses;
 	}
 
+	/**
+	 * @return the routes of destination networks to outgoing source addresses
+	 * @since 3.0
+	 */
+	@XmlElement(name = "route")
+	public List<Route> getRoutes() {
+		return this.routes;
+	}
+
+	/**
+	 * @param routes
+	 *            the routes to set
+	 * @since 3.0
+	 */
+	public void setRoutes(final List<Route> routes) {
+		this.routes = routes;
+	}
+
+	/**
+	 * @return the destinations which are kept established connections to
+	 * @since 3.0
+	 */
+	@XmlElement(name = "warmPool")
+	public List<WarmPool> getWarmPools() {
+		return this.warmPools;
+	}
+
+	/**
+	 * @param warmPools
+	 *            the warmPools to set
+	 * @since 3.0
+	 */
+	public void setWarmPools(final List<WarmPool> warmPools) {
+		this.warmPools = warmPools;
+	}
+
 	/**
 	 * @return the listen
 	 */
@@ -117,4 +213,515 @@ public class Configuration {
 		this.allowSocks5 = allowSocks5;
 	}
 
+	/**
+	 * @return the optimisticSocks5
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "false")
+	public boolean isOptimisticSocks5() {
+		return this.optimisticSocks5;
+	}
+
+	/**
+	 * @param optimisticSocks5
+	 *            the optimisticSocks5 to set
+	 * @since 3.0
+	 */
+	public void setOptimisticSocks5(final boolean optimisticSocks5) {
+		this.optimisticSocks5 = optimisticSocks5;
+	}
+
+	/**
+	 * @return the allowUdpAssociate
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "true")
+	public boolean isAllowUdpAssociate() {
+		return this.allowUdpAssociate;
+	}
+
+	/**
+	 * @param allowUdpAssociate
+	 *            the allowUdpAssociate to set
+	 * @since 3.0
+	 */
+	public void setAllowUdpAssociate(final boolean allowUdpAssociate) {
+		this.allowUdpAssociate = allowUdpAssociate;
+	}
+
+	/**
+	 * @return the udpReassemblyBuffers
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "16")
+	public int getUdpReassemblyBuffers() {
+		return this.udpReassemblyBuffers;
+	}
+
+	/**
+	 * @param udpReassemblyBuffers
+	 *            the udpReassemblyBuffers to set
+	 * @since 3.0
+	 */
+	public void setUdpReassemblyBuffers(final int udpReassemblyBuffers) {
+		this.udpReassemblyBuffers = udpReassemblyBuffers;
+	}
+
+	/**
+	 * @return the udpReassemblyTimeout
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "5")
+	public int getUdpReassemblyTimeout() {
+		return this.udpReassemblyTimeout;
+	}
+
+	/**
+	 * @param udpReassemblyTimeout
+	 *            the udpReassemblyTimeout to set
+	 * @since 3.0
+	 */
+	public void setUdpReassemblyTimeout(final int udpReassemblyTimeout) {
+		this.udpReassemblyTimeout = udpReassemblyTimeout;
+	}
+
+	/**
+	 * @return the relayMode
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "BLOCKING")
+	public RelayMode getRelayMode() {
+		return this.relayMode;
+	}
+
+	/**
+	 * @param relayMode
+	 *            the relayMode to set
+	 * @since 3.0
+	 */
+	public void setRelayMode(final RelayMode relayMode) {
+		this.relayMode = relayMode;
+	}
+
+	/**
+	 * @return the way outgoing source addresses are selected
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "ROUND_ROBIN")
+	public SourceStrategy getSourceStrategy() {
+		return this.sourceStrategy;
+	}
+
+	/**
+	 * @param sourceStrategy
+	 *            the sourceStrategy to set
+	 * @since 3.0
+	 */
+	public void setSourceStrategy(final SourceStrategy sourceStrategy) {
+		this.sourceStrategy = sourceStrategy;
+	}
+
+	/**
+	 * @return the executorMode
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "PLATFORM")
+	public ExecutorMode getExecutorMode() {
+		return this.executorMode;
+	}
+
+	/**
+	 * @param executorMode
+	 *            the executorMode to set
+	 * @since 3.0
+	 */
+	public void setExecutorMode(final ExecutorMode executorMode) {
+		this.executorMode = executorMode;
+	}
+
+	/**
+	 * @return the number of handler threads kept when idle
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "16")
+	public int getHandlerThreads() {
+		return this.handlerThreads;
+	}
+
+	/**
+	 * @param handlerThreads
+	 *            the handlerThreads to set
+	 * @since 3.0
+	 */
+	public void setHandlerThreads(final int handlerThreads) {
+		this.handlerThreads = handlerThreads;
+	}
+
+	/**
+	 * @return the maximum number of handler threads
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "512")
+	public int getMaxHandlerThreads() {
+		return this.maxHandlerThreads;
+	}
+
+	/**
+	 * @param maxHandlerThreads
+	 *            the maxHandlerThreads to set
+	 * @since 3.0
+	 */
+	public void setMaxHandlerThreads(final int maxHandlerThreads) {
+		this.maxHandlerThreads = maxHandlerThreads;
+	}
+
+	/**
+	 * @return the number of accepted connections that may wait for a handler
+	 *         thread
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "1024")
+	public int getHandlerQueueSize() {
+		return this.handlerQueueSize;
+	}
+
+	/**
+	 * @param handlerQueueSize
+	 *            the handlerQueueSize to set
+	 * @since 3.0
+	 */
+	public void setHandlerQueueSize(final int handlerQueueSize) {
+		this.handlerQueueSize = handlerQueueSize;
+	}
+
+	/**
+	 * @return the stack size of handler threads in KB, 0 means the default of
+	 *         the JVM
+	 * @since 3.0
+	 */
+	public int getHandlerStackSize() {
+		return this.handlerStackSize;
+	}
+
+	/**
+	 * @param handlerStackSize
+	 *            the handlerStackSize to set
+	 * @since 3.0
+	 */
+	public void setHandlerStackSize(final int handlerStackSize) {
+		this.handlerStackSize = handlerStackSize;
+	}
+
+	/**
+	 * @return the number of relay event loops, 0 means one per core
+	 * @since 3.0
+	 */
+	public int getRelayThreads() {
+		return this.relayThreads;
+	}
+
+	/**
+	 * @param relayThreads
+	 *            the relayThreads to set
+	 * @since 3.0
+	 */
+	public void setRelayThreads(final int relayThreads) {
+		this.relayThreads = relayThreads;
+	}
+
+	/**
+	 * @return the maximum number of pooled relay buffers
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "1024")
+	public int getBufferPoolSize() {
+		return this.bufferPoolSize;
+	}
+
+	/**
+	 * @param bufferPoolSize
+	 *            the bufferPoolSize to set
+	 * @since 3.0
+	 */
+	public void setBufferPoolSize(final int bufferPoolSize) {
+		this.bufferPoolSize = bufferPoolSize;
+	}
+
+	/**
+	 * @return the smallest size of the relay buffers
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "8192")
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+
+	/**
+	 * @param bufferSize
+	 *            the bufferSize to set
+	 * @since 3.0
+	 */
+	public void setBufferSize(final int bufferSize) {
+		this.bufferSize = bufferSize;
+	}
+
+	/**
+	 * @return the largest size the relay buffers may grow to
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "65536")
+	public int getMaxBufferSize() {
+		return this.maxBufferSize;
+	}
+
+	/**
+	 * @param maxBufferSize
+	 *            the maxBufferSize to set
+	 * @since 3.0
+	 */
+	public void setMaxBufferSize(final int maxBufferSize) {
+		this.maxBufferSize = maxBufferSize;
+	}
+
+	/**
+	 * @return the maximum number of megabytes in relay buffers, tunnels which
+	 *         cannot get a buffer within the limit are closed
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "256")
+	public int getBufferMemoryLimit() {
+		return this.bufferMemoryLimit;
+	}
+
+	/**
+	 * @param bufferMemoryLimit
+	 *            the bufferMemoryLimit to set
+	 * @since 3.0
+	 */
+	public void setBufferMemoryLimit(final int bufferMemoryLimit) {
+		this.bufferMemoryLimit = bufferMemoryLimit;
+	}
+
+	/**
+	 * @return the number of relay buffers used for each direction of a tunnel
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "1")
+	public int getCoalesceBuffers() {
+		return this.coalesceBuffers;
+	}
+
+	/**
+	 * @param coalesceBuffers
+	 *            the coalesceBuffers to set
+	 * @since 3.0
+	 */
+	public void setCoalesceBuffers(final int coalesceBuffers) {
+		this.coalesceBuffers = coalesceBuffers;
+	}
+
+	/**
+	 * @return the max number of milliseconds that bulk data may be held by
+	 *         the NIO relay, 0 means that data is never held
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "0")
+	public int getMaxFlushLatency() {
+		return this.maxFlushLatency;
+	}
+
+	/**
+	 * @param maxFlushLatency
+	 *            the maxFlushLatency to set
+	 * @since 3.0
+	 */
+	public void setMaxFlushLatency(final int maxFlushLatency) {
+		this.maxFlushLatency = maxFlushLatency;
+	}
+
+	/**
+	 * @return the number of seconds a client may take to complete its SOCKS
+	 *         handshake, 0 means no limit
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "30")
+	public int getHandshakeTimeout() {
+		return this.handshakeTimeout;
+	}
+
+	/**
+	 * @param handshakeTimeout
+	 *            the handshakeTimeout to set
+	 * @since 3.0
+	 */
+	public void setHandshakeTimeout(final int handshakeTimeout) {
+		this.handshakeTimeout = handshakeTimeout;
+	}
+
+	/**
+	 * @return the number of threads looking up host names
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "8")
+	public int getResolverThreads() {
+		return this.resolverThreads;
+	}
+
+	/**
+	 * @param resolverThreads
+	 *            the resolverThreads to set
+	 * @since 3.0
+	 */
+	public void setResolverThreads(final int resolverThreads) {
+		this.resolverThreads = resolverThreads;
+	}
+
+	/**
+	 * @return the maximum number of hosts in the DNS cache
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "10000")
+	public int getDnsCacheSize() {
+		return this.dnsCacheSize;
+	}
+
+	/**
+	 * @param dnsCacheSize
+	 *            the dnsCacheSize to set
+	 * @since 3.0
+	 */
+	public void setDnsCacheSize(final int dnsCacheSize) {
+		this.dnsCacheSize = dnsCacheSize;
+	}
+
+	/**
+	 * @return the number of seconds a resolved host is cached
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "60")
+	public int getDnsCacheTtl() {
+		return this.dnsCacheTtl;
+	}
+
+	/**
+	 * @param dnsCacheTtl
+	 *            the dnsCacheTtl to set
+	 * @since 3.0
+	 */
+	public void setDnsCacheTtl(final int dnsCacheTtl) {
+		this.dnsCacheTtl = dnsCacheTtl;
+	}
+
+	/**
+	 * @return the number of seconds a host that could not be resolved is
+	 *         cached
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "5")
+	public int getDnsNegativeTtl() {
+		return this.dnsNegativeTtl;
+	}
+
+	/**
+	 * @param dnsNegativeTtl
+	 *            the dnsNegativeTtl to set
+	 * @since 3.0
+	 */
+	public void setDnsNegativeTtl(final int dnsNegativeTtl) {
+		this.dnsNegativeTtl = dnsNegativeTtl;
+	}
+
+	/**
+	 * @return the number of seconds to wait for a connection to a
+	 *         destination, 0 waits until the operating system gives up
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "30")
+	public int getConnectTimeout() {
+		return this.connectTimeout;
+	}
+
+	/**
+	 * @param connectTimeout
+	 *            the connectTimeout to set
+	 * @since 3.0
+	 */
+	public void setConnectTimeout(final int connectTimeout) {
+		this.connectTimeout = connectTimeout;
+	}
+
+	/**
+	 * @return the maximum number of destinations with connect statistics
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "1000")
+	public int getDestinationStatsSize() {
+		return this.destinationStatsSize;
+	}
+
+	/**
+	 * @param destinationStatsSize
+	 *            the destinationStatsSize to set
+	 * @since 3.0
+	 */
+	public void setDestinationStatsSize(final int destinationStatsSize) {
+		this.destinationStatsSize = destinationStatsSize;
+	}
+
+	/**
+	 * @return the number of consecutive failed connects which opens the
+	 *         circuit of a destination, 0 never opens circuits
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "5")
+	public int getCircuitBreakerThreshold() {
+		return this.circuitBreakerThreshold;
+	}
+
+	/**
+	 * @param circuitBreakerThreshold
+	 *            the circuitBreakerThreshold to set
+	 * @since 3.0
+	 */
+	public void setCircuitBreakerThreshold(
+			final int circuitBreakerThreshold) {
+		this.circuitBreakerThreshold = circuitBreakerThreshold;
+	}
+
+	/**
+	 * @return the number of seconds an open circuit waits before letting a
+	 *         trial connect through
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "30")
+	public int getCircuitBreakerCoolDown() {
+		return this.circuitBreakerCoolDown;
+	}
+
+	/**
+	 * @param circuitBreakerCoolDown
+	 *            the circuitBreakerCoolDown to set
+	 * @since 3.0
+	 */
+	public void setCircuitBreakerCoolDown(final int circuitBreakerCoolDown) {
+		this.circuitBreakerCoolDown = circuitBreakerCoolDown;
+	}
+
+	/**
+	 * @return the maximum number of destinations with a circuit
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "10000")
+	public int getCircuitBreakerSize() {
+		return this.circuitBreakerSize;
+	}
+
+	/**
+	 * @param circuitBreakerSize
+	 *            the circuitBreakerSize to set
+	 * @since 3.0
+	 */
+	public void setCircuitBreakerSize(final int circuitBreakerSize) {
+		this.circuitBreakerSize = circuitBreakerSize;
+	}
 }
@@ -0,0 +1,30 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.configuration;
+
+/**
+ * Available kinds of threads for running handshakes and blocking tunnels
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public enum ExecutorMode {
+	/** Platform threads from a cached pool, available on all JVMs */
+	PLATFORM,
+
+	/** One virtual thread per task, requires a JVM with virtual threads */
+	VIRTUAL;
+}
@@ -28,6 +28,10 @@ public class Listen {
 
 	private int port;
 
+	private int acceptors = 1;
+
+	private int idleTimeout;
+
 	/**
 	 * @return the address
 	 */
@@ -59,4 +63,42 @@ public class Listen {
 		this.port = port;
 	}
 
+	/**
+	 * @return the number of listening threads for the address
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "1")
+	public int getAcceptors() {
+		return this.acceptors;
+	}
+
+	/**
+	 * @param acceptors
+	 *            the number of listening threads for the address
+	 * @since 3.0
+	 */
+	public void setAcceptors(final int acceptors) {
+		this.acceptors = acceptors;
+	}
+
+	/**
+	 * @return the number of seconds a tunnel may be idle before it is closed,
+	 *         0 means no timeout
+	 * @since 3.0
+	 */
+	@XmlElement(defaultValue = "0")
+	public int getIdleTimeout() {
+		return this.idleTimeout;
+	}
+
+	/**
+	 * @param idleTimeout
+	 *            the number of seconds a tunnel may be idle before it is
+	 *            closed, 0 means no timeout
+	 * @since 3.0
+	 */
+	public void setIdleTimeout(final int idleTimeout) {
+		this.idleTimeout = idleTimeout;
+	}
+
 }
@@ -0,0 +1,30 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.configuration;
+
+/**
+ * Available ways of relaying data once a tunnel has been established
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public enum RelayMode {
+	/** Two blocking threads per tunnel */
+	BLOCKING,
+
+	/** Non-blocking channels served by one event loop per core */
+	NIO;
+}
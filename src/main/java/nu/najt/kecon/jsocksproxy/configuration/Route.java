@@ -0,0 +1,64 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.configuration;
+
+import java.util.List;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * This is the route XML-tag
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class Route {
+	private String destination;
+
+	private List<String> outgoingAddresses;
+
+	/**
+	 * @return the destination network as address/prefix length
+	 */
+	public String getDestination() {
+		return this.destination;
+	}
+
+	/**
+	 * @param destination
+	 *            the destination network as address/prefix length
+	 */
+	public void setDestination(final String destination) {
+		this.destination = destination;
+	}
+
+	/**
+	 * @return the outgoing source addresses of the destination network
+	 */
+	@XmlElement(name = "outgoingAddress")
+	public List<String> getOutgoingAddresses() {
+		return this.outgoingAddresses;
+	}
+
+	/**
+	 * @param outgoingAddresses
+	 *            the outgoing source addresses of the destination network
+	 */
+	public void setOutgoingAddresses(final List<String> outgoingAddresses) {
+		this.outgoingAddresses = outgoingAddresses;
+	}
+
+}
@@ -0,0 +1,99 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.configuration;
+
+import javax.xml.bind.annotation.XmlElement;
+
+/**
+ * This is the warmPool XML-tag
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class WarmPool {
+	private String address;
+
+	private int port;
+
+	private int size = 2;
+
+	private int maxIdle = 60;
+
+	/**
+	 * @return the address of the destination
+	 */
+	public String getAddress() {
+		return this.address;
+	}
+
+	/**
+	 * @param address
+	 *            the address of the destination
+	 */
+	public void setAddress(final String address) {
+		this.address = address;
+	}
+
+	/**
+	 * @return the port of the destination
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * @param port
+	 *            the port of the destination
+	 */
+	public void setPort(final int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return the number of idle connections to keep
+	 */
+	@XmlElement(defaultValue = "2")
+	public int getSize() {
+		return this.size;
+	}
+
+	/**
+	 * @param size
+	 *            the number of idle connections to keep
+	 */
+	public void setSize(final int size) {
+		this.size = size;
+	}
+
+	/**
+	 * @return the number of seconds a connection may be idle before it is
+	 *         closed
+	 */
+	@XmlElement(defaultValue = "60")
+	public int getMaxIdle() {
+		return this.maxIdle;
+	}
+
+	/**
+	 * @param maxIdle
+	 *            the number of seconds a connection may be idle before it is
+	 *            closed
+	 */
+	public void setMaxIdle(final int maxIdle) {
+		this.maxIdle = maxIdle;
+	}
+
+}
@@ -0,0 +1,295 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Stops connecting to destinations that keep failing. The circuit of a
+ * destination opens after a number of consecutive failed connects, and
+ * connects to it then fail at once without using the network. Once the cool
+ * down has passed the circuit is half open and lets a single trial connect
+ * through every cool down. A successful connect closes the circuit.<br>
+ * <br>
+ * Only destinations with failed connects have a circuit. Their number is
+ * capped, and when a new circuit does not fit the least recently failed of a
+ * few sampled circuits is evicted.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class CircuitBreaker {
+
+	/** Number of circuits compared when one must be evicted */
+	private static final int EVICTION_SAMPLES = 16;
+
+	private final ConcurrentHashMap<String, Circuit> circuits = new ConcurrentHashMap<String, Circuit>();
+
+	private final LongAdder opened = new LongAdder();
+
+	private final LongAdder rejected = new LongAdder();
+
+	private volatile int threshold;
+
+	private volatile long coolDown;
+
+	private volatile int maxEntries;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param threshold
+	 *            the number of consecutive failures which opens a circuit, 0
+	 *            never opens circuits
+	 * @param coolDown
+	 *            the number of milliseconds before an open circuit lets a
+	 *            trial connect through
+	 * @param maxEntries
+	 *            the maximum number of circuits
+	 * @throws IllegalArgumentException
+	 *             if a value is negative
+	 */
+	public CircuitBreaker(final int threshold, final long coolDown,
+			final int maxEntries) {
+		this.configure(threshold, coolDown, maxEntries);
+	}
+
+	/**
+	 * Change the settings of the circuit breaker
+	 * 
+	 * @param threshold
+	 *            the number of consecutive failures which opens a circuit, 0
+	 *            never opens circuits
+	 * @param coolDown
+	 *            the number of milliseconds before an open circuit lets a
+	 *            trial connect through
+	 * @param maxEntries
+	 *            the maximum number of circuits
+	 * @throws IllegalArgumentException
+	 *             if a value is negative
+	 */
+	public void configure(final int threshold, final long coolDown,
+			final int maxEntries) {
+		if ((threshold < 0) || (coolDown < 0) || (maxEntries < 0)) {
+			throw new IllegalArgumentException();
+		}
+
+		this.threshold = threshold;
+		this.coolDown = TimeUnit.MILLISECONDS.toNanos(coolDown);
+		this.maxEntries = maxEntries;
+
+		if (threshold == 0) {
+			this.circuits.clear();
+		}
+
+		while (this.circuits.size() > maxEntries) {
+			this.evict();
+		}
+	}
+
+	/**
+	 * Check if a destination may be connected to
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param port
+	 *            the port
+	 * @return false if the circuit of the destination is open
+	 */
+	public boolean allow(final String host, final int port) {
+		if (this.circuits.isEmpty()) {
+			return true;
+		}
+
+		final Circuit circuit = this.circuits
+				.get(CircuitBreaker.key(host, port));
+
+		if ((circuit == null) || circuit.allow(System.nanoTime(),
+				this.threshold, this.coolDown)) {
+			return true;
+		}
+
+		this.rejected.increment();
+		return false;
+	}
+
+	/**
+	 * Record a successful connect, closing the circuit of the destination
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param port
+	 *            the port
+	 */
+	public void succeeded(final String host, final int port) {
+		if (!this.circuits.isEmpty()) {
+			this.circuits.remove(CircuitBreaker.key(host, port));
+		}
+	}
+
+	/**
+	 * Record a failed connect, opening the circuit of the destination once
+	 * the threshold is reached
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param port
+	 *            the port
+	 */
+	public void failed(final String host, final int port) {
+		final int threshold = this.threshold;
+		if ((threshold == 0) || (this.maxEntries == 0)) {
+			return;
+		}
+
+		final String key = CircuitBreaker.key(host, port);
+		Circuit circuit = this.circuits.get(key);
+
+		if (circuit == null) {
+			while (this.circuits.size() >= this.maxEntries) {
+				this.evict();
+			}
+
+			final Circuit created = new Circuit();
+			circuit = this.circuits.putIfAbsent(key, created);
+			if (circuit == null) {
+				circuit = created;
+			}
+		}
+
+		if (circuit.failed(System.nanoTime(), threshold, this.coolDown)) {
+			this.opened.increment();
+		}
+	}
+
+	private void evict() {
+		String oldestKey = null;
+		long oldest = 0;
+		int samples = 0;
+
+		final Iterator<Map.Entry<String, Circuit>> iterator = this.circuits
+				.entrySet().iterator();
+		while (iterator.hasNext()
+				&& (samples++ < CircuitBreaker.EVICTION_SAMPLES)) {
+			final Map.Entry<String, Circuit> entry = iterator.next();
+			final long failed = entry.getValue().lastFailure;
+
+			if ((oldestKey == null) || ((failed - oldest) < 0)) {
+				oldestKey = entry.getKey();
+				oldest = failed;
+			}
+		}
+
+		if (oldestKey == null) {
+			return;
+		}
+		this.circuits.remove(oldestKey);
+	}
+
+	private static String key(final String host, final int port) {
+		return host.toLowerCase(Locale.ROOT) + ":" + port;
+	}
+
+	/**
+	 * @return the number of circuits which have been opened
+	 */
+	public long getOpened() {
+		return this.opened.sum();
+	}
+
+	/**
+	 * @return the number of connects failed at once because the circuit was
+	 *         open
+	 */
+	public long getRejected() {
+		return this.rejected.sum();
+	}
+
+	/**
+	 * @return the number of circuits that are open or half open
+	 */
+	public int getOpen() {
+		final int threshold = this.threshold;
+		int open = 0;
+
+		for (final Circuit circuit : this.circuits.values()) {
+			if (circuit.isOpen(threshold)) {
+				open++;
+			}
+		}
+		return open;
+	}
+
+	/**
+	 * @return the number of destinations with a circuit
+	 */
+	public int getSize() {
+		return this.circuits.size();
+	}
+
+	/**
+	 * The circuit of one destination
+	 */
+	private static final class Circuit {
+
+		private int failures = 0;
+
+		private long retryAt;
+
+		private volatile long lastFailure;
+
+		synchronized boolean allow(final long now, final int threshold,
+				final long coolDown) {
+			if ((threshold == 0) || (this.failures < threshold)) {
+				return true;
+			}
+
+			if ((now - this.retryAt) >= 0) {
+				// Half open, let one trial through during the next cool down
+				this.retryAt = now + coolDown;
+				return true;
+			}
+			return false;
+		}
+
+		/**
+		 * @return true if this failure opened the circuit
+		 */
+		synchronized boolean failed(final long now, final int threshold,
+				final long coolDown) {
+			this.lastFailure = now;
+
+			if (++this.failures < threshold) {
+				return false;
+			}
+
+			final boolean opening = this.failures == threshold;
+			if (opening) {
+				this.retryAt = now + coolDown;
+			}
+			return opening;
+		}
+
+		synchronized boolean isOpen(final int threshold) {
+			return (threshold > 0) && (this.failures >= threshold);
+		}
+	}
+}
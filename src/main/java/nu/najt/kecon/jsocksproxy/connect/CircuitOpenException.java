@@ -0,0 +1,40 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.net.ConnectException;
+
+/**
+ * This exception is thrown if a destination is not connected to because its
+ * circuit is open
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class CircuitOpenException extends ConnectException {
+
+	private static final long serialVersionUID = 4143617362059728810L;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param message
+	 *            the message
+	 */
+	public CircuitOpenException(final String message) {
+		super(message);
+	}
+}
@@ -0,0 +1,274 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Keeps connect statistics for each destination requested by clients. The
+ * latency of successful connects and the rate of failed connects are kept as
+ * exponentially weighted moving averages, so that recent connects count the
+ * most. The number of destinations is capped, evicting the least recently
+ * connected destination first.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class DestinationStats {
+
+	/** The weight of a new sample in the moving averages */
+	public static final double WEIGHT = 0.125;
+
+	private final LinkedHashMap<String, Destination> destinations = new LinkedHashMap<String, Destination>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Destination> eldest) {
+			return this.size() > DestinationStats.this.maxEntries;
+		}
+	};
+
+	private int maxEntries;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of destinations, 0 keeps no statistics
+	 * @throws IllegalArgumentException
+	 *             if maxEntries is negative
+	 */
+	public DestinationStats(final int maxEntries) {
+		this.setMaxEntries(maxEntries);
+	}
+
+	/**
+	 * Change the maximum number of destinations, evicting the least recently
+	 * connected destinations if there are more
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of destinations, 0 keeps no statistics
+	 * @throws IllegalArgumentException
+	 *             if maxEntries is negative
+	 */
+	public void setMaxEntries(final int maxEntries) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("maxEntries");
+		}
+
+		synchronized (this.destinations) {
+			this.maxEntries = maxEntries;
+
+			while (this.destinations.size() > maxEntries) {
+				this.destinations
+						.remove(this.destinations.keySet().iterator().next());
+			}
+		}
+	}
+
+	/**
+	 * Record a successful connect
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param port
+	 *            the port
+	 * @param latency
+	 *            the time in nanoseconds it took to connect
+	 */
+	public void connected(final String host, final int port,
+			final long latency) {
+		final Destination destination = this.destination(host, port);
+
+		if (destination != null) {
+			destination.record(latency, false);
+		}
+	}
+
+	/**
+	 * Record a failed connect
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param port
+	 *            the port
+	 */
+	public void failed(final String host, final int port) {
+		final Destination destination = this.destination(host, port);
+
+		if (destination != null) {
+			destination.record(0, true);
+		}
+	}
+
+	/**
+	 * Get the statistics of a destination
+	 * 
+	 * @param host
+	 *            the host name or address requested by the client
+	 * @param port
+	 *            the port
+	 * @return the statistics, or null if the destination is not known
+	 */
+	public Destination get(final String host, final int port) {
+		synchronized (this.destinations) {
+			return this.destinations.get(DestinationStats.key(host, port));
+		}
+	}
+
+	/**
+	 * @return the destinations, the most recently connected first
+	 */
+	public List<Destination> getDestinations() {
+		final List<Destination> list;
+		synchronized (this.destinations) {
+			list = new ArrayList<Destination>(this.destinations.values());
+		}
+		Collections.reverse(list);
+		return list;
+	}
+
+	/**
+	 * @return the number of destinations
+	 */
+	public int getSize() {
+		synchronized (this.destinations) {
+			return this.destinations.size();
+		}
+	}
+
+	private Destination destination(final String host, final int port) {
+		final String key = DestinationStats.key(host, port);
+
+		synchronized (this.destinations) {
+			if (this.maxEntries == 0) {
+				return null;
+			}
+
+			Destination destination = this.destinations.get(key);
+			if (destination == null) {
+				destination = new Destination(key);
+				this.destinations.put(key, destination);
+			}
+			return destination;
+		}
+	}
+
+	private static String key(final String host, final int port) {
+		if (host.indexOf(':') >= 0) {
+			return "[" + host.toLowerCase(Locale.ROOT) + "]:" + port;
+		}
+		return host.toLowerCase(Locale.ROOT) + ":" + port;
+	}
+
+	/**
+	 * The statistics of one destination
+	 */
+	public static final class Destination {
+
+		private final String name;
+
+		private double latency = -1;
+
+		private double failureRate = -1;
+
+		private long attempts = 0;
+
+		private long failures = 0;
+
+		private Destination(final String name) {
+			this.name = name;
+		}
+
+		private synchronized void record(final long sample,
+				final boolean failed) {
+			this.attempts++;
+
+			if (failed) {
+				this.failures++;
+			} else if (this.latency < 0) {
+				this.latency = sample;
+			} else {
+				this.latency += DestinationStats.WEIGHT
+						* (sample - this.latency);
+			}
+
+			final double failure = failed ? 1 : 0;
+			if (this.failureRate < 0) {
+				this.failureRate = failure;
+			} else {
+				this.failureRate += DestinationStats.WEIGHT
+						* (failure - this.failureRate);
+			}
+		}
+
+		/**
+		 * @return the destination as host:port
+		 */
+		public String getName() {
+			return this.name;
+		}
+
+		/**
+		 * @return the average connect latency in nanoseconds, or -1 if no
+		 *         connect has succeeded
+		 */
+		public synchronized long getLatency() {
+			return (long) this.latency;
+		}
+
+		/**
+		 * @return the average rate of failed connects, from 0 to 1
+		 */
+		public synchronized double getFailureRate() {
+			return Math.max(0, this.failureRate);
+		}
+
+		/**
+		 * @return the number of connects
+		 */
+		public synchronized long getAttempts() {
+			return this.attempts;
+		}
+
+		/**
+		 * @return the number of failed connects
+		 */
+		public synchronized long getFailures() {
+			return this.failures;
+		}
+
+		@Override
+		public synchronized String toString() {
+			return String.format(Locale.ROOT,
+					"%s latency %.1f ms, failure rate %.1f %%, %d connects, %d failed",
+					this.name,
+					(this.latency < 0) ? -1.0
+							: (this.latency / TimeUnit.MILLISECONDS.toNanos(1)),
+					this.getFailureRate() * 100, this.attempts,
+					this.failures);
+		}
+	}
+}
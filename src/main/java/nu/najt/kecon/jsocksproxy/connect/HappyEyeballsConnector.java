@@ -0,0 +1,334 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.io.IOException;
+import java.net.BindException;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Connects to the first reachable address of a host, in the style of Happy
+ * Eyeballs (RFC 8305). The addresses are tried in an order that alternates
+ * between IPv6 and IPv4, starting with the family of the first address. A new
+ * attempt is started when the previous attempt fails or has not completed
+ * within the attempt delay, while the earlier attempts keep running. The
+ * first attempt to complete wins and the others are closed, so that a dead
+ * address costs no more than the attempt delay. All attempts share the
+ * connect timeout.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class HappyEyeballsConnector {
+
+	/** The default time in milliseconds before the next attempt is started */
+	public static final long DEFAULT_ATTEMPT_DELAY = 250;
+
+	private final long attemptDelay;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param attemptDelay
+	 *            the time in milliseconds before the next attempt is started
+	 * @throws IllegalArgumentException
+	 *             if attemptDelay is not positive
+	 */
+	public HappyEyeballsConnector(final long attemptDelay) {
+		if (attemptDelay <= 0) {
+			throw new IllegalArgumentException("attemptDelay");
+		}
+		this.attemptDelay = attemptDelay;
+	}
+
+	/**
+	 * Connect to the first reachable remote address
+	 * 
+	 * @param remoteAddresses
+	 *            the addresses in the order they are tried, see
+	 *            {@link #interleave(InetAddress[])}
+	 * @param localAddresses
+	 *            the local address to bind each attempt to, null elements
+	 *            leave the attempt unbound
+	 * @param timeout
+	 *            the time in milliseconds to wait for a connection, 0 waits
+	 *            until every attempt has failed
+	 * @param bindFailover
+	 *            asked for another local address when an attempt could not
+	 *            be bound, may be null
+	 * @return the connected channel, in blocking mode
+	 * @throws SocketTimeoutException
+	 *             if no attempt succeeded within the timeout
+	 * @throws IOException
+	 *             the exception of the last failed attempt, if no attempt
+	 *             succeeded
+	 * @throws IllegalArgumentException
+	 *             if the arrays are empty or their lengths differ
+	 */
+	public SocketChannel connect(final InetSocketAddress[] remoteAddresses,
+			final InetAddress[] localAddresses, final long timeout,
+			final BindFailover bindFailover) throws IOException {
+		if ((remoteAddresses.length == 0)
+				|| (remoteAddresses.length != localAddresses.length)) {
+			throw new IllegalArgumentException("remoteAddresses");
+		}
+
+		final List<SocketChannel> attempts = new ArrayList<SocketChannel>(
+				remoteAddresses.length);
+		SocketChannel connected = null;
+		IOException lastException = null;
+
+		final Selector selector = Selector.open();
+		try {
+			int next = 0;
+			int pending = 0;
+			long nextStart = System.nanoTime();
+			final long deadline = nextStart
+					+ TimeUnit.MILLISECONDS.toNanos(timeout);
+
+			while (connected == null) {
+				final long now = System.nanoTime();
+
+				if ((timeout > 0) && ((now - deadline) >= 0)) {
+					throw new SocketTimeoutException("Connect timed out");
+				}
+
+				if ((next < remoteAddresses.length)
+						&& ((pending == 0) || ((now - nextStart) >= 0))) {
+					final int index = next++;
+					nextStart = now + TimeUnit.MILLISECONDS
+							.toNanos(this.attemptDelay);
+
+					try {
+						connected = HappyEyeballsConnector.start(
+								remoteAddresses[index], localAddresses[index],
+								bindFailover, attempts, selector);
+						if (connected == null) {
+							pending++;
+						}
+					} catch (final IOException e) {
+						lastException = e;
+					}
+					continue;
+				}
+
+				if (pending == 0) {
+					throw (lastException != null) ? lastException
+							: new IOException("No address to connect to");
+				}
+
+				long wait = (next < remoteAddresses.length)
+						? (nextStart - now) : Long.MAX_VALUE;
+				if (timeout > 0) {
+					wait = Math.min(wait, deadline - now);
+				}
+				selector.select((wait == Long.MAX_VALUE) ? 0
+						: Math.max(1,
+								TimeUnit.NANOSECONDS.toMillis(wait + 999999)));
+
+				for (final SelectionKey key : selector.selectedKeys()) {
+					final SocketChannel channel = (SocketChannel) key
+							.channel();
+					try {
+						if (channel.finishConnect()) {
+							key.cancel();
+							pending--;
+							if (connected == null) {
+								connected = channel;
+							}
+						}
+					} catch (final IOException e) {
+						key.cancel();
+						pending--;
+						lastException = e;
+						close(channel);
+
+						final Attempt attempt = (Attempt) key.attachment();
+						if ((e instanceof BindException)
+								&& (attempt.localAddress != null)
+								&& (bindFailover != null)
+								&& (connected == null)) {
+							final InetAddress failoverAddress = bindFailover
+									.bindFailed(attempt.remoteAddress,
+											attempt.localAddress);
+							if (failoverAddress != null) {
+								try {
+									connected = HappyEyeballsConnector.start(
+											attempt.remoteAddress,
+											failoverAddress, bindFailover,
+											attempts, selector);
+									if (connected == null) {
+										pending++;
+									}
+								} catch (final IOException e2) {
+									lastException = e2;
+								}
+							}
+						}
+					}
+				}
+				selector.selectedKeys().clear();
+			}
+		} finally {
+			selector.close();
+
+			for (final SocketChannel channel : attempts) {
+				if (channel != connected) {
+					close(channel);
+				}
+			}
+		}
+
+		try {
+			connected.configureBlocking(true);
+		} catch (final IOException e) {
+			close(connected);
+			throw e;
+		}
+		return connected;
+	}
+
+	/**
+	 * Order the addresses so that IPv6 and IPv4 alternate, starting with the
+	 * family of the first address and otherwise keeping the given order
+	 * 
+	 * @param addresses
+	 *            the addresses
+	 * @return a new array with the interleaved addresses
+	 */
+	public static InetAddress[] interleave(final InetAddress[] addresses) {
+		final List<InetAddress> first = new ArrayList<InetAddress>();
+		final List<InetAddress> second = new ArrayList<InetAddress>();
+		final boolean firstIsIPv6 = (addresses.length > 0)
+				&& (addresses[0] instanceof Inet6Address);
+
+		for (final InetAddress address : addresses) {
+			if ((address instanceof Inet6Address) == firstIsIPv6) {
+				first.add(address);
+			} else {
+				second.add(address);
+			}
+		}
+
+		final InetAddress[] interleaved = new InetAddress[addresses.length];
+		int index = 0;
+		for (int i = 0; i < Math.max(first.size(), second.size()); i++) {
+			if (i < first.size()) {
+				interleaved[index++] = first.get(i);
+			}
+			if (i < second.size()) {
+				interleaved[index++] = second.get(i);
+			}
+		}
+		return interleaved;
+	}
+
+	/**
+	 * Start a non-blocking connect from the local address, or from the local
+	 * addresses given by the failover if binding or connecting from it fails
+	 * with a {@link BindException}
+	 * 
+	 * @return the channel if it connected at once, otherwise null and the
+	 *         channel is registered with the selector
+	 */
+	private static SocketChannel start(final InetSocketAddress remoteAddress,
+			final InetAddress localAddress, final BindFailover bindFailover,
+			final List<SocketChannel> attempts, final Selector selector)
+			throws IOException {
+		InetAddress bindAddress = localAddress;
+
+		while (true) {
+			final SocketChannel channel = SocketChannel.open();
+			attempts.add(channel);
+			channel.configureBlocking(false);
+
+			try {
+				if (bindAddress != null) {
+					channel.bind(new InetSocketAddress(bindAddress, 0));
+				}
+
+				if (channel.connect(remoteAddress)) {
+					return channel;
+				}
+				channel.register(selector, SelectionKey.OP_CONNECT,
+						new Attempt(remoteAddress, bindAddress));
+				return null;
+			} catch (final BindException e) {
+				close(channel);
+
+				bindAddress = ((bindAddress != null) && (bindFailover != null))
+						? bindFailover.bindFailed(remoteAddress, bindAddress)
+						: null;
+				if (bindAddress == null) {
+					throw e;
+				}
+			}
+		}
+	}
+
+	/**
+	 * The addresses of a pending attempt, to fail over when
+	 * {@link SocketChannel#finishConnect()} throws a {@link BindException}
+	 */
+	private static final class Attempt {
+
+		private final InetSocketAddress remoteAddress;
+
+		private final InetAddress localAddress;
+
+		private Attempt(final InetSocketAddress remoteAddress,
+				final InetAddress localAddress) {
+			this.remoteAddress = remoteAddress;
+			this.localAddress = localAddress;
+		}
+	}
+
+	private static void close(final SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (final IOException e) {
+		}
+	}
+
+	/**
+	 * Chooses another local address when binding to one failed, which
+	 * usually means that its ephemeral ports are exhausted
+	 */
+	public interface BindFailover {
+
+		/**
+		 * Called when an attempt could not be bound to a local address
+		 * 
+		 * @param remoteAddress
+		 *            the remote address of the attempt
+		 * @param localAddress
+		 *            the local address which could not be bound
+		 * @return another local address to bind the attempt to, or null to
+		 *         give up the attempt
+		 */
+		public InetAddress bindFailed(InetSocketAddress remoteAddress,
+				InetAddress localAddress);
+	}
+}
@@ -0,0 +1,279 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+
+/**
+ * Maps destination networks to values by longest prefix match. The networks
+ * are kept in a path compressed binary radix trie for each address family,
+ * where each node holds the bits shared by everything below it. A lookup
+ * follows one branch and takes time proportional to the prefix length, no
+ * matter how many routes there are. The table is not thread safe while it is
+ * built, but lookups may be made concurrently once it has been published.
+ * 
+ * @param <V>
+ *            the type of the values
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class RouteTable<V> {
+
+	private Node<V> inet4;
+
+	private Node<V> inet6;
+
+	private int size = 0;
+
+	/**
+	 * Add a route, replacing the value of a route to the same network
+	 * 
+	 * @param cidr
+	 *            the destination network as address/prefix length, an address
+	 *            without prefix length is a host route
+	 * @param value
+	 *            the value
+	 * @throws IllegalArgumentException
+	 *             if the network is not a valid address literal and prefix
+	 *             length
+	 */
+	public void add(final String cidr, final V value) {
+		final int slash = cidr.indexOf('/');
+		final String address = (slash >= 0) ? cidr.substring(0, slash).trim()
+				: cidr.trim();
+
+		// Only literals are accepted, so that no lookup is made
+		if (address.length() == 0) {
+			throw new IllegalArgumentException("Invalid network: " + cidr);
+		}
+
+		for (int i = 0; i < address.length(); i++) {
+			final char c = address.charAt(i);
+
+			if ((Character.digit(c, 16) < 0) && (c != '.') && (c != ':')) {
+				throw new IllegalArgumentException("Invalid network: " + cidr);
+			}
+		}
+
+		final InetAddress network;
+		try {
+			network = InetAddress.getByName(address);
+		} catch (final UnknownHostException e) {
+			throw new IllegalArgumentException("Invalid network: " + cidr, e);
+		}
+
+		final int bits = network.getAddress().length * 8;
+		int prefixLength = bits;
+
+		if (slash >= 0) {
+			try {
+				prefixLength = Integer
+						.parseInt(cidr.substring(slash + 1).trim());
+			} catch (final NumberFormatException e) {
+				throw new IllegalArgumentException("Invalid network: " + cidr,
+						e);
+			}
+		}
+
+		this.add(network, prefixLength, value);
+	}
+
+	/**
+	 * Add a route, replacing the value of a route to the same network. Bits
+	 * of the address beyond the prefix length are ignored.
+	 * 
+	 * @param network
+	 *            the address of the destination network
+	 * @param prefixLength
+	 *            the prefix length
+	 * @param value
+	 *            the value
+	 * @throws IllegalArgumentException
+	 *             if the prefix length is out of range or value is null
+	 */
+	public void add(final InetAddress network, final int prefixLength,
+			final V value) {
+		final byte[] key = network.getAddress();
+
+		if ((prefixLength < 0) || (prefixLength > (key.length * 8))) {
+			throw new IllegalArgumentException(
+					"Invalid prefix length: " + prefixLength);
+		}
+
+		if (value == null) {
+			throw new IllegalArgumentException("value");
+		}
+
+		RouteTable.mask(key, prefixLength);
+
+		if (network instanceof Inet6Address) {
+			this.inet6 = this.insert(this.inet6, key, prefixLength, value);
+		} else {
+			this.inet4 = this.insert(this.inet4, key, prefixLength, value);
+		}
+	}
+
+	/**
+	 * Find the value of the most specific route to an address
+	 * 
+	 * @param address
+	 *            the destination address
+	 * @return the value, or null if no route matches
+	 */
+	public V lookup(final InetAddress address) {
+		final byte[] key = address.getAddress();
+		Node<V> node = (address instanceof Inet6Address) ? this.inet6
+				: this.inet4;
+		V value = null;
+
+		while ((node != null) && RouteTable.matches(node.key, key,
+				node.prefixLength)) {
+			if (node.value != null) {
+				value = node.value;
+			}
+
+			if (node.prefixLength == (key.length * 8)) {
+				break;
+			}
+			node = RouteTable.bit(key, node.prefixLength) ? node.one
+					: node.zero;
+		}
+		return value;
+	}
+
+	/**
+	 * @return the number of routes
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	private Node<V> insert(final Node<V> node, final byte[] key,
+			final int prefixLength, final V value) {
+		if (node == null) {
+			this.size++;
+			return new Node<V>(key, prefixLength, value);
+		}
+
+		final int common = RouteTable.commonPrefix(node.key, key,
+				Math.min(node.prefixLength, prefixLength));
+
+		if (common == node.prefixLength) {
+			if (prefixLength == node.prefixLength) {
+				if (node.value == null) {
+					this.size++;
+				}
+				node.value = value;
+			} else if (RouteTable.bit(key, node.prefixLength)) {
+				node.one = this.insert(node.one, key, prefixLength, value);
+			} else {
+				node.zero = this.insert(node.zero, key, prefixLength, value);
+			}
+			return node;
+		}
+
+		// The new route and the node part ways, or the route contains the node
+		this.size++;
+		final Node<V> branch;
+		if (common == prefixLength) {
+			branch = new Node<V>(key, prefixLength, value);
+		} else {
+			final byte[] branchKey = key.clone();
+			RouteTable.mask(branchKey, common);
+			branch = new Node<V>(branchKey, common, null);
+
+			if (RouteTable.bit(key, common)) {
+				branch.one = new Node<V>(key, prefixLength, value);
+			} else {
+				branch.zero = new Node<V>(key, prefixLength, value);
+			}
+		}
+
+		if (RouteTable.bit(node.key, common)) {
+			branch.one = node;
+		} else {
+			branch.zero = node;
+		}
+		return branch;
+	}
+
+	private static boolean bit(final byte[] key, final int index) {
+		return (key[index >>> 3] & (0x80 >>> (index & 7))) != 0;
+	}
+
+	private static void mask(final byte[] key, final int prefixLength) {
+		for (int i = prefixLength; i < (key.length * 8); i++) {
+			key[i >>> 3] &= ~(0x80 >>> (i & 7));
+		}
+	}
+
+	private static boolean matches(final byte[] prefix, final byte[] key,
+			final int prefixLength) {
+		final int bytes = prefixLength >>> 3;
+		for (int i = 0; i < bytes; i++) {
+			if (prefix[i] != key[i]) {
+				return false;
+			}
+		}
+
+		final int rest = prefixLength & 7;
+		if (rest == 0) {
+			return true;
+		}
+
+		final int mask = (0xff << (8 - rest)) & 0xff;
+		return ((prefix[bytes] ^ key[bytes]) & mask) == 0;
+	}
+
+	private static int commonPrefix(final byte[] a, final byte[] b,
+			final int limit) {
+		int common = 0;
+		while (((common + 8) <= limit) && (a[common >>> 3] == b[common >>> 3])) {
+			common += 8;
+		}
+
+		while ((common < limit) && (RouteTable.bit(a, common) == RouteTable
+				.bit(b, common))) {
+			common++;
+		}
+		return common;
+	}
+
+	/**
+	 * A node of the trie, holding the first prefixLength bits of its key
+	 */
+	private static final class Node<V> {
+
+		private final byte[] key;
+
+		private final int prefixLength;
+
+		private V value;
+
+		private Node<V> zero;
+
+		private Node<V> one;
+
+		private Node(final byte[] key, final int prefixLength, final V value) {
+			this.key = key;
+			this.prefixLength = prefixLength;
+			this.value = value;
+		}
+	}
+}
@@ -0,0 +1,386 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import nu.najt.kecon.jsocksproxy.configuration.SourceStrategy;
+
+/**
+ * Selects the outgoing source address of connections, spreading them over
+ * the configured addresses so that no single address runs out of ephemeral
+ * ports. Only addresses of the same family as the destination are
+ * considered. Destinations within a routed network use the source addresses
+ * of the most specific route instead. Selection takes no locks; the addresses
+ * are kept in an immutable snapshot which is replaced when the configuration
+ * changes.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class SourceAddressSelector {
+
+	private final AtomicInteger cursor = new AtomicInteger();
+
+	private volatile Snapshot snapshot;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param addresses
+	 *            the source addresses
+	 * @param strategy
+	 *            the selection strategy
+	 */
+	public SourceAddressSelector(final List<InetAddress> addresses,
+			final SourceStrategy strategy) {
+		this.configure(addresses, strategy);
+	}
+
+	/**
+	 * Change the source addresses and the strategy. The counters of addresses
+	 * which remain are kept.
+	 * 
+	 * @param addresses
+	 *            the source addresses
+	 * @param strategy
+	 *            the selection strategy
+	 */
+	public void configure(final List<InetAddress> addresses,
+			final SourceStrategy strategy) {
+		this.configure(addresses, strategy,
+				Collections.<String, List<InetAddress>> emptyMap());
+	}
+
+	/**
+	 * Change the source addresses, the strategy and the routes. The counters
+	 * of addresses which remain are kept.
+	 * 
+	 * @param addresses
+	 *            the source addresses of destinations without route
+	 * @param strategy
+	 *            the selection strategy
+	 * @param routes
+	 *            the source addresses of each destination network, given as
+	 *            address/prefix length
+	 * @throws IllegalArgumentException
+	 *             if a destination network is invalid, in which case the
+	 *             configuration is left unchanged
+	 */
+	public synchronized void configure(final List<InetAddress> addresses,
+			final SourceStrategy strategy,
+			final Map<String, List<InetAddress>> routes) {
+		final Snapshot previous = this.snapshot;
+		final List<Source> sources = new ArrayList<Source>();
+		final RouteTable<Route> routeTable = new RouteTable<Route>();
+
+		for (final InetAddress address : addresses) {
+			sources.add(this.source(previous, sources, address));
+		}
+
+		for (final Map.Entry<String, List<InetAddress>> entry : routes
+				.entrySet()) {
+			final List<Source> routeSources = new ArrayList<Source>();
+			for (final InetAddress address : entry.getValue()) {
+				final Source source = this.source(previous, sources, address);
+				if (!sources.contains(source)) {
+					sources.add(source);
+				}
+				routeSources.add(source);
+			}
+			routeTable.add(entry.getKey(), new Route(routeSources));
+		}
+
+		this.snapshot = new Snapshot(sources, strategy, routeTable);
+	}
+
+	private Source source(final Snapshot previous, final List<Source> sources,
+			final InetAddress address) {
+		for (final Source source : sources) {
+			if (source.getAddress().equals(address)) {
+				return source;
+			}
+		}
+
+		final Source source = (previous != null) ? previous.find(address)
+				: null;
+		return (source != null) ? source : new Source(address);
+	}
+
+	/**
+	 * Select the source address of a connection
+	 * 
+	 * @param destination
+	 *            the address of the destination
+	 * @param client
+	 *            the address of the client, may be null
+	 * @return the source, or null if there is no source address of the same
+	 *         family as the destination
+	 */
+	public Source select(final InetAddress destination,
+			final InetAddress client) {
+		final Snapshot snapshot = this.snapshot;
+		final Source[] sources = snapshot.sourcesOf(destination);
+
+		if (sources.length == 0) {
+			return null;
+		} else if (sources.length == 1) {
+			return sources[0];
+		}
+
+		switch (snapshot.strategy) {
+		case ROUND_ROBIN:
+			return sources[this.next(sources.length)];
+
+		case LEAST_ACTIVE:
+			// Start at a moving index, so that ties are spread
+			final int start = this.next(sources.length);
+			Source least = sources[start];
+			for (int i = 1; i < sources.length; i++) {
+				final Source source = sources[(start + i) % sources.length];
+				if (source.getActive() < least.getActive()) {
+					least = source;
+				}
+			}
+			return least;
+
+		case CLIENT_HASH:
+			if (client != null) {
+				int hash = client.hashCode();
+				hash ^= (hash >>> 16);
+				return sources[(hash & Integer.MAX_VALUE) % sources.length];
+			}
+			return sources[this.next(sources.length)];
+
+		default:
+			return sources[0];
+		}
+	}
+
+	/**
+	 * Find the source of an address
+	 * 
+	 * @param address
+	 *            the source address
+	 * @return the source, or null if the address is not a source address
+	 */
+	public Source find(final InetAddress address) {
+		return this.snapshot.find(address);
+	}
+
+	/**
+	 * @return the source addresses
+	 */
+	public Source[] getSources() {
+		return this.snapshot.all.clone();
+	}
+
+	/**
+	 * Get the source addresses which may be used for a destination
+	 * 
+	 * @param destination
+	 *            the address of the destination
+	 * @return the source addresses of the most specific route to the
+	 *         destination, or the source addresses of the same family if no
+	 *         route matches
+	 */
+	public Source[] getSources(final InetAddress destination) {
+		return this.snapshot.sourcesOf(destination).clone();
+	}
+
+	/**
+	 * @return the number of routes
+	 */
+	public int getRouteCount() {
+		return this.snapshot.routes.size();
+	}
+
+	/**
+	 * @return the selection strategy
+	 */
+	public SourceStrategy getStrategy() {
+		return this.snapshot.strategy;
+	}
+
+	private int next(final int length) {
+		return (this.cursor.getAndIncrement() & Integer.MAX_VALUE) % length;
+	}
+
+	/**
+	 * The source addresses and strategy in effect
+	 */
+	private static final class Snapshot {
+
+		private final Source[] all;
+
+		private final Source[] inet4;
+
+		private final Source[] inet6;
+
+		private final SourceStrategy strategy;
+
+		private final RouteTable<Route> routes;
+
+		private Snapshot(final List<Source> sources,
+				final SourceStrategy strategy, final RouteTable<Route> routes) {
+			final Route route = new Route(sources);
+
+			this.all = sources.toArray(new Source[sources.size()]);
+			this.inet4 = route.inet4;
+			this.inet6 = route.inet6;
+			this.strategy = (strategy != null) ? strategy
+					: SourceStrategy.FIRST;
+			this.routes = routes;
+		}
+
+		private Source[] sourcesOf(final InetAddress destination) {
+			final boolean inet6 = destination instanceof Inet6Address;
+
+			if (this.routes.size() > 0) {
+				final Route route = this.routes.lookup(destination);
+
+				// A route without addresses of the family does not apply
+				if (route != null) {
+					final Source[] sources = inet6 ? route.inet6 : route.inet4;
+					if (sources.length > 0) {
+						return sources;
+					}
+				}
+			}
+			return inet6 ? this.inet6 : this.inet4;
+		}
+
+		private Source find(final InetAddress address) {
+			for (final Source source : this.all) {
+				if (source.getAddress().equals(address)) {
+					return source;
+				}
+			}
+			return null;
+		}
+	}
+
+	/**
+	 * The source addresses of a route, split by family
+	 */
+	private static final class Route {
+
+		private final Source[] inet4;
+
+		private final Source[] inet6;
+
+		private Route(final List<Source> sources) {
+			final List<Source> inet4 = new ArrayList<Source>();
+			final List<Source> inet6 = new ArrayList<Source>();
+
+			for (final Source source : sources) {
+				if (source.getAddress() instanceof Inet6Address) {
+					inet6.add(source);
+				} else {
+					inet4.add(source);
+				}
+			}
+
+			this.inet4 = inet4.toArray(new Source[inet4.size()]);
+			this.inet6 = inet6.toArray(new Source[inet6.size()]);
+		}
+	}
+
+	/**
+	 * A source address and its connection counters
+	 */
+	public static final class Source {
+
+		private final InetAddress address;
+
+		private final AtomicInteger active = new AtomicInteger();
+
+		private final LongAdder connections = new LongAdder();
+
+		private final LongAdder portExhaustions = new LongAdder();
+
+		private Source(final InetAddress address) {
+			this.address = address;
+		}
+
+		/**
+		 * Record a connection from this address, which must be released when
+		 * it is closed
+		 */
+		public void acquire() {
+			this.active.incrementAndGet();
+			this.connections.increment();
+		}
+
+		/**
+		 * Record that a connection from this address has been closed
+		 */
+		public void release() {
+			this.active.decrementAndGet();
+		}
+
+		/**
+		 * Record that a connection could not be bound to this address,
+		 * usually because its ephemeral ports are exhausted
+		 */
+		public void portExhausted() {
+			this.portExhaustions.increment();
+		}
+
+		/**
+		 * @return the source address
+		 */
+		public InetAddress getAddress() {
+			return this.address;
+		}
+
+		/**
+		 * @return the number of open connections from this address
+		 */
+		public int getActive() {
+			return this.active.get();
+		}
+
+		/**
+		 * @return the number of connections made from this address
+		 */
+		public long getConnections() {
+			return this.connections.sum();
+		}
+
+		/**
+		 * @return the number of connections which could not be bound to this
+		 *         address
+		 */
+		public long getPortExhaustions() {
+			return this.portExhaustions.sum();
+		}
+
+		@Override
+		public String toString() {
+			return this.address.getHostAddress() + " " + this.getActive()
+					+ " active, " + this.getConnections() + " connections, "
+					+ this.getPortExhaustions() + " port exhaustions";
+		}
+	}
+}
@@ -0,0 +1,496 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector.Source;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer.Timeout;
+
+/**
+ * Keeps established connections to configured destinations, so that a
+ * connection to them can be handed out without waiting for the TCP handshake.
+ * Each destination has its own pool which is refilled in the background up
+ * to its size. Connections which have been idle for longer than the max idle
+ * time, or which the destination has closed or written to, are discarded.
+ * Only destinations which wait for the client to speak first are suitable,
+ * since data sent before the connection is handed out would be lost.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class WarmSocketPool {
+
+	/** Time in milliseconds between two checks of the idle connections */
+	public static final long MAINTENANCE_INTERVAL = 1000;
+
+	private final HashedWheelTimer timer;
+
+	private final Executor executor;
+
+	private volatile Map<InetSocketAddress, Pool> pools = Collections
+			.emptyMap();
+
+	private volatile SourceAddressSelector sourceAddressSelector;
+
+	private volatile int connectTimeout;
+
+	private Timeout maintenance;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param timer
+	 *            the timer running the maintenance
+	 * @param executor
+	 *            the executor making the connections
+	 */
+	public WarmSocketPool(final HashedWheelTimer timer,
+			final Executor executor) {
+		this.timer = timer;
+		this.executor = executor;
+	}
+
+	/**
+	 * Change the pooled destinations. Connections to destinations which
+	 * remain are kept, while the connections of removed destinations are
+	 * closed.
+	 * 
+	 * @param destinations
+	 *            the limits of each destination
+	 * @param sourceAddressSelector
+	 *            the selector of the source address of new connections, may
+	 *            be null
+	 * @param connectTimeout
+	 *            the number of milliseconds to wait for a new connection, 0
+	 *            waits until the operating system gives up
+	 */
+	public synchronized void configure(
+			final Map<InetSocketAddress, Limits> destinations,
+			final SourceAddressSelector sourceAddressSelector,
+			final int connectTimeout) {
+		this.sourceAddressSelector = sourceAddressSelector;
+		this.connectTimeout = connectTimeout;
+
+		final Map<InetSocketAddress, Pool> previous = this.pools;
+		final Map<InetSocketAddress, Pool> pools = new HashMap<InetSocketAddress, Pool>();
+
+		for (final Map.Entry<InetSocketAddress, Limits> entry : destinations
+				.entrySet()) {
+			Pool pool = previous.get(entry.getKey());
+			if (pool == null) {
+				pool = new Pool(entry.getKey());
+			}
+			pool.limits = entry.getValue();
+			pools.put(entry.getKey(), pool);
+		}
+
+		this.pools = pools;
+
+		for (final Pool pool : previous.values()) {
+			if (!pools.containsKey(pool.destination)) {
+				pool.close();
+			}
+		}
+
+		for (final Pool pool : pools.values()) {
+			pool.refill();
+		}
+
+		if (pools.isEmpty()) {
+			this.cancelMaintenance();
+		} else if (this.maintenance == null) {
+			this.scheduleMaintenance();
+		}
+	}
+
+	/**
+	 * Take an established connection to a destination
+	 * 
+	 * @param address
+	 *            the address of the destination
+	 * @param port
+	 *            the port of the destination
+	 * @return a connected socket in blocking mode, or null if the destination
+	 *         is not pooled or has no idle connection
+	 */
+	public Socket take(final InetAddress address, final int port) {
+		final Map<InetSocketAddress, Pool> pools = this.pools;
+		if (pools.isEmpty()) {
+			return null;
+		}
+
+		final Pool pool = pools.get(new InetSocketAddress(address, port));
+		return (pool != null) ? pool.take() : null;
+	}
+
+	/**
+	 * Close all idle connections and stop the maintenance
+	 */
+	public synchronized void shutdown() {
+		this.cancelMaintenance();
+
+		for (final Pool pool : this.pools.values()) {
+			pool.close();
+		}
+		this.pools = Collections.emptyMap();
+	}
+
+	/**
+	 * Check the idle connections of all destinations, discarding unusable
+	 * connections and refilling the pools
+	 */
+	void maintain() {
+		final long now = System.nanoTime();
+
+		for (final Pool pool : this.pools.values()) {
+			pool.maintain(now);
+		}
+	}
+
+	private synchronized void scheduleMaintenance() {
+		this.maintenance = this.timer.newTimeout(new Runnable() {
+			@Override
+			public void run() {
+				WarmSocketPool.this.maintain();
+				WarmSocketPool.this.rescheduleMaintenance();
+			}
+		}, WarmSocketPool.MAINTENANCE_INTERVAL, TimeUnit.MILLISECONDS);
+	}
+
+	private synchronized void rescheduleMaintenance() {
+		if ((this.maintenance != null) && !this.pools.isEmpty()) {
+			this.scheduleMaintenance();
+		}
+	}
+
+	private void cancelMaintenance() {
+		if (this.maintenance != null) {
+			this.maintenance.cancel();
+			this.maintenance = null;
+		}
+	}
+
+	/**
+	 * @return the number of idle connections of all destinations
+	 */
+	public int getIdle() {
+		int idle = 0;
+		for (final Pool pool : this.pools.values()) {
+			idle += pool.size.get();
+		}
+		return idle;
+	}
+
+	/**
+	 * @return the number of connections handed out
+	 */
+	public long getHits() {
+		long hits = 0;
+		for (final Pool pool : this.pools.values()) {
+			hits += pool.hits.sum();
+		}
+		return hits;
+	}
+
+	/**
+	 * @return the number of times a pooled destination had no idle
+	 *         connection
+	 */
+	public long getMisses() {
+		long misses = 0;
+		for (final Pool pool : this.pools.values()) {
+			misses += pool.misses.sum();
+		}
+		return misses;
+	}
+
+	/**
+	 * @return the statistics of each destination
+	 */
+	public List<String> getStatistics() {
+		final List<String> statistics = new ArrayList<String>();
+		for (final Pool pool : this.pools.values()) {
+			statistics.add(pool.toString());
+		}
+		return statistics;
+	}
+
+	/**
+	 * The limits of the pool of a destination
+	 */
+	public static final class Limits {
+
+		private final int size;
+
+		private final long maxIdle;
+
+		/**
+		 * Constructor
+		 * 
+		 * @param size
+		 *            the number of idle connections to keep
+		 * @param maxIdle
+		 *            the number of milliseconds a connection may be idle
+		 *            before it is discarded
+		 */
+		public Limits(final int size, final long maxIdle) {
+			this.size = size;
+			this.maxIdle = maxIdle;
+		}
+
+		/**
+		 * @return the number of idle connections to keep
+		 */
+		public int getSize() {
+			return this.size;
+		}
+
+		/**
+		 * @return the number of milliseconds a connection may be idle
+		 */
+		public long getMaxIdle() {
+			return this.maxIdle;
+		}
+	}
+
+	/**
+	 * The idle connections of a destination
+	 */
+	private final class Pool implements Runnable {
+
+		private final InetSocketAddress destination;
+
+		private final ConcurrentLinkedDeque<Idle> idle = new ConcurrentLinkedDeque<Idle>();
+
+		private final AtomicInteger size = new AtomicInteger();
+
+		private final AtomicBoolean refilling = new AtomicBoolean();
+
+		private final LongAdder hits = new LongAdder();
+
+		private final LongAdder misses = new LongAdder();
+
+		private final LongAdder created = new LongAdder();
+
+		private final LongAdder discarded = new LongAdder();
+
+		private final LongAdder failed = new LongAdder();
+
+		private volatile Limits limits;
+
+		private volatile boolean closed = false;
+
+		private Pool(final InetSocketAddress destination) {
+			this.destination = destination;
+		}
+
+		private Socket take() {
+			final long now = System.nanoTime();
+			Idle entry;
+
+			// The most recently used connection is the least likely to be
+			// closed by the destination
+			while ((entry = this.idle.pollLast()) != null) {
+				this.size.decrementAndGet();
+
+				if (entry.take(now, this.limits.maxIdle)) {
+					this.hits.increment();
+					this.refill();
+					return entry.channel.socket();
+				}
+				this.discarded.increment();
+			}
+
+			this.misses.increment();
+			this.refill();
+			return null;
+		}
+
+		private void maintain(final long now) {
+			for (final Idle entry : this.idle) {
+				if (!entry.isUsable(now, this.limits.maxIdle)
+						&& this.idle.removeFirstOccurrence(entry)) {
+					this.size.decrementAndGet();
+					this.discarded.increment();
+					entry.close();
+				}
+			}
+			this.refill();
+		}
+
+		private void refill() {
+			if (!this.closed && (this.size.get() < this.limits.size)
+					&& this.refilling.compareAndSet(false, true)) {
+				try {
+					WarmSocketPool.this.executor.execute(this);
+				} catch (final RejectedExecutionException e) {
+					this.refilling.set(false);
+				}
+			}
+		}
+
+		@Override
+		public void run() {
+			try {
+				while (!this.closed && (this.size.get() < this.limits.size)) {
+					final SocketChannel channel = this.connect();
+					this.idle.offerLast(new Idle(channel, System.nanoTime()));
+					this.size.incrementAndGet();
+					this.created.increment();
+				}
+			} catch (final IOException | RuntimeException e) {
+				// Retried at the next maintenance
+				this.failed.increment();
+			} finally {
+				this.refilling.set(false);
+			}
+
+			if (this.closed) {
+				this.drain();
+			}
+		}
+
+		private SocketChannel connect() throws IOException {
+			final SourceAddressSelector sourceAddressSelector = WarmSocketPool.this.sourceAddressSelector;
+			final Source source = (sourceAddressSelector != null)
+					? sourceAddressSelector
+							.select(this.destination.getAddress(), null)
+					: null;
+
+			final SocketChannel channel = SocketChannel.open();
+			try {
+				final Socket socket = channel.socket();
+				if (source != null) {
+					socket.bind(new InetSocketAddress(source.getAddress(), 0));
+				}
+				socket.connect(this.destination,
+						WarmSocketPool.this.connectTimeout);
+				channel.configureBlocking(false);
+				return channel;
+			} catch (final IOException | RuntimeException e) {
+				try {
+					channel.close();
+				} catch (final IOException ignore) {
+				}
+				throw e;
+			}
+		}
+
+		private void close() {
+			this.closed = true;
+			this.drain();
+		}
+
+		private void drain() {
+			Idle entry;
+			while ((entry = this.idle.pollFirst()) != null) {
+				this.size.decrementAndGet();
+				entry.close();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return this.destination.getAddress().getHostAddress() + ":"
+					+ this.destination.getPort() + " " + this.size.get()
+					+ " idle, " + this.hits.sum() + " hits, "
+					+ this.misses.sum() + " misses, " + this.created.sum()
+					+ " created, " + this.discarded.sum() + " discarded, "
+					+ this.failed.sum() + " failed";
+		}
+	}
+
+	/**
+	 * An idle connection in non-blocking mode. It is checked under its own
+	 * lock, so that the maintenance never reads from a connection which has
+	 * been handed out.
+	 */
+	private static final class Idle {
+
+		private final SocketChannel channel;
+
+		private final long since;
+
+		private boolean taken = false;
+
+		private Idle(final SocketChannel channel, final long since) {
+			this.channel = channel;
+			this.since = since;
+		}
+
+		private synchronized boolean take(final long now, final long maxIdle) {
+			if (!this.isUsable(now, maxIdle)) {
+				this.close();
+				return false;
+			}
+
+			try {
+				this.channel.configureBlocking(true);
+			} catch (final IOException e) {
+				this.close();
+				return false;
+			}
+
+			this.taken = true;
+			return true;
+		}
+
+		private synchronized boolean isUsable(final long now,
+				final long maxIdle) {
+			if (this.taken) {
+				return true;
+			}
+
+			if ((now - this.since) > TimeUnit.MILLISECONDS
+					.toNanos(maxIdle)) {
+				return false;
+			}
+
+			// Closed by the destination, or sent data which would be lost
+			try {
+				return this.channel.read(ByteBuffer.allocate(1)) == 0;
+			} catch (final IOException e) {
+				return false;
+			}
+		}
+
+		private void close() {
+			try {
+				this.channel.close();
+			} catch (final IOException e) {
+			}
+		}
+	}
+}
@@ -0,0 +1,231 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+
+import nu.najt.kecon.jsocksproxy.utils.BufferSizer;
+
+/**
+ * One direction of a tunnel. Data is read from the source into a chain of
+ * buffers with a scattering read and passed on to the sink with a gathering
+ * write. Reading is paused until the sink has accepted all pending data, which
+ * stops reading from a source whose sink is slower.<br>
+ * <br>
+ * A read that fills at least one buffer is taken as bulk traffic and is held
+ * for up to the max flush latency, so that it can be coalesced with the
+ * following reads. Shorter reads are written immediately. The size of the
+ * buffers is adapted to the traffic between the writes.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+final class Direction {
+
+	private final Tunnel tunnel;
+
+	private final SocketChannel source;
+
+	private final SocketChannel sink;
+
+	private final ByteBuffer[] buffers;
+
+	private final BufferSizer bufferSizer;
+
+	private final long maxFlushLatency;
+
+	private int fillIndex = 0;
+
+	private int flushCount = 0;
+
+	private long flushLength = 0;
+
+	private long flushDeadline = 0;
+
+	private boolean holding = false;
+
+	private boolean endOfStream = false;
+
+	private boolean done = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param tunnel
+	 *            the tunnel this direction belongs to
+	 * @param source
+	 *            the channel to read from
+	 * @param sink
+	 *            the channel to write to
+	 * @param buffers
+	 *            the buffers, in fill mode
+	 * @param bufferSizer
+	 *            the sizer which resizes the buffers
+	 * @param maxFlushLatency
+	 *            the max time in nanoseconds that bulk data may be held, 0
+	 *            writes all data immediately
+	 */
+	Direction(final Tunnel tunnel, final SocketChannel source,
+			final SocketChannel sink, final ByteBuffer[] buffers,
+			final BufferSizer bufferSizer, final long maxFlushLatency) {
+		this.tunnel = tunnel;
+		this.source = source;
+		this.sink = sink;
+		this.buffers = buffers;
+		this.bufferSizer = bufferSizer;
+		this.maxFlushLatency = maxFlushLatency;
+	}
+
+	/**
+	 * Read from the source and pass it on to the sink, unless it should be held
+	 * 
+	 * @return true if the data is now held and must be flushed at the deadline
+	 * @throws IOException
+	 *             if an I/O exception occurs
+	 */
+	boolean read() throws IOException {
+		final long length = this.source.read(this.buffers, this.fillIndex,
+				this.buffers.length - this.fillIndex);
+
+		if (length == -1) {
+			this.endOfStream = true;
+		}
+
+		while ((this.fillIndex < this.buffers.length)
+				&& !this.buffers[this.fillIndex].hasRemaining()) {
+			this.fillIndex++;
+		}
+
+		if (this.endOfStream || (this.fillIndex == this.buffers.length)
+				|| (this.maxFlushLatency <= 0)
+				|| (length < this.buffers[0].capacity())) {
+			this.flush();
+			return false;
+		}
+
+		if (this.holding) {
+			return false;
+		}
+
+		this.holding = true;
+		this.flushDeadline = System.nanoTime() + this.maxFlushLatency;
+		return true;
+	}
+
+	/**
+	 * Write pending data to the sink, and half close the sink once the source
+	 * has reached end of stream and everything has been written
+	 * 
+	 * @throws IOException
+	 *             if an I/O exception occurs
+	 */
+	void flush() throws IOException {
+		this.holding = false;
+
+		if (this.flushCount == 0) {
+			int count = this.fillIndex;
+			if ((count < this.buffers.length)
+					&& (this.buffers[count].position() > 0)) {
+				count++;
+			}
+
+			this.flushLength = 0;
+			for (int i = 0; i < count; i++) {
+				this.buffers[i].flip();
+				this.flushLength += this.buffers[i].limit();
+			}
+			this.flushCount = count;
+		}
+
+		if (this.flushCount > 0) {
+			this.sink.write(this.buffers, 0, this.flushCount);
+
+			if (!this.buffers[this.flushCount - 1].hasRemaining()) {
+				for (int i = 0; i < this.flushCount; i++) {
+					this.buffers[i].clear();
+				}
+				this.flushCount = 0;
+				this.fillIndex = 0;
+
+				this.bufferSizer.transferred(this.buffers, this.flushLength);
+			}
+		}
+
+		if (this.endOfStream && !this.done && (this.flushCount == 0)) {
+			this.done = true;
+
+			try {
+				this.sink.shutdownOutput();
+			} catch (final IOException e) {
+			}
+		}
+	}
+
+	/**
+	 * @return the tunnel this direction belongs to
+	 */
+	Tunnel getTunnel() {
+		return this.tunnel;
+	}
+
+	/**
+	 * @return the buffers
+	 */
+	ByteBuffer[] getBuffers() {
+		return this.buffers;
+	}
+
+	/**
+	 * @return true if data is held waiting for more data
+	 */
+	boolean isHolding() {
+		return this.holding;
+	}
+
+	/**
+	 * @return the time, as given by {@link System#nanoTime()}, when held data
+	 *         must be written
+	 */
+	long getFlushDeadline() {
+		return this.flushDeadline;
+	}
+
+	/**
+	 * @return true when end of stream has been passed on to the sink
+	 */
+	boolean isDone() {
+		return this.done;
+	}
+
+	/**
+	 * @return the interest operations for the source channel
+	 */
+	int getSourceInterestOps() {
+		return (!this.endOfStream && (this.flushCount == 0)
+				&& (this.fillIndex < this.buffers.length))
+						? SelectionKey.OP_READ : 0;
+	}
+
+	/**
+	 * @return the interest operations for the sink channel
+	 */
+	int getSinkInterestOps() {
+		return (this.flushCount > 0) ? SelectionKey.OP_WRITE : 0;
+	}
+}
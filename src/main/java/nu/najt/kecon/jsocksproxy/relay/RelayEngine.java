@@ -0,0 +1,264 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.relay;
+
+import java.io.IOException;
+import java.net.Socket;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
+
+/**
+ * Relays established tunnels using non-blocking channels. The tunnels are
+ * spread over a fixed number of event loops, normally one per core, instead
+ * of occupying two blocking threads each.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class RelayEngine {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RelayEngine.class);
+
+	private final RelayEventLoop[] eventLoops;
+
+	private final AtomicInteger nextEventLoop = new AtomicInteger();
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+
+	private volatile int coalesceBuffers = 1;
+
+	private volatile long maxFlushLatency = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param threads
+	 *            the number of event loops, 0 or less means one per core
+	 * @throws IOException
+	 *             if a selector could not be opened
+	 */
+	public RelayEngine(final int threads) throws IOException {
+		final int count = (threads > 0) ? threads
+				: Runtime.getRuntime().availableProcessors();
+
+		this.eventLoops = new RelayEventLoop[count];
+
+		try {
+			for (int i = 0; i < count; i++) {
+				this.eventLoops[i] = new RelayEventLoop();
+			}
+		} catch (final IOException e) {
+			this.shutdown();
+			throw e;
+		}
+	}
+
+	/**
+	 * Start the event loops
+	 */
+	public void start() {
+		if (this.running.getAndSet(true)) {
+			throw new IllegalStateException("Relay engine is already running");
+		}
+
+		for (int i = 0; i < this.eventLoops.length; i++) {
+			final Thread thread = new Thread(this.eventLoops[i],
+					"relay-" + i);
+			thread.setDaemon(true);
+			thread.start();
+		}
+
+		LOG.info("Started {} relay event loops", this.eventLoops.length);
+	}
+
+	/**
+	 * Stop the event loops and close all tunnels
+	 */
+	public void shutdown() {
+		this.running.set(false);
+
+		for (final RelayEventLoop eventLoop : this.eventLoops) {
+			if (eventLoop != null) {
+				eventLoop.shutdown();
+			}
+		}
+	}
+
+	/**
+	 * Set how writes are coalesced for tunnels handed over after this call
+	 * 
+	 * @param coalesceBuffers
+	 *            the number of buffers used for each direction of a tunnel
+	 * @param maxFlushLatency
+	 *            the max number of milliseconds that bulk data may be held
+	 *            waiting for more data, 0 writes all data immediately
+	 * @throws IllegalArgumentException
+	 *             if coalesceBuffers is less than 1 or maxFlushLatency is
+	 *             negative
+	 */
+	public void setCoalescing(final int coalesceBuffers,
+			final long maxFlushLatency) {
+		if (coalesceBuffers < 1) {
+			throw new IllegalArgumentException("coalesceBuffers");
+		}
+
+		if (maxFlushLatency < 0) {
+			throw new IllegalArgumentException("maxFlushLatency");
+		}
+
+		this.coalesceBuffers = coalesceBuffers;
+		this.maxFlushLatency = TimeUnit.MILLISECONDS.toNanos(maxFlushLatency);
+	}
+
+	/**
+	 * Hand over a tunnel to the engine. The engine takes ownership of both
+	 * sockets and closes them when the tunnel is done.
+	 * 
+	 * @param internal
+	 *            the internal socket
+	 * @param external
+	 *            the external socket
+	 * @param bufferPool
+	 *            the pool which the buffers of the tunnel are taken from
+	 * @param logger
+	 *            the logger used when the tunnel is shut down
+	 * @return true if the engine accepted the tunnel, false if the sockets
+	 *         must be relayed by the caller
+	 * @throws IOException
+	 *             if the channels could not be made non-blocking
+	 */
+	public boolean relay(final Socket internal, final Socket external,
+			final BufferPool bufferPool, final Logger logger)
+			throws IOException {
+		return this.relay(internal, external, bufferPool, logger, null, 0);
+	}
+
+	/**
+	 * Hand over a tunnel to the engine. The engine takes ownership of both
+	 * sockets and closes them when the tunnel is done, or when no data has
+	 * been read for the idle timeout.
+	 * 
+	 * @param internal
+	 *            the internal socket
+	 * @param external
+	 *            the external socket
+	 * @param bufferPool
+	 *            the pool which the buffers of the tunnel are taken from
+	 * @param logger
+	 *            the logger used when the tunnel is shut down
+	 * @param idleMonitor
+	 *            the monitor of idle tunnels, may be null
+	 * @param idleTimeout
+	 *            the idle timeout in milliseconds, 0 or less means no timeout
+	 * @return true if the engine accepted the tunnel, false if the sockets
+	 *         must be relayed by the caller
+	 * @throws IOException
+	 *             if the channels could not be made non-blocking
+	 * @since 3.0
+	 */
+	public boolean relay(final Socket internal, final Socket external,
+			final BufferPool bufferPool, final Logger logger,
+			final IdleMonitor idleMonitor, final long idleTimeout)
+			throws IOException {
+		return this.relay(internal, external, bufferPool, logger, idleMonitor,
+				idleTimeout, null);
+	}
+
+	/**
+	 * Hand over a tunnel to the engine. The engine takes ownership of both
+	 * sockets and closes them when the tunnel is done, or when no data has
+	 * been read for the idle timeout.
+	 * 
+	 * @param internal
+	 *            the internal socket
+	 * @param external
+	 *            the external socket
+	 * @param bufferPool
+	 *            the pool which the buffers of the tunnel are taken from
+	 * @param logger
+	 *            the logger used when the tunnel is shut down
+	 * @param idleMonitor
+	 *            the monitor of idle tunnels, may be null
+	 * @param idleTimeout
+	 *            the idle timeout in milliseconds, 0 or less means no timeout
+	 * @param onClose
+	 *            run once when the engine has closed the tunnel, may be null
+	 * @return true if the engine accepted the tunnel, false if the sockets
+	 *         must be relayed by the caller
+	 * @throws IOException
+	 *             if the channels could not be made non-blocking
+	 * @since 3.0
+	 */
+	public boolean relay(final Socket internal, final Socket external,
+			final BufferPool bufferPool, final Logger logger,
+			final IdleMonitor idleMonitor, final long idleTimeout,
+			final Runnable onClose) throws IOException {
+		final SocketChannel internalChannel = internal.getChannel();
+		final SocketChannel externalChannel = external.getChannel();
+
+		if ((internalChannel == null) || (externalChannel == null)
+				|| !this.running.get()) {
+			return false;
+		}
+
+		internalChannel.configureBlocking(false);
+		externalChannel.configureBlocking(false);
+
+		final RelayEventLoop eventLoop = this.eventLoops[(this.nextEventLoop
+				.getAndIncrement() & Integer.MAX_VALUE)
+				% this.eventLoops.length];
+
+		final Tunnel tunnel = new Tunnel(internalChannel, externalChannel,
+				bufferPool, this.coalesceBuffers, this.maxFlushLatency, logger,
+				MDC.getCopyOfContextMap());
+
+		tunnel.setOnClose(onClose);
+
+		if (idleMonitor != null) {
+			tunnel.setActivity(idleMonitor.watch(idleTimeout, new Runnable() {
+				@Override
+				public void run() {
+					eventLoop.closeLater(tunnel);
+				}
+			}));
+		}
+
+		eventLoop.register(tunnel);
+
+		return true;
+	}
+
+	/**
+	 * @return the number of tunnels currently relayed by the engine
+	 */
+	public int getActiveTunnels() {
+		int count = 0;
+		for (final RelayEventLoop eventLoop : this.eventLoops) {
+			count += eventLoop.getActiveTunnels();
+		}
+		return count;
+	}
+}
@@ -0,0 +1,247 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.relay;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A single selector thread serving a share of the tunnels
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+class RelayEventLoop implements Runnable {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(RelayEventLoop.class);
+
+	private final Selector selector;
+
+	private final Queue<Tunnel> pending = new ConcurrentLinkedQueue<Tunnel>();
+
+	private final Queue<Tunnel> closing = new ConcurrentLinkedQueue<Tunnel>();
+
+	private final AtomicBoolean mayRun = new AtomicBoolean(true);
+
+	private final AtomicInteger activeTunnels = new AtomicInteger();
+
+	private final List<Direction> held = new ArrayList<Direction>();
+
+	/**
+	 * Constructor
+	 * 
+	 * @throws IOException
+	 *             if the selector could not be opened
+	 */
+	RelayEventLoop() throws IOException {
+		this.selector = Selector.open();
+	}
+
+	/**
+	 * Queue a tunnel for registration on the selector thread
+	 * 
+	 * @param tunnel
+	 *            the tunnel
+	 */
+	void register(final Tunnel tunnel) {
+		this.activeTunnels.incrementAndGet();
+		this.pending.add(tunnel);
+		this.selector.wakeup();
+
+		if (!this.mayRun.get()) {
+			this.closePending();
+		}
+	}
+
+	/**
+	 * Queue a tunnel to be closed on the selector thread
+	 * 
+	 * @param tunnel
+	 *            the tunnel
+	 */
+	void closeLater(final Tunnel tunnel) {
+		this.closing.add(tunnel);
+		this.selector.wakeup();
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (this.mayRun.get()) {
+				this.selector.select(this.flushHeld());
+				this.registerPending();
+				this.closeQueued();
+				this.processSelectedKeys();
+			}
+		} catch (final ClosedSelectorException e) {
+		} catch (final IOException | RuntimeException e) {
+			LOG.error("Relay event loop failed", e);
+		} finally {
+			this.closeAll();
+		}
+	}
+
+	/**
+	 * Remember a direction holding data, must be called on the selector
+	 * thread
+	 * 
+	 * @param direction
+	 *            the direction
+	 */
+	void hold(final Direction direction) {
+		this.held.add(direction);
+	}
+
+	/**
+	 * Stop the event loop, all tunnels will be closed
+	 */
+	void shutdown() {
+		this.mayRun.set(false);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * @return the number of tunnels handled by this event loop
+	 */
+	int getActiveTunnels() {
+		return this.activeTunnels.get();
+	}
+
+	private void registerPending() {
+		Tunnel tunnel;
+		while ((tunnel = this.pending.poll()) != null) {
+			try {
+				tunnel.register(this, this.selector);
+			} catch (final IOException e) {
+				this.close(tunnel);
+			}
+		}
+	}
+
+	private void closeQueued() {
+		Tunnel tunnel;
+		while ((tunnel = this.closing.poll()) != null) {
+			this.close(tunnel);
+		}
+	}
+
+	private void processSelectedKeys() {
+		final Iterator<SelectionKey> iterator = this.selector.selectedKeys()
+				.iterator();
+
+		while (iterator.hasNext()) {
+			final SelectionKey key = iterator.next();
+			iterator.remove();
+
+			final Tunnel tunnel = (Tunnel) key.attachment();
+
+			if (!tunnel.handle(key)) {
+				this.close(tunnel);
+			}
+		}
+	}
+
+	/**
+	 * Flush the held data which has reached its deadline
+	 * 
+	 * @return the number of milliseconds until the next deadline, or 0 if no
+	 *         data is held
+	 */
+	private long flushHeld() {
+		if (this.held.isEmpty()) {
+			return 0;
+		}
+
+		final long now = System.nanoTime();
+		long next = Long.MAX_VALUE;
+
+		for (int i = this.held.size() - 1; i >= 0; i--) {
+			final Direction direction = this.held.get(i);
+			final Tunnel tunnel = direction.getTunnel();
+
+			if (!direction.isHolding() || tunnel.isClosed()) {
+				this.removeHeld(i);
+				continue;
+			}
+
+			final long remaining = direction.getFlushDeadline() - now;
+			if (remaining <= 0) {
+				this.removeHeld(i);
+
+				if (!tunnel.flushHeld(direction)) {
+					this.close(tunnel);
+				}
+			} else {
+				next = Math.min(next, remaining);
+			}
+		}
+
+		if (next == Long.MAX_VALUE) {
+			return 0;
+		}
+
+		return Math.max(1, TimeUnit.NANOSECONDS.toMillis(next));
+	}
+
+	private void removeHeld(final int index) {
+		final int last = this.held.size() - 1;
+		this.held.set(index, this.held.get(last));
+		this.held.remove(last);
+	}
+
+	private void close(final Tunnel tunnel) {
+		if (tunnel.close()) {
+			this.activeTunnels.decrementAndGet();
+		}
+	}
+
+	private void closePending() {
+		Tunnel tunnel;
+		while ((tunnel = this.pending.poll()) != null) {
+			this.close(tunnel);
+		}
+	}
+
+	private void closeAll() {
+		this.closePending();
+
+		try {
+			for (final SelectionKey key : this.selector.keys()) {
+				this.close((Tunnel) key.attachment());
+			}
+		} catch (final ClosedSelectorException e) {
+		}
+
+		try {
+			this.selector.close();
+		} catch (final IOException e) {
+		}
+	}
+}
@@ -0,0 +1,299 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.relay;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+
+import org.slf4j.Logger;
+import org.slf4j.MDC;
+
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.BufferSizer;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor.Activity;
+
+/**
+ * A tunnel between two non-blocking channels, consisting of one direction
+ * each way
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+final class Tunnel {
+
+	private final SocketChannel internal;
+
+	private final SocketChannel external;
+
+	private final BufferPool bufferPool;
+
+	private final int buffersPerDirection;
+
+	private final long maxFlushLatency;
+
+	private final Logger logger;
+
+	private final Map<String, String> contextMap;
+
+	private Direction upstream;
+
+	private Direction downstream;
+
+	private SelectionKey internalKey;
+
+	private SelectionKey externalKey;
+
+	private RelayEventLoop eventLoop;
+
+	private Activity activity;
+
+	private Runnable onClose;
+
+	private boolean closed = false;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param internal
+	 *            the internal channel
+	 * @param external
+	 *            the external channel
+	 * @param bufferPool
+	 *            the pool to take the buffers from
+	 * @param buffersPerDirection
+	 *            the number of buffers used for each direction
+	 * @param maxFlushLatency
+	 *            the max time in nanoseconds that bulk data may be held
+	 * @param logger
+	 *            the logger
+	 * @param contextMap
+	 *            the MDC of the handler which established the tunnel
+	 */
+	Tunnel(final SocketChannel internal, final SocketChannel external,
+			final BufferPool bufferPool, final int buffersPerDirection,
+			final long maxFlushLatency, final Logger logger,
+			final Map<String, String> contextMap) {
+		this.internal = internal;
+		this.external = external;
+		this.bufferPool = bufferPool;
+		this.buffersPerDirection = buffersPerDirection;
+		this.maxFlushLatency = maxFlushLatency;
+		this.logger = logger;
+		this.contextMap = contextMap;
+	}
+
+	/**
+	 * Set the activity recording the reads of the tunnel, must be called
+	 * before the tunnel is registered
+	 * 
+	 * @param activity
+	 *            the activity, may be null
+	 */
+	void setActivity(final Activity activity) {
+		this.activity = activity;
+	}
+
+	/**
+	 * Set the task run when the tunnel is closed, must be called before the
+	 * tunnel is registered
+	 * 
+	 * @param onClose
+	 *            the task, may be null
+	 */
+	void setOnClose(final Runnable onClose) {
+		this.onClose = onClose;
+	}
+
+	/**
+	 * Register the channels, must be called on the selector thread
+	 * 
+	 * @param eventLoop
+	 *            the event loop which holds back data for coalescing
+	 * @param selector
+	 *            the selector
+	 * @throws IOException
+	 *             if registration fails or the memory limit of the buffer
+	 *             pool leaves no buffers for the tunnel
+	 */
+	void register(final RelayEventLoop eventLoop, final Selector selector)
+			throws IOException {
+		this.eventLoop = eventLoop;
+		this.upstream = new Direction(this, this.internal, this.external,
+				this.acquireBuffers(), new BufferSizer(this.bufferPool),
+				this.maxFlushLatency);
+		this.downstream = new Direction(this, this.external, this.internal,
+				this.acquireBuffers(), new BufferSizer(this.bufferPool),
+				this.maxFlushLatency);
+
+		this.internalKey = this.internal.register(selector, 0, this);
+		this.externalKey = this.external.register(selector, 0, this);
+
+		this.updateInterestOps();
+	}
+
+	/**
+	 * Handle a selected key
+	 * 
+	 * @param key
+	 *            the key
+	 * @return false if the tunnel should be closed
+	 */
+	boolean handle(final SelectionKey key) {
+		try {
+			if (key.isReadable()) {
+				final Direction direction = this.sourceOf(key);
+				if (this.activity != null) {
+					this.activity.touch();
+				}
+
+				if (direction.read()) {
+					this.eventLoop.hold(direction);
+				}
+			}
+
+			if (key.isValid() && key.isWritable()) {
+				this.sinkOf(key).flush();
+			}
+
+			if (this.upstream.isDone() && this.downstream.isDone()) {
+				return false;
+			}
+
+			this.updateInterestOps();
+			return true;
+
+		} catch (final IOException | CancelledKeyException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Write data which has been held until its deadline
+	 * 
+	 * @param direction
+	 *            the direction holding the data
+	 * @return false if the tunnel should be closed
+	 */
+	boolean flushHeld(final Direction direction) {
+		try {
+			direction.flush();
+
+			if (this.upstream.isDone() && this.downstream.isDone()) {
+				return false;
+			}
+
+			this.updateInterestOps();
+			return true;
+
+		} catch (final IOException | CancelledKeyException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Close both channels
+	 * 
+	 * @return true if this call closed the tunnel
+	 */
+	boolean close() {
+		if (this.closed) {
+			return false;
+		}
+		this.closed = true;
+
+		if (this.activity != null) {
+			this.activity.stop();
+		}
+
+		try {
+			this.internal.close();
+		} catch (final IOException e) {
+		}
+
+		try {
+			this.external.close();
+		} catch (final IOException e) {
+		}
+
+		if (this.upstream != null) {
+			this.releaseBuffers(this.upstream.getBuffers());
+		}
+
+		if (this.downstream != null) {
+			this.releaseBuffers(this.downstream.getBuffers());
+		}
+
+		if (this.onClose != null) {
+			this.onClose.run();
+		}
+
+		if (this.contextMap != null) {
+			MDC.setContextMap(this.contextMap);
+		}
+		this.logger.info("Shutdown connection");
+		MDC.clear();
+
+		return true;
+	}
+
+	private ByteBuffer[] acquireBuffers() throws IOException {
+		final ByteBuffer[] buffers = new ByteBuffer[this.buffersPerDirection];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = this.bufferPool.acquire();
+
+			if (buffers[i] == null) {
+				for (int j = 0; j < i; j++) {
+					this.bufferPool.release(buffers[j]);
+				}
+				throw new IOException("Buffer memory limit reached");
+			}
+		}
+		return buffers;
+	}
+
+	private void releaseBuffers(final ByteBuffer[] buffers) {
+		for (final ByteBuffer buffer : buffers) {
+			this.bufferPool.release(buffer);
+		}
+	}
+
+	/**
+	 * @return true if the tunnel has been closed
+	 */
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	private Direction sourceOf(final SelectionKey key) {
+		return (key == this.internalKey) ? this.upstream : this.downstream;
+	}
+
+	private Direction sinkOf(final SelectionKey key) {
+		return (key == this.internalKey) ? this.downstream : this.upstream;
+	}
+
+	private void updateInterestOps() {
+		this.internalKey.interestOps(this.upstream.getSourceInterestOps()
+				| this.downstream.getSinkInterestOps());
+		this.externalKey.interestOps(this.downstream.getSourceInterestOps()
+				| this.upstream.getSinkInterestOps());
+	}
+}
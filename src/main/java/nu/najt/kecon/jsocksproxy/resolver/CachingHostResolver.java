@@ -0,0 +1,245 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.resolver;
+
+import java.net.InetAddress;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+
+/**
+ * Caches the lookups of another resolver. Successful lookups are kept for the
+ * time to live and failed lookups for the negative time to live. A lookup in
+ * progress is shared by all callers asking for the same host, so many clients
+ * connecting to the same host cause a single lookup. The number of entries is
+ * capped, evicting the least recently used host first.<br>
+ * <br>
+ * The addresses returned by {@link InetAddress} carry no record TTL, so the
+ * time to live is configured. It should not be longer than the TTL of the
+ * records the proxy is used for.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class CachingHostResolver implements HostResolver {
+
+	private final HostResolver delegate;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder coalesced = new LongAdder();
+
+	private final LinkedHashMap<String, Lookup> lookups = new LinkedHashMap<String, Lookup>(
+			16, 0.75f, true) {
+
+		private static final long serialVersionUID = 1L;
+
+		@Override
+		protected boolean removeEldestEntry(
+				final Map.Entry<String, Lookup> eldest) {
+			return this.size() > CachingHostResolver.this.maxEntries;
+		}
+	};
+
+	private int maxEntries;
+
+	private volatile long ttl;
+
+	private volatile long negativeTtl;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param delegate
+	 *            the resolver making the lookups
+	 * @param maxEntries
+	 *            the maximum number of cached hosts
+	 * @param ttl
+	 *            the number of milliseconds a resolved host is cached
+	 * @param negativeTtl
+	 *            the number of milliseconds a host that could not be
+	 *            resolved is cached
+	 */
+	public CachingHostResolver(final HostResolver delegate,
+			final int maxEntries, final long ttl, final long negativeTtl) {
+		this.delegate = delegate;
+		this.configure(maxEntries, ttl, negativeTtl);
+	}
+
+	/**
+	 * Change the settings of the cache. Entries are evicted if there are more
+	 * than maxEntries, while the time to live of cached entries is kept.
+	 * 
+	 * @param maxEntries
+	 *            the maximum number of cached hosts
+	 * @param ttl
+	 *            the number of milliseconds a resolved host is cached
+	 * @param negativeTtl
+	 *            the number of milliseconds a host that could not be
+	 *            resolved is cached
+	 * @throws IllegalArgumentException
+	 *             if maxEntries is negative or a time to live is negative
+	 */
+	public void configure(final int maxEntries, final long ttl,
+			final long negativeTtl) {
+		if (maxEntries < 0) {
+			throw new IllegalArgumentException("maxEntries");
+		}
+
+		if ((ttl < 0) || (negativeTtl < 0)) {
+			throw new IllegalArgumentException("ttl");
+		}
+
+		this.ttl = TimeUnit.MILLISECONDS.toNanos(ttl);
+		this.negativeTtl = TimeUnit.MILLISECONDS.toNanos(negativeTtl);
+
+		synchronized (this.lookups) {
+			this.maxEntries = maxEntries;
+
+			while (this.lookups.size() > maxEntries) {
+				this.lookups.remove(this.lookups.keySet().iterator().next());
+			}
+		}
+	}
+
+	@Override
+	public CompletableFuture<InetAddress[]> resolve(final String hostname) {
+		final String key = hostname.toLowerCase();
+		final Lookup lookup;
+
+		synchronized (this.lookups) {
+			final Lookup cached = this.lookups.get(key);
+
+			if (cached != null) {
+				if (!cached.future.isDone()) {
+					this.coalesced.increment();
+					return cached.future;
+				}
+
+				if ((cached.expires - System.nanoTime()) > 0) {
+					this.hits.increment();
+					return cached.future;
+				}
+			}
+
+			this.misses.increment();
+			lookup = new Lookup();
+			this.lookups.put(key, lookup);
+		}
+
+		// The lookup is started outside the lock, it may complete at once
+		this.delegate.resolve(hostname).whenComplete(
+				new BiConsumer<InetAddress[], Throwable>() {
+					@Override
+					public void accept(final InetAddress[] addresses,
+							final Throwable throwable) {
+						CachingHostResolver.this.completed(key, lookup,
+								addresses, throwable);
+					}
+				});
+
+		return lookup.future;
+	}
+
+	private void completed(final String key, final Lookup lookup,
+			final InetAddress[] addresses, final Throwable throwable) {
+		final long now = System.nanoTime();
+
+		if (throwable == null) {
+			lookup.expires = now + this.ttl;
+		} else if (CachingHostResolver.isRejected(throwable)) {
+			// An overloaded resolver says nothing about the host
+			lookup.expires = now;
+		} else {
+			lookup.expires = now + this.negativeTtl;
+		}
+
+		if ((lookup.expires - now) <= 0) {
+			synchronized (this.lookups) {
+				if (this.lookups.get(key) == lookup) {
+					this.lookups.remove(key);
+				}
+			}
+		}
+
+		if (throwable == null) {
+			lookup.future.complete(addresses);
+		} else {
+			lookup.future.completeExceptionally(
+					((throwable instanceof CompletionException)
+							&& (throwable.getCause() != null))
+									? throwable.getCause() : throwable);
+		}
+	}
+
+	private static boolean isRejected(final Throwable throwable) {
+		for (Throwable cause = throwable; cause != null; cause = cause
+				.getCause()) {
+			if (cause instanceof RejectedExecutionException) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of lookups answered from the cache
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return the number of lookups passed on to the resolver
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return the number of lookups which waited for a lookup already in
+	 *         progress
+	 */
+	public long getCoalesced() {
+		return this.coalesced.sum();
+	}
+
+	/**
+	 * @return the number of cached hosts, including lookups in progress
+	 */
+	public int getSize() {
+		synchronized (this.lookups) {
+			return this.lookups.size();
+		}
+	}
+
+	/**
+	 * A lookup, cached or in progress
+	 */
+	private static final class Lookup {
+
+		private final CompletableFuture<InetAddress[]> future = new CompletableFuture<InetAddress[]>();
+
+		private volatile long expires;
+	}
+}
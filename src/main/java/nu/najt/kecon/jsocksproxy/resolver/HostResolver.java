@@ -0,0 +1,41 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.resolver;
+
+import java.net.InetAddress;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Resolves the host names requested by SOCKS clients
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public interface HostResolver {
+
+	/**
+	 * Resolve a host name
+	 * 
+	 * @param hostname
+	 *            the host name or address literal
+	 * @return a future completed with all addresses of the host, or
+	 *         completed exceptionally with an
+	 *         {@link java.net.UnknownHostException} if the host could not be
+	 *         resolved. The future and the array may be shared with other
+	 *         callers and must not be modified.
+	 */
+	public CompletableFuture<InetAddress[]> resolve(String hostname);
+}
@@ -0,0 +1,71 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.resolver;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.function.Supplier;
+
+/**
+ * Resolves host names with the resolver of the system, on threads of its own
+ * so that a slow lookup can be shared by all clients waiting for the same
+ * host
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class SystemHostResolver implements HostResolver {
+
+	private final Executor executor;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param executor
+	 *            the executor running the lookups
+	 */
+	public SystemHostResolver(final Executor executor) {
+		this.executor = executor;
+	}
+
+	@Override
+	public CompletableFuture<InetAddress[]> resolve(final String hostname) {
+		try {
+			return CompletableFuture.supplyAsync(new Supplier<InetAddress[]>() {
+				@Override
+				public InetAddress[] get() {
+					try {
+						return InetAddress.getAllByName(hostname);
+					} catch (final UnknownHostException e) {
+						throw new CompletionException(e);
+					}
+				}
+			}, this.executor);
+		} catch (final RejectedExecutionException e) {
+			final UnknownHostException exception = new UnknownHostException(
+					"Too many lookups, failed to resolve " + hostname);
+			exception.initCause(e);
+
+			final CompletableFuture<InetAddress[]> future = new CompletableFuture<InetAddress[]>();
+			future.completeExceptionally(exception);
+			return future;
+		}
+	}
+}
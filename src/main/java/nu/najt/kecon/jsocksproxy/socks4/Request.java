@@ -0,0 +1,165 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks4;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A SOCKS4 or SOCKS4a request as read by a {@link RequestParser}. The object
+ * is reused for every request parsed by the parser, so the USERID and the
+ * hostname are kept in fixed buffers and only converted on demand.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class Request {
+
+	/** The maximum number of bytes of the USERID */
+	public static final int MAX_USER_ID_LENGTH = 255;
+
+	/** The maximum number of bytes of the SOCKS4a hostname */
+	public static final int MAX_HOSTNAME_LENGTH = 255;
+
+	private final byte[] address = new byte[4];
+
+	private final byte[] userId = new byte[Request.MAX_USER_ID_LENGTH];
+
+	private final byte[] hostname = new byte[Request.MAX_HOSTNAME_LENGTH];
+
+	private Command command;
+
+	private int port;
+
+	private int userIdLength;
+
+	private int hostnameLength;
+
+	/**
+	 * Clear the request before it is parsed again
+	 */
+	void reset() {
+		this.command = null;
+		this.port = 0;
+		this.userIdLength = 0;
+		this.hostnameLength = 0;
+	}
+
+	void setCommand(final Command command) {
+		this.command = command;
+	}
+
+	void setPort(final int port) {
+		this.port = port;
+	}
+
+	byte[] getAddressBuffer() {
+		return this.address;
+	}
+
+	/**
+	 * Append a byte to the USERID
+	 * 
+	 * @return false if the USERID is full
+	 */
+	boolean appendUserId(final byte b) {
+		if (this.userIdLength == this.userId.length) {
+			return false;
+		}
+		this.userId[this.userIdLength++] = b;
+		return true;
+	}
+
+	/**
+	 * Append a byte to the hostname
+	 * 
+	 * @return false if the hostname is full
+	 */
+	boolean appendHostname(final byte b) {
+		if (this.hostnameLength == this.hostname.length) {
+			return false;
+		}
+		this.hostname[this.hostnameLength++] = b;
+		return true;
+	}
+
+	/**
+	 * @return the command
+	 */
+	public Command getCommand() {
+		return this.command;
+	}
+
+	/**
+	 * @return the destination port
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * @return true if the request uses the SOCKS4a extension, where the
+	 *         address is 0.0.0.x and a hostname follows the USERID
+	 */
+	public boolean isSocks4a() {
+		return (this.address[0] == 0) && (this.address[1] == 0)
+				&& (this.address[2] == 0) && (this.address[3] != 0);
+	}
+
+	/**
+	 * @return the number of bytes of the USERID
+	 */
+	public int getUserIdLength() {
+		return this.userIdLength;
+	}
+
+	/**
+	 * @return the USERID
+	 */
+	public String getUserId() {
+		return new String(this.userId, 0, this.userIdLength,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the number of bytes of the SOCKS4a hostname
+	 */
+	public int getHostnameLength() {
+		return this.hostnameLength;
+	}
+
+	/**
+	 * @return the SOCKS4a hostname, or null if the request has none
+	 */
+	public String getHostname() {
+		if (this.hostnameLength == 0) {
+			return null;
+		}
+		return new String(this.hostname, 0, this.hostnameLength,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * @return the destination address of a request which does not use the
+	 *         SOCKS4a extension
+	 * @throws UnknownHostException
+	 *             never, the address always has a legal length
+	 */
+	public InetAddress getInetAddress() throws UnknownHostException {
+		return InetAddress.getByAddress(this.address.clone());
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks4;
+
+import java.nio.ByteBuffer;
+
+import nu.najt.kecon.jsocksproxy.IllegalCommandException;
+import nu.najt.kecon.jsocksproxy.ProtocolException;
+
+/**
+ * A resumable parser of the SOCKS4 and SOCKS4a request. The parser takes
+ * whatever bytes are available in a buffer and remembers where it stopped,
+ * so that a request may arrive in any number of reads. The USERID and the
+ * hostname are bounded by {@link Request#MAX_USER_ID_LENGTH} and
+ * {@link Request#MAX_HOSTNAME_LENGTH}, so a client cannot make the parser hold
+ * more than a fixed number of bytes. It allocates nothing while parsing; the
+ * result is kept in a {@link Request} which is reused after {@link #reset()}.
+ * <br>
+ * <br>
+ * The parser starts after the version byte, which has been read to choose the
+ * SOCKS implementation.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class RequestParser {
+
+	private static final int COMMAND = 0;
+
+	private static final int PORT = 1;
+
+	private static final int ADDRESS = 2;
+
+	private static final int USER_ID = 3;
+
+	private static final int HOSTNAME = 4;
+
+	private static final int DONE = 5;
+
+	private final Request request = new Request();
+
+	private int state = RequestParser.COMMAND;
+
+	private int remaining;
+
+	/**
+	 * Prepare the parser for another client
+	 */
+	public void reset() {
+		this.state = RequestParser.COMMAND;
+		this.remaining = 0;
+		this.request.reset();
+	}
+
+	/**
+	 * Parse the bytes available in a buffer. Only the bytes of the request are
+	 * consumed, so that data which follows it is left in the buffer.
+	 * 
+	 * @param buffer
+	 *            the buffer, in read mode
+	 * @return true if the request is complete
+	 * @throws ProtocolException
+	 *             if the USERID or the hostname is too long, or the hostname
+	 *             is empty
+	 * @throws IllegalCommandException
+	 *             if the command is unknown
+	 * @throws IllegalStateException
+	 *             if the request has already been read
+	 */
+	public boolean parse(final ByteBuffer buffer)
+			throws ProtocolException, IllegalCommandException {
+		while (buffer.hasRemaining()) {
+			switch (this.state) {
+			case COMMAND:
+				this.request.setCommand(Command.valueOf(buffer.get()));
+				this.request.setPort(0);
+				this.remaining = 2;
+				this.state = RequestParser.PORT;
+				break;
+
+			case PORT:
+				this.request.setPort(
+						(this.request.getPort() << 8) | (buffer.get() & 0xff));
+
+				if (--this.remaining == 0) {
+					this.remaining = 4;
+					this.state = RequestParser.ADDRESS;
+				}
+				break;
+
+			case ADDRESS:
+				final int length = Math.min(this.remaining,
+						buffer.remaining());
+				buffer.get(this.request.getAddressBuffer(), 4 - this.remaining,
+						length);
+				this.remaining -= length;
+
+				if (this.remaining == 0) {
+					this.state = RequestParser.USER_ID;
+				}
+				break;
+
+			case USER_ID:
+				final byte userId = buffer.get();
+				if (userId != 0x00) {
+					if (!this.request.appendUserId(userId)) {
+						throw new ProtocolException("USERID longer than "
+								+ Request.MAX_USER_ID_LENGTH + " bytes");
+					}
+				} else if (this.request.isSocks4a()) {
+					this.state = RequestParser.HOSTNAME;
+				} else {
+					this.state = RequestParser.DONE;
+					return true;
+				}
+				break;
+
+			case HOSTNAME:
+				final byte hostname = buffer.get();
+				if (hostname != 0x00) {
+					if (!this.request.appendHostname(hostname)) {
+						throw new ProtocolException("Hostname longer than "
+								+ Request.MAX_HOSTNAME_LENGTH + " bytes");
+					}
+				} else if (this.request.getHostnameLength() == 0) {
+					throw new ProtocolException("Empty hostname");
+				} else {
+					this.state = RequestParser.DONE;
+					return true;
+				}
+				break;
+
+			default:
+				throw new IllegalStateException("Request already read");
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * @return the request read so far
+	 */
+	public Request getRequest() {
+		return this.request;
+	}
+}
@@ -15,14 +15,16 @@
  */
 package nu.najt.kecon.jsocksproxy.socks4;
 
-import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.InetAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.nio.ByteBuffer;
+import java.util.Arrays;
 import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
@@ -31,6 +33,7 @@ import org.slf4j.LoggerFactory;
 import nu.najt.kecon.jsocksproxy.AbstractSocksImplementation;
 import nu.najt.kecon.jsocksproxy.ConfigurationFacade;
 import nu.najt.kecon.jsocksproxy.IllegalCommandException;
+import nu.najt.kecon.jsocksproxy.ProtocolException;
 
 /**
  * This is the SOCKS4 implementation. <br>
@@ -51,9 +54,33 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 
 	protected static final byte NULL = 0x00;
 
+	private static final int REQUEST_BUFFER_SIZE = 512;
+
+	private static final byte[] REJECT_REPLY = { SocksImplementation4.NULL,
+			SocksImplementation4.REQUEST_REJECTED, 0, 0, 0, 0, 0, 0 };
+
 	private static final Logger LOG = LoggerFactory
 			.getLogger(SocksImplementation4.class.getPackage().getName());
 
+	private static final ThreadLocal<RequestParser> PARSERS = new ThreadLocal<RequestParser>() {
+		@Override
+		protected RequestParser initialValue() {
+			return new RequestParser();
+		}
+	};
+
+	private static final ThreadLocal<ByteBuffer> BUFFERS = new ThreadLocal<ByteBuffer>() {
+		@Override
+		protected ByteBuffer initialValue() {
+			return ByteBuffer
+					.allocate(SocksImplementation4.REQUEST_BUFFER_SIZE);
+		}
+	};
+
+	private ByteBuffer buffer;
+
+	private final byte[] reply = new byte[8];
+
 	/**
 	 * Constructor
 	 * 
@@ -69,29 +96,41 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 		super(configurationFacade, socket, SocksImplementation4.LOG, executor);
 	}
 
+	@Override
+	public void reject() {
+		this.reject(SocksImplementation4.REJECT_REPLY);
+	}
+
 	@Override
 	public void run() {
-		DataInputStream inputStream = null;
+		InputStream inputStream = null;
 		OutputStream outputStream = null;
 		InetAddress inetAddress = null;
 		int port = -1;
 		try {
 			this.setup();
 
-			inputStream = this.getInputStream();
+			inputStream = this.getClientInputStream();
 			outputStream = this.getOutputStream();
 
-			final Command command = Command.valueOf(inputStream.readByte());
-			port = this.getPort(inputStream);
-			inetAddress = this.getAddress(inputStream);
+			final RequestParser parser = SocksImplementation4.PARSERS.get();
+			parser.reset();
+			this.read(inputStream, parser);
 
-			if (command == Command.CONNECT) {
+			final Request request = parser.getRequest();
+			port = request.getPort();
+			inetAddress = request.isSocks4a()
+					? this.resolveHostname(request.getHostname())
+					: request.getInetAddress();
+			this.handshakeCompleted();
+
+			if (request.getCommand() == Command.CONNECT) {
 				this.handleConnect(outputStream, inetAddress, port);
 			} else {
 				this.handleBind(outputStream, inetAddress, port);
 			}
-		} catch (IllegalCommandException e) {
-			this.logger.info("Illegal command", e);
+		} catch (IllegalCommandException | ProtocolException e) {
+			this.logger.info("Illegal request", e);
 
 			try {
 				writeResponse(outputStream,
@@ -103,14 +142,16 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 			this.logger.info("Failed to setup connection to {}:{}",
 					inetAddress, port, e);
 		} finally {
-			try {
-				inputStream.close();
-			} catch (final Exception e) {
-			}
+			if (!this.isDetached()) {
+				try {
+					inputStream.close();
+				} catch (final Exception e) {
+				}
 
-			try {
-				outputStream.close();
-			} catch (final Exception e) {
+				try {
+					outputStream.close();
+				} catch (final Exception e) {
+				}
 			}
 
 			this.cleanup();
@@ -121,7 +162,8 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 			InetAddress inetAddress, int port) throws IOException {
 		final Socket hostSocket;
 		try {
-			hostSocket = this.openConnection(inetAddress, port);
+			hostSocket = this.connect(inetAddress.getHostAddress(),
+					new InetAddress[] { inetAddress }, port);
 		} catch (final IOException e) {
 			this.logger.info("Failed to connected to {}:{}, result 0x{}",
 					inetAddress.getHostAddress(), port, Integer.toHexString(
@@ -132,6 +174,7 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 			return;
 		}
 
+		this.forwardPipelined(hostSocket);
 		writeResponse(outputStream, SocksImplementation4.REQUEST_GRANTED, port,
 				hostSocket.getInetAddress());
 
@@ -148,8 +191,10 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 					serverSocket.getLocalPort(),
 					serverSocket.getInetAddress());
 
-			try (Socket remoteSocket = serverSocket.accept()) {
+			final Socket remoteSocket = serverSocket.accept();
+			try {
 				if (remoteSocket.getInetAddress().equals(inetAddress)) {
+					this.forwardPipelined(remoteSocket);
 					writeResponse(outputStream,
 							SocksImplementation4.REQUEST_GRANTED,
 							remoteSocket.getPort(),
@@ -161,6 +206,14 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 							remoteSocket.getPort(),
 							remoteSocket.getInetAddress());
 				}
+			} finally {
+				// A relayed tunnel owns the socket once the handler detached
+				if (!this.isDetached()) {
+					try {
+						remoteSocket.close();
+					} catch (final IOException e) {
+					}
+				}
 			}
 		} catch (IOException e) {
 			writeResponse(outputStream, SocksImplementation4.REQUEST_REJECTED,
@@ -172,64 +225,93 @@ public class SocksImplementation4 extends AbstractSocksImplementation {
 		return this.getClientSocket().getOutputStream();
 	}
 
-	protected DataInputStream getInputStream() throws IOException {
-		return new DataInputStream(this.getClientSocket().getInputStream());
-	}
-
-	protected InetAddress getAddress(final DataInputStream inputStream)
-			throws IOException, UnknownHostException {
-		final byte[] rawIp = new byte[4];
-		inputStream.readFully(rawIp);
+	/**
+	 * Read until the request is complete. Everything the client has sent is
+	 * taken at once, so a request normally needs a single read; the data
+	 * which follows it is kept and forwarded by
+	 * {@link #forwardPipelined(Socket)}. The buffer is reused by the next
+	 * client of the handler thread.
+	 */
+	private void read(final InputStream inputStream,
+			final RequestParser parser) throws IOException, ProtocolException,
+			IllegalCommandException {
+		if (this.buffer == null) {
+			this.buffer = SocksImplementation4.BUFFERS.get();
+			this.buffer.clear();
+			this.buffer.flip();
+		}
 
-		final byte[] buf = new byte[1];
+		while (!parser.parse(this.buffer)) {
+			final int read = inputStream.read(this.buffer.array(), 0,
+					this.buffer.capacity());
 
-		int length;
-		while ((length = inputStream.read(buf)) >= 0) {
-			if ((length > 0) && (buf[0] == 0)) {
-				break;
+			if (read < 0) {
+				throw new EOFException();
 			}
+			this.buffer.position(0);
+			this.buffer.limit(read);
 		}
+	}
 
-		// SOCKS4a extension
-		if ((rawIp[0] == 0) && (rawIp[1] == 0) && (rawIp[2] == 0)
-				&& (rawIp[3] != 0)) {
-			final StringBuilder builder = new StringBuilder();
-			while ((length = inputStream.read(buf)) >= 0) {
-				if ((length > 0) && (buf[0] == 0)) {
-					break;
-				}
-				builder.append((char) buf[0]);
-			}
-			return resolveHostname(builder);
-		} else {
-			return InetAddress.getByAddress(rawIp);
+	/**
+	 * Forward the data which the client sent after the request, before it
+	 * got the reply
+	 * 
+	 * @param socket
+	 *            the connected destination
+	 * @throws IOException
+	 *             if the data could not be written
+	 */
+	private void forwardPipelined(final Socket socket) throws IOException {
+		if ((this.buffer != null) && this.buffer.hasRemaining()) {
+			final int length = this.buffer.remaining();
+			final OutputStream outputStream = socket.getOutputStream();
+			outputStream.write(this.buffer.array(), this.buffer.position(),
+					length);
+			outputStream.flush();
+			this.buffer.position(this.buffer.limit());
+
+			this.logger.debug("Forwarded {} bytes sent before the reply",
+					length);
 		}
 	}
 
-	protected InetAddress resolveHostname(final StringBuilder builder)
+	/**
+	 * Resolve the host name of a SOCKS4a request
+	 * 
+	 * @param hostname
+	 *            the host name
+	 * @return the first address of the host
+	 * @throws UnknownHostException
+	 *             if the host could not be resolved
+	 * @since 3.0
+	 */
+	protected InetAddress resolveHostname(final String hostname)
 			throws UnknownHostException {
-		return InetAddress.getByName(builder.toString());
-	}
-
-	protected int getPort(final DataInputStream inputStream)
-			throws IOException {
-		return inputStream.readShort() & 0xFFFF;
+		return this.resolve(hostname)[0];
 	}
 
 	protected void writeResponse(final OutputStream outputStream,
 			final byte status, final int port, final InetAddress inetAddress)
 			throws IOException {
-		final ByteBuffer response = ByteBuffer.allocate(8);
-
-		response.put(SocksImplementation4.NULL);
-		response.put(status);
-		response.putShort((short) port);
-
-		if (inetAddress != null) {
-			response.put(inetAddress.getAddress());
+		final byte[] reply = this.reply;
+
+		reply[0] = SocksImplementation4.NULL;
+		reply[1] = status;
+		reply[2] = (byte) (port >>> 8);
+		reply[3] = (byte) port;
+
+		// Addresses which are not IPv4 cannot be expressed in SOCKS4 and are
+		// left as 0.0.0.0
+		final byte[] address = (inetAddress != null)
+				? this.getReplyAddress(inetAddress) : null;
+		if ((address != null) && (address.length == 4)) {
+			System.arraycopy(address, 0, reply, 4, 4);
+		} else {
+			Arrays.fill(reply, 4, 8, (byte) 0);
 		}
 
-		outputStream.write(response.array());
+		outputStream.write(reply);
 		outputStream.flush();
 	}
 }
@@ -0,0 +1,164 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks5;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A SOCKS5 greeting and request as read by a {@link RequestParser}. The
+ * object is reused for every request parsed by the parser, so the address is
+ * kept in fixed buffers and only converted on demand.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class Request {
+
+	private final byte[] ipV4 = new byte[4];
+
+	private final byte[] ipV6 = new byte[16];
+
+	private final byte[] domain = new byte[255];
+
+	private boolean noAuthentication;
+
+	private Command command;
+
+	private AddressType addressType;
+
+	private int addressLength;
+
+	private int port;
+
+	/**
+	 * Clear the request before it is parsed again
+	 */
+	void reset() {
+		this.noAuthentication = false;
+		this.command = null;
+		this.addressType = null;
+		this.addressLength = 0;
+		this.port = 0;
+	}
+
+	void setNoAuthentication() {
+		this.noAuthentication = true;
+	}
+
+	void setCommand(final Command command) {
+		this.command = command;
+	}
+
+	void setAddressType(final AddressType addressType,
+			final int addressLength) {
+		this.addressType = addressType;
+		this.addressLength = addressLength;
+	}
+
+	void setPort(final int port) {
+		this.port = port;
+	}
+
+	/**
+	 * @return the buffer of the address type, holding exactly the address if
+	 *         it is an IP address
+	 */
+	byte[] getAddressBuffer() {
+		if (this.addressType == AddressType.IP_V4) {
+			return this.ipV4;
+		} else if (this.addressType == AddressType.IP_V6) {
+			return this.ipV6;
+		}
+		return this.domain;
+	}
+
+	/**
+	 * @return true if the client offered the method without authentication
+	 */
+	public boolean isNoAuthentication() {
+		return this.noAuthentication;
+	}
+
+	/**
+	 * @return the command
+	 */
+	public Command getCommand() {
+		return this.command;
+	}
+
+	/**
+	 * @return the address type
+	 */
+	public AddressType getAddressType() {
+		return this.addressType;
+	}
+
+	/**
+	 * @return the number of bytes of the address or domain name
+	 */
+	public int getAddressLength() {
+		return this.addressLength;
+	}
+
+	/**
+	 * Get a byte of the address or domain name
+	 * 
+	 * @param index
+	 *            the index of the byte
+	 * @return the byte
+	 */
+	public byte getAddressByte(final int index) {
+		if ((index < 0) || (index >= this.addressLength)) {
+			throw new IndexOutOfBoundsException(Integer.toString(index));
+		}
+		return this.getAddressBuffer()[index];
+	}
+
+	/**
+	 * @return the port
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * Get the requested IP address. The address is not resolved.
+	 * 
+	 * @return the address, or null if a domain name was requested
+	 * @throws UnknownHostException
+	 *             never, the address has the length of its type
+	 */
+	public InetAddress getInetAddress() throws UnknownHostException {
+		if (this.addressType == AddressType.DOMAIN) {
+			return null;
+		}
+		return InetAddress.getByAddress(this.getAddressBuffer());
+	}
+
+	/**
+	 * @return the requested domain name, or null if an IP address was
+	 *         requested
+	 */
+	public String getHostname() {
+		if (this.addressType != AddressType.DOMAIN) {
+			return null;
+		}
+		return new String(this.domain, 0, this.addressLength,
+				StandardCharsets.US_ASCII);
+	}
+}
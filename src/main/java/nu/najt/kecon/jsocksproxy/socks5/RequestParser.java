@@ -0,0 +1,271 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks5;
+
+import java.nio.ByteBuffer;
+
+import nu.najt.kecon.jsocksproxy.IllegalAddressTypeException;
+import nu.najt.kecon.jsocksproxy.IllegalCommandException;
+import nu.najt.kecon.jsocksproxy.ProtocolException;
+
+/**
+ * A resumable parser of the SOCKS5 greeting and request. The parser takes
+ * whatever bytes are available in a buffer and remembers where it stopped,
+ * so that it can be fed from blocking streams as well as from non-blocking
+ * channels. It allocates nothing while parsing; the result is kept in a
+ * {@link Request} which is reused after {@link #reset()}.<br>
+ * <br>
+ * The parser starts after the version byte of the greeting, which has been
+ * read to choose the SOCKS implementation.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class RequestParser {
+
+	/**
+	 * The outcome of a call to {@link RequestParser#parse(ByteBuffer)}
+	 */
+	public enum Result {
+		/** More bytes are needed */
+		INCOMPLETE,
+
+		/** The greeting has been read and must be replied to */
+		GREETING,
+
+		/** The request has been read */
+		REQUEST
+	}
+
+	private static final byte PROTOCOL_VERSION = 0x05;
+
+	private static final Command[] COMMANDS = Command.values();
+
+	private static final int METHOD_COUNT = 0;
+
+	private static final int METHODS = 1;
+
+	private static final int VERSION = 2;
+
+	private static final int COMMAND = 3;
+
+	private static final int RESERVED = 4;
+
+	private static final int ADDRESS_TYPE = 5;
+
+	private static final int DOMAIN_LENGTH = 6;
+
+	private static final int ADDRESS = 7;
+
+	private static final int PORT = 8;
+
+	private static final int DONE = 9;
+
+	private final Request request = new Request();
+
+	private int state = RequestParser.METHOD_COUNT;
+
+	private int remaining;
+
+	/**
+	 * Prepare the parser for another client
+	 */
+	public void reset() {
+		this.state = RequestParser.METHOD_COUNT;
+		this.remaining = 0;
+		this.request.reset();
+	}
+
+	/**
+	 * Parse the bytes available in a buffer. Only the bytes of the greeting
+	 * or request are consumed, so that data which follows them is left in the
+	 * buffer. Parsing stops after the greeting, and is continued with the
+	 * request by the next call.
+	 * 
+	 * @param buffer
+	 *            the buffer, in read mode
+	 * @return whether the greeting or request is complete
+	 * @throws ProtocolException
+	 *             if the request has the wrong version
+	 * @throws IllegalCommandException
+	 *             if the command is unknown
+	 * @throws IllegalAddressTypeException
+	 *             if the address type is unknown
+	 * @throws IllegalStateException
+	 *             if the request has already been read
+	 */
+	public Result parse(final ByteBuffer buffer) throws ProtocolException,
+			IllegalCommandException, IllegalAddressTypeException {
+		while (buffer.hasRemaining()) {
+			switch (this.state) {
+			case METHOD_COUNT:
+				this.remaining = buffer.get() & 0xff;
+				this.state = RequestParser.METHODS;
+
+				if (this.remaining == 0) {
+					this.state = RequestParser.VERSION;
+					return Result.GREETING;
+				}
+				break;
+
+			case METHODS:
+				if (buffer.get() == 0x00) {
+					this.request.setNoAuthentication();
+				}
+
+				if (--this.remaining == 0) {
+					this.state = RequestParser.VERSION;
+					return Result.GREETING;
+				}
+				break;
+
+			case VERSION:
+				final byte version = buffer.get();
+				if (version != RequestParser.PROTOCOL_VERSION) {
+					throw new ProtocolException("Unsupported version: 0x"
+							+ Integer.toHexString(version));
+				}
+				this.state = RequestParser.COMMAND;
+				break;
+
+			case COMMAND:
+				this.request.setCommand(RequestParser.command(buffer.get()));
+				this.state = RequestParser.RESERVED;
+				break;
+
+			case RESERVED:
+				buffer.get();
+				this.state = RequestParser.ADDRESS_TYPE;
+				break;
+
+			case ADDRESS_TYPE:
+				final byte addressType = buffer.get();
+				if (addressType == AddressType.IP_V4.getValue()) {
+					this.startAddress(AddressType.IP_V4, 4);
+				} else if (addressType == AddressType.IP_V6.getValue()) {
+					this.startAddress(AddressType.IP_V6, 16);
+				} else if (addressType == AddressType.DOMAIN.getValue()) {
+					this.state = RequestParser.DOMAIN_LENGTH;
+				} else {
+					throw new IllegalAddressTypeException(
+							"Unknown address type: 0x"
+									+ Integer.toHexString(addressType));
+				}
+				break;
+
+			case DOMAIN_LENGTH:
+				this.startAddress(AddressType.DOMAIN, buffer.get() & 0xff);
+				break;
+
+			case ADDRESS:
+				final int length = Math.min(this.remaining,
+						buffer.remaining());
+				buffer.get(this.request.getAddressBuffer(),
+						this.request.getAddressLength() - this.remaining,
+						length);
+				this.remaining -= length;
+
+				if (this.remaining == 0) {
+					this.startPort();
+				}
+				break;
+
+			case PORT:
+				this.request.setPort(
+						(this.request.getPort() << 8) | (buffer.get() & 0xff));
+
+				if (--this.remaining == 0) {
+					this.state = RequestParser.DONE;
+					return Result.REQUEST;
+				}
+				break;
+
+			default:
+				throw new IllegalStateException("Request already read");
+			}
+		}
+		return Result.INCOMPLETE;
+	}
+
+	/**
+	 * Get the number of bytes that may be read without reading past the
+	 * greeting or request, so that a blocking reader can read as much as
+	 * possible at once without consuming data which follows the request
+	 * 
+	 * @return the number of bytes, at least one until the request is read
+	 */
+	public int getNeeded() {
+		switch (this.state) {
+		case METHOD_COUNT:
+			return 1;
+		case METHODS:
+			return this.remaining;
+		case VERSION:
+			// The shortest request has an empty domain name
+			return 5;
+		case COMMAND:
+			return 4;
+		case RESERVED:
+			return 3;
+		case ADDRESS_TYPE:
+			return 2;
+		case DOMAIN_LENGTH:
+			return 1;
+		case ADDRESS:
+			return this.remaining + 2;
+		case PORT:
+			return this.remaining;
+		default:
+			return 0;
+		}
+	}
+
+	/**
+	 * @return the greeting and request read so far
+	 */
+	public Request getRequest() {
+		return this.request;
+	}
+
+	private void startAddress(final AddressType addressType,
+			final int length) {
+		this.request.setAddressType(addressType, length);
+		this.remaining = length;
+
+		if (length == 0) {
+			this.startPort();
+		} else {
+			this.state = RequestParser.ADDRESS;
+		}
+	}
+
+	private void startPort() {
+		this.request.setPort(0);
+		this.remaining = 2;
+		this.state = RequestParser.PORT;
+	}
+
+	private static Command command(final byte value)
+			throws IllegalCommandException {
+		for (final Command command : RequestParser.COMMANDS) {
+			if (command.getValue() == value) {
+				return command;
+			}
+		}
+		throw new IllegalCommandException(
+				"Unknown command command: 0x" + Integer.toHexString(value));
+	}
+}
@@ -15,16 +15,19 @@
  */
 package nu.najt.kecon.jsocksproxy.socks5;
 
-import java.io.BufferedOutputStream;
 import java.io.Closeable;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.EOFException;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet4Address;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
 import java.util.concurrent.Executor;
 
 import org.slf4j.Logger;
@@ -35,13 +38,23 @@ import nu.najt.kecon.jsocksproxy.ConfigurationFacade;
 import nu.najt.kecon.jsocksproxy.IllegalAddressTypeException;
 import nu.najt.kecon.jsocksproxy.IllegalCommandException;
 import nu.najt.kecon.jsocksproxy.ProtocolException;
+import nu.najt.kecon.jsocksproxy.udp.UdpAssociation;
+import nu.najt.kecon.jsocksproxy.udp.UdpRelay;
 
 /**
  * This is the SOCKS5 implementation.<br>
  * <br>
  * More about the SOCKS protocol
  * <a href="http://en.wikipedia.org/wiki/SOCKS">http
- * ://en.wikipedia.org/wiki/SOCKS</a>
+ * ://en.wikipedia.org/wiki/SOCKS</a><br>
+ * <br>
+ * The handshake is read with a {@link RequestParser}, taking as many bytes per
+ * read as the greeting or request needs. In optimistic mode everything the
+ * client has sent is taken at once, so that a client which sends its
+ * greeting, request and first data at once is served from a single read. Both
+ * replies are then sent in one write, and the first data is forwarded as soon
+ * as the destination has been connected. Each handler thread keeps one parser,
+ * and the destination is connected to straight from the parsed request.
  * 
  * @author Kenny Colliander Nordin
  * 
@@ -50,9 +63,44 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 
 	private static final byte PROTOCOL_VERSION = 0x05;
 
+	private static final int PIPELINE_BUFFER_SIZE = 4096;
+
+	private static final int REQUEST_BUFFER_SIZE = 512;
+
+	/** The method reply followed by a reply with the longest domain name */
+	private static final int MAX_REPLY_LENGTH = 2 + 4 + 1 + 255 + 2;
+
+	/** The version, status and reserved byte of the reply to each status */
+	private static final byte[][] REPLY_TEMPLATES = SocksImplementation5
+			.replyTemplates();
+
+	private static final byte[] REJECT_REPLY = {
+			SocksImplementation5.PROTOCOL_VERSION, (byte) 0xff };
+
+	private static final byte[] ZERO_IP_V4 = new byte[4];
+
+	private static final byte[] ZERO_IP_V6 = new byte[16];
+
 	private static final Logger LOG = LoggerFactory
 			.getLogger(SocksImplementation5.class.getPackage().getName());
 
+	/** The parser of each handler thread, reset for every client */
+	private static final ThreadLocal<RequestParser> PARSERS = new ThreadLocal<RequestParser>() {
+		@Override
+		protected RequestParser initialValue() {
+			return new RequestParser();
+		}
+	};
+
+	private final boolean optimistic;
+
+	private ByteBuffer buffer;
+
+	private final byte[] reply = new byte[SocksImplementation5.MAX_REPLY_LENGTH];
+
+	/** The length of the method reply held back for the request reply */
+	private int pendingLength = 0;
+
 	/**
 	 * Constructor
 	 * 
@@ -67,33 +115,42 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 			final Socket clientSocket, final Executor executor) {
 		super(configurationFacade, clientSocket, SocksImplementation5.LOG,
 				executor);
+		this.optimistic = (configurationFacade != null)
+				&& configurationFacade.isOptimisticSocks5();
+	}
+
+	@Override
+	public void reject() {
+		this.reject(SocksImplementation5.REJECT_REPLY);
 	}
 
 	@Override
 	public void run() {
-		DataInputStream inputStream = null;
+		InputStream inputStream = null;
 		DataOutputStream outputStream = null;
 		Socket clientSocket = null;
-		EndPoint endPoint = null;
+		Request request = null;
 
 		try {
 			this.setup();
 
 			// Handshake
-			inputStream = getInputStream();
+			inputStream = this.getClientInputStream();
 			outputStream = getOutputStream();
 
-			this.authenticate(inputStream, outputStream);
-			this.readVersion(inputStream);
-			final Command command = Command.valueOf(inputStream);
-			inputStream.readByte(); // reserved byte
-			endPoint = this.parseRemoteAddressPort(inputStream);
-			clientSocket = handleCommand(outputStream, command, endPoint);
+			final RequestParser parser = SocksImplementation5.PARSERS.get();
+			parser.reset();
+			request = parser.getRequest();
+			this.read(inputStream, parser);
+			this.authenticate(request, outputStream);
+			this.read(inputStream, parser);
+			this.handshakeCompleted();
+			clientSocket = handleCommand(outputStream, request);
 		} catch (final UnknownHostException e) {
 			this.logger.warn("Failed to resolve host", e);
 			try {
 				this.writeResponse(outputStream, Status.HOST_UNREACHABLE,
-						getAddressType(endPoint), null, null, 0);
+						getAddressType(request), null, null, 0);
 			} catch (final IOException ioe) {
 			}
 		} catch (final RuntimeException e) {
@@ -102,13 +159,13 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 			try {
 				this.writeResponse(outputStream,
 						Status.GENERAL_SOCKS_SERVER_FAILURE,
-						getAddressType(endPoint), null, null, 0);
+						getAddressType(request), null, null, 0);
 			} catch (final IOException ioe) {
 			}
 		} catch (final ProtocolException | IllegalCommandException e) {
 			try {
 				this.writeResponse(outputStream, Status.COMMAND_NOT_SUPPORTED,
-						getAddressType(endPoint), null, null, 0);
+						getAddressType(request), null, null, 0);
 			} catch (final IOException ioe) {
 			}
 		} catch (final IOException e) {
@@ -116,148 +173,157 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 			try {
 				this.writeResponse(outputStream,
 						Status.ADDRESS_TYPE_NOT_SUPPORTED,
-						getAddressType(endPoint), null, null, 0);
+						getAddressType(request), null, null, 0);
 			} catch (final IOException ioe) {
 			}
 		} finally {
-			safeClose(inputStream);
-			safeClose(outputStream);
-			safeClose(this.getClientSocket());
-			safeClose(clientSocket);
+			if (!this.isDetached()) {
+				safeClose(inputStream);
+				safeClose(outputStream);
+				safeClose(this.getClientSocket());
+				safeClose(clientSocket);
+			}
 
 			this.cleanup();
 		}
 	}
 
 	private DataOutputStream getOutputStream() throws IOException {
-		return new DataOutputStream(
-				new BufferedOutputStream(this.getClientOutputStream()));
+		return new DataOutputStream(this.getClientOutputStream());
 	}
 
-	private DataInputStream getInputStream() throws IOException {
-		return new DataInputStream(this.getClientInputStream());
-	}
-
-	private void readVersion(final DataInputStream inputStream)
-			throws IOException, ProtocolException {
-		final byte socksVersion = inputStream.readByte();
-
-		if (socksVersion != SocksImplementation5.PROTOCOL_VERSION) {
-			throw new ProtocolException("Unsupported version: 0x"
-					+ Integer.toHexString(socksVersion));
+	/**
+	 * Read until the greeting or the request is complete. In optimistic mode
+	 * everything the client has sent is taken at once, otherwise no more than
+	 * the rest of the greeting or request, so that the data which follows is
+	 * left in the socket.
+	 */
+	private RequestParser.Result read(final InputStream inputStream,
+			final RequestParser parser) throws IOException, ProtocolException,
+			IllegalCommandException, IllegalAddressTypeException {
+		if (this.buffer == null) {
+			this.buffer = ByteBuffer.allocate(this.optimistic
+					? SocksImplementation5.PIPELINE_BUFFER_SIZE
+					: SocksImplementation5.REQUEST_BUFFER_SIZE);
+			this.buffer.flip();
 		}
-	}
 
-	protected void authenticate(final DataInputStream inputStream,
-			final DataOutputStream outputStream) throws IOException {
-		final int numberOfAuthMethods = inputStream.readByte() & 0xFF;
+		while (true) {
+			final RequestParser.Result result = parser.parse(this.buffer);
+			if (result != RequestParser.Result.INCOMPLETE) {
+				return result;
+			}
 
-		boolean supported = false;
-		for (int i = 0; i < numberOfAuthMethods; i++) {
-			final byte authMethod = inputStream.readByte();
+			this.buffer.clear();
+			final int length = this.optimistic ? this.buffer.capacity()
+					: Math.min(parser.getNeeded(), this.buffer.capacity());
+			final int read = inputStream.read(this.buffer.array(), 0, length);
 
-			if (authMethod == 0x00) {
-				supported = true;
+			if (read < 0) {
+				throw new EOFException();
 			}
+			this.buffer.limit(read);
 		}
+	}
 
-		final byte handshakeResponse[] = new byte[2];
-		handshakeResponse[0] = SocksImplementation5.PROTOCOL_VERSION;
+	/**
+	 * @return true if the client has sent more than has been read, so that
+	 *         the handshake reply can wait for the request reply
+	 */
+	private boolean isPipelined() {
+		return (this.buffer != null) && this.buffer.hasRemaining();
+	}
 
-		if (supported) {
-			handshakeResponse[1] = 0x00;
-			outputStream.write(handshakeResponse);
-			outputStream.flush();
-		} else {
-			handshakeResponse[1] = (byte) 0xff;
-			outputStream.write(handshakeResponse);
+	/**
+	 * Forward the data which the client sent after the request, before it
+	 * got the reply
+	 * 
+	 * @param socket
+	 *            the connected destination
+	 * @throws IOException
+	 *             if the data could not be written
+	 */
+	private void forwardPipelined(final Socket socket) throws IOException {
+		if (this.isPipelined()) {
+			final int length = this.buffer.remaining();
+			final OutputStream outputStream = socket.getOutputStream();
+			outputStream.write(this.buffer.array(), this.buffer.position(),
+					length);
 			outputStream.flush();
-			this.logger.info("No supported authentication methods specified");
-			throw new EOFException();
+			this.buffer.position(this.buffer.limit());
+
+			this.logger.debug("Forwarded {} bytes sent before the reply",
+					length);
 		}
 	}
 
-	public EndPoint parseRemoteAddressPort(DataInputStream inputStream)
-			throws IllegalAddressTypeException, IOException {
-		final AddressType addressType = AddressType
-				.valueOf(inputStream.readByte());
-		final byte[] hostname;
-		final String host;
-		final int port;
-		final InetAddress remoteInetAddress;
-
-		if (addressType == AddressType.IP_V4) {
-
-			final byte[] address = new byte[4];
-			inputStream.readFully(address);
-			remoteInetAddress = InetAddress.getByAddress(address);
-			hostname = null;
-
-		} else if (addressType == AddressType.IP_V6) {
-
-			final byte[] address = new byte[16];
-			inputStream.readFully(address);
-			remoteInetAddress = InetAddress.getByAddress(address);
-			hostname = null;
-
-		} else if (addressType == AddressType.DOMAIN) {
-
-			final int hostLength = inputStream.readByte() & 0xFF;
-			final byte[] hostBuf = new byte[hostLength];
+	protected void authenticate(final Request request,
+			final DataOutputStream outputStream) throws IOException {
+		this.reply[0] = SocksImplementation5.PROTOCOL_VERSION;
 
-			inputStream.readFully(hostBuf);
-			remoteInetAddress = InetAddress
-					.getByName(new String(hostBuf, "US-ASCII"));
-			hostname = hostBuf;
+		if (request.isNoAuthentication()) {
+			this.reply[1] = 0x00;
 
+			// Sent together with the request reply when already requested
+			if (this.isPipelined()) {
+				this.pendingLength = 2;
+			} else {
+				outputStream.write(this.reply, 0, 2);
+				outputStream.flush();
+			}
 		} else {
-			// Should be impossible
-			throw new IllegalAddressTypeException(
-					"Unsupported address type: " + addressType);
+			this.reply[1] = (byte) 0xff;
+			outputStream.write(this.reply, 0, 2);
+			outputStream.flush();
+			this.logger.info("No supported authentication methods specified");
+			throw new EOFException();
 		}
-
-		host = remoteInetAddress.getHostAddress();
-		port = inputStream.readShort() & 0xFFFF;
-		return new EndPoint(addressType, remoteInetAddress, hostname, host,
-				port);
 	}
 
 	protected Socket handleConnect(final DataOutputStream outputStream,
-			final EndPoint endPoint) throws IOException {
+			final Request request) throws IOException {
+		final InetAddress inetAddress = request.getInetAddress();
+		final String host = (inetAddress != null) ? inetAddress.getHostAddress()
+				: request.getHostname();
+		final int port = request.getPort();
 		Socket clientSocket = null;
 		try {
-			clientSocket = this.openConnection(endPoint.getRemoteInetAddress(),
-					endPoint.getPort());
+			final InetAddress[] inetAddresses = (inetAddress != null)
+					? new InetAddress[] { inetAddress } : this.resolve(host);
 
-			this.writeResponse(outputStream, Status.SUCCEEDED,
-					endPoint.getAddressType(), clientSocket.getLocalAddress(),
-					endPoint.getHostname(), clientSocket.getLocalPort());
+			clientSocket = this.connect(host, inetAddresses, port);
+			this.forwardPipelined(clientSocket);
+
+			this.writeResponse(outputStream, Status.SUCCEEDED, request,
+					clientSocket.getLocalAddress(), clientSocket.getLocalPort());
 
 			this.tunnel(this.getClientSocket(), clientSocket);
 
-			this.logger.debug("Disconnected");
+			if (!this.isDetached()) {
+				this.logger.debug("Disconnected");
+			}
 		} catch (final IOException e) {
-			this.logger.info("Failed to connect to: {}:{}", endPoint.getHost(),
-					endPoint.getPort());
+			this.logger.info("Failed to connect to: {}:{}", host, port);
 
-			this.writeResponse(outputStream, Status.HOST_UNREACHABLE,
-					endPoint.getAddressType(), endPoint.getRemoteInetAddress(),
-					endPoint.getHostname(), endPoint.getPort());
+			this.writeResponse(outputStream, Status.HOST_UNREACHABLE, request,
+					inetAddress, port);
 		}
 		return clientSocket;
 	}
 
 	protected Socket handleBind(final DataOutputStream outputStream,
-			final EndPoint endPoint) throws IOException {
+			final Request request) throws IOException {
 		final Socket clientSocket;
-		final ServerSocket serverSocket = this.bindConnection(
-				endPoint.getRemoteInetAddress(), endPoint.getPort());
+		final InetAddress requestedAddress = request.getInetAddress();
+		final InetAddress inetAddress = (requestedAddress != null)
+				? requestedAddress : this.resolve(request.getHostname())[0];
+		final ServerSocket serverSocket = this.bindConnection(inetAddress,
+				request.getPort());
 
 		try {
 
-			this.writeResponse(outputStream, Status.SUCCEEDED,
-					endPoint.getAddressType(), serverSocket.getInetAddress(),
-					endPoint.getHostname(), serverSocket.getLocalPort());
+			this.writeResponse(outputStream, Status.SUCCEEDED, request,
+					serverSocket.getInetAddress(), serverSocket.getLocalPort());
 
 			clientSocket = serverSocket.accept();
 			this.logger.info("Accepted");
@@ -265,27 +331,81 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 			serverSocket.close();
 		}
 
+		this.forwardPipelined(clientSocket);
+
 		this.writeResponse(outputStream, Status.SUCCEEDED,
-				endPoint.getAddressType(), clientSocket.getInetAddress(), null,
+				request.getAddressType(), clientSocket.getInetAddress(), null,
 				clientSocket.getPort());
 
 		this.tunnel(this.getClientSocket(), clientSocket);
 		return clientSocket;
 	}
 
-	private AddressType getAddressType(final EndPoint endPoint) {
-		return endPoint == null ? AddressType.IP_V4
-				: endPoint.getAddressType();
+	/**
+	 * Relay the datagrams of the client until the client connection is
+	 * closed. The address in the request is the address the client will send
+	 * from, which is only trusted for its port; datagrams are only accepted
+	 * from the address of the client connection.
+	 * 
+	 * @param outputStream
+	 *            the output stream
+	 * @param request
+	 *            the request, with the address the client will send from
+	 * @throws IOException
+	 *             if an I/O exception occurs
+	 * @throws IllegalCommandException
+	 *             if UDP ASSOCIATE is not allowed
+	 */
+	protected void handleUdpAssociate(final DataOutputStream outputStream,
+			final Request request)
+			throws IOException, IllegalCommandException {
+		final ConfigurationFacade configurationFacade = this
+				.getConfigurationFacade();
+		final UdpRelay udpRelay = configurationFacade.getUdpRelay();
+
+		if (udpRelay == null) {
+			throw new IllegalCommandException("UDP ASSOCIATE is not allowed");
+		}
+
+		final Socket socket = this.getClientSocket();
+		final UdpAssociation association = udpRelay.associate(
+				socket.getLocalAddress(), socket.getInetAddress(),
+				request.getPort(), configurationFacade.getHostResolver(),
+				this.logger);
+
+		try {
+			final InetSocketAddress boundAddress = association
+					.getBoundAddress();
+
+			this.writeResponse(outputStream, Status.SUCCEEDED,
+					(boundAddress.getAddress() instanceof Inet4Address)
+							? AddressType.IP_V4 : AddressType.IP_V6,
+					boundAddress.getAddress(), null, boundAddress.getPort());
+		} catch (final IOException e) {
+			association.close();
+			throw e;
+		}
+
+		this.associate(association);
+	}
+
+	private AddressType getAddressType(final Request request) {
+		return ((request == null) || (request.getAddressType() == null))
+				? AddressType.IP_V4 : request.getAddressType();
 	}
 
 	private Socket handleCommand(final DataOutputStream outputStream,
-			final Command command, EndPoint endPoint)
+			final Request request)
 			throws IOException, IllegalCommandException {
+		final Command command = request.getCommand();
 
 		if (command == Command.CONNECT) {
-			return handleConnect(outputStream, endPoint);
+			return handleConnect(outputStream, request);
 		} else if (command == Command.BIND) {
-			return handleBind(outputStream, endPoint);
+			return handleBind(outputStream, request);
+		} else if (command == Command.UDP_ASSOCIATE) {
+			this.handleUdpAssociate(outputStream, request);
+			return null;
 		} else {
 			throw new IllegalCommandException("Unknown command: " + command);
 		}
@@ -322,19 +442,38 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 			final Status status, final AddressType addressType,
 			final InetAddress boundAddress, final byte[] hostname,
 			final int port) throws IOException {
+		this.writeResponse(outputStream, status, addressType, boundAddress,
+				hostname, (hostname == null) ? 0 : hostname.length, port);
+	}
 
-		byte[] safeAddress = null;
-		if (boundAddress == null) {
-			if (addressType == AddressType.IP_V6) {
-				safeAddress = new byte[] { 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0,
-						0, 0, 0, 0 };
-			} else {
-				safeAddress = new byte[] { 0, 0, 0, 0 };
-			}
-		} else if (hostname == null) {
-			safeAddress = boundAddress.getAddress();
+	/**
+	 * Write response back to client, with the domain name of the request if
+	 * one was requested
+	 */
+	private void writeResponse(final DataOutputStream outputStream,
+			final Status status, final Request request,
+			final InetAddress boundAddress, final int port)
+			throws IOException {
+		if (request.getAddressType() == AddressType.DOMAIN) {
+			this.writeResponse(outputStream, status, AddressType.DOMAIN,
+					boundAddress, request.getAddressBuffer(),
+					request.getAddressLength(), port);
 		} else {
-			safeAddress = hostname;
+			this.writeResponse(outputStream, status, request.getAddressType(),
+					boundAddress, null, 0, port);
+		}
+	}
+
+	private void writeResponse(final DataOutputStream outputStream,
+			final Status status, final AddressType addressType,
+			final InetAddress boundAddress, final byte[] hostname,
+			final int hostnameLength, final int port) throws IOException {
+
+		if ((addressType != AddressType.IP_V4)
+				&& (addressType != AddressType.IP_V6)
+				&& (addressType != AddressType.DOMAIN)) {
+			throw new IllegalStateException(
+					"Unknown address type: " + addressType);
 		}
 
 		if (status != Status.SUCCEEDED) {
@@ -342,32 +481,57 @@ public class SocksImplementation5 extends AbstractSocksImplementation {
 					Integer.toHexString(status.getValue()), status);
 		}
 
-		outputStream.write(SocksImplementation5.PROTOCOL_VERSION);
-		outputStream.write(status.getValue());
-		outputStream.write(0x00); // reserved
+		final byte[] reply = this.reply;
+		int offset = this.pendingLength;
 
-		if (addressType == AddressType.IP_V4) {
-			outputStream.write(AddressType.IP_V4.getValue());
-			outputStream.write(safeAddress);
+		System.arraycopy(SocksImplementation5.REPLY_TEMPLATES[status.ordinal()],
+				0, reply, offset, 3);
+		offset += 3;
+		reply[offset++] = addressType.getValue();
 
-		} else if (addressType == AddressType.IP_V6) {
-			outputStream.write(AddressType.IP_V6.getValue());
-			outputStream.write(safeAddress);
+		final int lengthOffset = offset;
+		if (addressType == AddressType.DOMAIN) {
+			offset++;
+		}
 
-		} else if (addressType == AddressType.DOMAIN) {
-			outputStream.write(AddressType.DOMAIN.getValue());
-			if (safeAddress == null) {
-				outputStream.write(0x00);
-			} else {
-				outputStream.write(safeAddress.length);
-				outputStream.write(safeAddress);
-			}
+		if (boundAddress == null) {
+			final byte[] zeroAddress = (addressType == AddressType.IP_V6)
+					? SocksImplementation5.ZERO_IP_V6
+					: SocksImplementation5.ZERO_IP_V4;
+			System.arraycopy(zeroAddress, 0, reply, offset,
+					zeroAddress.length);
+			offset += zeroAddress.length;
+		} else if (hostname == null) {
+			final byte[] address = this.getReplyAddress(boundAddress);
+			System.arraycopy(address, 0, reply, offset, address.length);
+			offset += address.length;
 		} else {
-			throw new IllegalStateException(
-					"Unknown address type: " + addressType);
+			System.arraycopy(hostname, 0, reply, offset, hostnameLength);
+			offset += hostnameLength;
 		}
 
-		outputStream.writeShort(port & 0xFFFF);
+		if (addressType == AddressType.DOMAIN) {
+			reply[lengthOffset] = (byte) (offset - lengthOffset - 1);
+		}
+
+		reply[offset++] = (byte) (port >>> 8);
+		reply[offset++] = (byte) port;
+
+		this.pendingLength = 0;
+		outputStream.write(reply, 0, offset);
 		outputStream.flush();
 	}
+
+	private static byte[][] replyTemplates() {
+		final Status[] statuses = Status.values();
+		final byte[][] templates = new byte[statuses.length][];
+
+		for (final Status status : statuses) {
+			templates[status.ordinal()] = new byte[] {
+					SocksImplementation5.PROTOCOL_VERSION, status.getValue(),
+					0x00 // reserved
+			};
+		}
+		return templates;
+	}
 }
@@ -0,0 +1,222 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import nu.najt.kecon.jsocksproxy.socks5.AddressType;
+
+/**
+ * The header of a SOCKS5 UDP datagram, see RFC 1928 section 7. The object is
+ * reused for every datagram decoded by the relay, so the address is kept in a
+ * fixed buffer and only converted on demand. Headers are encoded directly in
+ * front of the data of a datagram, so that neither needs to be copied.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class DatagramHeader {
+
+	/** The length of the longest header without a domain name */
+	public static final int MAX_ENCODED_LENGTH = 4 + 16 + 2;
+
+	private static final byte IP_V4 = AddressType.IP_V4.getValue();
+
+	private static final byte IP_V6 = AddressType.IP_V6.getValue();
+
+	private static final byte DOMAIN = AddressType.DOMAIN.getValue();
+
+	private final byte[] address = new byte[255];
+
+	private int fragment;
+
+	private byte addressType;
+
+	private int addressLength;
+
+	private int port;
+
+	/**
+	 * Decode the header at the position of a buffer. When decoded, the
+	 * position is left at the data of the datagram.
+	 * 
+	 * @param buffer
+	 *            the datagram, in read mode
+	 * @return false if the header is truncated or has an unknown address type
+	 */
+	public boolean decode(final ByteBuffer buffer) {
+		if (buffer.remaining() < 4) {
+			return false;
+		}
+
+		final int start = buffer.position();
+		buffer.getShort(); // reserved
+		this.fragment = buffer.get() & 0xff;
+		this.addressType = buffer.get();
+
+		if (this.addressType == DatagramHeader.IP_V4) {
+			this.addressLength = 4;
+		} else if (this.addressType == DatagramHeader.IP_V6) {
+			this.addressLength = 16;
+		} else if ((this.addressType == DatagramHeader.DOMAIN)
+				&& buffer.hasRemaining()) {
+			this.addressLength = buffer.get() & 0xff;
+		} else {
+			buffer.position(start);
+			return false;
+		}
+
+		if ((this.addressLength == 0)
+				|| (buffer.remaining() < (this.addressLength + 2))) {
+			buffer.position(start);
+			return false;
+		}
+
+		buffer.get(this.address, 0, this.addressLength);
+		this.port = buffer.getShort() & 0xffff;
+		return true;
+	}
+
+	/**
+	 * Encode a header in front of the data of a datagram
+	 * 
+	 * @param buffer
+	 *            the buffer holding the data
+	 * @param dataOffset
+	 *            the index of the data, at least {@link #MAX_ENCODED_LENGTH}
+	 * @param source
+	 *            the address which sent the data
+	 * @return the index of the header
+	 */
+	public static int encode(final ByteBuffer buffer, final int dataOffset,
+			final InetSocketAddress source) {
+		final InetAddress inetAddress = source.getAddress();
+		final int port = source.getPort();
+		int index;
+
+		final byte[] address = inetAddress.getAddress();
+
+		if (inetAddress instanceof Inet4Address) {
+			index = dataOffset - 10;
+			buffer.put(index + 3, DatagramHeader.IP_V4);
+		} else {
+			index = dataOffset - 22;
+			buffer.put(index + 3, DatagramHeader.IP_V6);
+		}
+
+		for (int i = 0; i < address.length; i++) {
+			buffer.put(index + 4 + i, address[i]);
+		}
+
+		buffer.putShort(index, (short) 0); // reserved
+		buffer.put(index + 2, (byte) 0); // fragment
+		buffer.putShort(dataOffset - 2, (short) port);
+		return index;
+	}
+
+	/**
+	 * Copy the destination of another header
+	 * 
+	 * @param header
+	 *            the header
+	 */
+	void copyFrom(final DatagramHeader header) {
+		this.fragment = header.fragment;
+		this.addressType = header.addressType;
+		this.addressLength = header.addressLength;
+		this.port = header.port;
+		System.arraycopy(header.address, 0, this.address, 0,
+				header.addressLength);
+	}
+
+	/**
+	 * @param header
+	 *            another header
+	 * @return true if both headers have the same destination
+	 */
+	boolean isSameDestination(final DatagramHeader header) {
+		if ((this.addressType != header.addressType)
+				|| (this.addressLength != header.addressLength)
+				|| (this.port != header.port)) {
+			return false;
+		}
+
+		for (int i = 0; i < this.addressLength; i++) {
+			if (this.address[i] != header.address[i]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	/**
+	 * @return the fragment number, 0 for a datagram which is not fragmented
+	 */
+	public int getFragment() {
+		return this.fragment;
+	}
+
+	/**
+	 * @return true if the destination is a domain name
+	 */
+	public boolean isDomain() {
+		return this.addressType == DatagramHeader.DOMAIN;
+	}
+
+	/**
+	 * @return the destination port
+	 */
+	public int getPort() {
+		return this.port;
+	}
+
+	/**
+	 * @return the domain name of the destination
+	 */
+	public String getHostname() {
+		return new String(this.address, 0, this.addressLength,
+				StandardCharsets.ISO_8859_1);
+	}
+
+	/**
+	 * Get the destination of a header with an address
+	 * 
+	 * @return the destination
+	 * @throws IllegalStateException
+	 *             if the destination is a domain name
+	 */
+	public InetSocketAddress toSocketAddress() {
+		if (this.isDomain()) {
+			throw new IllegalStateException("Destination is a domain name");
+		}
+
+		final byte[] address = new byte[this.addressLength];
+		System.arraycopy(this.address, 0, address, 0, this.addressLength);
+
+		try {
+			return new InetSocketAddress(InetAddress.getByAddress(address),
+					this.port);
+		} catch (final UnknownHostException e) {
+			// Never thrown, the address always has a legal length
+			throw new IllegalStateException(e);
+		}
+	}
+}
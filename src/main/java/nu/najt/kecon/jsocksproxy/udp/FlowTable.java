@@ -0,0 +1,223 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+
+/**
+ * An open addressing hash table with linear probing, mapping the address a
+ * client sends from to its flow. The address and port are packed into a
+ * primitive long key, so that a lookup neither allocates nor follows more than
+ * a few array slots. IPv4 keys are exact; IPv6 keys are taken from the hash
+ * code of the address, so the caller must check that the flow found really
+ * belongs to the address. Removed entries are backward shifted rather than
+ * marked, so lookups never scan past deleted slots. The table is not thread
+ * safe.
+ * 
+ * @param <V>
+ *            the type of the flows
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class FlowTable<V> {
+
+	private static final int MIN_CAPACITY = 16;
+
+	private static final long IP_V6 = 1L << 48;
+
+	private long[] keys;
+
+	private Object[] values;
+
+	private int mask;
+
+	private int size = 0;
+
+	/**
+	 * Constructor
+	 */
+	public FlowTable() {
+		this.allocate(FlowTable.MIN_CAPACITY);
+	}
+
+	/**
+	 * Pack the address and port of a client into a key
+	 * 
+	 * @param socketAddress
+	 *            the address
+	 * @return the key
+	 */
+	public static long keyOf(final InetSocketAddress socketAddress) {
+		final InetAddress inetAddress = socketAddress.getAddress();
+		final long port = socketAddress.getPort();
+
+		// The hash code of an Inet4Address is defined to be the address
+		if (inetAddress instanceof Inet4Address) {
+			return ((inetAddress.hashCode() & 0xffffffffL) << 16) | port;
+		}
+		return FlowTable.IP_V6
+				| ((inetAddress.hashCode() & 0xffffffffL) << 16) | port;
+	}
+
+	/**
+	 * @param key
+	 *            the key
+	 * @return the flow of the key, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(final long key) {
+		for (int index = FlowTable.hash(key) & this.mask;; index = (index + 1)
+				& this.mask) {
+			final Object value = this.values[index];
+
+			if (value == null) {
+				return null;
+			}
+
+			if (this.keys[index] == key) {
+				return (V) value;
+			}
+		}
+	}
+
+	/**
+	 * Add or replace the flow of a key
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the flow, not null
+	 * @return the replaced flow, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(final long key, final V value) {
+		if (value == null) {
+			throw new NullPointerException("value");
+		}
+
+		if ((this.size + 1) > (this.values.length >> 1)) {
+			this.resize(this.values.length << 1);
+		}
+
+		int index = FlowTable.hash(key) & this.mask;
+		while (this.values[index] != null) {
+			if (this.keys[index] == key) {
+				final V replaced = (V) this.values[index];
+				this.values[index] = value;
+				return replaced;
+			}
+			index = (index + 1) & this.mask;
+		}
+
+		this.keys[index] = key;
+		this.values[index] = value;
+		this.size++;
+		return null;
+	}
+
+	/**
+	 * Remove the flow of a key, if it is the given flow
+	 * 
+	 * @param key
+	 *            the key
+	 * @param value
+	 *            the flow
+	 * @return true if the flow was removed
+	 */
+	public boolean remove(final long key, final V value) {
+		int index = FlowTable.hash(key) & this.mask;
+
+		while (this.values[index] != null) {
+			if (this.keys[index] == key) {
+				if (this.values[index] != value) {
+					return false;
+				}
+
+				this.shiftBack(index);
+				this.size--;
+				return true;
+			}
+			index = (index + 1) & this.mask;
+		}
+		return false;
+	}
+
+	/**
+	 * @return the number of flows
+	 */
+	public int size() {
+		return this.size;
+	}
+
+	/**
+	 * Fill the slot of a removed entry with the entries after it which would
+	 * otherwise not be found
+	 */
+	private void shiftBack(int hole) {
+		int index = hole;
+
+		while (true) {
+			index = (index + 1) & this.mask;
+
+			if (this.values[index] == null) {
+				break;
+			}
+
+			final int home = FlowTable.hash(this.keys[index]) & this.mask;
+
+			// Move the entry if its home is not between the hole and itself
+			if (((index - home) & this.mask) >= ((index - hole) & this.mask)) {
+				this.keys[hole] = this.keys[index];
+				this.values[hole] = this.values[index];
+				hole = index;
+			}
+		}
+
+		this.values[hole] = null;
+	}
+
+	private void resize(final int capacity) {
+		final long[] oldKeys = this.keys;
+		final Object[] oldValues = this.values;
+
+		this.allocate(capacity);
+
+		for (int i = 0; i < oldValues.length; i++) {
+			if (oldValues[i] != null) {
+				int index = FlowTable.hash(oldKeys[i]) & this.mask;
+				while (this.values[index] != null) {
+					index = (index + 1) & this.mask;
+				}
+				this.keys[index] = oldKeys[i];
+				this.values[index] = oldValues[i];
+			}
+		}
+	}
+
+	private void allocate(final int capacity) {
+		this.keys = new long[capacity];
+		this.values = new Object[capacity];
+		this.mask = capacity - 1;
+	}
+
+	private static int hash(final long key) {
+		// Spread the port and the address over the low bits
+		final long h = key * 0x9e3779b97f4a7c15L;
+		return (int) (h ^ (h >>> 32));
+	}
+}
@@ -0,0 +1,273 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Reassembles fragmented SOCKS5 UDP datagrams, RFC 1928 section 7. Each
+ * association has at most one fragment set in progress, which is held in one
+ * of a fixed number of slots. The buffer of a slot is allocated on its first
+ * use and then kept, so the memory is bounded by the number of slots however
+ * many fragments the clients send. A set is dropped when no slot is free, when
+ * a fragment is out of sequence or changes destination, when it would exceed
+ * the largest datagram, and when it is not completed within the timeout.<br>
+ * <br>
+ * The reassembler is not thread safe and is used on the relay thread only.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+final class Reassembler {
+
+	/** The bit of the fragment field which marks the last fragment */
+	static final int END_OF_SEQUENCE = 0x80;
+
+	private static final int POSITION_MASK = 0x7f;
+
+	private final Fragments[] slots;
+
+	private final int maxLength;
+
+	private final long timeout;
+
+	private final LongAdder dropped;
+
+	private final LongAdder expired;
+
+	private int inUse = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param slots
+	 *            the number of fragment sets which may be in progress at the
+	 *            same time, 0 to drop all fragments
+	 * @param maxLength
+	 *            the largest reassembled datagram in bytes
+	 * @param timeout
+	 *            the time a set may take to complete in nanoseconds
+	 * @param dropped
+	 *            the counter of dropped fragment sets
+	 * @param expired
+	 *            the counter of expired fragment sets
+	 */
+	Reassembler(final int slots, final int maxLength, final long timeout,
+			final LongAdder dropped, final LongAdder expired) {
+		this.slots = new Fragments[slots];
+		this.maxLength = maxLength;
+		this.timeout = timeout;
+		this.dropped = dropped;
+		this.expired = expired;
+
+		for (int i = 0; i < slots; i++) {
+			this.slots[i] = new Fragments();
+		}
+	}
+
+	/**
+	 * Add a fragment to the set of its association
+	 * 
+	 * @param association
+	 *            the association
+	 * @param header
+	 *            the decoded header, with a fragment field which is not 0
+	 * @param buffer
+	 *            the buffer, positioned at the data
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @return the completed set, valid until the next call, or null if the
+	 *         set is not yet complete or the fragment was not accepted
+	 */
+	Fragments add(final UdpAssociation association,
+			final DatagramHeader header, final ByteBuffer buffer,
+			final long now) {
+		final int position = header.getFragment() & Reassembler.POSITION_MASK;
+		Fragments fragments = association.getFragments();
+
+		if ((fragments != null) && ((position != (fragments.position + 1))
+				|| !fragments.header.isSameDestination(header))) {
+			// A lower position starts a new set, section 7
+			this.release(fragments);
+			this.dropped.increment();
+			fragments = null;
+		}
+
+		if (fragments == null) {
+			if (position != 1) {
+				// The start of the set has been lost
+				this.dropped.increment();
+				return null;
+			}
+
+			fragments = this.acquire();
+			if (fragments == null) {
+				this.dropped.increment();
+				return null;
+			}
+
+			if (fragments.buffer == null) {
+				fragments.buffer = ByteBuffer.allocate(this.maxLength);
+			}
+			fragments.owner = association;
+			fragments.header.copyFrom(header);
+			fragments.deadline = now + this.timeout;
+			association.setFragments(fragments);
+		}
+
+		if (buffer.remaining() > fragments.buffer.remaining()) {
+			this.release(fragments);
+			this.dropped.increment();
+			return null;
+		}
+
+		fragments.buffer.put(buffer);
+		fragments.position = position;
+
+		if ((header.getFragment() & Reassembler.END_OF_SEQUENCE) == 0) {
+			return null;
+		}
+
+		// The slot is not reused before the caller has forwarded the data
+		this.release(fragments);
+		fragments.buffer.flip();
+		return fragments;
+	}
+
+	/**
+	 * Drop the set in progress of an association
+	 * 
+	 * @param association
+	 *            the association
+	 */
+	void drop(final UdpAssociation association) {
+		final Fragments fragments = association.getFragments();
+
+		if (fragments != null) {
+			this.release(fragments);
+			this.dropped.increment();
+		}
+	}
+
+	/**
+	 * Drop the sets which have not been completed in time
+	 * 
+	 * @param now
+	 *            the current {@link System#nanoTime()}
+	 * @return the nanoseconds until the next set expires, or 0 if no set is
+	 *         in progress
+	 */
+	long expire(final long now) {
+		long next = 0;
+
+		for (int i = 0; i < this.inUse;) {
+			final Fragments fragments = this.slots[i];
+			final long remaining = fragments.deadline - now;
+
+			if (remaining <= 0) {
+				this.release(fragments);
+				this.expired.increment();
+				continue;
+			}
+
+			if ((next == 0) || (remaining < next)) {
+				next = remaining;
+			}
+			i++;
+		}
+		return next;
+	}
+
+	/**
+	 * Drop all sets in progress, without counting them
+	 */
+	void clear() {
+		while (this.inUse > 0) {
+			this.release(this.slots[0]);
+		}
+	}
+
+	/**
+	 * @return the number of sets in progress
+	 */
+	int getInUse() {
+		return this.inUse;
+	}
+
+	/**
+	 * Take a free slot. The slots in use are kept first in the array.
+	 */
+	private Fragments acquire() {
+		if (this.inUse == this.slots.length) {
+			return null;
+		}
+
+		final Fragments fragments = this.slots[this.inUse];
+		fragments.index = this.inUse++;
+
+		if (fragments.buffer != null) {
+			fragments.buffer.clear();
+		}
+		return fragments;
+	}
+
+	private void release(final Fragments fragments) {
+		final int last = --this.inUse;
+		final Fragments moved = this.slots[last];
+
+		this.slots[fragments.index] = moved;
+		moved.index = fragments.index;
+		this.slots[last] = fragments;
+		fragments.index = last;
+
+		fragments.owner.setFragments(null);
+		fragments.owner = null;
+	}
+
+	/**
+	 * A fragment set in progress
+	 */
+	static final class Fragments {
+
+		private final DatagramHeader header = new DatagramHeader();
+
+		private ByteBuffer buffer;
+
+		private UdpAssociation owner;
+
+		private int position;
+
+		private long deadline;
+
+		private int index;
+
+		/**
+		 * @return the header of the first fragment, which has the
+		 *         destination
+		 */
+		DatagramHeader getHeader() {
+			return this.header;
+		}
+
+		/**
+		 * @return the reassembled data
+		 */
+		ByteBuffer getBuffer() {
+			return this.buffer;
+		}
+	}
+}
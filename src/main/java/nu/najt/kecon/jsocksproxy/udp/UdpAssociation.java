@@ -0,0 +1,502 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.function.BiConsumer;
+
+import org.slf4j.Logger;
+import org.slf4j.MDC;
+
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+
+/**
+ * A UDP association of a SOCKS5 client, see RFC 1928 section 7. The client
+ * sends its datagrams to the relay channel shared by all associations of the
+ * listen address, and the association forwards them from its own external
+ * channel, so that replies can be told apart. The association lives as long
+ * as the TCP connection which requested it.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class UdpAssociation {
+
+	/**
+	 * The outcome of {@link UdpAssociation#forward(DatagramHeader, ByteBuffer)}
+	 */
+	enum Result {
+		/** The datagram was sent */
+		FORWARDED,
+
+		/** The datagram was dropped */
+		DROPPED,
+
+		/** The datagram is sent when its domain name has been resolved */
+		RESOLVING
+	}
+
+	private final UdpRelay relay;
+
+	private final DatagramChannel clientChannel;
+
+	private final DatagramChannel externalChannel;
+
+	private final InetAddress clientAddress;
+
+	private final int clientPort;
+
+	private final HostResolver hostResolver;
+
+	private final Logger logger;
+
+	private final Map<String, String> contextMap;
+
+	private final DatagramHeader lastHeader = new DatagramHeader();
+
+	private InetSocketAddress lastDestination;
+
+	private InetSocketAddress clientSocketAddress;
+
+	private Reassembler.Fragments fragments;
+
+	private volatile SocketChannel controlChannel;
+
+	private SelectionKey externalKey;
+
+	private SelectionKey controlKey;
+
+	private boolean closed = false;
+
+	/** True while a datagram waits for its domain name to be resolved */
+	private boolean resolving = false;
+
+	// Written by the relay thread only
+	private volatile long datagramsForwarded = 0;
+
+	private volatile long bytesForwarded = 0;
+
+	private volatile long datagramsReplied = 0;
+
+	private volatile long bytesReplied = 0;
+
+	private volatile long datagramsDropped = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param relay
+	 *            the relay
+	 * @param clientChannel
+	 *            the channel the client sends to
+	 * @param externalChannel
+	 *            the channel the datagrams are forwarded from
+	 * @param clientAddress
+	 *            the address of the client
+	 * @param clientPort
+	 *            the port the client sends from, 0 if not known
+	 * @param hostResolver
+	 *            the resolver of domain names, may be null
+	 * @param logger
+	 *            the logger used when the association is shut down
+	 * @param contextMap
+	 *            the MDC of the handler which established the association
+	 */
+	UdpAssociation(final UdpRelay relay, final DatagramChannel clientChannel,
+			final DatagramChannel externalChannel,
+			final InetAddress clientAddress, final int clientPort,
+			final HostResolver hostResolver, final Logger logger,
+			final Map<String, String> contextMap) {
+		this.relay = relay;
+		this.clientChannel = clientChannel;
+		this.externalChannel = externalChannel;
+		this.clientAddress = clientAddress;
+		this.clientPort = clientPort;
+		this.hostResolver = hostResolver;
+		this.logger = logger;
+		this.contextMap = contextMap;
+	}
+
+	/**
+	 * @return the address the client must send its datagrams to
+	 * @throws IOException
+	 *             if the relay channel is closed
+	 */
+	public InetSocketAddress getBoundAddress() throws IOException {
+		return (InetSocketAddress) this.clientChannel.getLocalAddress();
+	}
+
+	/**
+	 * Hand over the TCP connection which requested the association, so that
+	 * the association is closed with it. The relay takes ownership of the
+	 * socket.
+	 * 
+	 * @param controlSocket
+	 *            the TCP connection
+	 * @return true if the relay accepted the socket, false if the caller must
+	 *         wait for the connection to close and then close the
+	 *         association
+	 * @throws IOException
+	 *             if the channel could not be made non-blocking
+	 */
+	public boolean watch(final Socket controlSocket) throws IOException {
+		final SocketChannel channel = controlSocket.getChannel();
+
+		if (channel == null) {
+			return false;
+		}
+
+		channel.configureBlocking(false);
+		this.controlChannel = channel;
+
+		if (!this.relay.watch(this)) {
+			channel.configureBlocking(true);
+			this.controlChannel = null;
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Close the association, may be called from any thread
+	 */
+	public void close() {
+		this.relay.closeLater(this);
+	}
+
+	/**
+	 * Forward the data of a datagram from the client, must be called on the
+	 * relay thread
+	 * 
+	 * @param header
+	 *            the decoded header
+	 * @param buffer
+	 *            the buffer, positioned at the data
+	 * @return whether the datagram was sent, dropped or waits for its domain
+	 *         name to be resolved
+	 * @throws IOException
+	 *             if the external channel failed
+	 */
+	Result forward(final DatagramHeader header, final ByteBuffer buffer)
+			throws IOException {
+		if ((this.lastDestination == null)
+				|| !this.lastHeader.isSameDestination(header)) {
+			if (header.isDomain()) {
+				return this.resolve(header, buffer);
+			}
+
+			this.lastHeader.copyFrom(header);
+			this.lastDestination = header.toSocketAddress();
+		}
+
+		return this.send(buffer, this.lastDestination);
+	}
+
+	/**
+	 * Send the data of a datagram, must be called on the relay thread
+	 * 
+	 * @param buffer
+	 *            the buffer, positioned at the data
+	 * @param destination
+	 *            the destination
+	 * @return whether the datagram was sent or dropped
+	 * @throws IOException
+	 *             if the external channel failed
+	 */
+	Result send(final ByteBuffer buffer, final InetSocketAddress destination)
+			throws IOException {
+		return (this.externalChannel.send(buffer, destination) > 0)
+				? Result.FORWARDED : Result.DROPPED;
+	}
+
+	/**
+	 * Forward a datagram to a domain name. Names which are not already
+	 * resolved are forwarded by the relay thread when the lookup completes.
+	 * Only one datagram at a time waits for a lookup, the datagrams which
+	 * arrive meanwhile are dropped.
+	 */
+	private Result resolve(final DatagramHeader header,
+			final ByteBuffer buffer) throws IOException {
+		if (this.hostResolver == null) {
+			return Result.DROPPED;
+		}
+
+		final String hostname = header.getHostname();
+		final int port = header.getPort();
+		final CompletableFuture<InetAddress[]> future = this.hostResolver
+				.resolve(hostname);
+
+		if (future.isDone() && !future.isCompletedExceptionally()) {
+			final InetSocketAddress destination = new InetSocketAddress(
+					future.join()[0], port);
+
+			this.lastHeader.copyFrom(header);
+			this.lastDestination = destination;
+			return this.send(buffer, destination);
+		}
+
+		if (this.resolving) {
+			return Result.DROPPED;
+		}
+		this.resolving = true;
+
+		final ByteBuffer data = ByteBuffer.allocate(buffer.remaining());
+		data.put(buffer).flip();
+
+		future.whenComplete(new BiConsumer<InetAddress[], Throwable>() {
+			@Override
+			public void accept(final InetAddress[] addresses,
+					final Throwable throwable) {
+				final InetSocketAddress destination;
+
+				if ((addresses != null) && (addresses.length > 0)) {
+					destination = new InetSocketAddress(addresses[0], port);
+				} else {
+					UdpAssociation.this.logger.debug(
+							"Failed to resolve {} for UDP", hostname,
+							throwable);
+					destination = null;
+				}
+
+				UdpAssociation.this.relay.forwardLater(UdpAssociation.this,
+						data, destination);
+			}
+		});
+		return Result.RESOLVING;
+	}
+
+	/**
+	 * Register the external channel, must be called on the relay thread
+	 * 
+	 * @param selector
+	 *            the selector of the relay
+	 * @throws IOException
+	 *             if the channel could not be registered
+	 */
+	void register(final Selector selector) throws IOException {
+		this.externalKey = this.externalChannel.register(selector,
+				SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Register the control channel handed over by
+	 * {@link #watch(Socket)}, must be called on the relay thread
+	 * 
+	 * @param selector
+	 *            the selector of the relay
+	 * @throws IOException
+	 *             if the channel could not be registered
+	 */
+	void registerControl(final Selector selector) throws IOException {
+		this.controlKey = this.controlChannel.register(selector,
+				SelectionKey.OP_READ, this);
+	}
+
+	/**
+	 * Close the channels, must be called on the relay thread
+	 * 
+	 * @return true if this call closed the association
+	 */
+	boolean closeChannels() {
+		if (this.closed) {
+			return false;
+		}
+		this.closed = true;
+
+		if (this.externalKey != null) {
+			this.externalKey.cancel();
+		}
+
+		if (this.controlKey != null) {
+			this.controlKey.cancel();
+		}
+
+		try {
+			this.externalChannel.close();
+		} catch (final IOException e) {
+		}
+
+		if (this.controlChannel != null) {
+			try {
+				this.controlChannel.close();
+			} catch (final IOException e) {
+			}
+		}
+
+		if (this.contextMap != null) {
+			MDC.setContextMap(this.contextMap);
+		}
+		this.logger.info("Shutdown UDP association");
+		MDC.clear();
+
+		return true;
+	}
+
+	/**
+	 * Called by the relay thread when the datagram which waited for its
+	 * domain name to be resolved has been taken care of
+	 */
+	void resolved() {
+		this.resolving = false;
+	}
+
+	/**
+	 * @return true if the association has been closed
+	 */
+	boolean isClosed() {
+		return this.closed;
+	}
+
+	/**
+	 * @param key
+	 *            a key of the association
+	 * @return true if the key is the key of the control channel
+	 */
+	boolean isControlKey(final SelectionKey key) {
+		return key == this.controlKey;
+	}
+
+	DatagramChannel getClientChannel() {
+		return this.clientChannel;
+	}
+
+	DatagramChannel getExternalChannel() {
+		return this.externalChannel;
+	}
+
+	SocketChannel getControlChannel() {
+		return this.controlChannel;
+	}
+
+	InetAddress getClientAddress() {
+		return this.clientAddress;
+	}
+
+	int getClientPort() {
+		return this.clientPort;
+	}
+
+	/**
+	 * @return the address the client sends from, or null until it is known
+	 */
+	InetSocketAddress getClientSocketAddress() {
+		return this.clientSocketAddress;
+	}
+
+	void setClientSocketAddress(final InetSocketAddress clientSocketAddress) {
+		this.clientSocketAddress = clientSocketAddress;
+	}
+
+	/**
+	 * @return the fragment set in progress, or null if there is none
+	 */
+	Reassembler.Fragments getFragments() {
+		return this.fragments;
+	}
+
+	void setFragments(final Reassembler.Fragments fragments) {
+		this.fragments = fragments;
+	}
+
+	/**
+	 * Count a datagram forwarded to a destination, must be called on the
+	 * relay thread
+	 * 
+	 * @param bytes
+	 *            the length of the data
+	 */
+	void countForwarded(final int bytes) {
+		this.datagramsForwarded++;
+		this.bytesForwarded += bytes;
+	}
+
+	/**
+	 * Count a datagram sent back to the client, must be called on the relay
+	 * thread
+	 * 
+	 * @param bytes
+	 *            the length of the data
+	 */
+	void countReplied(final int bytes) {
+		this.datagramsReplied++;
+		this.bytesReplied += bytes;
+	}
+
+	/**
+	 * Count a dropped datagram, must be called on the relay thread
+	 */
+	void countDropped() {
+		this.datagramsDropped++;
+	}
+
+	/**
+	 * @return the number of datagrams forwarded from the client
+	 */
+	public long getDatagramsForwarded() {
+		return this.datagramsForwarded;
+	}
+
+	/**
+	 * @return the number of data bytes forwarded from the client
+	 */
+	public long getBytesForwarded() {
+		return this.bytesForwarded;
+	}
+
+	/**
+	 * @return the number of datagrams sent back to the client
+	 */
+	public long getDatagramsReplied() {
+		return this.datagramsReplied;
+	}
+
+	/**
+	 * @return the number of data bytes sent back to the client
+	 */
+	public long getBytesReplied() {
+		return this.bytesReplied;
+	}
+
+	/**
+	 * @return the number of datagrams of the association which were dropped
+	 */
+	public long getDatagramsDropped() {
+		return this.datagramsDropped;
+	}
+
+	@Override
+	public String toString() {
+		final InetSocketAddress clientSocketAddress = this.clientSocketAddress;
+		final int port = (clientSocketAddress != null)
+				? clientSocketAddress.getPort() : this.clientPort;
+
+		return this.clientAddress.getHostAddress() + ":" + port
+				+ " " + this.datagramsForwarded + " forwarded ("
+				+ this.bytesForwarded + " bytes), " + this.datagramsReplied
+				+ " replied (" + this.bytesReplied + " bytes), "
+				+ this.datagramsDropped + " dropped";
+	}
+}
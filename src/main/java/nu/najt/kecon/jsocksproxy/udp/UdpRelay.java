@@ -0,0 +1,800 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.slf4j.MDC;
+
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+
+/**
+ * Relays the datagrams of all SOCKS5 UDP associations on a single selector
+ * thread. The clients of a listen address share one relay channel, and each
+ * association forwards from its own external channel. Datagrams are received
+ * into a single buffer, and the replies get their header written in front of
+ * the data, so that relaying a datagram allocates nothing as long as the
+ * destination does not change. Each wakeup drains up to {@link #MAX_BATCH}
+ * datagrams of a channel, and the association of a client datagram is found
+ * in a {@link FlowTable} without creating a key object. Fragmented datagrams
+ * are reassembled in a bounded number of buffers, see {@link Reassembler}.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class UdpRelay implements Runnable {
+
+	private static final Logger LOG = LoggerFactory.getLogger(UdpRelay.class);
+
+	private static final int MAX_DATAGRAM_SIZE = 65535;
+
+	private static final int HEADER_ROOM = DatagramHeader.MAX_ENCODED_LENGTH;
+
+	/** The maximum number of datagrams received from a channel per wakeup */
+	static final int MAX_BATCH = 64;
+
+	/** The default number of fragment sets in progress at the same time */
+	public static final int DEFAULT_REASSEMBLY_BUFFERS = 16;
+
+	/** The default reassembly timeout, RFC 1928 requires at least 5 seconds */
+	public static final int DEFAULT_REASSEMBLY_TIMEOUT = 5;
+
+	private final Selector selector;
+
+	private final Map<InetAddress, DatagramChannel> clientChannels = new HashMap<InetAddress, DatagramChannel>();
+
+	private final Queue<DatagramChannel> pendingChannels = new ConcurrentLinkedQueue<DatagramChannel>();
+
+	private final Queue<UdpAssociation> pending = new ConcurrentLinkedQueue<UdpAssociation>();
+
+	private final Queue<UdpAssociation> watching = new ConcurrentLinkedQueue<UdpAssociation>();
+
+	private final Queue<UdpAssociation> closing = new ConcurrentLinkedQueue<UdpAssociation>();
+
+	private final Queue<ResolvedDatagram> resolved = new ConcurrentLinkedQueue<ResolvedDatagram>();
+
+	private final AtomicBoolean running = new AtomicBoolean(false);
+
+	private final AtomicInteger activeAssociations = new AtomicInteger();
+
+	private final LongAdder forwarded = new LongAdder();
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final LongAdder reassembled = new LongAdder();
+
+	private final LongAdder fragmentSetsDropped = new LongAdder();
+
+	private final LongAdder fragmentSetsExpired = new LongAdder();
+
+	private volatile int reassemblyBuffers = UdpRelay.DEFAULT_REASSEMBLY_BUFFERS;
+
+	private volatile int reassemblyTimeout = UdpRelay.DEFAULT_REASSEMBLY_TIMEOUT;
+
+	private Reassembler reassembler;
+
+	private int reassemblerBuffers;
+
+	private int reassemblerTimeout;
+
+	/** The open associations, for the statistics */
+	private final Set<UdpAssociation> open = ConcurrentHashMap.newKeySet();
+
+	/** The associations by the address the client sends from */
+	private final FlowTable<UdpAssociation> associations = new FlowTable<UdpAssociation>();
+
+	/** The associations whose IPv6 key is taken by another client */
+	private final Map<InetSocketAddress, UdpAssociation> collisions = new HashMap<InetSocketAddress, UdpAssociation>();
+
+	/** The associations whose client has not yet sent, by client address */
+	private final Map<InetAddress, List<UdpAssociation>> unbound = new HashMap<InetAddress, List<UdpAssociation>>();
+
+	private final ByteBuffer buffer = ByteBuffer
+			.allocateDirect(UdpRelay.HEADER_ROOM + UdpRelay.MAX_DATAGRAM_SIZE);
+
+	private final ByteBuffer discard = ByteBuffer.allocate(256);
+
+	private final DatagramHeader header = new DatagramHeader();
+
+	/**
+	 * Constructor
+	 * 
+	 * @throws IOException
+	 *             if the selector could not be opened
+	 */
+	public UdpRelay() throws IOException {
+		this.selector = Selector.open();
+		this.updateReassembler();
+	}
+
+	/**
+	 * Start the relay thread
+	 */
+	public void start() {
+		if (this.running.getAndSet(true)) {
+			throw new IllegalStateException("UDP relay is already running");
+		}
+
+		final Thread thread = new Thread(this, "udp-relay");
+		thread.setDaemon(true);
+		thread.start();
+
+		LOG.info("Started UDP relay");
+	}
+
+	/**
+	 * Stop the relay thread and close all associations
+	 */
+	public void shutdown() {
+		this.running.set(false);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Set the limits of the fragment reassembly. Sets in progress are
+	 * dropped when the limits change.
+	 * 
+	 * @param buffers
+	 *            the number of fragment sets which may be in progress at the
+	 *            same time, each of which may take a buffer of 64 KB; 0 to
+	 *            drop all fragments
+	 * @param timeout
+	 *            the time in seconds a fragment set may take to complete
+	 */
+	public void setReassembly(final int buffers, final int timeout) {
+		this.reassemblyBuffers = buffers;
+		this.reassemblyTimeout = timeout;
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Create an association
+	 * 
+	 * @param bindAddress
+	 *            the local address the client connected to, which it will
+	 *            send its datagrams to
+	 * @param clientAddress
+	 *            the address of the client, datagrams from other addresses
+	 *            are dropped
+	 * @param clientPort
+	 *            the port the client will send from, or 0 if it is not known
+	 *            until the first datagram
+	 * @param hostResolver
+	 *            the resolver of domain names, may be null
+	 * @param logger
+	 *            the logger used when the association is shut down
+	 * @return the association
+	 * @throws IOException
+	 *             if the relay is stopped or a channel could not be opened
+	 */
+	public UdpAssociation associate(final InetAddress bindAddress,
+			final InetAddress clientAddress, final int clientPort,
+			final HostResolver hostResolver, final Logger logger)
+			throws IOException {
+		if (!this.running.get()) {
+			throw new IOException("UDP relay is stopped");
+		}
+
+		final DatagramChannel clientChannel = this.clientChannel(bindAddress);
+		final DatagramChannel externalChannel = DatagramChannel.open();
+
+		try {
+			externalChannel.configureBlocking(false);
+			externalChannel.bind(null);
+		} catch (final IOException e) {
+			externalChannel.close();
+			throw e;
+		}
+
+		final UdpAssociation association = new UdpAssociation(this,
+				clientChannel, externalChannel, clientAddress, clientPort,
+				hostResolver, logger, MDC.getCopyOfContextMap());
+
+		this.activeAssociations.incrementAndGet();
+		this.open.add(association);
+		this.pending.add(association);
+		this.selector.wakeup();
+
+		return association;
+	}
+
+	/**
+	 * Queue the control channel of an association for registration
+	 * 
+	 * @return false if the relay is stopped
+	 */
+	boolean watch(final UdpAssociation association) {
+		if (!this.running.get()) {
+			return false;
+		}
+
+		this.watching.add(association);
+		this.selector.wakeup();
+		return true;
+	}
+
+	/**
+	 * Queue an association to be closed on the relay thread
+	 */
+	void closeLater(final UdpAssociation association) {
+		this.closing.add(association);
+		this.selector.wakeup();
+	}
+
+	/**
+	 * Queue a datagram whose domain name has been looked up, to be forwarded
+	 * on the relay thread
+	 * 
+	 * @param association
+	 *            the association of the datagram
+	 * @param data
+	 *            the data
+	 * @param destination
+	 *            the resolved destination, null if the domain name could not
+	 *            be resolved
+	 */
+	void forwardLater(final UdpAssociation association, final ByteBuffer data,
+			final InetSocketAddress destination) {
+		this.resolved.add(new ResolvedDatagram(association, data, destination));
+		this.selector.wakeup();
+	}
+
+	private DatagramChannel clientChannel(final InetAddress bindAddress)
+			throws IOException {
+		synchronized (this.clientChannels) {
+			DatagramChannel channel = this.clientChannels.get(bindAddress);
+
+			if ((channel == null) || !channel.isOpen()) {
+				channel = DatagramChannel.open();
+
+				try {
+					channel.configureBlocking(false);
+					channel.bind(new InetSocketAddress(bindAddress, 0));
+				} catch (final IOException e) {
+					channel.close();
+					throw e;
+				}
+
+				this.clientChannels.put(bindAddress, channel);
+				this.pendingChannels.add(channel);
+
+				LOG.info("Relaying UDP on {}", channel.getLocalAddress());
+			}
+			return channel;
+		}
+	}
+
+	@Override
+	public void run() {
+		try {
+			while (this.running.get()) {
+				this.updateReassembler();
+
+				final long next = this.reassembler.expire(System.nanoTime());
+				if (next == 0) {
+					this.selector.select();
+				} else {
+					this.selector
+							.select(TimeUnit.NANOSECONDS.toMillis(next) + 1);
+				}
+
+				this.registerPending();
+				this.closeQueued();
+				this.forwardResolved();
+				this.processSelectedKeys();
+			}
+		} catch (final ClosedSelectorException e) {
+		} catch (final IOException | RuntimeException e) {
+			LOG.error("UDP relay failed", e);
+		} finally {
+			this.closeAll();
+		}
+	}
+
+	/**
+	 * Replace the reassembler if its limits have been changed
+	 */
+	private void updateReassembler() {
+		final int buffers = this.reassemblyBuffers;
+		final int timeout = this.reassemblyTimeout;
+
+		if ((this.reassembler != null) && (buffers == this.reassemblerBuffers)
+				&& (timeout == this.reassemblerTimeout)) {
+			return;
+		}
+
+		if (this.reassembler != null) {
+			this.reassembler.clear();
+		}
+
+		this.reassembler = new Reassembler(buffers,
+				UdpRelay.MAX_DATAGRAM_SIZE, TimeUnit.SECONDS.toNanos(timeout),
+				this.fragmentSetsDropped, this.fragmentSetsExpired);
+		this.reassemblerBuffers = buffers;
+		this.reassemblerTimeout = timeout;
+	}
+
+	private void registerPending() {
+		DatagramChannel channel;
+		while ((channel = this.pendingChannels.poll()) != null) {
+			try {
+				channel.register(this.selector, SelectionKey.OP_READ);
+			} catch (final IOException e) {
+				LOG.warn("Failed to register UDP relay channel", e);
+			}
+		}
+
+		UdpAssociation association;
+		while ((association = this.pending.poll()) != null) {
+			try {
+				association.register(this.selector);
+				this.bind(association);
+			} catch (final IOException e) {
+				this.close(association);
+			}
+		}
+
+		while ((association = this.watching.poll()) != null) {
+			try {
+				if (association.isClosed()) {
+					association.getControlChannel().close();
+				} else {
+					association.registerControl(this.selector);
+				}
+			} catch (final IOException e) {
+				this.close(association);
+			}
+		}
+	}
+
+	/**
+	 * Make an association reachable for the datagrams of its client
+	 */
+	private void bind(final UdpAssociation association) {
+		if (association.getClientPort() != 0) {
+			final InetSocketAddress clientSocketAddress = new InetSocketAddress(
+					association.getClientAddress(),
+					association.getClientPort());
+			this.put(clientSocketAddress, association);
+		} else {
+			List<UdpAssociation> list = this.unbound
+					.get(association.getClientAddress());
+			if (list == null) {
+				list = new ArrayList<UdpAssociation>(1);
+				this.unbound.put(association.getClientAddress(), list);
+			}
+			list.add(association);
+		}
+	}
+
+	/**
+	 * Add an association to the flow table by the address its client sends
+	 * from
+	 */
+	private void put(final InetSocketAddress clientSocketAddress,
+			final UdpAssociation association) {
+		association.setClientSocketAddress(clientSocketAddress);
+
+		final long key = FlowTable.keyOf(clientSocketAddress);
+		final UdpAssociation existing = this.associations.get(key);
+
+		if ((existing != null)
+				&& !clientSocketAddress.equals(existing.getClientSocketAddress())) {
+			this.collisions.put(clientSocketAddress, association);
+		} else {
+			this.associations.put(key, association);
+		}
+	}
+
+	private void closeQueued() {
+		UdpAssociation association;
+		while ((association = this.closing.poll()) != null) {
+			this.close(association);
+		}
+	}
+
+	/**
+	 * Forward the datagrams whose domain names have been looked up, unless
+	 * their association has been closed meanwhile
+	 */
+	private void forwardResolved() {
+		ResolvedDatagram datagram;
+		while ((datagram = this.resolved.poll()) != null) {
+			final UdpAssociation association = datagram.association;
+			association.resolved();
+
+			if (association.isClosed() || (datagram.destination == null)) {
+				this.drop(association);
+				continue;
+			}
+
+			final int length = datagram.data.remaining();
+			try {
+				this.count(association, association.send(datagram.data,
+						datagram.destination), length);
+			} catch (final IOException e) {
+				LOG.debug("Failed to forward to {}", datagram.destination, e);
+				this.drop(association);
+			}
+		}
+	}
+
+	private void processSelectedKeys() {
+		final Iterator<SelectionKey> iterator = this.selector.selectedKeys()
+				.iterator();
+
+		while (iterator.hasNext()) {
+			final SelectionKey key = iterator.next();
+			iterator.remove();
+
+			if (!key.isValid()) {
+				continue;
+			}
+
+			final Object attachment = key.attachment();
+
+			if (attachment == null) {
+				this.receiveFromClient((DatagramChannel) key.channel());
+				continue;
+			}
+
+			final UdpAssociation association = (UdpAssociation) attachment;
+			try {
+				if (association.isControlKey(key)) {
+					this.readControl(association);
+				} else {
+					this.receiveFromExternal(association);
+				}
+			} catch (final IOException e) {
+				this.close(association);
+			}
+		}
+	}
+
+	/**
+	 * Forward the datagrams from the clients of a relay channel to their
+	 * destinations
+	 */
+	private void receiveFromClient(final DatagramChannel channel) {
+		final ByteBuffer buffer = this.buffer;
+
+		for (int i = 0; i < UdpRelay.MAX_BATCH; i++) {
+			final SocketAddress source;
+
+			buffer.clear();
+			try {
+				source = channel.receive(buffer);
+			} catch (final IOException e) {
+				LOG.debug("Failed to receive from client", e);
+				return;
+			}
+
+			if (source == null) {
+				return;
+			}
+			buffer.flip();
+
+			final UdpAssociation association = this.lookup(channel,
+					(InetSocketAddress) source);
+
+			if (association == null) {
+				this.dropped.increment();
+				continue;
+			}
+
+			if (!this.header.decode(buffer)) {
+				this.drop(association);
+				continue;
+			}
+
+			DatagramHeader header = this.header;
+			ByteBuffer data = buffer;
+
+			if (header.getFragment() != 0) {
+				final Reassembler.Fragments fragments = this.reassembler
+						.add(association, header, buffer, System.nanoTime());
+
+				if (fragments == null) {
+					continue;
+				}
+
+				this.reassembled.increment();
+				header = fragments.getHeader();
+				data = fragments.getBuffer();
+			}
+
+			final int length = data.remaining();
+			try {
+				this.count(association, association.forward(header, data),
+						length);
+			} catch (final IOException e) {
+				LOG.debug("Failed to forward datagram", e);
+				this.drop(association);
+			}
+		}
+	}
+
+	private void count(final UdpAssociation association,
+			final UdpAssociation.Result result, final int length) {
+		if (result == UdpAssociation.Result.FORWARDED) {
+			association.countForwarded(length);
+			this.forwarded.increment();
+		} else if (result == UdpAssociation.Result.DROPPED) {
+			this.drop(association);
+		}
+	}
+
+	private void drop(final UdpAssociation association) {
+		association.countDropped();
+		this.dropped.increment();
+	}
+
+	/**
+	 * Find the association of a client, binding the first association of
+	 * the client address which waits for its client port
+	 */
+	private UdpAssociation lookup(final DatagramChannel channel,
+			final InetSocketAddress source) {
+		UdpAssociation association = this.associations
+				.get(FlowTable.keyOf(source));
+
+		if (((association == null) && !this.collisions.isEmpty())
+				|| ((association != null) && !source
+						.equals(association.getClientSocketAddress()))) {
+			association = this.collisions.get(source);
+		}
+
+		if (association == null) {
+			final List<UdpAssociation> list = this.unbound
+					.get(source.getAddress());
+			if (list == null) {
+				return null;
+			}
+
+			for (int i = 0; i < list.size(); i++) {
+				if (list.get(i).getClientChannel() == channel) {
+					association = list.remove(i);
+					break;
+				}
+			}
+
+			if (list.isEmpty()) {
+				this.unbound.remove(source.getAddress());
+			}
+
+			if (association == null) {
+				return null;
+			}
+
+			this.put(source, association);
+		}
+
+		return (association.getClientChannel() == channel) ? association
+				: null;
+	}
+
+	/**
+	 * Forward the datagrams from the destinations of an association to its
+	 * client
+	 */
+	private void receiveFromExternal(final UdpAssociation association)
+			throws IOException {
+		final ByteBuffer buffer = this.buffer;
+		final DatagramChannel externalChannel = association
+				.getExternalChannel();
+
+		for (int i = 0; i < UdpRelay.MAX_BATCH; i++) {
+			buffer.clear();
+			buffer.position(UdpRelay.HEADER_ROOM);
+			final SocketAddress source = externalChannel.receive(buffer);
+
+			if (source == null) {
+				return;
+			}
+
+			final InetSocketAddress client = association
+					.getClientSocketAddress();
+			if (client == null) {
+				this.drop(association);
+				continue;
+			}
+
+			buffer.flip();
+			final int length = buffer.limit() - UdpRelay.HEADER_ROOM;
+			buffer.position(DatagramHeader.encode(buffer,
+					UdpRelay.HEADER_ROOM, (InetSocketAddress) source));
+
+			if (association.getClientChannel().send(buffer, client) > 0) {
+				association.countReplied(length);
+				this.forwarded.increment();
+			} else {
+				this.drop(association);
+			}
+		}
+	}
+
+	/**
+	 * Read from the control connection, which is only done to notice that it
+	 * has been closed
+	 */
+	private void readControl(final UdpAssociation association)
+			throws IOException {
+		this.discard.clear();
+
+		if (association.getControlChannel().read(this.discard) < 0) {
+			this.close(association);
+		}
+	}
+
+	private void close(final UdpAssociation association) {
+		if (!association.closeChannels()) {
+			return;
+		}
+		this.activeAssociations.decrementAndGet();
+		this.reassembler.drop(association);
+		this.open.remove(association);
+
+		final InetSocketAddress clientSocketAddress = association
+				.getClientSocketAddress();
+		if (clientSocketAddress != null) {
+			if (!this.associations.remove(
+					FlowTable.keyOf(clientSocketAddress), association)) {
+				this.collisions.remove(clientSocketAddress, association);
+			}
+		} else {
+			final List<UdpAssociation> list = this.unbound
+					.get(association.getClientAddress());
+			if (list != null) {
+				list.remove(association);
+
+				if (list.isEmpty()) {
+					this.unbound.remove(association.getClientAddress());
+				}
+			}
+		}
+	}
+
+	private void closeAll() {
+		this.registerPending();
+		this.closeQueued();
+
+		try {
+			for (final SelectionKey key : this.selector.keys()) {
+				if (key.attachment() != null) {
+					this.close((UdpAssociation) key.attachment());
+				}
+			}
+		} catch (final ClosedSelectorException e) {
+		}
+
+		synchronized (this.clientChannels) {
+			for (final DatagramChannel channel : this.clientChannels
+					.values()) {
+				try {
+					channel.close();
+				} catch (final IOException e) {
+				}
+			}
+			this.clientChannels.clear();
+		}
+
+		try {
+			this.selector.close();
+		} catch (final IOException e) {
+		}
+	}
+
+	/**
+	 * @return the number of open associations
+	 */
+	public int getActiveAssociations() {
+		return this.activeAssociations.get();
+	}
+
+	/**
+	 * @return the number of datagrams forwarded in either direction
+	 */
+	public long getForwarded() {
+		return this.forwarded.sum();
+	}
+
+	/**
+	 * @return the number of datagrams dropped, because they came from an
+	 *         unknown client, had an invalid header or could not be sent
+	 */
+	public long getDropped() {
+		return this.dropped.sum();
+	}
+
+	/**
+	 * @return the number of fragment sets reassembled
+	 */
+	public long getFragmentSetsReassembled() {
+		return this.reassembled.sum();
+	}
+
+	/**
+	 * @return the number of fragment sets dropped, because no buffer was
+	 *         free, a fragment was out of sequence or the set was too large,
+	 *         and of fragments received without the start of their set
+	 */
+	public long getFragmentSetsDropped() {
+		return this.fragmentSetsDropped.sum();
+	}
+
+	/**
+	 * @return the number of fragment sets which were not completed within
+	 *         the reassembly timeout
+	 */
+	public long getFragmentSetsExpired() {
+		return this.fragmentSetsExpired.sum();
+	}
+
+	/**
+	 * @return the counters of each open association
+	 */
+	public List<String> getStatistics() {
+		final List<String> statistics = new ArrayList<String>();
+
+		for (final UdpAssociation association : this.open) {
+			statistics.add(association.toString());
+		}
+		return statistics;
+	}
+
+	/**
+	 * A datagram to a domain name, waiting for the relay thread after the
+	 * name has been looked up
+	 */
+	private static final class ResolvedDatagram {
+
+		private final UdpAssociation association;
+
+		private final ByteBuffer data;
+
+		private final InetSocketAddress destination;
+
+		ResolvedDatagram(final UdpAssociation association,
+				final ByteBuffer data, final InetSocketAddress destination) {
+			this.association = association;
+			this.data = data;
+			this.destination = destination;
+		}
+	}
+}
@@ -0,0 +1,416 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A bounded pool of direct byte buffers used by the relay. The buffers come in
+ * size classes, from the smallest buffer size and doubling up to the largest
+ * buffer size. Each size class is split in stripes selected by the calling
+ * thread, so that threads rarely contend for the same stripe. The other
+ * stripes are only tried when the own stripe is empty or full. Buffers that
+ * do not fit in the pool when released are left to the garbage collector.<br>
+ * <br>
+ * The memory of all buffers handed out or pooled is counted against a memory
+ * limit. Once the limit is reached no more buffers are handed out, of any
+ * size, until buffers are released; pooled buffers of other sizes are dropped
+ * first to make room.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class BufferPool {
+
+	private final ArrayBlockingQueue<ByteBuffer>[][] sizeClasses;
+
+	private final int mask;
+
+	private final int capacity;
+
+	private final int bufferSize;
+
+	private final int maxBufferSize;
+
+	private final long memoryLimit;
+
+	/** Shared with the pools which replace this pool */
+	private final AtomicLong reservedBytes;
+
+	/** Set once the pool has been replaced, its buffers are no longer pooled */
+	private volatile boolean retired = false;
+
+	private final LongAdder hits = new LongAdder();
+
+	private final LongAdder misses = new LongAdder();
+
+	private final LongAdder refused = new LongAdder();
+
+	/**
+	 * Constructor for a pool with a single buffer size and no memory limit
+	 * 
+	 * @param capacity
+	 *            the maximum number of pooled buffers
+	 * @param bufferSize
+	 *            the size of each buffer
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative or bufferSize is not positive
+	 */
+	public BufferPool(final int capacity, final int bufferSize) {
+		this(capacity, bufferSize, bufferSize, Long.MAX_VALUE);
+	}
+
+	/**
+	 * Constructor
+	 * 
+	 * @param capacity
+	 *            the maximum number of pooled buffers of each size
+	 * @param bufferSize
+	 *            the smallest buffer size
+	 * @param maxBufferSize
+	 *            the largest buffer size, rounded down to the smallest buffer
+	 *            size times a power of two
+	 * @param memoryLimit
+	 *            the maximum number of bytes in buffers handed out or pooled
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative, bufferSize is not positive,
+	 *             maxBufferSize is less than bufferSize or memoryLimit is not
+	 *             positive
+	 */
+	public BufferPool(final int capacity, final int bufferSize,
+			final int maxBufferSize, final long memoryLimit) {
+		this(capacity, bufferSize, maxBufferSize, memoryLimit, null);
+	}
+
+	/**
+	 * Constructor for a pool which replaces another pool. The buffers which
+	 * the previous pool has handed out count against the memory limit of the
+	 * new pool until they are released, and the previous pool no longer keeps
+	 * buffers.
+	 * 
+	 * @param capacity
+	 *            the maximum number of pooled buffers of each size
+	 * @param bufferSize
+	 *            the smallest buffer size
+	 * @param maxBufferSize
+	 *            the largest buffer size, rounded down to the smallest buffer
+	 *            size times a power of two
+	 * @param memoryLimit
+	 *            the maximum number of bytes in buffers handed out or pooled
+	 * @param previous
+	 *            the pool which is replaced, may be null
+	 * @throws IllegalArgumentException
+	 *             if capacity is negative, bufferSize is not positive,
+	 *             maxBufferSize is less than bufferSize or memoryLimit is not
+	 *             positive
+	 */
+	public BufferPool(final int capacity, final int bufferSize,
+			final int maxBufferSize, final long memoryLimit,
+			final BufferPool previous) {
+		if (capacity < 0) {
+			throw new IllegalArgumentException("capacity");
+		}
+
+		if (bufferSize <= 0) {
+			throw new IllegalArgumentException("bufferSize");
+		}
+
+		if (maxBufferSize < bufferSize) {
+			throw new IllegalArgumentException("maxBufferSize");
+		}
+
+		if (memoryLimit <= 0) {
+			throw new IllegalArgumentException("memoryLimit");
+		}
+
+		int classCount = 1;
+		while (((bufferSize << classCount) > 0)
+				&& ((bufferSize << classCount) <= maxBufferSize)) {
+			classCount++;
+		}
+
+		this.capacity = capacity;
+		this.bufferSize = bufferSize;
+		this.maxBufferSize = bufferSize << (classCount - 1);
+		this.memoryLimit = memoryLimit;
+
+		int stripeCount = 1;
+		while ((stripeCount < (Runtime.getRuntime().availableProcessors()
+				* 2)) && (stripeCount < capacity)) {
+			stripeCount <<= 1;
+		}
+
+		final int stripeCapacity = Math.max(1,
+				(capacity + stripeCount - 1) / stripeCount);
+
+		this.mask = stripeCount - 1;
+		this.sizeClasses = BufferPool.newSizeClasses(classCount, stripeCount,
+				stripeCapacity);
+
+		if (previous != null) {
+			this.reservedBytes = previous.reservedBytes;
+			previous.retire();
+		} else {
+			this.reservedBytes = new AtomicLong();
+		}
+	}
+
+	private static ArrayBlockingQueue<ByteBuffer>[][] newSizeClasses(
+			final int classCount, final int stripeCount,
+			final int stripeCapacity) {
+		@SuppressWarnings("unchecked")
+		final ArrayBlockingQueue<ByteBuffer>[][] sizeClasses = (ArrayBlockingQueue<ByteBuffer>[][]) new ArrayBlockingQueue<?>[classCount][stripeCount];
+
+		for (final ArrayBlockingQueue<ByteBuffer>[] stripes : sizeClasses) {
+			for (int i = 0; i < stripeCount; i++) {
+				stripes[i] = new ArrayBlockingQueue<ByteBuffer>(
+						stripeCapacity);
+			}
+		}
+		return sizeClasses;
+	}
+
+	/**
+	 * Take a buffer of the smallest size from the pool, or allocate a new one
+	 * if the pool is empty and the memory limit allows it
+	 * 
+	 * @return a cleared direct buffer, or null if the buffer was refused
+	 */
+	public ByteBuffer acquire() {
+		return this.acquire(this.bufferSize);
+	}
+
+	/**
+	 * Take a buffer from the pool, or allocate a new one if the pool is empty.
+	 * Buffers are refused if they would exceed the memory limit.
+	 * 
+	 * @param size
+	 *            the wanted size, rounded up to the nearest size class
+	 * @return a cleared direct buffer, or null if the buffer was refused
+	 * @throws IllegalArgumentException
+	 *             if size is larger than the largest buffer size
+	 */
+	public ByteBuffer acquire(final int size) {
+		final int sizeClass = this.sizeClassOf(size);
+		if (sizeClass < 0) {
+			throw new IllegalArgumentException("size");
+		}
+
+		final ByteBuffer buffer = this.poll(sizeClass);
+		if (buffer != null) {
+			this.hits.increment();
+			return buffer;
+		}
+
+		final int classSize = this.bufferSize << sizeClass;
+
+		if (!this.reserve(classSize)) {
+			this.refused.increment();
+			return null;
+		}
+
+		this.misses.increment();
+		return ByteBuffer.allocateDirect(classSize);
+	}
+
+	/**
+	 * Return a buffer to the pool. The buffer must not be used after it has
+	 * been released.
+	 * 
+	 * @param buffer
+	 *            the buffer, may be null
+	 */
+	public void release(final ByteBuffer buffer) {
+		if ((buffer == null) || !buffer.isDirect()) {
+			return;
+		}
+
+		final int sizeClass = this.sizeClassOf(buffer.capacity());
+		if ((sizeClass < 0)
+				|| (buffer.capacity() != (this.bufferSize << sizeClass))) {
+			return;
+		}
+
+		if ((this.capacity > 0) && !this.retired) {
+			buffer.clear();
+
+			final ArrayBlockingQueue<ByteBuffer>[] stripes = this.sizeClasses[sizeClass];
+			final int index = this.stripeIndex();
+			for (int i = 0; i < stripes.length; i++) {
+				if (stripes[(index + i) & this.mask].offer(buffer)) {
+					if (this.retired) {
+						// Retired while the buffer was returned
+						this.drain();
+					}
+					return;
+				}
+			}
+		}
+
+		this.unreserve(buffer.capacity());
+	}
+
+	/**
+	 * Stop pooling buffers and give up the memory of the pooled buffers
+	 */
+	private void retire() {
+		this.retired = true;
+		this.drain();
+	}
+
+	private void drain() {
+		for (int sizeClass = 0; sizeClass < this.sizeClasses.length; sizeClass++) {
+			ByteBuffer pooled;
+			while ((pooled = this.poll(sizeClass)) != null) {
+				this.unreserve(pooled.capacity());
+			}
+		}
+	}
+
+	private ByteBuffer poll(final int sizeClass) {
+		final ArrayBlockingQueue<ByteBuffer>[] stripes = this.sizeClasses[sizeClass];
+		final int index = this.stripeIndex();
+
+		for (int i = 0; i < stripes.length; i++) {
+			final ByteBuffer buffer = stripes[(index + i) & this.mask].poll();
+
+			if (buffer != null) {
+				return buffer;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Reserve memory for a new buffer, dropping pooled buffers of other sizes
+	 * if that makes room within the limit
+	 */
+	private boolean reserve(final int size) {
+		for (int sizeClass = this.sizeClasses.length - 1; sizeClass >= 0;) {
+			final long reserved = this.reservedBytes.get();
+
+			if ((reserved + size) <= this.memoryLimit) {
+				if (this.reservedBytes.compareAndSet(reserved,
+						reserved + size)) {
+					return true;
+				}
+				continue;
+			}
+
+			final ByteBuffer pooled = this.poll(sizeClass);
+			if (pooled != null) {
+				this.unreserve(pooled.capacity());
+			} else {
+				sizeClass--;
+			}
+		}
+		return false;
+	}
+
+	private void unreserve(final int size) {
+		long reserved;
+		do {
+			reserved = this.reservedBytes.get();
+		} while (!this.reservedBytes.compareAndSet(reserved,
+				Math.max(0, reserved - size)));
+	}
+
+	private int sizeClassOf(final int size) {
+		for (int sizeClass = 0; sizeClass < this.sizeClasses.length; sizeClass++) {
+			if (size <= (this.bufferSize << sizeClass)) {
+				return sizeClass;
+			}
+		}
+		return -1;
+	}
+
+	private int stripeIndex() {
+		return (int) Thread.currentThread().getId() & this.mask;
+	}
+
+	/**
+	 * @return the number of buffers taken from the pool
+	 */
+	public long getHits() {
+		return this.hits.sum();
+	}
+
+	/**
+	 * @return the number of buffers allocated because the pool was empty
+	 */
+	public long getMisses() {
+		return this.misses.sum();
+	}
+
+	/**
+	 * @return the number of buffers currently in the pool
+	 */
+	public int getPooled() {
+		int pooled = 0;
+		for (final ArrayBlockingQueue<ByteBuffer>[] stripes : this.sizeClasses) {
+			for (final ArrayBlockingQueue<ByteBuffer> stripe : stripes) {
+				pooled += stripe.size();
+			}
+		}
+		return pooled;
+	}
+
+	/**
+	 * @return the number of buffers refused because of the memory limit
+	 */
+	public long getRefused() {
+		return this.refused.sum();
+	}
+
+	/**
+	 * @return the number of bytes in buffers handed out or pooled, including
+	 *         the buffers still handed out by the pools this pool replaced
+	 */
+	public long getReservedBytes() {
+		return this.reservedBytes.get();
+	}
+
+	/**
+	 * @return the maximum number of bytes in buffers handed out or pooled
+	 */
+	public long getMemoryLimit() {
+		return this.memoryLimit;
+	}
+
+	/**
+	 * @return the largest buffer size
+	 */
+	public int getMaxBufferSize() {
+		return this.maxBufferSize;
+	}
+
+	/**
+	 * @return the maximum number of pooled buffers of each size
+	 */
+	public int getCapacity() {
+		return this.capacity;
+	}
+
+	/**
+	 * @return the smallest buffer size
+	 */
+	public int getBufferSize() {
+		return this.bufferSize;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Adapts the buffer size of one direction of a tunnel to its traffic. The
+ * buffers are doubled after repeated transfers that fill all of them, and
+ * halved after a run of transfers that use only a small part of one buffer,
+ * such as keystrokes or an idle connection's keep alives. Growth is refused by
+ * the pool once its memory limit has been reached.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class BufferSizer {
+
+	/** Number of consecutive full transfers before the buffers grow */
+	public static final int GROW_AFTER = 4;
+
+	/** Number of consecutive small transfers before the buffers shrink */
+	public static final int SHRINK_AFTER = 16;
+
+	private final BufferPool bufferPool;
+
+	private int fullTransfers = 0;
+
+	private int smallTransfers = 0;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param bufferPool
+	 *            the pool the buffers are taken from
+	 */
+	public BufferSizer(final BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	/**
+	 * Record a transfer and resize the buffers if needed. Must only be called
+	 * when the buffers are cleared.
+	 * 
+	 * @param buffers
+	 *            the buffers, which may be replaced by buffers of another size
+	 * @param length
+	 *            the number of bytes transferred through the buffers
+	 */
+	public void transferred(final ByteBuffer[] buffers, final long length) {
+		final int size = buffers[0].capacity();
+
+		if (length >= ((long) size * buffers.length)) {
+			this.smallTransfers = 0;
+
+			if ((++this.fullTransfers >= BufferSizer.GROW_AFTER)
+					&& (size < this.bufferPool.getMaxBufferSize())) {
+				this.fullTransfers = 0;
+				this.resize(buffers, size * 2);
+			}
+		} else if (length < (size / 4)) {
+			this.fullTransfers = 0;
+
+			if ((++this.smallTransfers >= BufferSizer.SHRINK_AFTER)
+					&& (size > this.bufferPool.getBufferSize())) {
+				this.smallTransfers = 0;
+
+				if (!this.resize(buffers, size / 2)) {
+					this.resize(buffers, this.bufferPool.getBufferSize());
+				}
+			}
+		} else {
+			this.fullTransfers = 0;
+			this.smallTransfers = 0;
+		}
+	}
+
+	private boolean resize(final ByteBuffer[] buffers, final int size) {
+		final ByteBuffer[] resized = new ByteBuffer[buffers.length];
+
+		for (int i = 0; i < resized.length; i++) {
+			resized[i] = this.bufferPool.acquire(size);
+
+			if (resized[i] == null) {
+				for (int j = 0; j < i; j++) {
+					this.bufferPool.release(resized[j]);
+				}
+				return false;
+			}
+		}
+
+		for (int i = 0; i < buffers.length; i++) {
+			this.bufferPool.release(buffers[i]);
+			buffers[i] = resized[i];
+		}
+		return true;
+	}
+}
@@ -0,0 +1,409 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A timer for many short timeouts which are usually cancelled before they
+ * expire, such as handshake deadlines. Timeouts are kept in a wheel of buckets
+ * that a single thread advances one bucket every tick, so adding and
+ * cancelling a timeout is a queue operation and costs no thread or heap
+ * ordering per timeout. Timeouts expire up to one tick late.<br>
+ * <br>
+ * The timer thread is started by the first timeout and ended by
+ * {@link #stop()}, which drops all pending timeouts. Tasks run on the timer
+ * thread and must not block.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class HashedWheelTimer {
+
+	private final String name;
+
+	private final long tickDuration;
+
+	private final Bucket[] wheel;
+
+	private final int mask;
+
+	private final Queue<Timeout> addedTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	private final Queue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<Timeout>();
+
+	private volatile Worker worker;
+
+	/**
+	 * Constructor
+	 * 
+	 * @param name
+	 *            the name of the timer thread
+	 * @param tickDuration
+	 *            the time between two ticks
+	 * @param unit
+	 *            the unit of tickDuration
+	 * @param ticksPerWheel
+	 *            the number of buckets, rounded up to a power of two
+	 * @throws IllegalArgumentException
+	 *             if tickDuration or ticksPerWheel is not positive
+	 */
+	public HashedWheelTimer(final String name, final long tickDuration,
+			final TimeUnit unit, final int ticksPerWheel) {
+		if (tickDuration <= 0) {
+			throw new IllegalArgumentException("tickDuration");
+		}
+
+		if ((ticksPerWheel <= 0) || (ticksPerWheel > (1 << 30))) {
+			throw new IllegalArgumentException("ticksPerWheel");
+		}
+
+		int length = 1;
+		while (length < ticksPerWheel) {
+			length <<= 1;
+		}
+
+		this.name = name;
+		this.tickDuration = unit.toNanos(tickDuration);
+		this.mask = length - 1;
+		this.wheel = new Bucket[length];
+		for (int i = 0; i < length; i++) {
+			this.wheel[i] = new Bucket();
+		}
+	}
+
+	/**
+	 * Schedule a task
+	 * 
+	 * @param task
+	 *            the task to run on the timer thread when the timeout expires
+	 * @param delay
+	 *            the delay before the timeout expires
+	 * @param unit
+	 *            the unit of delay
+	 * @return the timeout, which can be cancelled
+	 */
+	public Timeout newTimeout(final Runnable task, final long delay,
+			final TimeUnit unit) {
+		final Timeout timeout = new Timeout(this, task,
+				System.nanoTime() + unit.toNanos(Math.max(0, delay)));
+
+		this.addedTimeouts.add(timeout);
+		this.start();
+		return timeout;
+	}
+
+	/**
+	 * Stop the timer thread and drop all pending timeouts. The timer is
+	 * started again by the next timeout.
+	 */
+	public synchronized void stop() {
+		final Worker current = this.worker;
+		this.worker = null;
+
+		if (current == null) {
+			return;
+		}
+
+		current.running = false;
+		current.thread.interrupt();
+
+		// The wheel must be cleared before a new timer thread may use it
+		if (current.thread != Thread.currentThread()) {
+			boolean interrupted = false;
+			while (current.thread.isAlive()) {
+				try {
+					current.thread.join();
+				} catch (final InterruptedException e) {
+					interrupted = true;
+				}
+			}
+
+			if (interrupted) {
+				Thread.currentThread().interrupt();
+			}
+		}
+	}
+
+	/**
+	 * @return true if the timer thread is running
+	 */
+	public boolean isRunning() {
+		return this.worker != null;
+	}
+
+	private void start() {
+		if (this.worker != null) {
+			return;
+		}
+
+		synchronized (this) {
+			if (this.worker == null) {
+				final Worker current = new Worker();
+				this.worker = current;
+				current.thread.start();
+			}
+		}
+	}
+
+	/**
+	 * A scheduled task
+	 */
+	public static final class Timeout {
+
+		private static final int INIT = 0;
+
+		private static final int CANCELLED = 1;
+
+		private static final int EXPIRED = 2;
+
+		private final HashedWheelTimer timer;
+
+		private final Runnable task;
+
+		/** The time of expiry, as given by {@link System#nanoTime()} */
+		private final long deadline;
+
+		private final AtomicInteger state = new AtomicInteger(Timeout.INIT);
+
+		private long remainingRounds;
+
+		private Bucket bucket;
+
+		private Timeout next;
+
+		private Timeout prev;
+
+		private Timeout(final HashedWheelTimer timer, final Runnable task,
+				final long deadline) {
+			this.timer = timer;
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancel the timeout, so that the task is not run
+		 * 
+		 * @return true if the timeout was cancelled by this call, false if it
+		 *         had already expired or been cancelled
+		 */
+		public boolean cancel() {
+			if (!this.state.compareAndSet(Timeout.INIT, Timeout.CANCELLED)) {
+				return false;
+			}
+
+			this.timer.cancelledTimeouts.add(this);
+			return true;
+		}
+
+		/**
+		 * @return true if the task has been run
+		 */
+		public boolean isExpired() {
+			return this.state.get() == Timeout.EXPIRED;
+		}
+
+		/**
+		 * @return true if the timeout has been cancelled
+		 */
+		public boolean isCancelled() {
+			return this.state.get() == Timeout.CANCELLED;
+		}
+
+		private void expire() {
+			if (this.state.compareAndSet(Timeout.INIT, Timeout.EXPIRED)) {
+				try {
+					this.task.run();
+				} catch (final RuntimeException e) {
+					// A failing task must not stop the other timeouts
+				}
+			}
+		}
+	}
+
+	/**
+	 * A doubly linked list of timeouts, only accessed by the timer thread
+	 */
+	private static final class Bucket {
+
+		private Timeout head;
+
+		private Timeout tail;
+
+		private void add(final Timeout timeout) {
+			timeout.bucket = this;
+
+			if (this.head == null) {
+				this.head = timeout;
+				this.tail = timeout;
+			} else {
+				this.tail.next = timeout;
+				timeout.prev = this.tail;
+				this.tail = timeout;
+			}
+		}
+
+		private Timeout remove(final Timeout timeout) {
+			final Timeout next = timeout.next;
+
+			if (timeout.prev != null) {
+				timeout.prev.next = next;
+			} else {
+				this.head = next;
+			}
+
+			if (next != null) {
+				next.prev = timeout.prev;
+			} else {
+				this.tail = timeout.prev;
+			}
+
+			timeout.bucket = null;
+			timeout.next = null;
+			timeout.prev = null;
+			return next;
+		}
+
+		private void expire(final long deadline) {
+			Timeout timeout = this.head;
+
+			while (timeout != null) {
+				if (timeout.remainingRounds <= 0) {
+					final Timeout next = this.remove(timeout);
+
+					if ((timeout.deadline - deadline) <= 0) {
+						timeout.expire();
+					}
+					timeout = next;
+				} else if (timeout.isCancelled()) {
+					timeout = this.remove(timeout);
+				} else {
+					timeout.remainingRounds--;
+					timeout = timeout.next;
+				}
+			}
+		}
+
+		private void clear() {
+			while (this.head != null) {
+				this.remove(this.head);
+			}
+		}
+	}
+
+	private final class Worker implements Runnable {
+
+		private final long startTime = System.nanoTime();
+
+		private final Thread thread;
+
+		private volatile boolean running = true;
+
+		private long tick = 0;
+
+		private Worker() {
+			this.thread = new Thread(this, HashedWheelTimer.this.name);
+			this.thread.setDaemon(true);
+		}
+
+		@Override
+		public void run() {
+			while (this.running) {
+				final long deadline = this.waitForNextTick();
+				if (deadline < 0) {
+					break;
+				}
+
+				this.removeCancelled();
+				this.transferAdded();
+				HashedWheelTimer.this.wheel[(int) (this.tick
+						& HashedWheelTimer.this.mask)]
+								.expire(this.startTime + deadline);
+				this.tick++;
+			}
+
+			for (final Bucket bucket : HashedWheelTimer.this.wheel) {
+				bucket.clear();
+			}
+			HashedWheelTimer.this.addedTimeouts.clear();
+			HashedWheelTimer.this.cancelledTimeouts.clear();
+		}
+
+		/**
+		 * @return the time of the tick relative to the start time, or -1 if
+		 *         the timer has been stopped
+		 */
+		private long waitForNextTick() {
+			final long deadline = HashedWheelTimer.this.tickDuration
+					* (this.tick + 1);
+
+			while (true) {
+				final long sleepNanos = deadline
+						- (System.nanoTime() - this.startTime);
+
+				if (sleepNanos <= 0) {
+					return deadline;
+				}
+
+				try {
+					TimeUnit.NANOSECONDS.sleep(sleepNanos);
+				} catch (final InterruptedException e) {
+					if (!this.running) {
+						return -1;
+					}
+				}
+			}
+		}
+
+		private void removeCancelled() {
+			Timeout timeout;
+			while ((timeout = HashedWheelTimer.this.cancelledTimeouts
+					.poll()) != null) {
+				if (timeout.bucket != null) {
+					timeout.bucket.remove(timeout);
+				}
+			}
+		}
+
+		private void transferAdded() {
+			// Bounded, so that a flood of new timeouts cannot delay the tick
+			for (int i = 0; i < 100000; i++) {
+				final Timeout timeout = HashedWheelTimer.this.addedTimeouts
+						.poll();
+				if (timeout == null) {
+					break;
+				}
+
+				if (timeout.isCancelled()) {
+					continue;
+				}
+
+				final long calculated = Math.max(0,
+						timeout.deadline - this.startTime)
+						/ HashedWheelTimer.this.tickDuration;
+				timeout.remainingRounds = (calculated - this.tick)
+						/ HashedWheelTimer.this.wheel.length;
+
+				final long ticks = Math.max(calculated, this.tick);
+				HashedWheelTimer.this.wheel[(int) (ticks
+						& HashedWheelTimer.this.mask)].add(timeout);
+			}
+		}
+	}
+}
@@ -0,0 +1,162 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongFieldUpdater;
+import java.util.concurrent.atomic.LongAdder;
+
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer.Timeout;
+
+/**
+ * Closes tunnels which have not transferred any data within their idle
+ * timeout. The copy loops only record the time of their last read, without
+ * any locking, and each tunnel has a single timeout on the shared timer. When
+ * the timeout expires the time since the last read is checked, and the
+ * timeout is either rescheduled for the remaining time or the tunnel is
+ * closed.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class IdleMonitor {
+
+	private final HashedWheelTimer timer;
+
+	private final LongAdder closed = new LongAdder();
+
+	/**
+	 * Constructor
+	 * 
+	 * @param timer
+	 *            the timer
+	 */
+	public IdleMonitor(final HashedWheelTimer timer) {
+		this.timer = timer;
+	}
+
+	/**
+	 * Start watching a tunnel
+	 * 
+	 * @param idleTimeout
+	 *            the idle timeout in milliseconds
+	 * @param onIdle
+	 *            the task closing the tunnel, run on the timer thread
+	 * @return the activity, which the copy loops must touch on every read
+	 *         and which must be stopped when the tunnel is closed, or null if
+	 *         idleTimeout is 0 or less
+	 */
+	public Activity watch(final long idleTimeout, final Runnable onIdle) {
+		if (idleTimeout <= 0) {
+			return null;
+		}
+
+		final Activity activity = new Activity(this,
+				TimeUnit.MILLISECONDS.toNanos(idleTimeout), onIdle);
+		activity.schedule(activity.idleTimeout);
+		return activity;
+	}
+
+	/**
+	 * @return the number of tunnels closed because they were idle
+	 */
+	public long getClosed() {
+		return this.closed.sum();
+	}
+
+	/**
+	 * The time of the last read of a tunnel
+	 */
+	public static final class Activity {
+
+		private static final AtomicLongFieldUpdater<Activity> LAST_ACTIVITY = AtomicLongFieldUpdater
+				.newUpdater(Activity.class, "lastActivity");
+
+		private final IdleMonitor idleMonitor;
+
+		private final long idleTimeout;
+
+		private final Runnable onIdle;
+
+		private final Runnable check = new Runnable() {
+			@Override
+			public void run() {
+				Activity.this.check();
+			}
+		};
+
+		private volatile long lastActivity = System.nanoTime();
+
+		private volatile Timeout timeout;
+
+		private volatile boolean stopped = false;
+
+		private Activity(final IdleMonitor idleMonitor, final long idleTimeout,
+				final Runnable onIdle) {
+			this.idleMonitor = idleMonitor;
+			this.idleTimeout = idleTimeout;
+			this.onIdle = onIdle;
+		}
+
+		/**
+		 * Record that data has been read. The write is not ordered with other
+		 * writes, so the timer may see it a little late, which at worst
+		 * reschedules the check once more.
+		 */
+		public void touch() {
+			Activity.LAST_ACTIVITY.lazySet(this, System.nanoTime());
+		}
+
+		/**
+		 * Stop watching the tunnel
+		 */
+		public void stop() {
+			this.stopped = true;
+
+			final Timeout current = this.timeout;
+			if (current != null) {
+				current.cancel();
+			}
+		}
+
+		private void check() {
+			if (this.stopped) {
+				return;
+			}
+
+			final long idle = System.nanoTime() - this.lastActivity;
+
+			if (idle < this.idleTimeout) {
+				this.schedule(this.idleTimeout - idle);
+				return;
+			}
+
+			this.stopped = true;
+			this.idleMonitor.closed.increment();
+			this.onIdle.run();
+		}
+
+		private void schedule(final long delay) {
+			this.timeout = this.idleMonitor.timer.newTimeout(this.check, delay,
+					TimeUnit.NANOSECONDS);
+
+			// Stopped while scheduling
+			if (this.stopped) {
+				this.timeout.cancel();
+			}
+		}
+	}
+}
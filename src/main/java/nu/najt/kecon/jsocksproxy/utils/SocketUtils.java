@@ -20,6 +20,14 @@ import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
 import java.net.Socket;
+import java.net.SocketOption;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.NetworkChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor.Activity;
 
 /**
  * Socket utilities
@@ -27,8 +35,65 @@ import java.net.Socket;
  * @author Kenny Colliander Nordin
  */
 public class SocketUtils {
+
+	private static final SocketOption<Boolean> SO_REUSEPORT = SocketUtils
+			.lookupReusePort();
+
+	@SuppressWarnings("unchecked")
+	private static SocketOption<Boolean> lookupReusePort() {
+		// SO_REUSEPORT was added in Java 9
+		try {
+			return (SocketOption<Boolean>) StandardSocketOptions.class
+					.getField("SO_REUSEPORT").get(null);
+		} catch (final ReflectiveOperationException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Check if several sockets may be bound to the same address and port with
+	 * SO_REUSEPORT, letting the kernel balance incoming connections between
+	 * them
+	 * 
+	 * @return true if SO_REUSEPORT is supported by the JVM and the platform
+	 * @since 3.0
+	 */
+	public static boolean isReusePortSupported() {
+		if (SocketUtils.SO_REUSEPORT == null) {
+			return false;
+		}
+
+		try (final ServerSocketChannel channel = ServerSocketChannel.open()) {
+			return channel.supportedOptions()
+					.contains(SocketUtils.SO_REUSEPORT);
+		} catch (final IOException e) {
+			return false;
+		}
+	}
+
 	/**
-	 * Copy data from input socket to output socket
+	 * Enable SO_REUSEPORT on an unbound channel
+	 * 
+	 * @param channel
+	 *            the channel
+	 * @throws IOException
+	 *             if SO_REUSEPORT is not supported or could not be set
+	 * @since 3.0
+	 */
+	public static void setReusePort(final NetworkChannel channel)
+			throws IOException {
+		if ((SocketUtils.SO_REUSEPORT == null) || !channel.supportedOptions()
+				.contains(SocketUtils.SO_REUSEPORT)) {
+			throw new IOException("SO_REUSEPORT is not supported");
+		}
+
+		channel.setOption(SocketUtils.SO_REUSEPORT, Boolean.TRUE);
+	}
+
+	/**
+	 * Copy data from input socket to output socket. The socket streams are
+	 * not buffered, so the output stream is only flushed once the input has
+	 * reached end of stream.
 	 * 
 	 * @param inputSocket
 	 *            the input socket
@@ -39,6 +104,12 @@ public class SocketUtils {
 	 */
 	public static void copy(final Socket inputSocket,
 			final Socket outputSocket) throws IOException {
+		copy(inputSocket, outputSocket, (Activity) null);
+	}
+
+	private static void copy(final Socket inputSocket,
+			final Socket outputSocket, final Activity activity)
+			throws IOException {
 
 		InputStream inputStream = null;
 		OutputStream outputStream = null;
@@ -46,21 +117,25 @@ public class SocketUtils {
 			inputStream = inputSocket.getInputStream();
 			outputStream = outputSocket.getOutputStream();
 
-			final byte buf[] = new byte[3000];
+			final byte buf[] = new byte[8192];
 			int length;
 			while (true) {
 				try {
 					length = inputStream.read(buf);
 
 					if (length > 0) {
+						if (activity != null) {
+							activity.touch();
+						}
 						outputStream.write(buf, 0, length);
-						outputStream.flush();
 					} else if (length == -1) {
 						break;
 					}
 				} catch (final InterruptedIOException ioe) {
 				}
 			}
+
+			outputStream.flush();
 		} finally {
 			try {
 				inputSocket.shutdownInput();
@@ -72,4 +147,156 @@ public class SocketUtils {
 			}
 		}
 	}
+
+	/**
+	 * Copy data from input socket to output socket. If both sockets are
+	 * backed by blocking channels the data is copied between the channels
+	 * using a direct buffer from the pool, otherwise the streams are used.
+	 * 
+	 * @param inputSocket
+	 *            the input socket
+	 * @param outputSocket
+	 *            the output socket
+	 * @param bufferPool
+	 *            the buffer pool, may be null
+	 * @throws IOException
+	 *             if an I/O exception occurs
+	 */
+	public static void copy(final Socket inputSocket,
+			final Socket outputSocket, final BufferPool bufferPool)
+			throws IOException {
+		copy(inputSocket, outputSocket, bufferPool, 1);
+	}
+
+	/**
+	 * Copy data from input socket to output socket. If both sockets are
+	 * backed by blocking channels the data is copied between the channels
+	 * using direct buffers from the pool, otherwise the streams are used.
+	 * Each read fills as many of the buffers as there is data available, and
+	 * everything read is written with a single gathering write. The size of
+	 * the buffers is adapted to the traffic by a {@link BufferSizer}. If the
+	 * memory limit of the pool leaves no buffers for the copy, both sockets
+	 * are closed.
+	 * 
+	 * @param inputSocket
+	 *            the input socket
+	 * @param outputSocket
+	 *            the output socket
+	 * @param bufferPool
+	 *            the buffer pool, may be null
+	 * @param coalesceBuffers
+	 *            the number of buffers to read into, less than 1 means 1
+	 * @throws IOException
+	 *             if an I/O exception occurs
+	 */
+	public static void copy(final Socket inputSocket,
+			final Socket outputSocket, final BufferPool bufferPool,
+			final int coalesceBuffers) throws IOException {
+		copy(inputSocket, outputSocket, bufferPool, coalesceBuffers, null);
+	}
+
+	/**
+	 * Copy data from input socket to output socket as
+	 * {@link #copy(Socket, Socket, BufferPool, int)}, recording every read in
+	 * the activity of the tunnel
+	 * 
+	 * @param inputSocket
+	 *            the input socket
+	 * @param outputSocket
+	 *            the output socket
+	 * @param bufferPool
+	 *            the buffer pool, may be null
+	 * @param coalesceBuffers
+	 *            the number of buffers to read into, less than 1 means 1
+	 * @param activity
+	 *            the activity of the tunnel, may be null
+	 * @throws IOException
+	 *             if an I/O exception occurs
+	 * @since 3.0
+	 */
+	public static void copy(final Socket inputSocket,
+			final Socket outputSocket, final BufferPool bufferPool,
+			final int coalesceBuffers, final Activity activity)
+			throws IOException {
+
+		final SocketChannel inputChannel = inputSocket.getChannel();
+		final SocketChannel outputChannel = outputSocket.getChannel();
+
+		if ((bufferPool == null) || (inputChannel == null)
+				|| (outputChannel == null) || !inputChannel.isBlocking()
+				|| !outputChannel.isBlocking()) {
+			copy(inputSocket, outputSocket, activity);
+			return;
+		}
+
+		final ByteBuffer[] buffers = new ByteBuffer[Math.max(1,
+				coalesceBuffers)];
+		for (int i = 0; i < buffers.length; i++) {
+			buffers[i] = bufferPool.acquire();
+
+			if (buffers[i] == null) {
+				for (int j = 0; j < i; j++) {
+					bufferPool.release(buffers[j]);
+				}
+
+				// Ends the copy in the other direction as well
+				try {
+					inputSocket.close();
+				} catch (final IOException e) {
+				}
+				try {
+					outputSocket.close();
+				} catch (final IOException e) {
+				}
+				throw new IOException("Buffer memory limit reached");
+			}
+		}
+
+		final BufferSizer bufferSizer = new BufferSizer(bufferPool);
+
+		try {
+			long length;
+			while ((length = inputChannel.read(buffers)) != -1) {
+				if (activity != null) {
+					activity.touch();
+				}
+
+				for (final ByteBuffer buffer : buffers) {
+					buffer.flip();
+				}
+
+				while (hasRemaining(buffers)) {
+					outputChannel.write(buffers);
+				}
+
+				for (final ByteBuffer buffer : buffers) {
+					buffer.clear();
+				}
+
+				bufferSizer.transferred(buffers, length);
+			}
+		} finally {
+			for (final ByteBuffer buffer : buffers) {
+				bufferPool.release(buffer);
+			}
+
+			try {
+				inputSocket.shutdownInput();
+			} catch (final Exception e) {
+			}
+			try {
+				outputSocket.shutdownOutput();
+			} catch (final Exception e) {
+			}
+		}
+	}
+
+	private static boolean hasRemaining(final ByteBuffer[] buffers) {
+		for (final ByteBuffer buffer : buffers) {
+			if (buffer.hasRemaining()) {
+				return true;
+			}
+		}
+		return false;
+	}
 }
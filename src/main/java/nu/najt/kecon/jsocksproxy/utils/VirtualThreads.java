@@ -0,0 +1,62 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import java.lang.reflect.Method;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Access to virtual threads on JVMs that provide them. The proxy is built for
+ * Java 8, so the executor is looked up by reflection.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public final class VirtualThreads {
+
+	private static final Method NEW_EXECUTOR = VirtualThreads.lookup();
+
+	private VirtualThreads() {
+	}
+
+	private static Method lookup() {
+		try {
+			return Executors.class
+					.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (final NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Create an executor that starts a new virtual thread for each task
+	 * 
+	 * @return the executor, or null if virtual threads are not available
+	 */
+	public static ExecutorService newExecutor() {
+		if (VirtualThreads.NEW_EXECUTOR == null) {
+			return null;
+		}
+
+		try {
+			return (ExecutorService) VirtualThreads.NEW_EXECUTOR.invoke(null);
+		} catch (final ReflectiveOperationException | RuntimeException e) {
+			// Preview feature not enabled
+			return null;
+		}
+	}
+}
@@ -0,0 +1,193 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Arrays;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+
+/**
+ * Testing SOCKS4 and SOCKS5 BIND tunnels where the remote side talks first,
+ * which stalled when a channel backed client socket was copied with streams
+ * to a plain socket
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class BindTunnelTest {
+
+	private static final byte[] GREETING = { 0x05, 0x01, 0x00 };
+
+	private static final byte[] BANNER = "220 ready\r\n".getBytes();
+
+	private final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+
+	private ExecutorService executorService;
+
+	private ListeningThread listeningThread;
+
+	@Before
+	public void before() throws IOException {
+		this.executorService = Executors.newCachedThreadPool();
+
+		this.listeningThread = new ListeningThread(this.configurationFacade,
+				LoggerFactory.getLogger(BindTunnelTest.class),
+				this.executorService, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void after() {
+		this.listeningThread.shutdown();
+		this.executorService.shutdownNow();
+
+		final RelayEngine relayEngine = this.configurationFacade
+				.getRelayEngine();
+		if (relayEngine != null) {
+			relayEngine.shutdown();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testRemoteTalksFirst() throws IOException {
+		this.assertBind();
+	}
+
+	@Test(timeout = 10000)
+	public void testRemoteTalksFirstRelayed() throws IOException {
+		final RelayEngine relayEngine = new RelayEngine(1);
+		relayEngine.start();
+		this.configurationFacade.setRelayEngine(relayEngine);
+
+		this.assertBind();
+	}
+
+	@Test(timeout = 10000)
+	public void testSocks4RemoteTalksFirst() throws Exception {
+		this.assertBind4();
+	}
+
+	@Test(timeout = 10000)
+	public void testSocks4RemoteTalksFirstRelayed() throws Exception {
+		final RelayEngine relayEngine = new RelayEngine(1);
+		relayEngine.start();
+		this.configurationFacade.setRelayEngine(relayEngine);
+
+		this.assertBind4();
+	}
+
+	private void assertBind4() throws Exception {
+		try (final Socket client = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort())) {
+			client.setSoTimeout(5000);
+			final DataInputStream inputStream = new DataInputStream(
+					client.getInputStream());
+			final byte[] address = InetAddress.getLoopbackAddress()
+					.getAddress();
+
+			client.getOutputStream()
+					.write(new byte[] { 0x04, 0x02, 0, 0, address[0],
+							address[1], address[2], address[3], 0x00 });
+
+			final byte[] bound = new byte[8];
+			inputStream.readFully(bound);
+			assertEquals(0x5a, bound[1]);
+
+			try (final Socket remote = new Socket(
+					InetAddress.getLoopbackAddress(),
+					((bound[2] & 0xff) << 8) | (bound[3] & 0xff))) {
+				remote.setSoTimeout(5000);
+
+				final byte[] accepted = new byte[8];
+				inputStream.readFully(accepted);
+				assertEquals(0x5a, accepted[1]);
+
+				// The tunnel must outlive the handler when it is relayed
+				Thread.sleep(500);
+
+				remote.getOutputStream().write(BANNER);
+				final byte[] banner = new byte[BANNER.length];
+				inputStream.readFully(banner);
+				assertArrayEquals(BANNER, banner);
+
+				client.getOutputStream().write(0x2a);
+				assertEquals(0x2a, remote.getInputStream().read());
+			}
+		}
+	}
+
+	private void assertBind() throws IOException {
+		try (final Socket client = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort())) {
+			client.setSoTimeout(5000);
+			final DataInputStream inputStream = new DataInputStream(
+					client.getInputStream());
+			final byte[] address = InetAddress.getLoopbackAddress()
+					.getAddress();
+
+			client.getOutputStream().write(GREETING);
+			client.getOutputStream()
+					.write(new byte[] { 0x05, 0x02, 0x00, 0x01, address[0],
+							address[1], address[2], address[3], 0, 0 });
+
+			final byte[] methodReply = new byte[2];
+			inputStream.readFully(methodReply);
+			assertArrayEquals(new byte[] { 0x05, 0x00 }, methodReply);
+
+			final byte[] bound = new byte[10];
+			inputStream.readFully(bound);
+			assertEquals(0x00, bound[1]);
+
+			try (final Socket remote = new Socket(
+					InetAddress.getByAddress(Arrays.copyOfRange(bound, 4, 8)),
+					((bound[8] & 0xff) << 8) | (bound[9] & 0xff))) {
+				remote.setSoTimeout(5000);
+
+				final byte[] accepted = new byte[10];
+				inputStream.readFully(accepted);
+				assertEquals(0x00, accepted[1]);
+
+				// The client only writes once it has read the banner
+				remote.getOutputStream().write(BANNER);
+				final byte[] banner = new byte[BANNER.length];
+				inputStream.readFully(banner);
+				assertArrayEquals(BANNER, banner);
+
+				client.getOutputStream().write(0x2a);
+				assertEquals(0x2a, remote.getInputStream().read());
+			}
+		}
+	}
+}
@@ -0,0 +1,215 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import java.io.BufferedReader;
+import java.io.FileReader;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.configuration.ExecutorMode;
+import nu.najt.kecon.jsocksproxy.utils.VirtualThreads;
+
+/**
+ * Measures how many idle SOCKS5 tunnels the blocking relay can hold per GB of
+ * heap with each executor mode. Every tunnel is a client connected through
+ * the proxy to a local server, and holds two blocking copy tasks in the
+ * proxy.<br>
+ * <br>
+ * Run with <code>java ... ConnectionDensityBenchmark [connections] [mode]</code>.
+ * Make sure the open files limit allows four sockets per connection. Thread
+ * stacks of platform threads are not part of the heap, so the resident set
+ * size of the process is reported as well.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class ConnectionDensityBenchmark {
+
+	private static final long GB = 1024l * 1024l * 1024l;
+
+	public static void main(final String[] args) throws Exception {
+		final int connections = (args.length > 0) ? Integer.parseInt(args[0])
+				: 1000;
+
+		final List<ExecutorMode> modes = new ArrayList<ExecutorMode>();
+		if (args.length > 1) {
+			modes.add(ExecutorMode.valueOf(args[1]));
+		} else {
+			modes.add(ExecutorMode.PLATFORM);
+			modes.add(ExecutorMode.VIRTUAL);
+		}
+
+		for (final ExecutorMode mode : modes) {
+			final ExecutorService executor = (mode == ExecutorMode.VIRTUAL)
+					? VirtualThreads.newExecutor()
+					: Executors.newCachedThreadPool();
+
+			if (executor == null) {
+				System.out.println(mode + ": not available on this JVM");
+				continue;
+			}
+
+			try {
+				ConnectionDensityBenchmark.run(mode, executor, connections);
+			} finally {
+				executor.shutdownNow();
+			}
+		}
+	}
+
+	private static void run(final ExecutorMode mode,
+			final ExecutorService executor, final int connections)
+			throws Exception {
+		final List<SocketChannel> sockets = new ArrayList<SocketChannel>();
+
+		final ServerSocketChannel target = ServerSocketChannel.open();
+		target.socket().bind(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0),
+				connections);
+
+		final Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						final SocketChannel socket = target.accept();
+						synchronized (sockets) {
+							sockets.add(socket);
+						}
+					}
+				} catch (final IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+
+		final ListeningThread listeningThread = new ListeningThread(
+				new TestConfigurationFacade(),
+				LoggerFactory.getLogger(ConnectionDensityBenchmark.class),
+				executor, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+		final InetSocketAddress proxyAddress = new InetSocketAddress(
+				InetAddress.getLoopbackAddress(),
+				listeningThread.getLocalPort());
+		final Thread listener = new Thread(listeningThread);
+		listener.setDaemon(true);
+		listener.start();
+
+		final long baselineHeap = ConnectionDensityBenchmark.usedHeap();
+		final long baselineResident = ConnectionDensityBenchmark
+				.residentSetSize();
+		final long start = System.nanoTime();
+
+		for (int i = 0; i < connections; i++) {
+			final SocketChannel client = SocketChannel.open(proxyAddress);
+			ConnectionDensityBenchmark.connect(client,
+					(InetSocketAddress) target.getLocalAddress());
+
+			synchronized (sockets) {
+				sockets.add(client);
+			}
+		}
+
+		final long elapsed = System.nanoTime() - start;
+		final long heap = Math.max(1,
+				ConnectionDensityBenchmark.usedHeap() - baselineHeap);
+		final long resident = ConnectionDensityBenchmark.residentSetSize()
+				- baselineResident;
+
+		System.out.printf(
+				"%s: %d tunnels in %d ms, %d heap bytes/tunnel, %d tunnels/GB heap, %d resident bytes/tunnel, %d live threads%n",
+				mode, connections, elapsed / 1000000, heap / connections,
+				(connections * ConnectionDensityBenchmark.GB) / heap,
+				(resident > 0) ? resident / connections : -1,
+				ManagementFactory.getThreadMXBean().getThreadCount());
+
+		listeningThread.shutdown();
+		target.close();
+
+		synchronized (sockets) {
+			for (final SocketChannel socket : sockets) {
+				socket.close();
+			}
+		}
+	}
+
+	private static void connect(final SocketChannel client,
+			final InetSocketAddress target) throws IOException {
+		final ByteBuffer buffer = ByteBuffer.allocate(10);
+
+		client.write(ByteBuffer.wrap(new byte[] { 0x05, 0x01, 0x00 }));
+		ConnectionDensityBenchmark.read(client, buffer, 2);
+
+		final byte[] address = target.getAddress().getAddress();
+		client.write(ByteBuffer.wrap(new byte[] { 0x05, 0x01, 0x00, 0x01,
+				address[0], address[1], address[2], address[3],
+				(byte) (target.getPort() >> 8), (byte) target.getPort() }));
+		ConnectionDensityBenchmark.read(client, buffer, 10);
+
+		if (buffer.get(1) != 0x00) {
+			throw new IOException("Connect failed: " + buffer.get(1));
+		}
+	}
+
+	private static void read(final SocketChannel client,
+			final ByteBuffer buffer, final int length) throws IOException {
+		buffer.clear();
+		buffer.limit(length);
+		while (buffer.hasRemaining()) {
+			if (client.read(buffer) == -1) {
+				throw new IOException("Proxy closed the connection");
+			}
+		}
+	}
+
+	private static long usedHeap() throws InterruptedException {
+		for (int i = 0; i < 3; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+
+		final Runtime runtime = Runtime.getRuntime();
+		return runtime.totalMemory() - runtime.freeMemory();
+	}
+
+	private static long residentSetSize() {
+		try (BufferedReader reader = new BufferedReader(
+				new FileReader("/proc/self/status"))) {
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (line.startsWith("VmRSS:")) {
+					return Long.parseLong(
+							line.replaceAll("[^0-9]", "")) * 1024l;
+				}
+			}
+		} catch (final IOException | NumberFormatException e) {
+		}
+		return -1;
+	}
+}
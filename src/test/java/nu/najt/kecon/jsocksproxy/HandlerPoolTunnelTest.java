@@ -0,0 +1,177 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Testing that the handler pool runs more blocking tunnels than
+ * handlerThreads at once, although a pool with a queue only grows beyond its
+ * core size once the queue is full
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class HandlerPoolTunnelTest {
+
+	private static final int HANDLER_THREADS = 2;
+
+	private static final int TUNNELS = HandlerPoolTunnelTest.HANDLER_THREADS
+			* 3;
+
+	private ThreadPoolExecutor handlerPool;
+
+	private ExecutorService tunnelExecutor;
+
+	private ListeningThread listeningThread;
+
+	private ServerSocket serverSocket;
+
+	@Before
+	public void before() throws IOException {
+		// The defaults of the configuration, but with fewer threads
+		this.handlerPool = JSocksProxy.createHandlerPool(
+				HandlerPoolTunnelTest.HANDLER_THREADS, 512, 1024, 0, true,
+				new ThreadPoolExecutor.AbortPolicy());
+		this.tunnelExecutor = Executors.newCachedThreadPool();
+
+		this.listeningThread = new ListeningThread(
+				new TestConfigurationFacade(),
+				LoggerFactory.getLogger(HandlerPoolTunnelTest.class),
+				this.handlerPool, this.tunnelExecutor, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+
+		this.serverSocket = new ServerSocket(0, 50,
+				InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void after() throws IOException {
+		this.listeningThread.shutdown();
+		this.handlerPool.shutdownNow();
+		this.tunnelExecutor.shutdownNow();
+		this.serverSocket.close();
+	}
+
+	@Test
+	public void testRelayedTunnels() {
+		final ThreadPoolExecutor pool = JSocksProxy.createHandlerPool(
+				HandlerPoolTunnelTest.HANDLER_THREADS, 512, 1024, 0, false,
+				new ThreadPoolExecutor.AbortPolicy());
+
+		// Tunnels relayed by the relay engine do not hold handler threads
+		assertEquals(HandlerPoolTunnelTest.HANDLER_THREADS,
+				pool.getCorePoolSize());
+		assertFalse(pool.allowsCoreThreadTimeOut());
+
+		JSocksProxy.resizeHandlerPool(pool,
+				HandlerPoolTunnelTest.HANDLER_THREADS, 512, true);
+		assertEquals(512, pool.getCorePoolSize());
+		assertTrue(pool.allowsCoreThreadTimeOut());
+		pool.shutdown();
+	}
+
+	@Test(timeout = 20000)
+	public void testMoreTunnelsThanHandlerThreads() throws IOException {
+		final List<Socket> clients = new ArrayList<Socket>();
+		final List<Socket> remotes = new ArrayList<Socket>();
+
+		try {
+			for (int i = 0; i < HandlerPoolTunnelTest.TUNNELS; i++) {
+				final Socket client = new Socket(
+						InetAddress.getLoopbackAddress(),
+						this.listeningThread.getLocalPort());
+				client.setSoTimeout(5000);
+				clients.add(client);
+
+				this.handshake(client);
+
+				final Socket remote = this.serverSocket.accept();
+				remote.setSoTimeout(5000);
+				remotes.add(remote);
+			}
+
+			// All tunnels are open at the same time
+			for (int i = 0; i < HandlerPoolTunnelTest.TUNNELS; i++) {
+				final byte[] data = { 'd', 'a', 't', 'a', (byte) i };
+
+				clients.get(i).getOutputStream().write(data);
+				final byte[] received = new byte[data.length];
+				new DataInputStream(remotes.get(i).getInputStream())
+						.readFully(received);
+				assertArrayEquals(data, received);
+
+				remotes.get(i).getOutputStream().write(i);
+				assertEquals(i, clients.get(i).getInputStream().read());
+			}
+
+			assertEquals(HandlerPoolTunnelTest.TUNNELS,
+					this.handlerPool.getActiveCount());
+		} finally {
+			for (final Socket socket : clients) {
+				socket.close();
+			}
+
+			for (final Socket socket : remotes) {
+				socket.close();
+			}
+		}
+	}
+
+	private void handshake(final Socket client) throws IOException {
+		final byte[] address = InetAddress.getLoopbackAddress().getAddress();
+		final int port = this.serverSocket.getLocalPort();
+		final DataInputStream inputStream = new DataInputStream(
+				client.getInputStream());
+
+		client.getOutputStream().write(new byte[] { 0x05, 0x01, 0x00 });
+		final byte[] methodReply = new byte[2];
+		inputStream.readFully(methodReply);
+		assertArrayEquals(new byte[] { 0x05, 0x00 }, methodReply);
+
+		client.getOutputStream()
+				.write(new byte[] { 0x05, 0x01, 0x00, 0x01, address[0],
+						address[1], address[2], address[3],
+						(byte) (port >> 8), (byte) port });
+		final byte[] reply = new byte[10];
+		inputStream.readFully(reply);
+		assertEquals(0x00, reply[1]);
+	}
+}
@@ -0,0 +1,170 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+
+/**
+ * Testing that <code>HandshakeDeadline</code> aborts slow handshakes
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class HandshakeDeadlineTest {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("test-timer",
+			10, TimeUnit.MILLISECONDS, 64);
+
+	private final HandshakeDeadline handshakeDeadline = new HandshakeDeadline(
+			this.timer, 200);
+
+	private ExecutorService executorService;
+
+	private ListeningThread listeningThread;
+
+	@Before
+	public void before() throws IOException {
+		this.executorService = Executors.newCachedThreadPool();
+
+		final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+		configurationFacade.setHandshakeDeadline(this.handshakeDeadline);
+
+		this.listeningThread = new ListeningThread(configurationFacade,
+				LoggerFactory.getLogger(HandshakeDeadlineTest.class),
+				this.executorService, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void after() {
+		this.listeningThread.shutdown();
+		this.executorService.shutdownNow();
+		this.timer.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void testSilentClientIsClosed() throws IOException {
+		try (final Socket socket = this.connect()) {
+			assertClosed(socket.getInputStream());
+		}
+
+		assertEquals(1, this.handshakeDeadline.getAborted());
+	}
+
+	@Test(timeout = 10000)
+	public void testStalledRequestIsClosed() throws IOException {
+		try (final Socket socket = this.connect()) {
+			socket.getOutputStream().write(new byte[] { 0x05, 0x01, 0x00 });
+
+			final DataInputStream inputStream = new DataInputStream(
+					socket.getInputStream());
+			final byte[] reply = new byte[2];
+			inputStream.readFully(reply);
+			assertArrayEquals(new byte[] { 0x05, 0x00 }, reply);
+
+			// Half of a CONNECT request
+			socket.getOutputStream().write(new byte[] { 0x05, 0x01 });
+
+			assertClosed(inputStream);
+		}
+
+		assertEquals(1, this.handshakeDeadline.getAborted());
+	}
+
+	@Test(timeout = 10000)
+	public void testOneDeadlineFromAccept() throws Exception {
+		this.handshakeDeadline.setTimeout(1000);
+
+		try (final Socket socket = this.connect()) {
+			final long start = System.nanoTime();
+
+			// The version late, and then only the greeting
+			Thread.sleep(700);
+			socket.getOutputStream().write(new byte[] { 0x05, 0x01, 0x00 });
+
+			assertClosed(socket.getInputStream(), 2);
+
+			// A second deadline for the request would last until 1700 ms
+			assertTrue(TimeUnit.NANOSECONDS
+					.toMillis(System.nanoTime() - start) < 1500);
+		}
+
+		assertEquals(1, this.handshakeDeadline.getAborted());
+	}
+
+	@Test(timeout = 10000)
+	public void testDisabledDeadline() throws IOException {
+		this.handshakeDeadline.setTimeout(0);
+
+		try (final Socket socket = this.connect()) {
+			socket.setSoTimeout(500);
+			socket.getInputStream().read();
+			throw new AssertionError("Connection closed without a deadline");
+		} catch (final SocketTimeoutException e) {
+		}
+
+		assertEquals(0, this.handshakeDeadline.getAborted());
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private static void assertClosed(final InputStream inputStream)
+			throws IOException {
+		assertClosed(inputStream, 0);
+	}
+
+	private static void assertClosed(final InputStream inputStream,
+			final int replyLength) throws IOException {
+		try {
+			for (int i = 0; i < replyLength; i++) {
+				inputStream.read();
+			}
+			assertEquals(-1, inputStream.read());
+		} catch (final SocketException e) {
+			// Reset by the proxy
+		}
+	}
+}
@@ -0,0 +1,150 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
+
+/**
+ * Testing that idle tunnels are closed after the idle timeout of their
+ * listening thread
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class IdleTimeoutTest {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("test-timer",
+			10, TimeUnit.MILLISECONDS, 64);
+
+	private final IdleMonitor idleMonitor = new IdleMonitor(this.timer);
+
+	private final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+
+	private ExecutorService executorService;
+
+	private ListeningThread listeningThread;
+
+	private ServerSocket serverSocket;
+
+	@Before
+	public void before() throws IOException {
+		this.executorService = Executors.newCachedThreadPool();
+		this.configurationFacade.setIdleMonitor(this.idleMonitor);
+
+		this.listeningThread = new ListeningThread(this.configurationFacade,
+				LoggerFactory.getLogger(IdleTimeoutTest.class),
+				this.executorService, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+		this.listeningThread.setIdleTimeout(200);
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+
+		this.serverSocket = new ServerSocket(0, 50,
+				InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void after() throws IOException {
+		this.listeningThread.shutdown();
+		this.executorService.shutdownNow();
+		this.serverSocket.close();
+		this.timer.stop();
+
+		final RelayEngine relayEngine = this.configurationFacade
+				.getRelayEngine();
+		if (relayEngine != null) {
+			relayEngine.shutdown();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testIdleTunnelClosed() throws IOException {
+		this.assertIdleTunnelClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testIdleRelayedTunnelClosed() throws IOException {
+		final RelayEngine relayEngine = new RelayEngine(1);
+		relayEngine.start();
+		this.configurationFacade.setRelayEngine(relayEngine);
+
+		this.assertIdleTunnelClosed();
+	}
+
+	private void assertIdleTunnelClosed() throws IOException {
+		try (final Socket socket = new Socket(
+				InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort())) {
+			socket.setSoTimeout(5000);
+
+			final byte[] address = InetAddress.getLoopbackAddress()
+					.getAddress();
+			final int port = this.serverSocket.getLocalPort();
+			socket.getOutputStream()
+					.write(new byte[] { 0x05, 0x01, 0x00, 0x05, 0x01, 0x00,
+							0x01, address[0], address[1], address[2],
+							address[3], (byte) (port >> 8), (byte) port });
+
+			final DataInputStream inputStream = new DataInputStream(
+					socket.getInputStream());
+			// Method selection and CONNECT replies
+			final byte[] reply = new byte[12];
+			inputStream.readFully(reply);
+			assertEquals(0x00, reply[3]);
+
+			try (final Socket remote = this.serverSocket.accept()) {
+				remote.setSoTimeout(5000);
+
+				// Data keeps the tunnel open
+				for (int i = 0; i < 4; i++) {
+					remote.getOutputStream().write(i);
+					assertEquals(i, inputStream.read());
+
+					try {
+						Thread.sleep(100);
+					} catch (final InterruptedException e) {
+					}
+				}
+
+				assertEquals(-1, inputStream.read());
+				assertEquals(-1, remote.getInputStream().read());
+			}
+		}
+
+		assertEquals(1, this.idleMonitor.getClosed());
+	}
+}
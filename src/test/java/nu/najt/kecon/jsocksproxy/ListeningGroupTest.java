@@ -0,0 +1,127 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.utils.SocketUtils;
+
+/**
+ * Testing <code>ListeningGroup</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class ListeningGroupTest {
+
+	private static final Logger LOG = LoggerFactory
+			.getLogger(ListeningGroupTest.class);
+
+	private ExecutorService executorService;
+
+	@Before
+	public void before() {
+		assumeTrue(SocketUtils.isReusePortSupported());
+
+		this.executorService = Executors.newCachedThreadPool();
+	}
+
+	@After
+	public void after() {
+		if (this.executorService != null) {
+			this.executorService.shutdownNow();
+		}
+	}
+
+	@Test(timeout = 20000)
+	public void testAcceptorsShareAddress()
+			throws IOException, InterruptedException {
+		final ListeningGroup listeningGroup = new ListeningGroup(
+				new TestConfigurationFacade(), ListeningGroupTest.LOG,
+				this.executorService, this.executorService,
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 4);
+
+		assertEquals(4, listeningGroup.getListeningThreads().size());
+
+		final int port = listeningGroup.getListeningThreads().get(0)
+				.getLocalPort();
+		for (final ListeningThread listeningThread : listeningGroup
+				.getListeningThreads()) {
+			assertEquals(port, listeningThread.getLocalPort());
+		}
+
+		listeningGroup.start(this.executorService);
+
+		try {
+			for (int i = 0; i < 20; i++) {
+				try (final Socket socket = new Socket(
+						InetAddress.getLoopbackAddress(), port)) {
+					socket.setSoTimeout(5000);
+					socket.getOutputStream()
+							.write(new byte[] { 0x05, 0x01, 0x00 });
+
+					final byte[] reply = new byte[2];
+					new DataInputStream(socket.getInputStream())
+							.readFully(reply);
+					assertArrayEquals(new byte[] { 0x05, 0x00 }, reply);
+				}
+			}
+		} finally {
+			listeningGroup.shutdown();
+		}
+
+		// A socket is released once its blocked accept has returned
+		while (true) {
+			try {
+				new Socket(InetAddress.getLoopbackAddress(), port).close();
+			} catch (final ConnectException e) {
+				return;
+			}
+			Thread.sleep(10);
+		}
+	}
+
+	@Test(expected = IOException.class)
+	public void testBindFailureClosesGroup() throws IOException {
+		try (final ServerSocket serverSocket = new ServerSocket(0, 50,
+				InetAddress.getLoopbackAddress())) {
+			new ListeningGroup(new TestConfigurationFacade(),
+					ListeningGroupTest.LOG, this.executorService,
+					this.executorService,
+					new InetSocketAddress(InetAddress.getLoopbackAddress(),
+							serverSocket.getLocalPort()),
+					2);
+		}
+	}
+}
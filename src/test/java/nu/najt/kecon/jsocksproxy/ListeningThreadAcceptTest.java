@@ -0,0 +1,106 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Testing that clients which never send the SOCKS version do not stall the
+ * accept loop of <code>ListeningThread</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class ListeningThreadAcceptTest {
+
+	private static final int SILENT_CLIENTS = 50;
+
+	private static final int CLIENTS = 50;
+
+	private final List<Socket> sockets = new ArrayList<Socket>();
+
+	private ExecutorService executorService;
+
+	private ListeningThread listeningThread;
+
+	@Before
+	public void before() throws IOException {
+		this.executorService = Executors.newCachedThreadPool();
+
+		this.listeningThread = new ListeningThread(
+				new TestConfigurationFacade(),
+				LoggerFactory.getLogger(ListeningThreadAcceptTest.class),
+				this.executorService, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void after() {
+		this.listeningThread.shutdown();
+
+		for (final Socket socket : this.sockets) {
+			try {
+				socket.close();
+			} catch (final IOException e) {
+			}
+		}
+
+		this.executorService.shutdownNow();
+	}
+
+	@Test(timeout = 20000)
+	public void testSilentClientsDoNotStallAccept() throws IOException {
+		for (int i = 0; i < ListeningThreadAcceptTest.SILENT_CLIENTS; i++) {
+			this.connect();
+		}
+
+		for (int i = 0; i < ListeningThreadAcceptTest.CLIENTS; i++) {
+			final Socket socket = this.connect();
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(new byte[] { 0x05, 0x01, 0x00 });
+
+			final byte[] reply = new byte[2];
+			new DataInputStream(socket.getInputStream()).readFully(reply);
+			assertArrayEquals(new byte[] { 0x05, 0x00 }, reply);
+		}
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort());
+		this.sockets.add(socket);
+		return socket;
+	}
+}
@@ -0,0 +1,111 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Testing that <code>ListeningThread</code> rejects clients with a SOCKS
+ * failure reply when the handler pool is full
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class ListeningThreadRejectTest {
+
+	private final CountDownLatch release = new CountDownLatch(1);
+
+	private ThreadPoolExecutor handlerPool;
+
+	private ListeningThread listeningThread;
+
+	@Before
+	public void before() throws IOException {
+		this.handlerPool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS,
+				new SynchronousQueue<Runnable>());
+
+		// Occupy the only handler thread
+		this.handlerPool.execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					ListeningThreadRejectTest.this.release.await();
+				} catch (final InterruptedException e) {
+				}
+			}
+		});
+
+		this.listeningThread = new ListeningThread(
+				new TestConfigurationFacade(),
+				LoggerFactory.getLogger(ListeningThreadRejectTest.class),
+				this.handlerPool, this.handlerPool, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@After
+	public void after() {
+		this.listeningThread.shutdown();
+		this.release.countDown();
+		this.handlerPool.shutdown();
+	}
+
+	@Test
+	public void testRejectSocks4() throws IOException {
+		assertArrayEquals(new byte[] { 0x00, 0x5b, 0, 0, 0, 0, 0, 0 },
+				this.exchange(new byte[] { 0x04, 0x01, 0x00, 0x50, 0x42, 0x66,
+						0x07, 0x63, 0x00 }, 8));
+	}
+
+	@Test
+	public void testRejectSocks5() throws IOException {
+		assertArrayEquals(new byte[] { 0x05, (byte) 0xff },
+				this.exchange(new byte[] { 0x05, 0x01, 0x00 }, 2));
+	}
+
+	private byte[] exchange(final byte[] request, final int replyLength)
+			throws IOException {
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort())) {
+			socket.setSoTimeout(5000);
+			socket.getOutputStream().write(request);
+
+			// Accept once the request has arrived, so that the version can be
+			// read when rejecting
+			final Thread thread = new Thread(this.listeningThread);
+			thread.setDaemon(true);
+			thread.start();
+
+			final byte[] reply = new byte[replyLength];
+			new DataInputStream(socket.getInputStream()).readFully(reply);
+			return reply;
+		}
+	}
+}
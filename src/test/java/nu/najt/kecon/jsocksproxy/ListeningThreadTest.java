@@ -16,6 +16,7 @@
 package nu.najt.kecon.jsocksproxy;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.mockito.ArgumentMatchers.any;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
@@ -44,15 +45,13 @@ import nu.najt.kecon.jsocksproxy.socks5.SocksImplementation5;
  * Testing <code>ListeningThread</code>
  * 
  * @author Kenny Colliander Nordin
- *
+ * 
  */
 @RunWith(MockitoJUnitRunner.class)
 public class ListeningThreadTest {
 
 	private static final String IP_192_168_0_1 = "192.168.0.1";
 
-	private static final String IP_192_168_0_2 = "192.168.0.2";
-
 	@Mock
 	private ConfigurationFacade configuration;
 
@@ -99,76 +98,67 @@ public class ListeningThreadTest {
 	}
 
 	@Test
-	public void testAcceptConnectionSocks4() throws IOException {
+	public void testAcceptConnectionDispatches() throws IOException {
 		when(serverSocket.accept()).thenReturn(socket);
+
+		listeningThread.acceptConnection();
+
+		verify(executorService).execute(any(HandshakeDispatcher.class));
+		verify(socket, never()).getInputStream();
+	}
+
+	@Test
+	public void testGetImplementationSocks4() throws Exception {
 		when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(
 				new byte[] { 0x04, 0x02, 0x00, 0x50, 0x42, 0x66, 0x07, 0x63,
 						0x46, 0x72, 0x65, 0x64, 0x00 }));
 
 		when(configuration.isAllowSocks4()).thenReturn(true);
 
-		listeningThread.acceptConnection();
-
-		verify(executorService).execute(any(SocksImplementation4.class));
+		assertTrue(listeningThread.getImplementation(configuration,
+				socket) instanceof SocksImplementation4);
 	}
 
 	@Test
-	public void testAcceptConnectionSocks5() throws IOException {
-		when(serverSocket.accept()).thenReturn(socket);
+	public void testGetImplementationSocks5() throws Exception {
 		when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(
 				new byte[] { 0x05, 0x02, 0x00, 0x50, 0x42, 0x66, 0x07, 0x63,
 						0x46, 0x72, 0x65, 0x64, 0x00 }));
 
 		when(configuration.isAllowSocks5()).thenReturn(true);
 
-		listeningThread.acceptConnection();
-
-		verify(executorService).execute(any(SocksImplementation5.class));
+		assertTrue(listeningThread.getImplementation(configuration,
+				socket) instanceof SocksImplementation5);
 	}
 
-	@Test
-	public void testAcceptConnectionInvalidProtocol() throws IOException {
-		when(serverSocket.accept()).thenReturn(socket);
+	@Test(expected = ProtocolException.class)
+	public void testGetImplementationInvalidProtocol() throws Exception {
 		when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(
 				new byte[] { 0x03, 0x02, 0x00, 0x50, 0x42, 0x66, 0x07, 0x63,
 						0x46, 0x72, 0x65, 0x64, 0x00 }));
-		when(socket.getInetAddress())
-				.thenReturn(InetAddress.getByName(IP_192_168_0_2));
-
-		listeningThread.acceptConnection();
 
-		verify(executorService, never()).execute(any());
+		listeningThread.getImplementation(configuration, socket);
 	}
 
-	@Test
-	public void testAcceptConnectionAccessDenied4() throws IOException {
-		when(serverSocket.accept()).thenReturn(socket);
+	@Test(expected = AccessDeniedException.class)
+	public void testGetImplementationAccessDenied4() throws Exception {
 		when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(
 				new byte[] { 0x04, 0x02, 0x00, 0x50, 0x42, 0x66, 0x07, 0x63,
 						0x46, 0x72, 0x65, 0x64, 0x00 }));
 
-		when(socket.getInetAddress())
-				.thenReturn(InetAddress.getByName(IP_192_168_0_2));
 		when(configuration.isAllowSocks4()).thenReturn(false);
 
-		listeningThread.acceptConnection();
-
-		verify(executorService, never()).execute(any());
+		listeningThread.getImplementation(configuration, socket);
 	}
 
-	@Test
-	public void testAcceptConnectionAccessDenied5() throws IOException {
-		when(serverSocket.accept()).thenReturn(socket);
+	@Test(expected = AccessDeniedException.class)
+	public void testGetImplementationAccessDenied5() throws Exception {
 		when(socket.getInputStream()).thenReturn(new ByteArrayInputStream(
 				new byte[] { 0x05, 0x02, 0x00, 0x50, 0x42, 0x66, 0x07, 0x63,
 						0x46, 0x72, 0x65, 0x64, 0x00 }));
 
-		when(socket.getInetAddress())
-				.thenReturn(InetAddress.getByName(IP_192_168_0_2));
 		when(configuration.isAllowSocks5()).thenReturn(false);
 
-		listeningThread.acceptConnection();
-
-		verify(executorService, never()).execute(any());
+		listeningThread.getImplementation(configuration, socket);
 	}
 }
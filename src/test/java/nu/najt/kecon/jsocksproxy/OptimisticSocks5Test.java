@@ -0,0 +1,180 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+
+/**
+ * Testing optimistic SOCKS5 with clients
+ * that send their request and data without waiting for the replies
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class OptimisticSocks5Test {
+
+	private static final byte[] GREETING = { 0x05, 0x01, 0x00 };
+
+	private static final byte[] DATA = "hello".getBytes();
+
+	private final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+
+	private ExecutorService executorService;
+
+	private ListeningThread listeningThread;
+
+	private ServerSocket serverSocket;
+
+	@Before
+	public void before() throws IOException {
+		this.executorService = Executors.newCachedThreadPool();
+		this.configurationFacade.setOptimisticSocks5(true);
+
+		this.listeningThread = new ListeningThread(this.configurationFacade,
+				LoggerFactory.getLogger(OptimisticSocks5Test.class),
+				this.executorService, new InetSocketAddress(
+						InetAddress.getLoopbackAddress(), 0));
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+
+		this.serverSocket = new ServerSocket(0, 50,
+				InetAddress.getLoopbackAddress());
+	}
+
+	@After
+	public void after() throws IOException {
+		this.listeningThread.shutdown();
+		this.executorService.shutdownNow();
+		this.serverSocket.close();
+
+		final RelayEngine relayEngine = this.configurationFacade
+				.getRelayEngine();
+		if (relayEngine != null) {
+			relayEngine.shutdown();
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testPipelined() throws IOException {
+		this.assertPipelined();
+	}
+
+	@Test(timeout = 10000)
+	public void testPipelinedRelayed() throws IOException {
+		final RelayEngine relayEngine = new RelayEngine(1);
+		relayEngine.start();
+		this.configurationFacade.setRelayEngine(relayEngine);
+
+		this.assertPipelined();
+	}
+
+	@Test(timeout = 10000)
+	public void testWaitingForReplies() throws IOException {
+		try (final Socket socket = this.connect()) {
+			final DataInputStream inputStream = new DataInputStream(
+					socket.getInputStream());
+
+			socket.getOutputStream().write(GREETING);
+			final byte[] methodReply = new byte[2];
+			inputStream.readFully(methodReply);
+			assertArrayEquals(new byte[] { 0x05, 0x00 }, methodReply);
+
+			socket.getOutputStream().write(this.request());
+			final byte[] reply = new byte[10];
+			inputStream.readFully(reply);
+			assertEquals(0x00, reply[1]);
+
+			try (final Socket remote = this.serverSocket.accept()) {
+				this.assertTunnel(socket, inputStream, remote);
+			}
+		}
+	}
+
+	private void assertPipelined() throws IOException {
+		try (final Socket socket = this.connect()) {
+			final ByteArrayOutputStream pipeline = new ByteArrayOutputStream();
+			pipeline.write(GREETING);
+			pipeline.write(this.request());
+			pipeline.write(DATA);
+			socket.getOutputStream().write(pipeline.toByteArray());
+
+			try (final Socket remote = this.serverSocket.accept()) {
+				remote.setSoTimeout(5000);
+
+				// The data is forwarded before the client reads the replies
+				final byte[] data = new byte[DATA.length];
+				new DataInputStream(remote.getInputStream()).readFully(data);
+				assertArrayEquals(DATA, data);
+
+				final DataInputStream inputStream = new DataInputStream(
+						socket.getInputStream());
+				final byte[] reply = new byte[12];
+				inputStream.readFully(reply);
+				assertEquals(0x00, reply[1]);
+				assertEquals(0x00, reply[3]);
+
+				this.assertTunnel(socket, inputStream, remote);
+			}
+		}
+	}
+
+	private void assertTunnel(final Socket socket,
+			final DataInputStream inputStream, final Socket remote)
+			throws IOException {
+		remote.getOutputStream().write(DATA);
+		final byte[] data = new byte[DATA.length];
+		inputStream.readFully(data);
+		assertArrayEquals(DATA, data);
+
+		socket.getOutputStream().write(0x2a);
+		assertEquals(0x2a, remote.getInputStream().read());
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private byte[] request() {
+		final byte[] address = InetAddress.getLoopbackAddress().getAddress();
+		final int port = this.serverSocket.getLocalPort();
+
+		return new byte[] { 0x05, 0x01, 0x00, 0x01, address[0], address[1],
+				address[2], address[3], (byte) (port >> 8), (byte) port };
+	}
+}
@@ -0,0 +1,133 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats;
+import nu.najt.kecon.jsocksproxy.connect.WarmSocketPool;
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+
+/**
+ * Testing that connections taken from the warm socket pool are not recorded
+ * as connect latencies
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class PooledConnectTest {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			command.run();
+		}
+	};
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("Test", 100,
+			TimeUnit.MILLISECONDS, 16);
+
+	private final DestinationStats destinationStats = new DestinationStats(
+			10);
+
+	private ServerSocket pooled;
+
+	private ServerSocket other;
+
+	private WarmSocketPool warmSocketPool;
+
+	private AbstractSocksImplementation implementation;
+
+	@Before
+	public void before() throws Exception {
+		final InetAddress loopback = InetAddress.getLoopbackAddress();
+		this.pooled = new ServerSocket(0, 50, loopback);
+		this.other = new ServerSocket(0, 50, loopback);
+
+		this.warmSocketPool = new WarmSocketPool(this.timer, DIRECT);
+		this.warmSocketPool.configure(
+				Collections.singletonMap(
+						new InetSocketAddress(loopback,
+								this.pooled.getLocalPort()),
+						new WarmSocketPool.Limits(1, 60000)),
+				null, 1000);
+
+		final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+		configurationFacade.setDestinationStats(this.destinationStats);
+		configurationFacade.setWarmSocketPool(this.warmSocketPool);
+
+		this.implementation = new AbstractSocksImplementation(
+				configurationFacade, new Socket(),
+				LoggerFactory.getLogger(PooledConnectTest.class), null) {
+
+			@Override
+			public void run() {
+			}
+
+			@Override
+			public void reject() {
+			}
+		};
+	}
+
+	@After
+	public void after() throws Exception {
+		this.warmSocketPool.shutdown();
+		this.timer.stop();
+		this.pooled.close();
+		this.other.close();
+	}
+
+	@Test
+	public void testPooledConnectionNotRecorded() throws Exception {
+		final int port = this.pooled.getLocalPort();
+
+		try (Socket socket = this.connect(port)) {
+			assertEquals(1, this.warmSocketPool.getHits());
+			assertNull(this.destinationStats.get("127.0.0.1", port));
+		}
+	}
+
+	@Test
+	public void testConnectRecorded() throws Exception {
+		final int port = this.other.getLocalPort();
+
+		try (Socket socket = this.connect(port)) {
+			assertEquals(0, this.warmSocketPool.getHits());
+			assertEquals(1, this.destinationStats.get("127.0.0.1", port)
+					.getAttempts());
+		}
+	}
+
+	private Socket connect(final int port) throws Exception {
+		return this.implementation.connect("127.0.0.1",
+				new InetAddress[] { InetAddress.getLoopbackAddress() }, port);
+	}
+}
@@ -0,0 +1,112 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertEquals;
+
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Arrays;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.configuration.SourceStrategy;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector;
+
+/**
+ * Testing that connections fail over to another source address when they can
+ * not be bound
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class SourceAddressFailoverTest {
+
+	/** An address which is not assigned to this host, so binding fails */
+	private static final String UNASSIGNED = "192.0.2.1";
+
+	private SourceAddressSelector selector;
+
+	private AbstractSocksImplementation implementation;
+
+	@Before
+	public void before() throws Exception {
+		this.selector = new SourceAddressSelector(
+				Arrays.asList(InetAddress.getByName(UNASSIGNED),
+						InetAddress.getLoopbackAddress()),
+				SourceStrategy.FIRST);
+
+		final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+		configurationFacade.setSourceAddressSelector(this.selector);
+
+		this.implementation = new AbstractSocksImplementation(
+				configurationFacade, new Socket(),
+				LoggerFactory.getLogger(SourceAddressFailoverTest.class),
+				null) {
+
+			@Override
+			public void run() {
+			}
+
+			@Override
+			public void reject() {
+			}
+		};
+	}
+
+	@Test
+	public void testFailoverSingleAddress() throws Exception {
+		try (ServerSocket serverSocket = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress());
+				Socket socket = this.implementation.openConnection(
+						InetAddress.getLoopbackAddress(),
+						serverSocket.getLocalPort())) {
+
+			assertEquals(InetAddress.getLoopbackAddress(),
+					socket.getLocalAddress());
+			this.assertCounters();
+		}
+	}
+
+	@Test
+	public void testFailoverStaggered() throws Exception {
+		// The first attempt is refused, as nothing listens on 127.0.0.2
+		try (ServerSocket serverSocket = new ServerSocket(0, 1,
+				InetAddress.getLoopbackAddress());
+				Socket socket = this.implementation.openConnection(
+						new InetAddress[] {
+								InetAddress.getByName("127.0.0.2"),
+								InetAddress.getLoopbackAddress() },
+						serverSocket.getLocalPort())) {
+
+			assertEquals(InetAddress.getLoopbackAddress(),
+					socket.getLocalAddress());
+			this.assertCounters();
+		}
+	}
+
+	private void assertCounters() throws Exception {
+		assertEquals(1, this.selector.find(InetAddress.getByName(UNASSIGNED))
+				.getPortExhaustions());
+		assertEquals(1, this.selector.find(InetAddress.getLoopbackAddress())
+				.getActive());
+		assertEquals(0, this.selector.find(InetAddress.getLoopbackAddress())
+				.getPortExhaustions());
+	}
+}
@@ -0,0 +1,229 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import java.net.InetAddress;
+import java.util.Collections;
+import java.util.List;
+
+import nu.najt.kecon.jsocksproxy.connect.CircuitBreaker;
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector;
+import nu.najt.kecon.jsocksproxy.connect.WarmSocketPool;
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+import nu.najt.kecon.jsocksproxy.udp.UdpRelay;
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
+
+/**
+ * Configuration used by tests and benchmarks that run the proxy over real
+ * sockets. Outgoing connections are made from the loopback address.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class TestConfigurationFacade implements ConfigurationFacade {
+
+	private RelayEngine relayEngine;
+
+	private BufferPool bufferPool = new BufferPool(64, 8192);
+
+	private HandshakeDeadline handshakeDeadline;
+
+	private IdleMonitor idleMonitor;
+
+	private SourceAddressSelector sourceAddressSelector;
+
+	private boolean optimisticSocks5 = false;
+
+	private UdpRelay udpRelay;
+
+	private HostResolver hostResolver;
+
+	private DestinationStats destinationStats;
+
+	private WarmSocketPool warmSocketPool;
+
+	@Override
+	public List<InetAddress> getOutgoingSourceAddresses() {
+		return Collections.singletonList(InetAddress.getLoopbackAddress());
+	}
+
+	@Override
+	public boolean isAllowSocks4() {
+		return true;
+	}
+
+	@Override
+	public boolean isAllowSocks5() {
+		return true;
+	}
+
+	@Override
+	public boolean isOptimisticSocks5() {
+		return this.optimisticSocks5;
+	}
+
+	@Override
+	public int getBacklog() {
+		return 100;
+	}
+
+	@Override
+	public RelayEngine getRelayEngine() {
+		return this.relayEngine;
+	}
+
+	/**
+	 * @param relayEngine
+	 *            the relayEngine to set, null relays with blocking threads
+	 */
+	public void setRelayEngine(final RelayEngine relayEngine) {
+		this.relayEngine = relayEngine;
+	}
+
+	@Override
+	public BufferPool getBufferPool() {
+		return this.bufferPool;
+	}
+
+	/**
+	 * @param bufferPool
+	 *            the bufferPool to set
+	 */
+	public void setBufferPool(final BufferPool bufferPool) {
+		this.bufferPool = bufferPool;
+	}
+
+	@Override
+	public int getCoalesceBuffers() {
+		return 1;
+	}
+
+	@Override
+	public HandshakeDeadline getHandshakeDeadline() {
+		return this.handshakeDeadline;
+	}
+
+	/**
+	 * @param handshakeDeadline
+	 *            the handshakeDeadline to set, null disables the deadline
+	 */
+	public void setHandshakeDeadline(
+			final HandshakeDeadline handshakeDeadline) {
+		this.handshakeDeadline = handshakeDeadline;
+	}
+
+	@Override
+	public IdleMonitor getIdleMonitor() {
+		return this.idleMonitor;
+	}
+
+	/**
+	 * @param idleMonitor
+	 *            the idleMonitor to set, null never closes idle tunnels
+	 */
+	public void setIdleMonitor(final IdleMonitor idleMonitor) {
+		this.idleMonitor = idleMonitor;
+	}
+
+	@Override
+	public HostResolver getHostResolver() {
+		return this.hostResolver;
+	}
+
+	/**
+	 * @param hostResolver
+	 *            the hostResolver to set, null resolves with the system
+	 *            resolver
+	 */
+	public void setHostResolver(final HostResolver hostResolver) {
+		this.hostResolver = hostResolver;
+	}
+
+	@Override
+	public int getConnectTimeout() {
+		return 0;
+	}
+
+	@Override
+	public DestinationStats getDestinationStats() {
+		return this.destinationStats;
+	}
+
+	/**
+	 * @param destinationStats
+	 *            the destinationStats to set, null records nothing
+	 */
+	public void setDestinationStats(final DestinationStats destinationStats) {
+		this.destinationStats = destinationStats;
+	}
+
+	@Override
+	public CircuitBreaker getCircuitBreaker() {
+		return null;
+	}
+
+	@Override
+	public SourceAddressSelector getSourceAddressSelector() {
+		return this.sourceAddressSelector;
+	}
+
+	@Override
+	public WarmSocketPool getWarmSocketPool() {
+		return this.warmSocketPool;
+	}
+
+	/**
+	 * @param warmSocketPool
+	 *            the warmSocketPool to set, null always connects
+	 */
+	public void setWarmSocketPool(final WarmSocketPool warmSocketPool) {
+		this.warmSocketPool = warmSocketPool;
+	}
+
+	@Override
+	public UdpRelay getUdpRelay() {
+		return this.udpRelay;
+	}
+
+	/**
+	 * @param optimisticSocks5
+	 *            true to read SOCKS5 requests before the replies are sent
+	 */
+	public void setOptimisticSocks5(final boolean optimisticSocks5) {
+		this.optimisticSocks5 = optimisticSocks5;
+	}
+
+	/**
+	 * @param udpRelay
+	 *            the udpRelay to set, null rejects UDP ASSOCIATE
+	 */
+	public void setUdpRelay(final UdpRelay udpRelay) {
+		this.udpRelay = udpRelay;
+	}
+
+	/**
+	 * @param sourceAddressSelector
+	 *            the sourceAddressSelector to set, null always uses the
+	 *            loopback address
+	 */
+	public void setSourceAddressSelector(
+			final SourceAddressSelector sourceAddressSelector) {
+		this.sourceAddressSelector = sourceAddressSelector;
+	}
+}
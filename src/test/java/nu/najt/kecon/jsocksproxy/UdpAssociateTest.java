@@ -0,0 +1,501 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.net.UnknownHostException;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+import nu.najt.kecon.jsocksproxy.udp.UdpRelay;
+
+/**
+ * Testing SOCKS5 UDP ASSOCIATE with clients relaying datagrams to an echo
+ * server
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class UdpAssociateTest {
+
+	private static final byte[] GREETING = { 0x05, 0x01, 0x00 };
+
+	private static final byte[] DATA = "hello".getBytes();
+
+	private final TestConfigurationFacade configurationFacade = new TestConfigurationFacade();
+
+	private ExecutorService executorService;
+
+	private ListeningThread listeningThread;
+
+	private UdpRelay udpRelay;
+
+	private DatagramSocket echo;
+
+	@Before
+	public void before() throws IOException {
+		this.executorService = Executors.newCachedThreadPool();
+
+		this.udpRelay = new UdpRelay();
+		this.udpRelay.start();
+		this.configurationFacade.setUdpRelay(this.udpRelay);
+
+		this.echo = new DatagramSocket(0, InetAddress.getLoopbackAddress());
+		final DatagramSocket echo = this.echo;
+		final Thread thread = new Thread(new Runnable() {
+			@Override
+			public void run() {
+				final DatagramPacket packet = new DatagramPacket(
+						new byte[2048], 2048);
+				try {
+					while (true) {
+						packet.setLength(2048);
+						echo.receive(packet);
+						echo.send(packet);
+					}
+				} catch (final IOException e) {
+				}
+			}
+		});
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	@After
+	public void after() {
+		if (this.listeningThread != null) {
+			this.listeningThread.shutdown();
+		}
+		this.executorService.shutdownNow();
+		this.udpRelay.shutdown();
+		this.echo.close();
+	}
+
+	@Test(timeout = 10000)
+	public void testAssociate() throws Exception {
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+
+			this.assertEcho(client, relay);
+			this.assertEcho(client, relay);
+			// Counted by the relay after the reply has been sent
+			while (this.udpRelay.getForwarded() < 4) {
+				Thread.sleep(10);
+			}
+			assertEquals(4, this.udpRelay.getForwarded());
+			assertEquals(1, this.udpRelay.getActiveAssociations());
+			assertEquals(
+					Arrays.asList("127.0.0.1:" + client.getLocalPort()
+							+ " 2 forwarded (10 bytes), 2 replied (10 bytes), 0 dropped"),
+					this.udpRelay.getStatistics());
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testBurst() throws Exception {
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+
+			// More datagrams than are drained per wakeup
+			final DatagramPacket datagram = this.datagram(relay);
+			for (int i = 0; i < 100; i++) {
+				client.send(datagram);
+			}
+
+			final DatagramPacket reply = new DatagramPacket(new byte[2048],
+					2048);
+			for (int i = 0; i < 100; i++) {
+				client.receive(reply);
+				assertEquals(datagram.getLength(), reply.getLength());
+			}
+
+			while (this.udpRelay.getForwarded() < 200) {
+				Thread.sleep(10);
+			}
+			assertEquals(
+					Arrays.asList("127.0.0.1:" + client.getLocalPort()
+							+ " 100 forwarded (500 bytes), 100 replied (500 bytes), 0 dropped"),
+					this.udpRelay.getStatistics());
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testFragmented() throws Exception {
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+
+			client.send(this.fragment(relay, 1, 0, 2));
+			client.send(this.fragment(relay, 2, 2, 4));
+			client.send(this.fragment(relay, 0x83, 4, DATA.length));
+
+			// The echo of the reassembled datagram is not fragmented
+			final DatagramPacket datagram = this.datagram(relay);
+			final DatagramPacket reply = new DatagramPacket(new byte[2048],
+					2048);
+			client.receive(reply);
+			assertArrayEquals(
+					Arrays.copyOf(datagram.getData(), datagram.getLength()),
+					Arrays.copyOf(reply.getData(), reply.getLength()));
+
+			assertEquals(1, this.udpRelay.getFragmentSetsReassembled());
+			assertEquals(0, this.udpRelay.getFragmentSetsDropped());
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testDomainResolvedLater() throws Exception {
+		final CompletableFuture<InetAddress[]> future = this.resolveLater();
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+
+			client.send(this.domainDatagram(relay));
+			future.complete(
+					new InetAddress[] { InetAddress.getLoopbackAddress() });
+
+			final DatagramPacket reply = new DatagramPacket(new byte[2048],
+					2048);
+			client.receive(reply);
+			assertArrayEquals(DATA, Arrays.copyOfRange(reply.getData(),
+					reply.getLength() - DATA.length, reply.getLength()));
+
+			while (this.udpRelay.getForwarded() < 2) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, this.udpRelay.getDropped());
+			assertEquals(
+					Arrays.asList("127.0.0.1:" + client.getLocalPort()
+							+ " 1 forwarded (5 bytes), 1 replied (5 bytes), 0 dropped"),
+					this.udpRelay.getStatistics());
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testDomainResolvingDropsFurtherDatagrams() throws Exception {
+		final CompletableFuture<InetAddress[]> future = this.resolveLater();
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+
+			client.send(this.domainDatagram(relay));
+			client.send(this.domainDatagram(relay));
+			client.send(this.domainDatagram(relay));
+
+			while (this.udpRelay.getDropped() < 2) {
+				Thread.sleep(10);
+			}
+			future.complete(
+					new InetAddress[] { InetAddress.getLoopbackAddress() });
+
+			final DatagramPacket reply = new DatagramPacket(new byte[2048],
+					2048);
+			client.receive(reply);
+			assertArrayEquals(DATA, Arrays.copyOfRange(reply.getData(),
+					reply.getLength() - DATA.length, reply.getLength()));
+
+			while (this.udpRelay.getForwarded() < 2) {
+				Thread.sleep(10);
+			}
+			assertEquals(2, this.udpRelay.getDropped());
+			assertEquals(
+					Arrays.asList("127.0.0.1:" + client.getLocalPort()
+							+ " 1 forwarded (5 bytes), 1 replied (5 bytes), 2 dropped"),
+					this.udpRelay.getStatistics());
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testDomainNotResolved() throws Exception {
+		final CompletableFuture<InetAddress[]> future = this.resolveLater();
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+
+			client.send(this.domainDatagram(relay));
+			future.completeExceptionally(
+					new UnknownHostException("echo.test"));
+
+			while (this.udpRelay.getDropped() < 1) {
+				Thread.sleep(10);
+			}
+			assertEquals(0, this.udpRelay.getForwarded());
+			assertEquals(
+					Arrays.asList("127.0.0.1:" + client.getLocalPort()
+							+ " 0 forwarded (0 bytes), 0 replied (0 bytes), 1 dropped"),
+					this.udpRelay.getStatistics());
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testAssociateWithUnknownPort() throws Exception {
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			this.assertEcho(client, this.associate(control, 0));
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testAssociateBlockingControl() throws Exception {
+		this.listen(true);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client()) {
+			this.assertEcho(client,
+					this.associate(control, client.getLocalPort()));
+		}
+
+		this.awaitClosed();
+	}
+
+	@Test(timeout = 10000)
+	public void testOtherClientDropped() throws Exception {
+		this.listen(false);
+
+		try (final Socket control = this.connect();
+				final DatagramSocket client = this.client();
+				final DatagramSocket other = this.client()) {
+			final InetSocketAddress relay = this.associate(control,
+					client.getLocalPort());
+			other.setSoTimeout(500);
+
+			other.send(this.datagram(relay));
+			try {
+				other.receive(new DatagramPacket(new byte[2048], 2048));
+				fail("Datagram of another client relayed");
+			} catch (final SocketTimeoutException e) {
+			}
+			assertEquals(1, this.udpRelay.getDropped());
+
+			this.assertEcho(client, relay);
+		}
+	}
+
+	@Test(timeout = 10000)
+	public void testNotAllowed() throws Exception {
+		this.configurationFacade.setUdpRelay(null);
+		this.listen(false);
+
+		try (final Socket control = this.connect()) {
+			final byte[] reply = this.request(control, 0);
+			assertEquals(0x07, reply[1]);
+		}
+	}
+
+	private void listen(final boolean blocking) throws IOException {
+		final InetSocketAddress address = new InetSocketAddress(
+				InetAddress.getLoopbackAddress(), 0);
+
+		if (blocking) {
+			// Accepted sockets without channels cannot be watched by the
+			// relay
+			this.listeningThread = new ListeningThread(
+					this.configurationFacade,
+					LoggerFactory.getLogger(UdpAssociateTest.class),
+					this.executorService, address) {
+				@Override
+				protected ServerSocket createServerSocket(
+						final InetSocketAddress inetSocketAddress)
+						throws IOException {
+					return new ServerSocket(inetSocketAddress.getPort(), 50,
+							inetSocketAddress.getAddress());
+				}
+			};
+		} else {
+			this.listeningThread = new ListeningThread(
+					this.configurationFacade,
+					LoggerFactory.getLogger(UdpAssociateTest.class),
+					this.executorService, address);
+		}
+
+		final Thread thread = new Thread(this.listeningThread);
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	private Socket connect() throws IOException {
+		final Socket socket = new Socket(InetAddress.getLoopbackAddress(),
+				this.listeningThread.getLocalPort());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private DatagramSocket client() throws IOException {
+		final DatagramSocket socket = new DatagramSocket(0,
+				InetAddress.getLoopbackAddress());
+		socket.setSoTimeout(5000);
+		return socket;
+	}
+
+	private byte[] request(final Socket control, final int port)
+			throws IOException {
+		control.getOutputStream().write(GREETING);
+		control.getOutputStream().write(new byte[] { 0x05, 0x03, 0x00, 0x01,
+				0, 0, 0, 0, (byte) (port >> 8), (byte) port });
+
+		final DataInputStream inputStream = new DataInputStream(
+				control.getInputStream());
+		final byte[] methodReply = new byte[2];
+		inputStream.readFully(methodReply);
+		assertArrayEquals(new byte[] { 0x05, 0x00 }, methodReply);
+
+		final byte[] reply = new byte[10];
+		inputStream.readFully(reply);
+		return reply;
+	}
+
+	private InetSocketAddress associate(final Socket control, final int port)
+			throws IOException {
+		final byte[] reply = this.request(control, port);
+		assertEquals(0x00, reply[1]);
+		assertEquals(0x01, reply[3]);
+
+		return new InetSocketAddress(
+				InetAddress.getByAddress(Arrays.copyOfRange(reply, 4, 8)),
+				((reply[8] & 0xff) << 8) | (reply[9] & 0xff));
+	}
+
+	private DatagramPacket datagram(final InetSocketAddress relay) {
+		final byte[] address = InetAddress.getLoopbackAddress().getAddress();
+		final int port = this.echo.getLocalPort();
+
+		final ByteBuffer buffer = ByteBuffer.allocate(10 + DATA.length);
+		buffer.putShort((short) 0).put((byte) 0).put((byte) 0x01);
+		buffer.put(address).putShort((short) port).put(DATA);
+
+		return new DatagramPacket(buffer.array(), buffer.capacity(), relay);
+	}
+
+	/**
+	 * @return the future returned for every lookup, completed by the test
+	 */
+	private CompletableFuture<InetAddress[]> resolveLater() {
+		final CompletableFuture<InetAddress[]> future = new CompletableFuture<InetAddress[]>();
+
+		this.configurationFacade.setHostResolver(new HostResolver() {
+			@Override
+			public CompletableFuture<InetAddress[]> resolve(
+					final String hostname) {
+				return future;
+			}
+		});
+		return future;
+	}
+
+	private DatagramPacket domainDatagram(final InetSocketAddress relay) {
+		final byte[] hostname = "echo.test".getBytes();
+		final int port = this.echo.getLocalPort();
+
+		final ByteBuffer buffer = ByteBuffer
+				.allocate(7 + hostname.length + DATA.length);
+		buffer.putShort((short) 0).put((byte) 0).put((byte) 0x03);
+		buffer.put((byte) hostname.length).put(hostname);
+		buffer.putShort((short) port).put(DATA);
+
+		return new DatagramPacket(buffer.array(), buffer.capacity(), relay);
+	}
+
+	private DatagramPacket fragment(final InetSocketAddress relay,
+			final int fragment, final int from, final int to) {
+		final DatagramPacket datagram = this.datagram(relay);
+		final byte[] data = datagram.getData();
+
+		final byte[] fragmentData = new byte[10 + to - from];
+		System.arraycopy(data, 0, fragmentData, 0, 10);
+		System.arraycopy(data, 10 + from, fragmentData, 10, to - from);
+		fragmentData[2] = (byte) fragment;
+
+		return new DatagramPacket(fragmentData, fragmentData.length, relay);
+	}
+
+	private void assertEcho(final DatagramSocket client,
+			final InetSocketAddress relay) throws IOException {
+		final DatagramPacket datagram = this.datagram(relay);
+		client.send(datagram);
+
+		final DatagramPacket reply = new DatagramPacket(new byte[2048], 2048);
+		client.receive(reply);
+
+		// The reply has the echo server as source, which is the destination
+		assertArrayEquals(
+				Arrays.copyOf(datagram.getData(), datagram.getLength()),
+				Arrays.copyOf(reply.getData(), reply.getLength()));
+		assertEquals(relay, reply.getSocketAddress());
+	}
+
+	private void awaitClosed() throws InterruptedException {
+		while (this.udpRelay.getActiveAssociations() > 0) {
+			Thread.sleep(10);
+		}
+	}
+}
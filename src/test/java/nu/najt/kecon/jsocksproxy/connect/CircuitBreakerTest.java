@@ -0,0 +1,114 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>CircuitBreaker</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class CircuitBreakerTest {
+
+	@Test
+	public void testOpensAfterThreshold() {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker(3, 60000, 10);
+
+		circuitBreaker.failed("example.com", 80);
+		circuitBreaker.failed("example.com", 80);
+		assertTrue(circuitBreaker.allow("example.com", 80));
+		assertEquals(0, circuitBreaker.getOpen());
+
+		circuitBreaker.failed("example.com", 80);
+		assertFalse(circuitBreaker.allow("Example.com", 80));
+		assertTrue(circuitBreaker.allow("example.com", 443));
+		assertEquals(1, circuitBreaker.getOpen());
+		assertEquals(1, circuitBreaker.getOpened());
+		assertEquals(1, circuitBreaker.getRejected());
+	}
+
+	@Test
+	public void testSuccessResetsFailures() {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker(2, 60000, 10);
+
+		circuitBreaker.failed("example.com", 80);
+		circuitBreaker.succeeded("example.com", 80);
+		circuitBreaker.failed("example.com", 80);
+		assertTrue(circuitBreaker.allow("example.com", 80));
+		assertEquals(1, circuitBreaker.getSize());
+	}
+
+	@Test
+	public void testHalfOpenAfterCoolDown() throws Exception {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 100, 10);
+
+		circuitBreaker.failed("example.com", 80);
+		assertFalse(circuitBreaker.allow("example.com", 80));
+
+		Thread.sleep(150);
+		assertTrue(circuitBreaker.allow("example.com", 80));
+		assertFalse(circuitBreaker.allow("example.com", 80));
+
+		// The trial failed, the circuit stays open for another cool down
+		circuitBreaker.failed("example.com", 80);
+		assertFalse(circuitBreaker.allow("example.com", 80));
+		assertEquals(1, circuitBreaker.getOpened());
+
+		Thread.sleep(150);
+		assertTrue(circuitBreaker.allow("example.com", 80));
+		circuitBreaker.succeeded("example.com", 80);
+		assertTrue(circuitBreaker.allow("example.com", 80));
+		assertEquals(0, circuitBreaker.getSize());
+	}
+
+	@Test
+	public void testEvictsLeastRecentlyFailed() throws Exception {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker(1, 60000, 2);
+
+		circuitBreaker.failed("a", 1);
+		Thread.sleep(2);
+		circuitBreaker.failed("b", 1);
+		Thread.sleep(2);
+		circuitBreaker.failed("a", 1);
+		Thread.sleep(2);
+		circuitBreaker.failed("c", 1);
+
+		assertEquals(2, circuitBreaker.getSize());
+		assertFalse(circuitBreaker.allow("a", 1));
+		assertTrue(circuitBreaker.allow("b", 1));
+		assertFalse(circuitBreaker.allow("c", 1));
+	}
+
+	@Test
+	public void testDisabled() {
+		final CircuitBreaker circuitBreaker = new CircuitBreaker(2, 60000, 10);
+
+		circuitBreaker.failed("example.com", 80);
+		circuitBreaker.failed("example.com", 80);
+		assertFalse(circuitBreaker.allow("example.com", 80));
+
+		circuitBreaker.configure(0, 60000, 10);
+		assertTrue(circuitBreaker.allow("example.com", 80));
+		circuitBreaker.failed("example.com", 80);
+		assertEquals(0, circuitBreaker.getSize());
+	}
+}
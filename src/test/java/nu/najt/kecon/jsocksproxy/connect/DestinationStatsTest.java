@@ -0,0 +1,91 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.List;
+
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats.Destination;
+
+/**
+ * Testing <code>DestinationStats</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class DestinationStatsTest {
+
+	@Test
+	public void testMovingAverages() {
+		final DestinationStats stats = new DestinationStats(10);
+
+		stats.connected("Example.com", 80, 8000000);
+		final Destination destination = stats.get("example.com", 80);
+		assertEquals("example.com:80", destination.getName());
+		assertEquals(8000000, destination.getLatency());
+		assertEquals(0.0, destination.getFailureRate(), 0.0);
+
+		stats.connected("example.com", 80, 16000000);
+		assertEquals(9000000, destination.getLatency());
+
+		stats.failed("example.com", 80);
+		assertEquals(9000000, destination.getLatency());
+		assertEquals(DestinationStats.WEIGHT, destination.getFailureRate(),
+				0.000001);
+		assertEquals(3, destination.getAttempts());
+		assertEquals(1, destination.getFailures());
+	}
+
+	@Test
+	public void testFailedOnly() {
+		final DestinationStats stats = new DestinationStats(10);
+
+		stats.failed("2001:db8::1", 443);
+		final Destination destination = stats.get("2001:db8::1", 443);
+		assertEquals("[2001:db8::1]:443", destination.getName());
+		assertEquals(-1, destination.getLatency());
+		assertEquals(1.0, destination.getFailureRate(), 0.0);
+	}
+
+	@Test
+	public void testEviction() {
+		final DestinationStats stats = new DestinationStats(2);
+
+		stats.connected("a", 1, 1);
+		stats.connected("b", 1, 1);
+		stats.connected("a", 1, 1);
+		stats.connected("c", 1, 1);
+
+		assertEquals(2, stats.getSize());
+		assertNull(stats.get("b", 1));
+
+		final List<Destination> destinations = stats.getDestinations();
+		assertEquals("c:1", destinations.get(0).getName());
+		assertEquals("a:1", destinations.get(1).getName());
+
+		stats.setMaxEntries(1);
+		assertEquals(1, stats.getSize());
+		assertNull(stats.get("a", 1));
+
+		stats.setMaxEntries(0);
+		stats.connected("d", 1, 1);
+		assertEquals(0, stats.getSize());
+	}
+}
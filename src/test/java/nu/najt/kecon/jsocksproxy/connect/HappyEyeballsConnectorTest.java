@@ -0,0 +1,212 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>HappyEyeballsConnector</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class HappyEyeballsConnectorTest {
+
+	@Test
+	public void testInterleave() throws Exception {
+		final InetAddress v6a = InetAddress.getByName("2001:db8::1");
+		final InetAddress v6b = InetAddress.getByName("2001:db8::2");
+		final InetAddress v4a = InetAddress.getByName("192.0.2.1");
+		final InetAddress v4b = InetAddress.getByName("192.0.2.2");
+		final InetAddress v4c = InetAddress.getByName("192.0.2.3");
+
+		assertArrayEquals(new InetAddress[] { v6a, v4a, v6b, v4b },
+				HappyEyeballsConnector
+						.interleave(new InetAddress[] { v6a, v6b, v4a, v4b }));
+		assertArrayEquals(new InetAddress[] { v4a, v6a, v4b, v4c },
+				HappyEyeballsConnector
+						.interleave(new InetAddress[] { v4a, v4b, v6a, v4c }));
+	}
+
+	@Test
+	public void testFirstAddressRefused() throws Exception {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final int closedPort;
+		try (ServerSocket closed = new ServerSocket(0, 1, loopback)) {
+			closedPort = closed.getLocalPort();
+		}
+
+		try (ServerSocket serverSocket = new ServerSocket(0, 1, loopback);
+				SocketChannel channel = new HappyEyeballsConnector(5000)
+						.connect(
+								new InetSocketAddress[] {
+										new InetSocketAddress(loopback,
+												closedPort),
+										new InetSocketAddress(loopback,
+												serverSocket.getLocalPort()) },
+								new InetAddress[] { loopback, null }, 0, null)) {
+
+			assertTrue(channel.isBlocking());
+			assertEquals(serverSocket.getLocalPort(),
+					((InetSocketAddress) channel.getRemoteAddress())
+							.getPort());
+		}
+	}
+
+	@Test
+	public void testBindFailover() throws Exception {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final InetAddress unassigned = InetAddress.getByName("192.0.2.1");
+		final List<InetAddress> failed = new ArrayList<InetAddress>();
+
+		try (ServerSocket serverSocket = new ServerSocket(0, 1, loopback);
+				SocketChannel channel = new HappyEyeballsConnector(5000)
+						.connect(
+								new InetSocketAddress[] {
+										new InetSocketAddress(loopback,
+												serverSocket.getLocalPort()) },
+								new InetAddress[] { unassigned }, 0,
+								new HappyEyeballsConnector.BindFailover() {
+
+									@Override
+									public InetAddress bindFailed(
+											final InetSocketAddress remoteAddress,
+											final InetAddress localAddress) {
+										failed.add(localAddress);
+										return loopback;
+									}
+								})) {
+
+			assertEquals(1, failed.size());
+			assertEquals(unassigned, failed.get(0));
+			assertEquals(loopback,
+					((InetSocketAddress) channel.getLocalAddress())
+							.getAddress());
+		}
+	}
+
+	@Test
+	public void testFirstAddressUnresponsive() throws Exception {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final List<SocketChannel> backlog = new ArrayList<SocketChannel>();
+
+		try (ServerSocket fullSocket = new ServerSocket(0, 1, loopback);
+				ServerSocket serverSocket = new ServerSocket(0, 1, loopback)) {
+			final InetSocketAddress fullAddress = HappyEyeballsConnectorTest
+					.fillBacklog(fullSocket, backlog);
+
+			final long start = System.nanoTime();
+			try (SocketChannel channel = new HappyEyeballsConnector(100)
+					.connect(
+							new InetSocketAddress[] { fullAddress,
+									new InetSocketAddress(loopback,
+											serverSocket.getLocalPort()) },
+							new InetAddress[] { null, null }, 0, null)) {
+
+				assertEquals(serverSocket.getLocalPort(),
+						((InetSocketAddress) channel.getRemoteAddress())
+								.getPort());
+			}
+			assertTrue((System.nanoTime() - start) < 5000000000L);
+		} finally {
+			for (final SocketChannel channel : backlog) {
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testTimeout() throws Exception {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final List<SocketChannel> backlog = new ArrayList<SocketChannel>();
+
+		try (ServerSocket fullSocket = new ServerSocket(0, 1, loopback)) {
+			final InetSocketAddress fullAddress = HappyEyeballsConnectorTest
+					.fillBacklog(fullSocket, backlog);
+
+			final long start = System.nanoTime();
+			try {
+				new HappyEyeballsConnector(100).connect(
+						new InetSocketAddress[] { fullAddress, fullAddress },
+						new InetAddress[] { null, null }, 300, null);
+				fail("Expected SocketTimeoutException");
+			} catch (final SocketTimeoutException e) {
+			}
+			assertTrue((System.nanoTime() - start) < 5000000000L);
+		} finally {
+			for (final SocketChannel channel : backlog) {
+				channel.close();
+			}
+		}
+	}
+
+	@Test
+	public void testAllAddressesRefused() throws Exception {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		final int closedPort;
+		try (ServerSocket closed = new ServerSocket(0, 1, loopback)) {
+			closedPort = closed.getLocalPort();
+		}
+
+		try {
+			new HappyEyeballsConnector(100).connect(
+					new InetSocketAddress[] {
+							new InetSocketAddress(loopback, closedPort),
+							new InetSocketAddress(loopback, closedPort) },
+					new InetAddress[] { null, null }, 0, null);
+			fail("Expected IOException");
+		} catch (final IOException e) {
+		}
+	}
+
+	/**
+	 * Fill the backlog of a server socket, so that further connections to it
+	 * are left unanswered
+	 */
+	private static InetSocketAddress fillBacklog(
+			final ServerSocket serverSocket, final List<SocketChannel> backlog)
+			throws IOException, InterruptedException {
+		final InetSocketAddress address = new InetSocketAddress(
+				serverSocket.getInetAddress(), serverSocket.getLocalPort());
+
+		for (int i = 0; i < 10; i++) {
+			final SocketChannel channel = SocketChannel.open();
+			backlog.add(channel);
+			channel.configureBlocking(false);
+			channel.connect(address);
+			Thread.sleep(200);
+
+			if (!channel.finishConnect()) {
+				break;
+			}
+		}
+		return address;
+	}
+}
@@ -0,0 +1,159 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.net.InetAddress;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>RouteTable</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class RouteTableTest {
+
+	@Test
+	public void testLongestPrefixMatch() {
+		final RouteTable<String> table = new RouteTable<String>();
+		table.add("10.0.0.0/8", "a");
+		table.add("10.1.0.0/16", "b");
+		table.add("10.1.2.0/24", "c");
+		table.add("10.1.2.3", "d");
+		table.add("10.128.0.0/9", "e");
+
+		assertEquals("a", table.lookup(address("10.2.0.1")));
+		assertEquals("b", table.lookup(address("10.1.3.1")));
+		assertEquals("c", table.lookup(address("10.1.2.4")));
+		assertEquals("d", table.lookup(address("10.1.2.3")));
+		assertEquals("e", table.lookup(address("10.200.0.1")));
+		assertNull(table.lookup(address("11.0.0.1")));
+		assertEquals(5, table.size());
+	}
+
+	@Test
+	public void testInsertionOrderDoesNotMatter() {
+		final RouteTable<String> table = new RouteTable<String>();
+		table.add("10.1.2.0/24", "c");
+		table.add("10.1.0.0/16", "b");
+		table.add("10.3.0.0/16", "f");
+		table.add("10.0.0.0/8", "a");
+
+		assertEquals("a", table.lookup(address("10.2.0.1")));
+		assertEquals("b", table.lookup(address("10.1.3.1")));
+		assertEquals("c", table.lookup(address("10.1.2.4")));
+		assertEquals("f", table.lookup(address("10.3.0.1")));
+		assertEquals(4, table.size());
+	}
+
+	@Test
+	public void testDefaultRouteAndReplacement() {
+		final RouteTable<String> table = new RouteTable<String>();
+		table.add("0.0.0.0/0", "default");
+		table.add("192.0.2.0/24", "a");
+		table.add("192.0.2.77/24", "b");
+
+		assertEquals("default", table.lookup(address("203.0.113.1")));
+		assertEquals("b", table.lookup(address("192.0.2.1")));
+		assertEquals(2, table.size());
+	}
+
+	@Test
+	public void testFamiliesAreSeparate() {
+		final RouteTable<String> table = new RouteTable<String>();
+		table.add("::/0", "v6");
+		table.add("2001:db8::/32", "doc");
+		table.add("2001:db8:0:1::/64", "net");
+
+		assertEquals("net", table.lookup(address("2001:db8:0:1::5")));
+		assertEquals("doc", table.lookup(address("2001:db8:ffff::5")));
+		assertEquals("v6", table.lookup(address("2001:db9::1")));
+		assertNull(table.lookup(address("192.0.2.1")));
+	}
+
+	@Test
+	public void testMatchesLinearScan() {
+		final Random random = new Random(17);
+		final RouteTable<Integer> table = new RouteTable<Integer>();
+		final int[] networks = new int[2000];
+		final int[] prefixLengths = new int[networks.length];
+
+		for (int i = 0; i < networks.length; i++) {
+			prefixLengths[i] = 8 + random.nextInt(25);
+			networks[i] = (0x0a000000 | (random.nextInt() & 0x00ffffff))
+					& mask(prefixLengths[i]);
+			table.add(address(networks[i]), prefixLengths[i], i);
+		}
+
+		for (int i = 0; i < 10000; i++) {
+			final int destination = 0x0a000000
+					| (random.nextInt() & 0x00ffffff);
+			int best = -1;
+			for (int j = 0; j < networks.length; j++) {
+				if (((destination & mask(prefixLengths[j])) == networks[j])
+						&& ((best < 0)
+								|| (prefixLengths[j] >= prefixLengths[best]))) {
+					best = j;
+				}
+			}
+
+			final Integer found = table.lookup(address(destination));
+			if (best < 0) {
+				assertNull(found);
+			} else {
+				assertEquals(networks[best], networks[found]);
+				assertEquals(prefixLengths[best], prefixLengths[found]);
+			}
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPrefixLength() {
+		new RouteTable<String>().add("10.0.0.0/33", "a");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testHostNameIsRejected() {
+		new RouteTable<String>().add("example.com/24", "a");
+	}
+
+	private static int mask(final int prefixLength) {
+		return (prefixLength == 0) ? 0 : (-1 << (32 - prefixLength));
+	}
+
+	private static InetAddress address(final int address) {
+		try {
+			return InetAddress.getByAddress(new byte[] {
+					(byte) (address >>> 24), (byte) (address >>> 16),
+					(byte) (address >>> 8), (byte) address });
+		} catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	private static InetAddress address(final String address) {
+		try {
+			return InetAddress.getByName(address);
+		} catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
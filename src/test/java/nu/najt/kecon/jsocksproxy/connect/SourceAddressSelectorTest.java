@@ -0,0 +1,185 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.configuration.SourceStrategy;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector.Source;
+
+/**
+ * Testing <code>SourceAddressSelector</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class SourceAddressSelectorTest {
+
+	private static final InetAddress V4A = address("192.0.2.1");
+
+	private static final InetAddress V4B = address("192.0.2.2");
+
+	private static final InetAddress V6 = address("2001:db8::1");
+
+	private static final InetAddress DESTINATION_V4 = address("198.51.100.1");
+
+	private static final InetAddress DESTINATION_V6 = address("2001:db8::99");
+
+	@Test
+	public void testFirst() {
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Arrays.asList(V6, V4A, V4B), SourceStrategy.FIRST);
+
+		for (int i = 0; i < 4; i++) {
+			assertEquals(V4A,
+					selector.select(DESTINATION_V4, null).getAddress());
+			assertEquals(V6,
+					selector.select(DESTINATION_V6, null).getAddress());
+		}
+	}
+
+	@Test
+	public void testRoundRobinWithinFamily() {
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Arrays.asList(V4A, V6, V4B), SourceStrategy.ROUND_ROBIN);
+
+		final InetAddress first = selector.select(DESTINATION_V4, null)
+				.getAddress();
+		final InetAddress second = selector.select(DESTINATION_V4, null)
+				.getAddress();
+		assertEquals(new HashSet<InetAddress>(Arrays.asList(V4A, V4B)),
+				new HashSet<InetAddress>(Arrays.asList(first, second)));
+		assertEquals(first,
+				selector.select(DESTINATION_V4, null).getAddress());
+		assertEquals(V6, selector.select(DESTINATION_V6, null).getAddress());
+	}
+
+	@Test
+	public void testLeastActive() {
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Arrays.asList(V4A, V4B), SourceStrategy.LEAST_ACTIVE);
+
+		final Source a = selector.find(V4A);
+		final Source b = selector.find(V4B);
+		a.acquire();
+		a.acquire();
+		b.acquire();
+
+		for (int i = 0; i < 4; i++) {
+			assertSame(b, selector.select(DESTINATION_V4, null));
+		}
+
+		b.acquire();
+		b.acquire();
+		assertSame(a, selector.select(DESTINATION_V4, null));
+
+		assertEquals(2, a.getActive());
+		a.release();
+		assertEquals(1, a.getActive());
+		assertEquals(2, a.getConnections());
+	}
+
+	@Test
+	public void testClientHashIsSticky() {
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Arrays.asList(V4A, V4B), SourceStrategy.CLIENT_HASH);
+		final Set<InetAddress> used = new HashSet<InetAddress>();
+
+		for (int client = 1; client < 20; client++) {
+			final InetAddress clientAddress = address("10.0.0." + client);
+			final Source source = selector.select(DESTINATION_V4,
+					clientAddress);
+
+			for (int i = 0; i < 4; i++) {
+				assertSame(source,
+						selector.select(DESTINATION_V4, clientAddress));
+			}
+			used.add(source.getAddress());
+		}
+		assertEquals(2, used.size());
+	}
+
+	@Test
+	public void testNoSourceOfFamily() {
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Collections.singletonList(V4A), SourceStrategy.ROUND_ROBIN);
+
+		assertNull(selector.select(DESTINATION_V6, null));
+	}
+
+	@Test
+	public void testConfigureKeepsCounters() {
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Arrays.asList(V4A, V4B), SourceStrategy.ROUND_ROBIN);
+		final Source a = selector.find(V4A);
+		a.acquire();
+
+		selector.configure(Arrays.asList(V4A, V6), SourceStrategy.FIRST);
+
+		assertSame(a, selector.find(V4A));
+		assertNull(selector.find(V4B));
+		assertEquals(1, selector.find(V4A).getActive());
+		assertEquals(SourceStrategy.FIRST, selector.getStrategy());
+		assertEquals(2, selector.getSources().length);
+	}
+
+	@Test
+	public void testRoutes() {
+		final InetAddress routed = address("192.0.2.10");
+		final Map<String, List<InetAddress>> routes = new LinkedHashMap<String, List<InetAddress>>();
+		routes.put("198.51.100.0/24", Collections.singletonList(routed));
+		routes.put("2001:db8::/32", Collections.singletonList(V4B));
+
+		final SourceAddressSelector selector = new SourceAddressSelector(
+				Arrays.asList(V4A, V6), SourceStrategy.ROUND_ROBIN);
+		selector.configure(Arrays.asList(V4A, V6), SourceStrategy.ROUND_ROBIN,
+				routes);
+
+		assertEquals(routed,
+				selector.select(DESTINATION_V4, null).getAddress());
+		assertEquals(V4A, selector.select(address("203.0.113.1"), null)
+				.getAddress());
+
+		// The route has no source address of the family
+		assertEquals(V6, selector.select(DESTINATION_V6, null).getAddress());
+
+		assertSame(selector.find(routed),
+				selector.getSources(DESTINATION_V4)[0]);
+		assertEquals(4, selector.getSources().length);
+		assertEquals(2, selector.getRouteCount());
+	}
+
+	private static InetAddress address(final String address) {
+		try {
+			return InetAddress.getByName(address);
+		} catch (final Exception e) {
+			throw new IllegalStateException(e);
+		}
+	}
+}
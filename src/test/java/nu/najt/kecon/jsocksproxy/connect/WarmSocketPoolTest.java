@@ -0,0 +1,173 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.connect;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer;
+
+/**
+ * Testing <code>WarmSocketPool</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class WarmSocketPoolTest {
+
+	private static final Executor DIRECT = new Executor() {
+		@Override
+		public void execute(final Runnable command) {
+			command.run();
+		}
+	};
+
+	private final List<Socket> accepted = new CopyOnWriteArrayList<Socket>();
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("Test", 100,
+			TimeUnit.MILLISECONDS, 16);
+
+	private ServerSocket serverSocket;
+
+	private InetSocketAddress destination;
+
+	private WarmSocketPool pool;
+
+	@Before
+	public void setUp() throws Exception {
+		final InetAddress loopback = InetAddress.getByName("127.0.0.1");
+		this.serverSocket = new ServerSocket(0, 50, loopback);
+		this.destination = new InetSocketAddress(loopback,
+				this.serverSocket.getLocalPort());
+		this.pool = new WarmSocketPool(this.timer, DIRECT);
+
+		final Thread acceptor = new Thread() {
+			@Override
+			public void run() {
+				try {
+					while (true) {
+						WarmSocketPoolTest.this.accepted
+								.add(WarmSocketPoolTest.this.serverSocket
+										.accept());
+					}
+				} catch (final IOException e) {
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		this.pool.shutdown();
+		this.timer.stop();
+		this.serverSocket.close();
+
+		for (final Socket socket : this.accepted) {
+			socket.close();
+		}
+	}
+
+	@Test
+	public void testTakeAndRefill() throws Exception {
+		this.configure(2, 60000);
+		assertEquals(2, this.pool.getIdle());
+
+		final Socket socket = this.pool.take(this.destination.getAddress(),
+				this.destination.getPort());
+		assertNotNull(socket);
+		assertTrue(socket.isConnected());
+		assertTrue(socket.getChannel().isBlocking());
+		assertEquals(1, this.pool.getHits());
+		assertEquals(2, this.pool.getIdle());
+		socket.close();
+
+		assertNull(this.pool.take(this.destination.getAddress(),
+				this.destination.getPort() + 1));
+		assertEquals(0, this.pool.getMisses());
+	}
+
+	@Test
+	public void testClosedByDestinationIsDiscarded() throws Exception {
+		this.configure(1, 60000);
+		this.awaitAccepted(1);
+		this.accepted.get(0).close();
+		Thread.sleep(100);
+
+		assertNull(this.pool.take(this.destination.getAddress(),
+				this.destination.getPort()));
+		assertEquals(1, this.pool.getMisses());
+		assertTrue(this.pool.getStatistics().get(0).contains("1 discarded"));
+
+		// Refilled after the miss
+		assertNotNull(this.pool.take(this.destination.getAddress(),
+				this.destination.getPort()));
+	}
+
+	@Test
+	public void testMaxIdle() throws Exception {
+		this.configure(1, 1);
+		Thread.sleep(20);
+
+		this.pool.maintain();
+		assertTrue(this.pool.getStatistics().get(0).contains("1 discarded"));
+		assertEquals(1, this.pool.getIdle());
+	}
+
+	@Test
+	public void testRemovedDestinationIsClosed() throws Exception {
+		this.configure(2, 60000);
+		this.pool.configure(
+				Collections.<InetSocketAddress, WarmSocketPool.Limits> emptyMap(),
+				null, 0);
+
+		assertEquals(0, this.pool.getIdle());
+		assertNull(this.pool.take(this.destination.getAddress(),
+				this.destination.getPort()));
+	}
+
+	private void configure(final int size, final long maxIdle) {
+		this.pool.configure(
+				Collections.singletonMap(this.destination,
+						new WarmSocketPool.Limits(size, maxIdle)),
+				null, 1000);
+	}
+
+	private void awaitAccepted(final int count) throws InterruptedException {
+		for (int i = 0; (i < 100) && (this.accepted.size() < count); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(count, this.accepted.size());
+	}
+}
@@ -0,0 +1,212 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.relay;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.slf4j.LoggerFactory;
+
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+
+/**
+ * Testing <code>RelayEngine</code> over loopback connections
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class RelayEngineTest {
+
+	private static final byte[] TEST_BYTES = new byte[100000];
+
+	static {
+		new Random(1l).nextBytes(TEST_BYTES);
+	}
+
+	private RelayEngine relayEngine;
+
+	private ServerSocketChannel serverSocketChannel;
+
+	@Before
+	public void before() throws IOException {
+		this.relayEngine = new RelayEngine(2);
+		this.relayEngine.start();
+
+		this.serverSocketChannel = ServerSocketChannel.open();
+		this.serverSocketChannel.socket().bind(
+				new InetSocketAddress(InetAddress.getLoopbackAddress(), 0));
+	}
+
+	@After
+	public void after() throws IOException {
+		this.relayEngine.shutdown();
+		this.serverSocketChannel.close();
+	}
+
+	@Test
+	public void testRelay() throws Exception {
+		this.assertRelay(new BufferPool(4, 1024), 2);
+	}
+
+	@Test
+	public void testRelayCoalesced() throws Exception {
+		this.relayEngine.setCoalescing(4, 5);
+		this.assertRelay(new BufferPool(8, 1024), 8);
+	}
+
+	@Test
+	public void testRelayInteractiveNotHeld() throws Exception {
+		this.relayEngine.setCoalescing(4, 1000);
+
+		final Socket client = this.connect();
+		final Socket internal = this.serverSocketChannel.accept().socket();
+		final Socket external = this.connect();
+		final Socket remote = this.serverSocketChannel.accept().socket();
+
+		try {
+			assertTrue(this.relayEngine.relay(internal, external,
+					new BufferPool(8, 1024),
+					LoggerFactory.getLogger(RelayEngineTest.class)));
+
+			final long start = System.nanoTime();
+			client.getOutputStream().write(TEST_BYTES, 0, 10);
+
+			final byte[] buf = new byte[10];
+			int offset = 0;
+			while (offset < buf.length) {
+				offset += remote.getInputStream().read(buf, offset,
+						buf.length - offset);
+			}
+
+			assertTrue((System.nanoTime() - start) < 500000000l);
+		} finally {
+			client.close();
+			remote.close();
+		}
+	}
+
+	@Test
+	public void testOnCloseRunOnce() throws Exception {
+		final Socket client = this.connect();
+		final Socket internal = this.serverSocketChannel.accept().socket();
+		final Socket external = this.connect();
+		final Socket remote = this.serverSocketChannel.accept().socket();
+		final AtomicInteger closed = new AtomicInteger();
+
+		assertTrue(this.relayEngine.relay(internal, external,
+				new BufferPool(4, 1024),
+				LoggerFactory.getLogger(RelayEngineTest.class), null, 0,
+				new Runnable() {
+					@Override
+					public void run() {
+						closed.incrementAndGet();
+					}
+				}));
+		assertEquals(0, closed.get());
+
+		client.close();
+		remote.close();
+
+		for (int i = 0; (i < 100) && (closed.get() == 0); i++) {
+			Thread.sleep(10);
+		}
+		Thread.sleep(50);
+		assertEquals(1, closed.get());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testSetCoalescingInvalid() {
+		this.relayEngine.setCoalescing(0, 0);
+	}
+
+	private void assertRelay(final BufferPool bufferPool, final int pooled)
+			throws Exception {
+		final Socket client = this.connect();
+		final Socket internal = this.serverSocketChannel.accept().socket();
+		final Socket external = this.connect();
+		final Socket remote = this.serverSocketChannel.accept().socket();
+
+		assertTrue(this.relayEngine.relay(internal, external, bufferPool,
+				LoggerFactory.getLogger(RelayEngineTest.class)));
+
+		final Thread writer = new Thread(() -> {
+			try {
+				client.getOutputStream().write(TEST_BYTES);
+				client.shutdownOutput();
+			} catch (final IOException e) {
+			}
+		});
+		writer.start();
+
+		assertArrayEquals(TEST_BYTES, readFully(remote.getInputStream()));
+		writer.join();
+
+		remote.getOutputStream().write(TEST_BYTES, 0, 10);
+		remote.shutdownOutput();
+
+		final byte[] expected = new byte[10];
+		System.arraycopy(TEST_BYTES, 0, expected, 0, 10);
+		assertArrayEquals(expected, readFully(client.getInputStream()));
+
+		client.close();
+		remote.close();
+
+		for (int i = 0; (i < 100)
+				&& (this.relayEngine.getActiveTunnels() > 0); i++) {
+			Thread.sleep(10);
+		}
+		assertEquals(0, this.relayEngine.getActiveTunnels());
+		assertEquals(pooled, bufferPool.getPooled());
+	}
+
+	@Test
+	public void testRelayWithoutChannel() throws Exception {
+		assertFalse(this.relayEngine.relay(new Socket(), new Socket(),
+				new BufferPool(4, 1024), LoggerFactory.getLogger(RelayEngineTest.class)));
+	}
+
+	private Socket connect() throws IOException {
+		return SocketChannel.open(this.serverSocketChannel.getLocalAddress())
+				.socket();
+	}
+
+	private static byte[] readFully(final InputStream inputStream)
+			throws IOException {
+		final ByteArrayOutputStream outputStream = new ByteArrayOutputStream();
+		final byte[] buf = new byte[4096];
+		int length;
+		while ((length = inputStream.read(buf)) != -1) {
+			outputStream.write(buf, 0, length);
+		}
+		return outputStream.toByteArray();
+	}
+}
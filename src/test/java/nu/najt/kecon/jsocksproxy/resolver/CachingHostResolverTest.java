@@ -0,0 +1,177 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.resolver;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>CachingHostResolver</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class CachingHostResolverTest {
+
+	private static final InetAddress[] ADDRESSES = CachingHostResolverTest
+			.addresses();
+
+	private final CountingResolver delegate = new CountingResolver();
+
+	@Test
+	public void testConcurrentLookupsCoalesced() throws Exception {
+		final CachingHostResolver resolver = new CachingHostResolver(
+				this.delegate, 100, 60000, 5000);
+
+		final List<CompletableFuture<InetAddress[]>> futures = new ArrayList<CompletableFuture<InetAddress[]>>();
+		for (int i = 0; i < 500; i++) {
+			futures.add(resolver.resolve("www.example.com"));
+		}
+
+		assertEquals(1, this.delegate.lookups.size());
+		assertEquals(499, resolver.getCoalesced());
+
+		this.delegate.lookups.get(0).complete(ADDRESSES);
+
+		for (final CompletableFuture<InetAddress[]> future : futures) {
+			assertArrayEquals(ADDRESSES, future.get());
+		}
+
+		resolver.resolve("WWW.EXAMPLE.COM").get();
+		assertEquals(1, this.delegate.lookups.size());
+		assertEquals(1, resolver.getHits());
+		assertEquals(1, resolver.getMisses());
+	}
+
+	@Test
+	public void testExpiredEntryLookedUpAgain() throws Exception {
+		final CachingHostResolver resolver = new CachingHostResolver(
+				this.delegate, 100, 50, 50);
+
+		resolver.resolve("www.example.com");
+		this.delegate.lookups.get(0).complete(ADDRESSES);
+		resolver.resolve("www.example.com");
+		assertEquals(1, this.delegate.lookups.size());
+
+		Thread.sleep(100);
+
+		resolver.resolve("www.example.com");
+		assertEquals(2, this.delegate.lookups.size());
+	}
+
+	@Test
+	public void testFailureCachedNegatively() throws Exception {
+		final CachingHostResolver resolver = new CachingHostResolver(
+				this.delegate, 100, 60000, 60000);
+
+		final CompletableFuture<InetAddress[]> first = resolver
+				.resolve("nonexistent.example.com");
+		this.delegate.lookups.get(0).completeExceptionally(
+				new UnknownHostException("nonexistent.example.com"));
+
+		assertFailed(first, UnknownHostException.class);
+		assertFailed(resolver.resolve("nonexistent.example.com"),
+				UnknownHostException.class);
+		assertEquals(1, this.delegate.lookups.size());
+	}
+
+	@Test
+	public void testRejectedLookupNotCached() throws Exception {
+		final CachingHostResolver resolver = new CachingHostResolver(
+				this.delegate, 100, 60000, 60000);
+
+		resolver.resolve("www.example.com");
+		this.delegate.lookups.get(0)
+				.completeExceptionally(new RejectedExecutionException());
+
+		resolver.resolve("www.example.com");
+		assertEquals(2, this.delegate.lookups.size());
+		assertEquals(1, resolver.getSize());
+	}
+
+	@Test
+	public void testLeastRecentlyUsedEvicted() throws Exception {
+		final CachingHostResolver resolver = new CachingHostResolver(
+				this.delegate, 2, 60000, 5000);
+
+		final CompletableFuture<InetAddress[]> a = resolver.resolve("a");
+		resolver.resolve("b");
+		assertSame(a, resolver.resolve("a"));
+
+		resolver.resolve("c");
+		assertEquals(2, resolver.getSize());
+		assertEquals(3, this.delegate.lookups.size());
+
+		// b was the least recently used
+		resolver.resolve("a");
+		assertEquals(3, this.delegate.lookups.size());
+		resolver.resolve("b");
+		assertEquals(4, this.delegate.lookups.size());
+	}
+
+	private static void assertFailed(
+			final CompletableFuture<InetAddress[]> future,
+			final Class<? extends Throwable> expected)
+			throws InterruptedException {
+		try {
+			future.get();
+		} catch (final ExecutionException e) {
+			assertTrue(expected.isInstance(e.getCause()));
+			return;
+		}
+		throw new AssertionError("Lookup did not fail");
+	}
+
+	private static InetAddress[] addresses() {
+		try {
+			return new InetAddress[] {
+					InetAddress.getByAddress("www.example.com",
+							new byte[] { 10, 0, 0, 1 }),
+					InetAddress.getByAddress("www.example.com",
+							new byte[] { 10, 0, 0, 2 }) };
+		} catch (final UnknownHostException e) {
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * A resolver whose lookups are completed by the test
+	 */
+	private static final class CountingResolver implements HostResolver {
+
+		private final List<CompletableFuture<InetAddress[]>> lookups = new ArrayList<CompletableFuture<InetAddress[]>>();
+
+		@Override
+		public CompletableFuture<InetAddress[]> resolve(
+				final String hostname) {
+			final CompletableFuture<InetAddress[]> future = new CompletableFuture<InetAddress[]>();
+			this.lookups.add(future);
+			return future;
+		}
+	}
+}
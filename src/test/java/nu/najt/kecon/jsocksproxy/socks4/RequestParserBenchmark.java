@@ -0,0 +1,130 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks4;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing the SOCKS4a request with <code>RequestParser</code>
+ * against the byte at a time stream parsing it replaced. Both read from
+ * memory, so the figures leave out the read per byte the old parsing made on
+ * the socket; run with <code>-prof gc</code> to compare the allocations.<br>
+ * <br>
+ * Run with <code>java ... RequestParserBenchmark [JMH options]</code>.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+	private static final byte[] HEADER = { 0x01, 0x01, (byte) 0xbb, 0x00,
+			0x00, 0x00, 0x01 };
+
+	private static final byte[] HOSTNAME = { 'e', 'x', 'a', 'm', 'p', 'l', 'e',
+			'.', 'c', 'o', 'm', 0x00 };
+
+	@Param({ "0", "32", "255" })
+	public int userIdLength;
+
+	private final RequestParser parser = new RequestParser();
+
+	private byte[] request;
+
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() {
+		this.request = new byte[HEADER.length + this.userIdLength + 1
+				+ HOSTNAME.length];
+		Arrays.fill(this.request, (byte) 'u');
+		System.arraycopy(HEADER, 0, this.request, 0, HEADER.length);
+		this.request[HEADER.length + this.userIdLength] = 0x00;
+		System.arraycopy(HOSTNAME, 0, this.request,
+				HEADER.length + this.userIdLength + 1, HOSTNAME.length);
+		this.buffer = ByteBuffer.wrap(this.request);
+	}
+
+	@Benchmark
+	public String stream() throws IOException {
+		final DataInputStream inputStream = new DataInputStream(
+				new ByteArrayInputStream(this.request));
+
+		inputStream.readByte(); // command
+		inputStream.readShort(); // port
+		final byte[] rawIp = new byte[4];
+		inputStream.readFully(rawIp);
+
+		final byte[] buf = new byte[1];
+		int length;
+		while ((length = inputStream.read(buf)) >= 0) {
+			if ((length > 0) && (buf[0] == 0)) {
+				break;
+			}
+		}
+
+		final StringBuilder builder = new StringBuilder();
+		while ((length = inputStream.read(buf)) >= 0) {
+			if ((length > 0) && (buf[0] == 0)) {
+				break;
+			}
+			builder.append((char) buf[0]);
+		}
+		return builder.toString();
+	}
+
+	@Benchmark
+	public int parser() throws Exception {
+		this.buffer.rewind();
+		this.parser.reset();
+		this.parser.parse(this.buffer);
+		return this.parser.getRequest().getHostnameLength();
+	}
+
+	@Benchmark
+	public String parserHostname() throws Exception {
+		this.buffer.rewind();
+		this.parser.reset();
+		this.parser.parse(this.buffer);
+		return this.parser.getRequest().getHostname();
+	}
+
+	public static void main(final String[] args) throws Exception {
+		org.openjdk.jmh.Main.main(args);
+	}
+}
@@ -0,0 +1,195 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks4;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.InputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.IllegalCommandException;
+import nu.najt.kecon.jsocksproxy.ProtocolException;
+
+/**
+ * Testing <code>RequestParser</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class RequestParserTest {
+
+	private static final byte[] SOCKS4 = { 0x01, 0x00, 0x50, 0x42, 0x66, 0x07,
+			0x63, 'F', 'r', 'e', 'd', 0x00 };
+
+	private static final byte[] SOCKS4A = { 0x02, 0x01, (byte) 0xbb, 0x00,
+			0x00, 0x00, 0x01, 0x00, 'h', 'o', 's', 't', 0x00 };
+
+	private static final byte[] DATA = { 'T', 'e', 's', 't' };
+
+	@Test
+	public void testWholeRequest() throws Exception {
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer buffer = buffer(SOCKS4, DATA);
+
+		assertTrue(parser.parse(buffer));
+		assertEquals(DATA.length, buffer.remaining());
+
+		final Request request = parser.getRequest();
+		assertEquals(Command.CONNECT, request.getCommand());
+		assertEquals(80, request.getPort());
+		assertFalse(request.isSocks4a());
+		assertEquals("Fred", request.getUserId());
+		assertNull(request.getHostname());
+		assertEquals(InetAddress.getByName("66.102.7.99"),
+				request.getInetAddress());
+	}
+
+	@Test
+	public void testOneByteAtATime() throws Exception {
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer buffer = ByteBuffer.allocate(1);
+
+		for (int i = 0; i < SOCKS4A.length; i++) {
+			buffer.clear();
+			buffer.put(SOCKS4A[i]).flip();
+			assertEquals(i == (SOCKS4A.length - 1), parser.parse(buffer));
+		}
+
+		final Request request = parser.getRequest();
+		assertEquals(Command.BIND, request.getCommand());
+		assertEquals(443, request.getPort());
+		assertTrue(request.isSocks4a());
+		assertEquals(0, request.getUserIdLength());
+		assertEquals("host", request.getHostname());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		final RequestParser parser = new RequestParser();
+		assertTrue(parser.parse(buffer(SOCKS4A)));
+
+		parser.reset();
+		assertTrue(parser.parse(buffer(SOCKS4)));
+		assertFalse(parser.getRequest().isSocks4a());
+		assertNull(parser.getRequest().getHostname());
+		assertEquals("Fred", parser.getRequest().getUserId());
+	}
+
+	@Test
+	public void testLongestUserId() throws Exception {
+		final byte[] userId = new byte[Request.MAX_USER_ID_LENGTH];
+		Arrays.fill(userId, (byte) 'a');
+
+		final RequestParser parser = new RequestParser();
+		assertTrue(parser.parse(buffer(Arrays.copyOf(SOCKS4, 7), userId,
+				new byte[] { 0x00 })));
+		assertEquals(Request.MAX_USER_ID_LENGTH,
+				parser.getRequest().getUserIdLength());
+	}
+
+	@Test
+	public void testOversizedUserIdIsRejected() throws Exception {
+		final RequestParser parser = new RequestParser();
+		final EndlessInputStream inputStream = new EndlessInputStream(
+				Arrays.copyOf(SOCKS4, 7));
+		final ByteBuffer buffer = ByteBuffer.allocate(512);
+
+		try {
+			do {
+				buffer.clear();
+				buffer.limit(inputStream.read(buffer.array()));
+			} while (!parser.parse(buffer));
+			fail("Oversized USERID accepted");
+		} catch (final ProtocolException e) {
+		}
+
+		// Rejected within the first read, before the client could send more
+		assertEquals(512, inputStream.getRead());
+		assertEquals(Request.MAX_USER_ID_LENGTH,
+				parser.getRequest().getUserIdLength());
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testOversizedHostnameIsRejected() throws Exception {
+		final byte[] hostname = new byte[Request.MAX_HOSTNAME_LENGTH + 1];
+		Arrays.fill(hostname, (byte) 'a');
+
+		new RequestParser().parse(buffer(Arrays.copyOf(SOCKS4A, 8), hostname,
+				new byte[] { 0x00 }));
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testEmptyHostname() throws Exception {
+		new RequestParser().parse(buffer(Arrays.copyOf(SOCKS4A, 8),
+				new byte[] { 0x00 }));
+	}
+
+	@Test(expected = IllegalCommandException.class)
+	public void testIllegalCommand() throws Exception {
+		final byte[] request = SOCKS4.clone();
+		request[0] = 0x03;
+		new RequestParser().parse(buffer(request));
+	}
+
+	private static ByteBuffer buffer(final byte[]... parts) {
+		int length = 0;
+		for (final byte[] part : parts) {
+			length += part.length;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (final byte[] part : parts) {
+			buffer.put(part);
+		}
+		buffer.flip();
+		return buffer;
+	}
+
+	/**
+	 * A client which sends a request header followed by a USERID which never
+	 * ends
+	 */
+	private static class EndlessInputStream extends InputStream {
+
+		private final byte[] header;
+
+		private long read = 0;
+
+		EndlessInputStream(final byte[] header) {
+			this.header = header;
+		}
+
+		@Override
+		public int read() {
+			final int b = (this.read < this.header.length)
+					? this.header[(int) this.read] : 'a';
+			this.read++;
+			return b;
+		}
+
+		long getRead() {
+			return this.read;
+		}
+	}
+}
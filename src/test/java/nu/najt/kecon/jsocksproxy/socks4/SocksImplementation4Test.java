@@ -179,10 +179,10 @@ public class SocksImplementation4Test {
 			}
 
 			@Override
-			protected InetAddress resolveHostname(StringBuilder builder)
+			protected InetAddress resolveHostname(String hostname)
 					throws UnknownHostException {
 
-				assertEquals("host", builder.toString());
+				assertEquals("host", hostname);
 				return expectedInetAddress;
 			}
 		};
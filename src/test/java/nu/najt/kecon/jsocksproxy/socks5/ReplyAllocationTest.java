@@ -0,0 +1,138 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks5;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+
+import org.junit.Test;
+
+import com.sun.management.ThreadMXBean;
+
+/**
+ * Testing that <code>SocksImplementation5</code> replies without allocating
+ * and with one write per reply
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class ReplyAllocationTest {
+
+	private static final int WARMUP = 20000;
+
+	private static final int REPLIES = 10000;
+
+	/** Leaves room for the measurement itself */
+	private static final long MAX_ALLOCATED = 1024;
+
+	private static final byte[] HOSTNAME = { 'k', 'e', 'c', 'o', 'n', '.',
+			'x' };
+
+	@Test
+	public void testFailureReplies() throws Exception {
+		final SocksImplementation5 implementation = new SocksImplementation5(
+				null, null, null);
+		final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		final DataOutputStream outputStream = new DataOutputStream(
+				byteArrayOutputStream);
+
+		implementation.writeResponse(outputStream, Status.HOST_UNREACHABLE,
+				AddressType.IP_V4, null, null, 0);
+		implementation.writeResponse(outputStream,
+				Status.ADDRESS_TYPE_NOT_SUPPORTED, AddressType.IP_V6, null,
+				null, 0);
+
+		assertArrayEquals(new byte[] { 5, 4, 0, 1, 0, 0, 0, 0, 0, 0, 5, 8, 0,
+				4, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0, 0 },
+				byteArrayOutputStream.toByteArray());
+	}
+
+	@Test
+	public void testNoAllocation() throws Exception {
+		final ThreadMXBean threadMXBean = threadMXBean();
+		final SocksImplementation5 implementation = new SocksImplementation5(
+				null, null, null);
+		final InetAddress inetAddress = InetAddress.getByName("192.0.2.1");
+		final CountingOutputStream countingOutputStream = new CountingOutputStream();
+		final DataOutputStream outputStream = new DataOutputStream(
+				countingOutputStream);
+
+		reply(implementation, outputStream, inetAddress, WARMUP);
+
+		final long threadId = Thread.currentThread().getId();
+		final long writes = countingOutputStream.getWrites();
+		final long before = threadMXBean.getThreadAllocatedBytes(threadId);
+		reply(implementation, outputStream, inetAddress, REPLIES);
+		final long allocated = threadMXBean.getThreadAllocatedBytes(threadId)
+				- before;
+
+		assertTrue("Allocated " + allocated + " bytes",
+				allocated < MAX_ALLOCATED);
+		assertEquals(REPLIES * 2, countingOutputStream.getWrites() - writes);
+	}
+
+	private static void reply(final SocksImplementation5 implementation,
+			final DataOutputStream outputStream, final InetAddress inetAddress,
+			final int count) throws Exception {
+		for (int i = 0; i < count; i++) {
+			implementation.writeResponse(outputStream, Status.SUCCEEDED,
+					AddressType.IP_V4, inetAddress, null, i & 0xffff);
+			implementation.writeResponse(outputStream, Status.SUCCEEDED,
+					AddressType.DOMAIN, inetAddress, HOSTNAME, i & 0xffff);
+		}
+	}
+
+	private static ThreadMXBean threadMXBean() {
+		assumeTrue(ManagementFactory
+				.getThreadMXBean() instanceof ThreadMXBean);
+
+		final ThreadMXBean threadMXBean = (ThreadMXBean) ManagementFactory
+				.getThreadMXBean();
+		assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+		threadMXBean.setThreadAllocatedMemoryEnabled(true);
+		return threadMXBean;
+	}
+
+	/**
+	 * Discards the data and counts the writes
+	 */
+	private static class CountingOutputStream extends OutputStream {
+
+		private long writes = 0;
+
+		@Override
+		public void write(final int b) {
+			this.writes++;
+		}
+
+		@Override
+		public void write(final byte[] b, final int off, final int len) {
+			this.writes++;
+		}
+
+		long getWrites() {
+			return this.writes;
+		}
+	}
+}
@@ -0,0 +1,141 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks5;
+
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares parsing the SOCKS5 greeting and request with
+ * <code>RequestParser</code> against the stream based parsing it replaced,
+ * which is kept here as it was.
+ * Both read from memory, so the saved reads are not part of the figures;
+ * run with <code>-prof gc</code> to compare the allocations.<br>
+ * <br>
+ * Run with <code>java ... RequestParserBenchmark [JMH options]</code>.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class RequestParserBenchmark {
+
+	private static final byte[] GREETING = { 0x01, 0x00 };
+
+	private static final byte[] IP_V4 = { 0x05, 0x01, 0x00, 0x01, (byte) 192,
+			0, 2, 1, 0x01, (byte) 0xbb };
+
+	private static final byte[] DOMAIN = { 0x05, 0x01, 0x00, 0x03, 0x0b, 'e',
+			'x', 'a', 'm', 'p', 'l', 'e', '.', 'c', 'o', 'm', 0x01,
+			(byte) 0xbb };
+
+	@Param({ "IP_V4", "DOMAIN" })
+	public String addressType;
+
+	private final RequestParser parser = new RequestParser();
+
+	private byte[] handshake;
+
+	private ByteBuffer buffer;
+
+	@Setup
+	public void setup() {
+		final byte[] request = "DOMAIN".equals(this.addressType) ? DOMAIN
+				: IP_V4;
+
+		this.handshake = new byte[GREETING.length + request.length];
+		System.arraycopy(GREETING, 0, this.handshake, 0, GREETING.length);
+		System.arraycopy(request, 0, this.handshake, GREETING.length,
+				request.length);
+		this.buffer = ByteBuffer.wrap(this.handshake);
+	}
+
+	@Benchmark
+	public Object stream() throws Exception {
+		final DataInputStream inputStream = new DataInputStream(
+				new ByteArrayInputStream(this.handshake));
+
+		final int numberOfAuthMethods = inputStream.readByte() & 0xFF;
+		for (int i = 0; i < numberOfAuthMethods; i++) {
+			inputStream.readByte();
+		}
+		inputStream.readByte(); // version
+		Command.valueOf(inputStream);
+		inputStream.readByte(); // reserved byte
+
+		final AddressType addressType = AddressType
+				.valueOf(inputStream.readByte());
+		final Object address;
+
+		if (addressType == AddressType.DOMAIN) {
+			final byte[] hostBuf = new byte[inputStream.readByte() & 0xFF];
+			inputStream.readFully(hostBuf);
+			address = new String(hostBuf, "US-ASCII");
+		} else {
+			final byte[] bytes = new byte[addressType == AddressType.IP_V4 ? 4
+					: 16];
+			inputStream.readFully(bytes);
+			address = InetAddress.getByAddress(bytes);
+		}
+		inputStream.readShort();
+		return address;
+	}
+
+	@Benchmark
+	public int parser() throws Exception {
+		this.buffer.rewind();
+		this.parser.reset();
+		this.parser.parse(this.buffer);
+		this.parser.parse(this.buffer);
+		return this.parser.getRequest().getPort();
+	}
+
+	@Benchmark
+	public Object parserToAddress() throws Exception {
+		this.buffer.rewind();
+		this.parser.reset();
+		this.parser.parse(this.buffer);
+		this.parser.parse(this.buffer);
+
+		final Request request = this.parser.getRequest();
+		return (request.getAddressType() == AddressType.DOMAIN)
+				? request.getHostname() : request.getInetAddress();
+	}
+
+	public static void main(final String[] args) throws Exception {
+		org.openjdk.jmh.Main.main(args);
+	}
+}
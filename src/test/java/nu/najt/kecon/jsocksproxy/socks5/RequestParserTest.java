@@ -0,0 +1,220 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.socks5;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.IllegalAddressTypeException;
+import nu.najt.kecon.jsocksproxy.IllegalCommandException;
+import nu.najt.kecon.jsocksproxy.ProtocolException;
+import nu.najt.kecon.jsocksproxy.socks5.RequestParser.Result;
+
+/**
+ * Testing <code>RequestParser</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class RequestParserTest {
+
+	private static final byte[] GREETING = { 0x02, 0x02, 0x00 };
+
+	private static final byte[] IP_V4 = { 0x05, 0x01, 0x00, 0x01, (byte) 192,
+			0, 2, 1, 0x01, (byte) 0xbb };
+
+	private static final byte[] DOMAIN = { 0x05, 0x02, 0x00, 0x03, 0x07, 'k',
+			'e', 'c', 'o', 'n', '.', 'x', 0x00, 0x50 };
+
+	@Test
+	public void testWholeRequest() throws Exception {
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer buffer = buffer(GREETING, IP_V4);
+
+		assertEquals(Result.GREETING, parser.parse(buffer));
+		assertTrue(parser.getRequest().isNoAuthentication());
+		assertEquals(Result.REQUEST, parser.parse(buffer));
+		assertFalse(buffer.hasRemaining());
+
+		final Request request = parser.getRequest();
+		assertEquals(Command.CONNECT, request.getCommand());
+		assertEquals(AddressType.IP_V4, request.getAddressType());
+		assertEquals(443, request.getPort());
+
+		assertEquals(InetAddress.getByName("192.0.2.1"),
+				request.getInetAddress());
+		assertNull(request.getHostname());
+	}
+
+	@Test
+	public void testOneByteAtATime() throws Exception {
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer all = buffer(GREETING, DOMAIN);
+		final ByteBuffer buffer = ByteBuffer.allocate(1);
+		int greetings = 0;
+		Result result = null;
+
+		while (all.hasRemaining()) {
+			buffer.clear();
+			buffer.put(all.get()).flip();
+			result = parser.parse(buffer);
+
+			if (result == Result.GREETING) {
+				greetings++;
+			}
+		}
+
+		assertEquals(1, greetings);
+		assertEquals(Result.REQUEST, result);
+
+		final Request request = parser.getRequest();
+		assertEquals(Command.BIND, request.getCommand());
+		assertEquals("kecon.x", request.getHostname());
+		assertEquals(7, request.getAddressLength());
+		assertEquals('x', request.getAddressByte(6));
+		assertNull(request.getInetAddress());
+		assertEquals(80, request.getPort());
+	}
+
+	@Test
+	public void testIPv6AndPipelinedData() throws Exception {
+		final byte[] request = new byte[22];
+		request[0] = 0x05;
+		request[1] = 0x01;
+		request[3] = 0x04;
+		request[4] = 0x20;
+		request[5] = 0x01;
+		request[6] = 0x0d;
+		request[7] = (byte) 0xb8;
+		request[19] = 0x01;
+		request[21] = 0x16;
+
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer buffer = buffer(new byte[] { 0x01, 0x00 }, request,
+				new byte[] { 'S', 'S', 'H' });
+
+		assertEquals(Result.GREETING, parser.parse(buffer));
+		assertEquals(Result.REQUEST, parser.parse(buffer));
+		assertEquals(3, buffer.remaining());
+		assertEquals('S', buffer.get(buffer.position()));
+		assertEquals(InetAddress.getByName("2001:db8::1"),
+				parser.getRequest().getInetAddress());
+		assertEquals(22, parser.getRequest().getPort());
+	}
+
+	@Test
+	public void testNeededNeverReadsPastRequest() throws Exception {
+		final ByteArrayOutputStream output = new ByteArrayOutputStream();
+		output.write(GREETING);
+		output.write(DOMAIN);
+		output.write(new byte[] { 'G', 'E', 'T' });
+		final ByteArrayInputStream input = new ByteArrayInputStream(
+				output.toByteArray());
+
+		final RequestParser parser = new RequestParser();
+		final byte[] bytes = new byte[512];
+		int reads = 0;
+		Result result;
+
+		do {
+			final int read = input.read(bytes, 0, parser.getNeeded());
+			reads++;
+			final ByteBuffer buffer = ByteBuffer.wrap(bytes, 0, read);
+			result = parser.parse(buffer);
+			if (result == Result.GREETING) {
+				result = parser.parse(buffer);
+			}
+			assertFalse(buffer.hasRemaining());
+		} while (result != Result.REQUEST);
+
+		assertEquals(3, input.available());
+		assertEquals(4, reads);
+	}
+
+	@Test
+	public void testNoAcceptableMethod() throws Exception {
+		final RequestParser parser = new RequestParser();
+
+		assertEquals(Result.GREETING,
+				parser.parse(ByteBuffer.wrap(new byte[] { 0x01, 0x02 })));
+		assertFalse(parser.getRequest().isNoAuthentication());
+	}
+
+	@Test
+	public void testReset() throws Exception {
+		final RequestParser parser = new RequestParser();
+		final ByteBuffer buffer = buffer(GREETING, DOMAIN);
+		parser.parse(buffer);
+		parser.parse(buffer);
+
+		parser.reset();
+		final ByteBuffer again = buffer(GREETING, IP_V4);
+		assertEquals(Result.GREETING, parser.parse(again));
+		assertEquals(Result.REQUEST, parser.parse(again));
+		assertEquals(AddressType.IP_V4, parser.getRequest().getAddressType());
+		assertEquals(4, parser.getRequest().getAddressLength());
+		assertEquals(443, parser.getRequest().getPort());
+	}
+
+	@Test(expected = ProtocolException.class)
+	public void testWrongVersion() throws Exception {
+		final ByteBuffer buffer = buffer(GREETING, new byte[] { 0x04 });
+		final RequestParser parser = new RequestParser();
+		parser.parse(buffer);
+		parser.parse(buffer);
+	}
+
+	@Test(expected = IllegalCommandException.class)
+	public void testUnknownCommand() throws Exception {
+		final ByteBuffer buffer = buffer(GREETING,
+				new byte[] { 0x05, 0x09 });
+		final RequestParser parser = new RequestParser();
+		parser.parse(buffer);
+		parser.parse(buffer);
+	}
+
+	@Test(expected = IllegalAddressTypeException.class)
+	public void testUnknownAddressType() throws Exception {
+		final ByteBuffer buffer = buffer(GREETING,
+				new byte[] { 0x05, 0x01, 0x00, 0x02 });
+		final RequestParser parser = new RequestParser();
+		parser.parse(buffer);
+		parser.parse(buffer);
+	}
+
+	private static ByteBuffer buffer(final byte[]... parts) {
+		int length = 0;
+		for (final byte[] part : parts) {
+			length += part.length;
+		}
+
+		final ByteBuffer buffer = ByteBuffer.allocate(length);
+		for (final byte[] part : parts) {
+			buffer.put(part);
+		}
+		buffer.flip();
+		return buffer;
+	}
+}
@@ -17,7 +17,6 @@ package nu.najt.kecon.jsocksproxy.socks5;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
-import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -26,6 +25,7 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.SocketAddress;
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.List;
 import java.util.concurrent.CountDownLatch;
@@ -39,6 +39,16 @@ import org.junit.Assert;
 import org.junit.Test;
 
 import nu.najt.kecon.jsocksproxy.ConfigurationFacade;
+import nu.najt.kecon.jsocksproxy.HandshakeDeadline;
+import nu.najt.kecon.jsocksproxy.connect.CircuitBreaker;
+import nu.najt.kecon.jsocksproxy.connect.DestinationStats;
+import nu.najt.kecon.jsocksproxy.connect.SourceAddressSelector;
+import nu.najt.kecon.jsocksproxy.connect.WarmSocketPool;
+import nu.najt.kecon.jsocksproxy.relay.RelayEngine;
+import nu.najt.kecon.jsocksproxy.resolver.HostResolver;
+import nu.najt.kecon.jsocksproxy.udp.UdpRelay;
+import nu.najt.kecon.jsocksproxy.utils.BufferPool;
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor;
 
 public class SocksImplementation5Test {
 
@@ -178,10 +188,75 @@ public class SocksImplementation5Test {
 				return false;
 			}
 
+			@Override
+			public boolean isOptimisticSocks5() {
+				return false;
+			}
+
 			@Override
 			public int getBacklog() {
 				return 100;
 			}
+
+			@Override
+			public RelayEngine getRelayEngine() {
+				return null;
+			}
+
+			@Override
+			public int getCoalesceBuffers() {
+				return 1;
+			}
+
+			@Override
+			public BufferPool getBufferPool() {
+				return null;
+			}
+
+			@Override
+			public HandshakeDeadline getHandshakeDeadline() {
+				return null;
+			}
+
+			@Override
+			public IdleMonitor getIdleMonitor() {
+				return null;
+			}
+
+			@Override
+			public HostResolver getHostResolver() {
+				return null;
+			}
+
+			@Override
+			public int getConnectTimeout() {
+				return 0;
+			}
+
+			@Override
+			public DestinationStats getDestinationStats() {
+				return null;
+			}
+
+			@Override
+			public CircuitBreaker getCircuitBreaker() {
+				return null;
+			}
+
+			@Override
+			public SourceAddressSelector getSourceAddressSelector() {
+				return null;
+			}
+
+			@Override
+			public WarmSocketPool getWarmSocketPool() {
+				return null;
+			}
+
+			@Override
+			public UdpRelay getUdpRelay() {
+				return null;
+			}
 		};
 
 		executor.execute(new SocksImplementation5(configurationFacade,
@@ -223,10 +298,10 @@ public class SocksImplementation5Test {
 		final DataOutputStream dataOutputStream = new DataOutputStream(
 				byteArrayOutputStream);
 
-		implementation5.authenticate(
-				new DataInputStream(
-						new ByteArrayInputStream(new byte[] { 1, 0 })),
-				dataOutputStream);
+		final RequestParser parser = new RequestParser();
+		parser.parse(ByteBuffer.wrap(new byte[] { 1, 0 }));
+
+		implementation5.authenticate(parser.getRequest(), dataOutputStream);
 
 		Assert.assertArrayEquals(new byte[] { 5, 0 },
 				byteArrayOutputStream.toByteArray());
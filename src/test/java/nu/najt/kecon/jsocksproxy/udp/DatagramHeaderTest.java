@@ -0,0 +1,129 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>DatagramHeader</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class DatagramHeaderTest {
+
+	private static final byte[] IP_V4 = { 0x00, 0x00, 0x00, 0x01, (byte) 192,
+			0, 2, 1, 0x00, 0x35, 'd', 'a', 't', 'a' };
+
+	private static final byte[] DOMAIN = { 0x00, 0x00, 0x02, 0x03, 0x07, 'k',
+			'e', 'c', 'o', 'n', '.', 'x', 0x01, (byte) 0xbb, 'd', 'a', 't',
+			'a' };
+
+	@Test
+	public void testDecodeIPv4() throws Exception {
+		final DatagramHeader header = new DatagramHeader();
+		final ByteBuffer buffer = ByteBuffer.wrap(IP_V4);
+
+		assertTrue(header.decode(buffer));
+		assertEquals(10, buffer.position());
+		assertEquals(0, header.getFragment());
+		assertFalse(header.isDomain());
+		assertEquals(new InetSocketAddress(InetAddress.getByName("192.0.2.1"),
+				53), header.toSocketAddress());
+	}
+
+	@Test
+	public void testDecodeDomain() {
+		final DatagramHeader header = new DatagramHeader();
+		final ByteBuffer buffer = ByteBuffer.wrap(DOMAIN);
+
+		assertTrue(header.decode(buffer));
+		assertEquals(14, buffer.position());
+		assertEquals(2, header.getFragment());
+		assertTrue(header.isDomain());
+		assertEquals("kecon.x", header.getHostname());
+		assertEquals(443, header.getPort());
+	}
+
+	@Test
+	public void testDecodeTruncated() {
+		final DatagramHeader header = new DatagramHeader();
+
+		for (int length = 0; length < 10; length++) {
+			final ByteBuffer buffer = ByteBuffer.wrap(IP_V4, 0, length);
+			assertFalse(header.decode(buffer));
+			assertEquals(0, buffer.position());
+		}
+
+		final byte[] unknown = IP_V4.clone();
+		unknown[3] = 0x02;
+		assertFalse(header.decode(ByteBuffer.wrap(unknown)));
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		final ByteBuffer buffer = ByteBuffer
+				.allocate(DatagramHeader.MAX_ENCODED_LENGTH + 4);
+		buffer.position(DatagramHeader.MAX_ENCODED_LENGTH);
+		buffer.put(new byte[] { 'd', 'a', 't', 'a' });
+
+		final int index = DatagramHeader.encode(buffer,
+				DatagramHeader.MAX_ENCODED_LENGTH, new InetSocketAddress(
+						InetAddress.getByName("192.0.2.1"), 53));
+		buffer.position(index);
+
+		final byte[] encoded = new byte[buffer.remaining()];
+		buffer.get(encoded);
+		assertArrayEquals(IP_V4, encoded);
+
+		final InetSocketAddress ipV6 = new InetSocketAddress(
+				InetAddress.getByName("2001:db8::1"), 8080);
+		buffer.position(DatagramHeader.encode(buffer,
+				DatagramHeader.MAX_ENCODED_LENGTH, ipV6));
+
+		final DatagramHeader header = new DatagramHeader();
+		assertTrue(header.decode(buffer));
+		assertEquals(ipV6, header.toSocketAddress());
+		assertEquals(4, buffer.remaining());
+	}
+
+	@Test
+	public void testSameDestination() {
+		final DatagramHeader header = new DatagramHeader();
+		final DatagramHeader last = new DatagramHeader();
+
+		header.decode(ByteBuffer.wrap(DOMAIN));
+		last.copyFrom(header);
+		assertTrue(last.isSameDestination(header));
+
+		final byte[] otherPort = DOMAIN.clone();
+		otherPort[13] = 0x50;
+		header.decode(ByteBuffer.wrap(otherPort));
+		assertFalse(last.isSameDestination(header));
+
+		header.decode(ByteBuffer.wrap(IP_V4));
+		assertFalse(last.isSameDestination(header));
+	}
+}
@@ -0,0 +1,104 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Compares finding the flow of a client datagram in a <code>FlowTable</code>
+ * against the <code>HashMap</code> keyed by socket address it replaced. The
+ * sources are created up front, as the relay gets them from the channel.<br>
+ * <br>
+ * Run with <code>java ... FlowTableBenchmark [JMH options]</code>.
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+@State(Scope.Thread)
+public class FlowTableBenchmark {
+
+	@Param({ "16", "1024", "65536" })
+	public int flows;
+
+	private final FlowTable<Object> table = new FlowTable<Object>();
+
+	private final Map<InetSocketAddress, Object> map = new HashMap<InetSocketAddress, Object>();
+
+	private InetSocketAddress[] sources;
+
+	private int next = 0;
+
+	@Setup
+	public void setup() throws Exception {
+		this.sources = new InetSocketAddress[this.flows];
+
+		for (int i = 0; i < this.flows; i++) {
+			// The source addresses the relay receives are new instances
+			final InetAddress address = InetAddress.getByAddress(new byte[] {
+					10, 0, (byte) (i >> 12), (byte) (i >> 4) });
+			final InetSocketAddress source = new InetSocketAddress(address,
+					40000 + (i & 0xf));
+			final Object flow = new Object();
+
+			this.sources[i] = source;
+			this.table.put(FlowTable.keyOf(source), flow);
+			this.map.put(new InetSocketAddress(
+					InetAddress.getByAddress(address.getAddress()),
+					source.getPort()), flow);
+		}
+	}
+
+	private InetSocketAddress nextSource() {
+		final InetSocketAddress source = this.sources[this.next];
+		this.next = (this.next + 1) % this.sources.length;
+		return source;
+	}
+
+	@Benchmark
+	public Object hashMap() {
+		return this.map.get(this.nextSource());
+	}
+
+	@Benchmark
+	public Object flowTable() {
+		return this.table.get(FlowTable.keyOf(this.nextSource()));
+	}
+
+	public static void main(final String[] args) throws Exception {
+		org.openjdk.jmh.Main.main(args);
+	}
+}
@@ -0,0 +1,114 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>FlowTable</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class FlowTableTest {
+
+	@Test
+	public void testPutGetRemove() {
+		final FlowTable<String> table = new FlowTable<String>();
+
+		assertNull(table.put(1, "a"));
+		assertNull(table.put(2, "b"));
+		assertEquals("a", table.put(1, "c"));
+		assertEquals(2, table.size());
+
+		assertEquals("c", table.get(1));
+		assertEquals("b", table.get(2));
+		assertNull(table.get(3));
+
+		assertFalse(table.remove(1, "a"));
+		assertTrue(table.remove(1, "c"));
+		assertFalse(table.remove(1, "c"));
+		assertNull(table.get(1));
+		assertEquals("b", table.get(2));
+		assertEquals(1, table.size());
+	}
+
+	@Test
+	public void testKeyOf() throws Exception {
+		final InetAddress address = InetAddress.getByName("192.0.2.1");
+
+		assertEquals(0xc0000201L << 16 | 53,
+				FlowTable.keyOf(new InetSocketAddress(address, 53)));
+		assertNotEquals(FlowTable.keyOf(new InetSocketAddress(address, 53)),
+				FlowTable.keyOf(new InetSocketAddress(address, 54)));
+		assertNotEquals(
+				FlowTable.keyOf(new InetSocketAddress(
+						InetAddress.getByName("::ffff:0:c000:201"), 53)),
+				FlowTable.keyOf(new InetSocketAddress(address, 53)));
+	}
+
+	@Test
+	public void testRandomAgainstHashMap() {
+		final FlowTable<Long> table = new FlowTable<Long>();
+		final Map<Long, Long> map = new HashMap<Long, Long>();
+		final List<Long> keys = new ArrayList<Long>();
+		final Random random = new Random(4711);
+
+		for (int i = 0; i < 100000; i++) {
+			// A narrow key range, so that the same slots are reused
+			final long key = (0xc0000200L + random.nextInt(4)) << 16
+					| random.nextInt(2048);
+
+			if (random.nextInt(3) == 0 && !keys.isEmpty()) {
+				final Long removed = keys.remove(random.nextInt(keys.size()));
+				assertTrue(table.remove(removed, map.remove(removed)));
+			} else if (!map.containsKey(key)) {
+				final Long value = Long.valueOf(i);
+				assertNull(table.put(key, value));
+				map.put(key, value);
+				keys.add(key);
+			}
+
+			assertEquals(map.size(), table.size());
+		}
+
+		for (final Map.Entry<Long, Long> entry : map.entrySet()) {
+			assertSame(entry.getValue(), table.get(entry.getKey()));
+		}
+
+		for (int port = 0; port < 2048; port++) {
+			for (long address = 0xc0000200L; address < 0xc0000204L; address++) {
+				final long key = address << 16 | port;
+				assertEquals(map.get(key), table.get(key));
+			}
+		}
+	}
+}
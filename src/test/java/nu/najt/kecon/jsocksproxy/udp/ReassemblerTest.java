@@ -0,0 +1,203 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.udp;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>Reassembler</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class ReassemblerTest {
+
+	private static final int END = Reassembler.END_OF_SEQUENCE;
+
+	private final LongAdder dropped = new LongAdder();
+
+	private final LongAdder expired = new LongAdder();
+
+	private final DatagramHeader header = new DatagramHeader();
+
+	@Test
+	public void testReassemble() throws Exception {
+		final Reassembler reassembler = this.reassembler(4, 1024, 1000);
+		final UdpAssociation association = this.association();
+
+		assertNull(this.add(reassembler, association, 1, 53, "abc", 0));
+		assertNull(this.add(reassembler, association, 2, 53, "def", 0));
+		assertEquals(1, reassembler.getInUse());
+
+		final Reassembler.Fragments fragments = this.add(reassembler,
+				association, 3 | END, 53, "gh", 0);
+		assertNotNull(fragments);
+		assertEquals("abcdefgh", this.toString(fragments.getBuffer()));
+		assertEquals(new InetSocketAddress(
+				InetAddress.getByName("192.0.2.1"), 53),
+				fragments.getHeader().toSocketAddress());
+
+		assertEquals(0, reassembler.getInUse());
+		assertNull(association.getFragments());
+		assertEquals(0, this.dropped.sum());
+	}
+
+	@Test
+	public void testOutOfSequence() {
+		final Reassembler reassembler = this.reassembler(4, 1024, 1000);
+		final UdpAssociation association = this.association();
+
+		assertNull(this.add(reassembler, association, 1, 53, "abc", 0));
+		assertNull(this.add(reassembler, association, 3 | END, 53, "ghi", 0));
+		assertEquals(2, this.dropped.sum());
+		assertEquals(0, reassembler.getInUse());
+
+		// A lower position abandons the set, and 1 starts a new one
+		assertNull(this.add(reassembler, association, 1, 53, "abc", 0));
+		assertNull(this.add(reassembler, association, 2, 53, "def", 0));
+		assertNull(this.add(reassembler, association, 1, 53, "xyz", 0));
+		assertEquals(3, this.dropped.sum());
+
+		final Reassembler.Fragments fragments = this.add(reassembler,
+				association, 2 | END, 53, "w", 0);
+		assertEquals("xyzw", this.toString(fragments.getBuffer()));
+	}
+
+	@Test
+	public void testDestinationChanged() {
+		final Reassembler reassembler = this.reassembler(4, 1024, 1000);
+		final UdpAssociation association = this.association();
+
+		assertNull(this.add(reassembler, association, 1, 53, "abc", 0));
+		assertNull(this.add(reassembler, association, 2 | END, 54, "def", 0));
+		assertEquals(2, this.dropped.sum());
+		assertEquals(0, reassembler.getInUse());
+	}
+
+	@Test
+	public void testBoundedBuffers() {
+		final Reassembler reassembler = this.reassembler(2, 1024, 1000);
+		final UdpAssociation first = this.association();
+		final UdpAssociation second = this.association();
+		final UdpAssociation third = this.association();
+
+		assertNull(this.add(reassembler, first, 1, 53, "a", 0));
+		assertNull(this.add(reassembler, second, 1, 53, "b", 0));
+		assertNull(this.add(reassembler, third, 1, 53, "c", 0));
+		assertNull(third.getFragments());
+		assertEquals(1, this.dropped.sum());
+		assertEquals(2, reassembler.getInUse());
+
+		// The slot of a completed set is reused, with its buffer
+		final ByteBuffer buffer = this.add(reassembler, first, 2 | END, 53,
+				"a", 0).getBuffer();
+		assertNull(this.add(reassembler, third, 1, 53, "c", 0));
+		assertSame(buffer, third.getFragments().getBuffer());
+		assertEquals("cc", this.toString(
+				this.add(reassembler, third, 2 | END, 53, "c", 0).getBuffer()));
+		assertEquals("bb", this.toString(this
+				.add(reassembler, second, 2 | END, 53, "b", 0).getBuffer()));
+	}
+
+	@Test
+	public void testTooLarge() {
+		final Reassembler reassembler = this.reassembler(2, 8, 1000);
+		final UdpAssociation association = this.association();
+
+		assertNull(this.add(reassembler, association, 1, 53, "abcde", 0));
+		assertNull(this.add(reassembler, association, 2 | END, 53, "fghi", 0));
+		assertEquals(1, this.dropped.sum());
+		assertEquals(0, reassembler.getInUse());
+	}
+
+	@Test
+	public void testExpire() {
+		final Reassembler reassembler = this.reassembler(2, 1024, 1000);
+		final UdpAssociation first = this.association();
+		final UdpAssociation second = this.association();
+
+		assertEquals(0, reassembler.expire(0));
+
+		assertNull(this.add(reassembler, first, 1, 53, "a", 0));
+		assertNull(this.add(reassembler, second, 1, 53, "b", 400));
+		assertEquals(500, reassembler.expire(500));
+
+		assertEquals(400, reassembler.expire(1000));
+		assertEquals(1, this.expired.sum());
+		assertNull(first.getFragments());
+
+		// The expired set is gone, its fragments start nothing
+		assertNull(this.add(reassembler, first, 2 | END, 53, "a", 1000));
+		assertEquals(1, this.dropped.sum());
+
+		assertEquals(0, reassembler.expire(1400));
+		assertEquals(2, this.expired.sum());
+		assertEquals(0, reassembler.getInUse());
+	}
+
+	@Test
+	public void testDrop() {
+		final Reassembler reassembler = this.reassembler(2, 1024, 1000);
+		final UdpAssociation association = this.association();
+
+		reassembler.drop(association);
+		assertEquals(0, this.dropped.sum());
+
+		assertNull(this.add(reassembler, association, 1, 53, "a", 0));
+		reassembler.drop(association);
+		assertEquals(1, this.dropped.sum());
+		assertEquals(0, reassembler.getInUse());
+	}
+
+	private Reassembler reassembler(final int slots, final int maxLength,
+			final long timeout) {
+		return new Reassembler(slots, maxLength, timeout, this.dropped,
+				this.expired);
+	}
+
+	private UdpAssociation association() {
+		return new UdpAssociation(null, null, null,
+				InetAddress.getLoopbackAddress(), 0, null, null, null);
+	}
+
+	private Reassembler.Fragments add(final Reassembler reassembler,
+			final UdpAssociation association, final int fragment,
+			final int port, final String data, final long now) {
+		final ByteBuffer buffer = ByteBuffer.allocate(10 + data.length());
+		buffer.putShort((short) 0).put((byte) fragment).put((byte) 0x01);
+		buffer.put(new byte[] { (byte) 192, 0, 2, 1 }).putShort((short) port);
+		buffer.put(data.getBytes()).flip();
+
+		this.header.decode(buffer);
+		return reassembler.add(association, this.header, buffer, now);
+	}
+
+	private String toString(final ByteBuffer buffer) {
+		final byte[] data = new byte[buffer.remaining()];
+		buffer.duplicate().get(data);
+		return new String(data);
+	}
+}
@@ -0,0 +1,216 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>BufferPool</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class BufferPoolTest {
+
+	@Test
+	public void testAcquireRelease() {
+		final BufferPool bufferPool = new BufferPool(4, 1024);
+
+		final ByteBuffer buffer = bufferPool.acquire();
+		assertTrue(buffer.isDirect());
+		assertEquals(1024, buffer.capacity());
+		assertEquals(0, bufferPool.getHits());
+		assertEquals(1, bufferPool.getMisses());
+
+		buffer.put((byte) 1);
+		bufferPool.release(buffer);
+		assertEquals(1, bufferPool.getPooled());
+
+		final ByteBuffer reused = bufferPool.acquire();
+		assertSame(buffer, reused);
+		assertEquals(0, reused.position());
+		assertEquals(1, bufferPool.getHits());
+		assertEquals(1, bufferPool.getMisses());
+	}
+
+	@Test
+	public void testReleaseIsBounded() {
+		final BufferPool bufferPool = new BufferPool(1, 1024);
+
+		bufferPool.release(ByteBuffer.allocateDirect(1024));
+		bufferPool.release(ByteBuffer.allocateDirect(1024));
+
+		assertEquals(1, bufferPool.getPooled());
+	}
+
+	@Test
+	public void testSingleThreadUsesAllStripes() {
+		final BufferPool bufferPool = new BufferPool(64, 1024);
+
+		for (int i = 0; i < 64; i++) {
+			bufferPool.release(ByteBuffer.allocateDirect(1024));
+		}
+		assertEquals(64, bufferPool.getPooled());
+
+		for (int i = 0; i < 64; i++) {
+			bufferPool.acquire();
+		}
+		assertEquals(64, bufferPool.getHits());
+		assertEquals(0, bufferPool.getMisses());
+	}
+
+	@Test
+	public void testReleaseForeignBuffer() {
+		final BufferPool bufferPool = new BufferPool(4, 1024);
+
+		bufferPool.release(ByteBuffer.allocateDirect(512));
+		bufferPool.release(ByteBuffer.allocate(1024));
+		bufferPool.release(null);
+
+		assertEquals(0, bufferPool.getPooled());
+	}
+
+	@Test
+	public void testEmptyPool() {
+		final BufferPool bufferPool = new BufferPool(0, 1024);
+
+		bufferPool.release(bufferPool.acquire());
+
+		assertEquals(0, bufferPool.getPooled());
+		assertEquals(1, bufferPool.getMisses());
+	}
+
+	@Test
+	public void testSizeClasses() {
+		final BufferPool bufferPool = new BufferPool(4, 1024, 6000,
+				Long.MAX_VALUE);
+
+		assertEquals(4096, bufferPool.getMaxBufferSize());
+		assertEquals(1024, bufferPool.acquire().capacity());
+		assertEquals(2048, bufferPool.acquire(1025).capacity());
+
+		final ByteBuffer buffer = bufferPool.acquire(3000);
+		assertEquals(4096, buffer.capacity());
+
+		bufferPool.release(buffer);
+		assertSame(buffer, bufferPool.acquire(4096));
+		assertEquals(1, bufferPool.getHits());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testAcquireTooLarge() {
+		new BufferPool(4, 1024, 4096, Long.MAX_VALUE).acquire(4097);
+	}
+
+	@Test
+	public void testMemoryLimit() {
+		final BufferPool bufferPool = new BufferPool(4, 1024, 4096, 6144);
+
+		final ByteBuffer large = bufferPool.acquire(4096);
+		assertEquals(4096, bufferPool.getReservedBytes());
+
+		assertNull(bufferPool.acquire(4096));
+		assertEquals(1, bufferPool.getRefused());
+
+		final ByteBuffer medium = bufferPool.acquire(2048);
+		assertEquals(6144, bufferPool.getReservedBytes());
+
+		// The smallest size is refused as well once the limit is reached
+		assertNull(bufferPool.acquire());
+		assertEquals(2, bufferPool.getRefused());
+		assertEquals(6144, bufferPool.getReservedBytes());
+
+		bufferPool.release(large);
+		bufferPool.release(medium);
+		assertEquals(2, bufferPool.getPooled());
+		assertEquals(6144, bufferPool.getReservedBytes());
+
+		// Pooled buffers of other sizes make room for the smallest size
+		assertNotNull(bufferPool.acquire());
+		assertEquals(1, bufferPool.getPooled());
+		assertEquals(3072, bufferPool.getReservedBytes());
+	}
+
+	@Test
+	public void testMemoryLimitIsNeverExceeded() {
+		final BufferPool bufferPool = new BufferPool(0, 1024, 1024, 4096);
+		int acquired = 0;
+
+		for (int i = 0; i < 10; i++) {
+			if (bufferPool.acquire() != null) {
+				acquired++;
+			}
+		}
+
+		assertEquals(4, acquired);
+		assertEquals(6, bufferPool.getRefused());
+		assertEquals(4096, bufferPool.getReservedBytes());
+	}
+
+	@Test
+	public void testMemoryLimitDropsPooled() {
+		final BufferPool bufferPool = new BufferPool(4, 1024, 4096, 4096);
+
+		final ByteBuffer first = bufferPool.acquire(2048);
+		final ByteBuffer second = bufferPool.acquire(2048);
+		bufferPool.release(first);
+		bufferPool.release(second);
+		assertEquals(2, bufferPool.getPooled());
+
+		assertNotNull(bufferPool.acquire(4096));
+		assertEquals(0, bufferPool.getPooled());
+		assertEquals(4096, bufferPool.getReservedBytes());
+	}
+
+	@Test
+	public void testReplacedPoolCountsAgainstLimit() {
+		final BufferPool previous = new BufferPool(4, 1024, 1024, 4096);
+		final ByteBuffer pooled = previous.acquire();
+		final ByteBuffer first = previous.acquire();
+		final ByteBuffer second = previous.acquire();
+		previous.release(pooled);
+		assertEquals(3072, previous.getReservedBytes());
+
+		final BufferPool bufferPool = new BufferPool(4, 1024, 1024, 4096,
+				previous);
+		assertEquals(0, previous.getPooled());
+		assertEquals(2048, bufferPool.getReservedBytes());
+
+		assertNotNull(bufferPool.acquire());
+		assertNotNull(bufferPool.acquire());
+		assertNull(bufferPool.acquire());
+
+		previous.release(first);
+		assertEquals(0, previous.getPooled());
+		assertNotNull(bufferPool.acquire());
+
+		previous.release(second);
+		assertEquals(3072, bufferPool.getReservedBytes());
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testIllegalBufferSize() {
+		new BufferPool(1, 0);
+	}
+}
@@ -0,0 +1,91 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import static org.junit.Assert.assertEquals;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>BufferSizer</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class BufferSizerTest {
+
+	@Test
+	public void testGrowAndShrink() {
+		final BufferPool bufferPool = new BufferPool(4, 1024, 4096,
+				Long.MAX_VALUE);
+		final BufferSizer bufferSizer = new BufferSizer(bufferPool);
+		final ByteBuffer[] buffers = { bufferPool.acquire(),
+				bufferPool.acquire() };
+
+		for (int i = 1; i < BufferSizer.GROW_AFTER; i++) {
+			bufferSizer.transferred(buffers, 2048);
+		}
+		assertEquals(1024, buffers[0].capacity());
+
+		bufferSizer.transferred(buffers, 2048);
+		assertEquals(2048, buffers[0].capacity());
+		assertEquals(2048, buffers[1].capacity());
+		assertEquals(2, bufferPool.getPooled());
+
+		for (int i = 0; i < (BufferSizer.GROW_AFTER * 4); i++) {
+			bufferSizer.transferred(buffers, 8192);
+		}
+		assertEquals(4096, buffers[0].capacity());
+
+		for (int i = 0; i < (BufferSizer.SHRINK_AFTER * 4); i++) {
+			bufferSizer.transferred(buffers, 10);
+		}
+		assertEquals(1024, buffers[0].capacity());
+		assertEquals(1024, buffers[1].capacity());
+	}
+
+	@Test
+	public void testMixedTrafficKeepsSize() {
+		final BufferPool bufferPool = new BufferPool(4, 1024, 4096,
+				Long.MAX_VALUE);
+		final BufferSizer bufferSizer = new BufferSizer(bufferPool);
+		final ByteBuffer[] buffers = { bufferPool.acquire() };
+
+		for (int i = 0; i < 100; i++) {
+			bufferSizer.transferred(buffers, ((i % 2) == 0) ? 1024 : 500);
+		}
+		assertEquals(1024, buffers[0].capacity());
+	}
+
+	@Test
+	public void testGrowthRefusedByMemoryLimit() {
+		final BufferPool bufferPool = new BufferPool(4, 1024, 4096, 2048);
+		final BufferSizer bufferSizer = new BufferSizer(bufferPool);
+		final ByteBuffer[] buffers = { bufferPool.acquire(),
+				bufferPool.acquire() };
+
+		for (int i = 0; i < BufferSizer.GROW_AFTER; i++) {
+			bufferSizer.transferred(buffers, 2048);
+		}
+
+		assertEquals(1024, buffers[0].capacity());
+		assertEquals(1024, buffers[1].capacity());
+		assertEquals(1, bufferPool.getRefused());
+		assertEquals(2048, bufferPool.getReservedBytes());
+	}
+}
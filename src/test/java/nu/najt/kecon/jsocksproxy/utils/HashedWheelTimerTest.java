@@ -0,0 +1,124 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.After;
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.utils.HashedWheelTimer.Timeout;
+
+/**
+ * Testing <code>HashedWheelTimer</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class HashedWheelTimerTest {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("test-timer",
+			10, TimeUnit.MILLISECONDS, 8);
+
+	@After
+	public void after() {
+		this.timer.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void testExpiresAfterDelay() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final long start = System.nanoTime();
+
+		// Longer than one rotation of the wheel
+		final Timeout timeout = this.timer.newTimeout(new CountDown(latch),
+				200, TimeUnit.MILLISECONDS);
+
+		latch.await();
+		assertTrue(
+				(System.nanoTime() - start) >= TimeUnit.MILLISECONDS
+						.toNanos(200));
+		assertTrue(timeout.isExpired());
+		assertFalse(timeout.cancel());
+	}
+
+	@Test(timeout = 10000)
+	public void testCancelledTimeoutDoesNotRun() throws InterruptedException {
+		final AtomicInteger count = new AtomicInteger();
+		final Runnable task = new Runnable() {
+			@Override
+			public void run() {
+				count.incrementAndGet();
+			}
+		};
+
+		final Timeout cancelled = this.timer.newTimeout(task, 50,
+				TimeUnit.MILLISECONDS);
+		final Timeout transferred = this.timer.newTimeout(task, 100,
+				TimeUnit.MILLISECONDS);
+		assertTrue(cancelled.cancel());
+
+		Thread.sleep(30);
+		assertTrue(transferred.cancel());
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.timer.newTimeout(new CountDown(latch), 150,
+				TimeUnit.MILLISECONDS);
+		latch.await();
+
+		assertEquals(0, count.get());
+		assertTrue(cancelled.isCancelled());
+		assertFalse(cancelled.isExpired());
+	}
+
+	@Test(timeout = 10000)
+	public void testRestartAfterStop() throws InterruptedException {
+		final CountDownLatch dropped = new CountDownLatch(1);
+		this.timer.newTimeout(new CountDown(dropped), 1,
+				TimeUnit.SECONDS);
+		assertTrue(this.timer.isRunning());
+
+		this.timer.stop();
+		assertFalse(this.timer.isRunning());
+
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.timer.newTimeout(new CountDown(latch), 10,
+				TimeUnit.MILLISECONDS);
+		latch.await();
+
+		assertFalse(dropped.await(1200, TimeUnit.MILLISECONDS));
+	}
+
+	private static final class CountDown implements Runnable {
+
+		private final CountDownLatch latch;
+
+		private CountDown(final CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			this.latch.countDown();
+		}
+	}
+}
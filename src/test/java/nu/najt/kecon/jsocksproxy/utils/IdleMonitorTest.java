@@ -0,0 +1,96 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.After;
+import org.junit.Test;
+
+import nu.najt.kecon.jsocksproxy.utils.IdleMonitor.Activity;
+
+/**
+ * Testing <code>IdleMonitor</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class IdleMonitorTest {
+
+	private final HashedWheelTimer timer = new HashedWheelTimer("test-timer",
+			10, TimeUnit.MILLISECONDS, 64);
+
+	private final IdleMonitor idleMonitor = new IdleMonitor(this.timer);
+
+	@After
+	public void after() {
+		this.timer.stop();
+	}
+
+	@Test(timeout = 10000)
+	public void testActiveTunnelKeptUntilIdle() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		final Activity activity = this.idleMonitor.watch(100,
+				new CountDown(latch));
+
+		for (int i = 0; i < 15; i++) {
+			Thread.sleep(20);
+			activity.touch();
+		}
+		assertEquals(1, latch.getCount());
+
+		final long idleSince = System.nanoTime();
+		latch.await();
+		assertTrue((System.nanoTime() - idleSince) >= TimeUnit.MILLISECONDS
+				.toNanos(100));
+		assertEquals(1, this.idleMonitor.getClosed());
+	}
+
+	@Test(timeout = 10000)
+	public void testStoppedTunnelNotClosed() throws InterruptedException {
+		final CountDownLatch latch = new CountDownLatch(1);
+		this.idleMonitor.watch(50, new CountDown(latch)).stop();
+
+		assertFalse(latch.await(300, TimeUnit.MILLISECONDS));
+		assertEquals(0, this.idleMonitor.getClosed());
+	}
+
+	@Test
+	public void testNoTimeout() {
+		assertNull(this.idleMonitor.watch(0, new CountDown(null)));
+		assertFalse(this.timer.isRunning());
+	}
+
+	private static final class CountDown implements Runnable {
+
+		private final CountDownLatch latch;
+
+		private CountDown(final CountDownLatch latch) {
+			this.latch = latch;
+		}
+
+		@Override
+		public void run() {
+			this.latch.countDown();
+		}
+	}
+}
@@ -17,13 +17,21 @@ package nu.najt.kecon.jsocksproxy.utils;
 
 import static nu.najt.kecon.jsocksproxy.utils.SocketUtils.copy;
 import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 import static org.mockito.Mockito.when;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.util.Random;
 
 import org.junit.Test;
@@ -66,4 +74,75 @@ public class SocketUtilsTest {
 		}
 	}
 
+	@Test
+	public void testCopyChannels() throws IOException {
+		this.assertCopyChannels(1);
+	}
+
+	@Test
+	public void testCopyChannelsCoalesced() throws IOException {
+		this.assertCopyChannels(3);
+	}
+
+	@Test
+	public void testCopyChannelsOverMemoryLimit() throws IOException {
+		// Room for two of the three buffers
+		final BufferPool bufferPool = new BufferPool(4, 1024, 1024, 2048);
+
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.socket().bind(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), 0));
+
+			try (SocketChannel writer = SocketChannel
+					.open(server.getLocalAddress());
+					SocketChannel in = server.accept();
+					SocketChannel out = SocketChannel
+							.open(server.getLocalAddress());
+					SocketChannel reader = server.accept()) {
+
+				try {
+					copy(in.socket(), out.socket(), bufferPool, 3);
+					fail("Copied over the memory limit");
+				} catch (final IOException e) {
+				}
+
+				assertTrue(in.socket().isClosed());
+				assertTrue(out.socket().isClosed());
+				assertEquals(1, bufferPool.getRefused());
+				assertEquals(2, bufferPool.getPooled());
+				assertEquals(2048, bufferPool.getReservedBytes());
+			}
+		}
+	}
+
+	private void assertCopyChannels(final int coalesceBuffers)
+			throws IOException {
+		final BufferPool bufferPool = new BufferPool(coalesceBuffers, 1024);
+
+		try (ServerSocketChannel server = ServerSocketChannel.open()) {
+			server.socket().bind(new InetSocketAddress(
+					InetAddress.getLoopbackAddress(), 0));
+
+			try (SocketChannel writer = SocketChannel
+					.open(server.getLocalAddress());
+					SocketChannel in = server.accept();
+					SocketChannel out = SocketChannel
+							.open(server.getLocalAddress());
+					SocketChannel reader = server.accept()) {
+
+				writer.write(ByteBuffer.wrap(TEST_BYTES));
+				writer.shutdownOutput();
+
+				copy(in.socket(), out.socket(), bufferPool, coalesceBuffers);
+
+				final ByteBuffer result = ByteBuffer
+						.allocate(TEST_BYTES.length);
+				while (result.hasRemaining() && (reader.read(result) != -1)) {
+				}
+
+				assertArrayEquals(TEST_BYTES, result.array());
+				assertEquals(coalesceBuffers, bufferPool.getPooled());
+			}
+		}
+	}
 }
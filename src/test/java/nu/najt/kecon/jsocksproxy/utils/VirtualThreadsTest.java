@@ -0,0 +1,58 @@
+/**
+ * JSocksProxy Copyright (c) 2006-2017 Kenny Colliander Nordin
+ * 
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * 
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ * 
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package nu.najt.kecon.jsocksproxy.utils;
+
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Testing <code>VirtualThreads</code>
+ * 
+ * @author Kenny Colliander Nordin
+ * @since 3.0
+ */
+public class VirtualThreadsTest {
+
+	@Test
+	public void testNewExecutor() throws Exception {
+		try {
+			Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+		} catch (final NoSuchMethodException e) {
+			assertNull(VirtualThreads.newExecutor());
+			return;
+		}
+
+		final ExecutorService executor = VirtualThreads.newExecutor();
+		if (executor == null) {
+			// Virtual threads are a preview feature which is not enabled
+			return;
+		}
+
+		try {
+			final Future<String> result = executor
+					.submit(() -> Thread.currentThread().toString());
+			assertTrue(result.get().startsWith("VirtualThread"));
+		} finally {
+			executor.shutdown();
+		}
+	}
+}